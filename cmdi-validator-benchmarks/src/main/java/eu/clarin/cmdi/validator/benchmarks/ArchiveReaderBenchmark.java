@@ -0,0 +1,215 @@
+/**
+ * This software is copyright (c) 2014 by
+ *  - Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ * This is free software. You can redistribute it
+ * and/or modify it under the terms described in
+ * the GNU General Public License v3 of which you
+ * should have received a copy. Otherwise you can download
+ * it from
+ *
+ *   http://www.gnu.org/licenses/gpl-3.0.txt
+ *
+ * @copyright Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ *
+ * @license http://www.gnu.org/licenses/gpl-3.0.txt
+ *  GNU General Public License v3
+ */
+package eu.clarin.cmdi.validator.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.java.truevfs.access.TFile;
+import net.java.truevfs.access.TFileInputStream;
+import net.java.truevfs.access.TVFS;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import eu.clarin.cmdi.validator.CMDIValidationHandlerAdapter;
+import eu.clarin.cmdi.validator.CMDIValidator;
+import eu.clarin.cmdi.validator.CMDIValidatorConfig;
+import eu.clarin.cmdi.validator.CMDIValidatorException;
+import eu.clarin.cmdi.validator.CMDIValidatorInitException;
+import eu.clarin.cmdi.validator.ThreadedCMDIValidatorProcessor;
+import eu.clarin.cmdi.validator.utils.ZipArchive;
+
+
+/*
+ * Throughput (files per second) of reading a ZIP corpus through TrueVFS
+ * compared to reading it directly, for a sweep of thread counts:
+ *
+ *   readEntries      only read and inflate all entries; the threads take
+ *                    the entries from a shared counter
+ *   validateArchive  validate the archive with the threaded processor
+ *                    (without Schematron), either mounted through TrueVFS
+ *                    or with direct archive access
+ *
+ * With TrueVFS, the archive is mounted once and unmounted after the trial,
+ * so the central directory is only read in the first invocation.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ArchiveReaderBenchmark {
+    private static final int FILE_COUNT  = 5000;
+    private static final int PROXY_COUNT = 16;
+    @Param({ "truevfs", "direct" })
+    public String reader;
+    @Param({ "1", "4", "16" })
+    public int threads;
+    private BenchmarkCorpus corpus;
+    private ExecutorService executor;
+    private ThreadedCMDIValidatorProcessor processor;
+    private ZipArchive archive;
+    private List<ZipArchive.Entry> entries;
+    private List<TFile> files;
+    private Handler handler;
+    private CMDIValidator validator;
+
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        if (!"truevfs".equals(reader) && !"direct".equals(reader)) {
+            throw new IllegalArgumentException("unknown reader: " + reader);
+        }
+        corpus = new BenchmarkCorpus(FILE_COUNT, 4, PROXY_COUNT,
+                CorpusGenerator.Layout.ZIP);
+        executor = Executors.newFixedThreadPool(threads);
+        processor = new ThreadedCMDIValidatorProcessor(threads);
+        processor.start();
+        if ("direct".equals(reader)) {
+            archive = new ZipArchive(corpus.getCorpus());
+            entries = new ArrayList<ZipArchive.Entry>(FILE_COUNT);
+            for (ZipArchive.Entry entry : archive.getEntries()) {
+                if (!entry.isDirectory()) {
+                    entries.add(entry);
+                }
+            }
+        } else {
+            files = new ArrayList<TFile>(FILE_COUNT);
+            for (int i = 0; i < FILE_COUNT; i++) {
+                files.add(new TFile(corpus.getCorpus(),
+                        CorpusGenerator.getPath(i)));
+            }
+        }
+    }
+
+
+    @Setup(Level.Invocation)
+    public void createValidator() throws CMDIValidatorInitException {
+        handler = new Handler();
+        final CMDIValidatorConfig.Builder builder = corpus.newConfig(handler);
+        builder.disableSchematron();
+        builder.retainMessageCauses(false);
+        builder.directArchiveAccess("direct".equals(reader));
+        validator = new CMDIValidator(builder.build());
+    }
+
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        executor.shutdownNow();
+        processor.shutdown();
+        if (archive != null) {
+            archive.close();
+        }
+        TVFS.umount();
+        corpus.close();
+    }
+
+
+    @Benchmark
+    @OperationsPerInvocation(FILE_COUNT)
+    public long readEntries() throws InterruptedException, ExecutionException {
+        final AtomicInteger next = new AtomicInteger();
+        final List<Future<Long>> futures = new ArrayList<Future<Long>>(threads);
+        for (int i = 0; i < threads; i++) {
+            futures.add(executor.submit(new Callable<Long>() {
+                @Override
+                public Long call() throws IOException {
+                    final byte[] buffer = new byte[8192];
+                    long bytes = 0;
+                    int idx;
+                    while ((idx = next.getAndIncrement()) < FILE_COUNT) {
+                        final InputStream in = (archive != null)
+                                ? archive.openStream(entries.get(idx))
+                                : new TFileInputStream(files.get(idx));
+                        try {
+                            int n;
+                            while ((n = in.read(buffer)) != -1) {
+                                bytes += n;
+                            }
+                        } finally {
+                            in.close();
+                        }
+                    }
+                    return bytes;
+                }
+            }));
+        }
+        long bytes = 0;
+        for (Future<Long> future : futures) {
+            bytes += future.get();
+        }
+        return bytes;
+    }
+
+
+    @Benchmark
+    @OperationsPerInvocation(FILE_COUNT)
+    public void validateArchive() throws CMDIValidatorException,
+            InterruptedException {
+        processor.process(validator);
+        handler.await();
+        if (handler.result != CMDIValidator.Result.OK) {
+            throw new CMDIValidatorException("validation failed: " +
+                    handler.result);
+        }
+    }
+
+
+    private static final class Handler extends CMDIValidationHandlerAdapter {
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private volatile CMDIValidator.Result result;
+
+
+        @Override
+        public void onJobFinished(CMDIValidator.Result result)
+                throws CMDIValidatorException {
+            this.result = result;
+            latch.countDown();
+        }
+
+
+        private void await() throws InterruptedException {
+            latch.await();
+        }
+    } // class Handler
+
+} // class ArchiveReaderBenchmark
@@ -0,0 +1,183 @@
+/**
+ * This software is copyright (c) 2014 by
+ *  - Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ * This is free software. You can redistribute it
+ * and/or modify it under the terms described in
+ * the GNU General Public License v3 of which you
+ * should have received a copy. Otherwise you can download
+ * it from
+ *
+ *   http://www.gnu.org/licenses/gpl-3.0.txt
+ *
+ * @copyright Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ *
+ * @license http://www.gnu.org/licenses/gpl-3.0.txt
+ *  GNU General Public License v3
+ */
+package eu.clarin.cmdi.validator.benchmarks;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import eu.clarin.cmdi.validator.CMDISchemaLoader;
+import eu.clarin.cmdi.validator.CMDIValidationHandler;
+import eu.clarin.cmdi.validator.CMDIValidatorConfig;
+import eu.clarin.cmdi.validator.utils.HandleResultStore;
+import eu.clarin.cmdi.validator.utils.SchemaLocationCatalog;
+
+
+/*
+ * A small, valid CMDI 1.1 corpus in a temporary directory for the
+ * benchmarks, created by the CorpusGenerator. The profile schemas are
+ * copied from the local schemas of the generator into the schema cache on
+ * first use. Every profile has its own schema location, which allows to
+ * exercise the grammar pool with more profiles than it caches. The handles
+ * referenced by the instances are pre-populated in the persistent handle
+ * store in the cache directory, so resolving them never touches the
+ * network.
+ */
+public final class BenchmarkCorpus implements Closeable {
+    public static final String CMD_NS = CorpusGenerator.CMD_1_1_NS;
+    private static final String HANDLE_STORE_FILE_NAME = "handles.db";
+    private final File directory;
+    private final File cacheDirectory;
+    private final CorpusGenerator generator;
+    private final SchemaLocationCatalog catalog;
+    private final List<String> schemaLocations;
+    private final List<File> files;
+
+
+    public BenchmarkCorpus(int fileCount, int profileCount, int proxyCount)
+            throws IOException {
+        this(fileCount, profileCount, proxyCount,
+                CorpusGenerator.Layout.DIRECTORY);
+    }
+
+
+    /*
+     * With the ZIP layout, the files are paths within the archive, that
+     * need to be accessed through TrueVFS.
+     */
+    public BenchmarkCorpus(int fileCount, int profileCount, int proxyCount,
+            CorpusGenerator.Layout layout) throws IOException {
+        if (proxyCount < 0) {
+            throw new IllegalArgumentException("proxyCount < 0");
+        }
+        this.directory = Files.createTempDirectory("bench-corpus-").toFile();
+        this.cacheDirectory = new File(directory, "cache");
+        if (!cacheDirectory.mkdir()) {
+            throw new IOException("error creating directory '" +
+                    cacheDirectory + "'");
+        }
+
+        this.generator = new CorpusGenerator.Builder(directory)
+            .fileCount(fileCount)
+            .profileCount(profileCount)
+            .cmd12Ratio(0)
+            .components(1, 0)
+            .proxies(proxyCount, proxyCount)
+            .handleCount(Math.max(1, fileCount * proxyCount / 2))
+            .errorRate(0)
+            .layout(layout)
+            .build();
+        generator.generate();
+        this.catalog = new SchemaLocationCatalog.Builder()
+            .load(generator.getCatalogFile())
+            .build();
+
+        final List<String> locations = new ArrayList<String>(profileCount);
+        for (int i = 0; i < profileCount; i++) {
+            locations.add(CorpusGenerator.getSchemaLocation(i, false));
+        }
+        this.schemaLocations = Collections.unmodifiableList(locations);
+
+        final HandleResultStore store = new HandleResultStore(
+                new File(cacheDirectory, HANDLE_STORE_FILE_NAME),
+                TimeUnit.DAYS.toMillis(1), TimeUnit.DAYS.toMillis(1));
+        for (int i = 0; i < generator.getHandleCount(); i++) {
+            store.put(CorpusGenerator.handle(i), 200);
+        }
+        store.close();
+
+        final List<File> files = new ArrayList<File>(fileCount);
+        for (int i = 0; i < fileCount; i++) {
+            files.add(new File(generator.getCorpus(),
+                    CorpusGenerator.getPath(i)));
+        }
+        this.files = Collections.unmodifiableList(files);
+    }
+
+
+    /*
+     * The corpus directory or archive.
+     */
+    public File getCorpus() {
+        return generator.getCorpus();
+    }
+
+
+    public File getCacheDirectory() {
+        return cacheDirectory;
+    }
+
+
+    public SchemaLocationCatalog getCatalog() {
+        return catalog;
+    }
+
+
+    public List<File> getFiles() {
+        return files;
+    }
+
+
+    public List<String> getSchemaLocations() {
+        return schemaLocations;
+    }
+
+
+    /*
+     * A configuration for validating the corpus, with the schema and handle
+     * caches of the corpus.
+     */
+    public CMDIValidatorConfig.Builder newConfig(
+            CMDIValidationHandler handler) {
+        return new CMDIValidatorConfig.Builder(getCorpus(), handler)
+            .schemaCacheDirectory(cacheDirectory)
+            .schemaLocationCanonicalizer(catalog);
+    }
+
+
+    /*
+     * A schema loader using the schema cache of the corpus.
+     */
+    public CMDISchemaLoader newSchemaLoader() {
+        return new CMDISchemaLoader(cacheDirectory,
+                CMDISchemaLoader.DISABLE_CACHE_AGING,
+                TimeUnit.HOURS.toMillis(1), 60000, 60000, catalog);
+    }
+
+
+    @Override
+    public void close() {
+        delete(directory);
+    }
+
+
+    private static void delete(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+} // class BenchmarkCorpus
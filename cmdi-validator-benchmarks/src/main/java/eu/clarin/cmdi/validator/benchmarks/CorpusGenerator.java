@@ -0,0 +1,801 @@
+/**
+ * This software is copyright (c) 2014 by
+ *  - Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ * This is free software. You can redistribute it
+ * and/or modify it under the terms described in
+ * the GNU General Public License v3 of which you
+ * should have received a copy. Otherwise you can download
+ * it from
+ *
+ *   http://www.gnu.org/licenses/gpl-3.0.txt
+ *
+ * @copyright Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ *
+ * @license http://www.gnu.org/licenses/gpl-3.0.txt
+ *  GNU General Public License v3
+ */
+package eu.clarin.cmdi.validator.benchmarks;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+
+/*
+ * Generates a synthetic corpus of CMDI 1.1 and 1.2 instances for
+ * performance and regression testing, together with matching local
+ * schemas. The output directory contains:
+ *
+ *   corpus/ or corpus.zip  the instances, 1000 per directory
+ *   schemas/               the profile schemas and the CMDI 1.2 envelope
+ *   catalog.xml            an OASIS catalog, that maps the schema locations
+ *                          of the instances to the local schemas (use with
+ *                          the "-C" option of the validator tool or
+ *                          SchemaLocationCatalog)
+ *   errors.tsv             the files with injected errors
+ *
+ * The schema locations use a reserved domain, so nothing is ever fetched
+ * from the network by accident. Generation is deterministic for a given
+ * seed: each file is generated from its own random number generator, so
+ * a larger corpus starts with the files of a smaller one. Files are
+ * streamed to disk, so corpora of millions of files can be generated.
+ *
+ * Instance size follows a log-normal distribution of the number of
+ * components (median and sigma); the number of ResourceProxy elements is
+ * uniform within a range and the ResourceRefs are drawn uniformly from a
+ * pool of handles (see handle()).
+ */
+public final class CorpusGenerator {
+    public static final String SCHEMA_BASE_URI =
+            "http://schemas.cmdi-generator.invalid/";
+    public static final String CMD_1_1_NS = "http://www.clarin.eu/cmd/";
+    public static final String CMD_1_2_NS = "http://www.clarin.eu/cmd/1";
+    public static final String CMD_1_2_PROFILE_NS =
+            "http://www.clarin.eu/cmd/1/profiles/";
+    public static final String CORPUS_DIRECTORY_NAME = "corpus";
+    public static final String CORPUS_ZIP_NAME = "corpus.zip";
+    public static final String SCHEMA_DIRECTORY_NAME = "schemas";
+    public static final String CATALOG_FILE_NAME = "catalog.xml";
+    public static final String ERRORS_FILE_NAME = "errors.tsv";
+    private static final String HANDLE_PREFIX =
+            "http://hdl.handle.net/11022/0000-";
+    private static final String ENVELOPE_1_2 = "cmd-envelop-1.2.xsd";
+    private static final String XML_DECLARATION =
+            "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n";
+    private static final String XSI_NS =
+            "http://www.w3.org/2001/XMLSchema-instance";
+    private static final int FILES_PER_DIRECTORY = 1000;
+    private static final int MAX_COMPONENTS = 10000;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String[] WORDS = {
+        "archive", "corpus", "speech", "recording", "interview", "dialect",
+        "annotation", "transcription", "lexicon", "grammar", "language",
+        "session", "speaker", "text", "collection", "metadata", "resource",
+        "field", "study", "survey", "region", "village", "narrative", "song"
+    };
+
+    public enum Layout {
+        DIRECTORY, ZIP;
+    } // enum Layout
+
+    public enum ErrorType {
+        /* a required element is missing */
+        MISSING_ELEMENT,
+        /* an element, that is not declared in the schema */
+        UNEXPECTED_ELEMENT,
+        /* a value not matching its simple type */
+        INVALID_VALUE,
+        /* two ResourceProxy elements with the same id */
+        DUPLICATE_ID,
+        /* a ResourceRef, that is not a valid handle */
+        INVALID_HANDLE,
+        /* the document is truncated */
+        NOT_WELL_FORMED;
+    } // enum ErrorType
+    private final File directory;
+    private final int fileCount;
+    private final int profileCount;
+    private final double cmd12Ratio;
+    private final int medianComponents;
+    private final double componentSigma;
+    private final int minProxies;
+    private final int maxProxies;
+    private final int handleCount;
+    private final double errorRate;
+    private final Layout layout;
+    private final long seed;
+
+
+    private CorpusGenerator(Builder builder) {
+        this.directory        = builder.directory;
+        this.fileCount        = builder.fileCount;
+        this.profileCount     = builder.profileCount;
+        this.cmd12Ratio       = builder.cmd12Ratio;
+        this.medianComponents = builder.medianComponents;
+        this.componentSigma   = builder.componentSigma;
+        this.minProxies       = builder.minProxies;
+        this.maxProxies       = builder.maxProxies;
+        this.handleCount      = builder.handleCount;
+        this.errorRate        = builder.errorRate;
+        this.layout           = builder.layout;
+        this.seed             = builder.seed;
+    }
+
+
+    public File getDirectory() {
+        return directory;
+    }
+
+
+    public int getFileCount() {
+        return fileCount;
+    }
+
+
+    public int getHandleCount() {
+        return handleCount;
+    }
+
+
+    /*
+     * the corpus directory or ZIP archive
+     */
+    public File getCorpus() {
+        return new File(directory, (layout == Layout.ZIP)
+                ? CORPUS_ZIP_NAME
+                : CORPUS_DIRECTORY_NAME);
+    }
+
+
+    public File getSchemaDirectory() {
+        return new File(directory, SCHEMA_DIRECTORY_NAME);
+    }
+
+
+    public File getCatalogFile() {
+        return new File(directory, CATALOG_FILE_NAME);
+    }
+
+
+    /*
+     * path of a file relative to the corpus directory or archive
+     */
+    public static String getPath(int idx) {
+        return String.format(Locale.ENGLISH, "%05d/record-%08d.xml",
+                idx / FILES_PER_DIRECTORY, idx);
+    }
+
+
+    /*
+     * the handle with the given index in the handle pool
+     */
+    public static URI handle(int idx) {
+        return URI.create(String.format(Locale.ENGLISH, "%s%08X",
+                HANDLE_PREFIX, idx));
+    }
+
+
+    public static String getProfileId(int profile) {
+        return String.format(Locale.ENGLISH, "clarin.eu:cr1:p_%013d",
+                1000000000000L + profile);
+    }
+
+
+    /*
+     * the schema location of a profile as used by the instances
+     */
+    public static String getSchemaLocation(int profile, boolean cmd12) {
+        return SCHEMA_BASE_URI + getSchemaFileName(profile, cmd12);
+    }
+
+
+    public void generate() throws IOException {
+        final File schemaDirectory = getSchemaDirectory();
+        mkdirs(schemaDirectory);
+        writeSchemas(schemaDirectory);
+        writeCatalog(getCatalogFile(), schemaDirectory);
+
+        final Writer errors = newWriter(new File(directory, ERRORS_FILE_NAME));
+        try {
+            if (layout == Layout.ZIP) {
+                generateZip(errors);
+            } else {
+                generateDirectory(errors);
+            }
+        } finally {
+            errors.close();
+        }
+    }
+
+
+    private void generateDirectory(Writer errors) throws IOException {
+        final File corpus = getCorpus();
+        final StringBuilder sb = new StringBuilder(BUFFER_SIZE);
+        File parent = null;
+        for (int i = 0; i < fileCount; i++) {
+            final File file = new File(corpus, getPath(i));
+            if (!file.getParentFile().equals(parent)) {
+                parent = file.getParentFile();
+                mkdirs(parent);
+            }
+            final ErrorType error = generateInstance(sb, i);
+            if (error != null) {
+                errors.write(getPath(i) + "\t" + error + "\n");
+            }
+            final OutputStream out = new FileOutputStream(file);
+            try {
+                out.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+
+    private void generateZip(Writer errors) throws IOException {
+        final ZipOutputStream out = new ZipOutputStream(
+                new BufferedOutputStream(new FileOutputStream(getCorpus()),
+                        BUFFER_SIZE));
+        try {
+            final StringBuilder sb = new StringBuilder(BUFFER_SIZE);
+            for (int i = 0; i < fileCount; i++) {
+                final ErrorType error = generateInstance(sb, i);
+                if (error != null) {
+                    errors.write(getPath(i) + "\t" + error + "\n");
+                }
+                out.putNextEntry(new ZipEntry(getPath(i)));
+                out.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+                out.closeEntry();
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+
+    /*
+     * Generate the instance with the given index into the buffer. Returns
+     * the injected error or null.
+     */
+    private ErrorType generateInstance(StringBuilder sb, int idx) {
+        final Random random = new Random(seed * 0x9E3779B97F4A7C15L + idx);
+        final int profile = random.nextInt(profileCount);
+        final boolean cmd12 = random.nextDouble() < cmd12Ratio;
+        int components;
+        if (componentSigma > 0) {
+            components = (int) Math.round(medianComponents *
+                    Math.exp(componentSigma * random.nextGaussian()));
+        } else {
+            components = medianComponents;
+        }
+        components = Math.max(1, Math.min(MAX_COMPONENTS, components));
+        final int proxies = minProxies +
+                random.nextInt(maxProxies - minProxies + 1);
+        final ErrorType error = (random.nextDouble() < errorRate)
+                ? ErrorType.values()[random.nextInt(ErrorType.values().length)]
+                : null;
+
+        final String ns = cmd12 ? CMD_1_2_NS : CMD_1_1_NS;
+        sb.setLength(0);
+        sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        sb.append("<cmd:CMD xmlns:cmd=\"").append(ns)
+            .append("\" xmlns:xsi=\"").append(XSI_NS);
+        if (cmd12) {
+            sb.append("\" xmlns:cmdp=\"").append(CMD_1_2_PROFILE_NS)
+                .append(getProfileId(profile))
+                .append("\" CMDVersion=\"1.2\" xsi:schemaLocation=\"")
+                .append(CMD_1_2_NS).append(' ')
+                .append(SCHEMA_BASE_URI).append(ENVELOPE_1_2).append(' ')
+                .append(CMD_1_2_PROFILE_NS).append(getProfileId(profile))
+                .append(' ').append(getSchemaLocation(profile, true))
+                .append("\">\n");
+        } else {
+            sb.append("\" CMDVersion=\"1.1\" xsi:schemaLocation=\"")
+                .append(CMD_1_1_NS).append(' ')
+                .append(getSchemaLocation(profile, false))
+                .append("\">\n");
+        }
+
+        sb.append("  <cmd:Header>\n");
+        sb.append("    <cmd:MdCreator>cmdi-generator</cmd:MdCreator>\n");
+        sb.append("    <cmd:MdCreationDate>")
+            .append((error == ErrorType.INVALID_VALUE)
+                    ? "yesterday"
+                    : "2020-01-01")
+            .append("</cmd:MdCreationDate>\n");
+        sb.append("    <cmd:MdSelfLink>").append(HANDLE_PREFIX)
+            .append(String.format(Locale.ENGLISH, "SELF-%08X", idx))
+            .append("</cmd:MdSelfLink>\n");
+        sb.append("    <cmd:MdProfile>").append(getProfileId(profile))
+            .append("</cmd:MdProfile>\n");
+        sb.append("  </cmd:Header>\n");
+
+        sb.append("  <cmd:Resources>\n");
+        sb.append("    <cmd:ResourceProxyList>\n");
+        for (int i = 0; i < proxies; i++) {
+            appendResourceProxy(sb, "r" + i,
+                    handle(random.nextInt(handleCount)).toString());
+        }
+        if (error == ErrorType.DUPLICATE_ID) {
+            appendResourceProxy(sb, "r0",
+                    handle(random.nextInt(handleCount)).toString());
+            appendResourceProxy(sb, "r0",
+                    handle(random.nextInt(handleCount)).toString());
+        } else if (error == ErrorType.INVALID_HANDLE) {
+            appendResourceProxy(sb, "invalid",
+                    "hdl:11022/0000-" + idx + " (invalid)");
+        }
+        sb.append("    </cmd:ResourceProxyList>\n");
+        sb.append("    <cmd:JournalFileProxyList/>\n");
+        sb.append("    <cmd:ResourceRelationList/>\n");
+        sb.append("  </cmd:Resources>\n");
+
+        final String prefix = cmd12 ? "cmdp:" : "cmd:";
+        sb.append("  <cmd:Components>\n");
+        sb.append("    <").append(prefix).append(getRootName(profile))
+            .append(">\n");
+        for (int i = 0; i < components; i++) {
+            sb.append("      <").append(prefix).append("Item>\n");
+            if (!((error == ErrorType.MISSING_ELEMENT) && (i == 0))) {
+                sb.append("        <").append(prefix).append("Title>");
+                appendWords(sb, random, 2 + random.nextInt(6));
+                sb.append("</").append(prefix).append("Title>\n");
+            }
+            sb.append("        <").append(prefix).append("Description>");
+            appendWords(sb, random, 5 + random.nextInt(60));
+            sb.append("</").append(prefix).append("Description>\n");
+            if ((error == ErrorType.UNEXPECTED_ELEMENT) && (i == 0)) {
+                sb.append("        <").append(prefix)
+                    .append("Unexpected>value</").append(prefix)
+                    .append("Unexpected>\n");
+            }
+            sb.append("      </").append(prefix).append("Item>\n");
+        }
+        sb.append("    </").append(prefix).append(getRootName(profile))
+            .append(">\n");
+        sb.append("  </cmd:Components>\n");
+        if (error == ErrorType.NOT_WELL_FORMED) {
+            /* drop the end tag of the root element */
+            return error;
+        }
+        sb.append("</cmd:CMD>\n");
+        return error;
+    }
+
+
+    private static void appendResourceProxy(StringBuilder sb, String id,
+            String ref) {
+        sb.append("      <cmd:ResourceProxy id=\"").append(id).append("\">")
+            .append("<cmd:ResourceType>Resource</cmd:ResourceType>")
+            .append("<cmd:ResourceRef>").append(ref)
+            .append("</cmd:ResourceRef></cmd:ResourceProxy>\n");
+    }
+
+
+    private static void appendWords(StringBuilder sb, Random random,
+            int count) {
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                sb.append(' ');
+            }
+            sb.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+    }
+
+
+    private void writeSchemas(File schemaDirectory) throws IOException {
+        Writer out = newWriter(new File(schemaDirectory, ENVELOPE_1_2));
+        try {
+            writeEnvelope(out, CMD_1_2_NS, null);
+        } finally {
+            out.close();
+        }
+        for (int i = 0; i < profileCount; i++) {
+            out = newWriter(new File(schemaDirectory,
+                    getSchemaFileName(i, false)));
+            try {
+                writeEnvelope(out, CMD_1_1_NS, getRootName(i));
+            } finally {
+                out.close();
+            }
+            out = newWriter(new File(schemaDirectory,
+                    getSchemaFileName(i, true)));
+            try {
+                out.write(XML_DECLARATION);
+                out.write("<xs:schema xmlns:xs=\"http://www.w3.org/2001/XMLSchema\" targetNamespace=\"" +
+                        CMD_1_2_PROFILE_NS + getProfileId(i) +
+                        "\" elementFormDefault=\"qualified\">\n");
+                writeProfileElement(out, getRootName(i));
+                out.write("</xs:schema>\n");
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+
+    /*
+     * The CMDI envelope. For CMDI 1.1 the profile is part of the envelope
+     * schema, for CMDI 1.2 the components are in the namespace of the
+     * profile and validated by its own schema.
+     */
+    private static void writeEnvelope(Writer out, String ns, String rootName)
+            throws IOException {
+        out.write(XML_DECLARATION);
+        out.write("<xs:schema xmlns:xs=\"http://www.w3.org/2001/XMLSchema\" xmlns=\"" +
+                ns + "\" targetNamespace=\"" + ns +
+                "\" elementFormDefault=\"qualified\">\n");
+        out.write("  <xs:element name=\"CMD\">\n" +
+                "    <xs:complexType>\n" +
+                "      <xs:sequence>\n" +
+                "        <xs:element name=\"Header\">\n" +
+                "          <xs:complexType>\n" +
+                "            <xs:sequence>\n" +
+                "              <xs:element name=\"MdCreator\" type=\"xs:string\" minOccurs=\"0\" maxOccurs=\"unbounded\"/>\n" +
+                "              <xs:element name=\"MdCreationDate\" type=\"xs:date\" minOccurs=\"0\"/>\n" +
+                "              <xs:element name=\"MdSelfLink\" type=\"xs:anyURI\" minOccurs=\"0\"/>\n" +
+                "              <xs:element name=\"MdProfile\" type=\"xs:string\"/>\n" +
+                "            </xs:sequence>\n" +
+                "          </xs:complexType>\n" +
+                "        </xs:element>\n" +
+                "        <xs:element name=\"Resources\">\n" +
+                "          <xs:complexType>\n" +
+                "            <xs:sequence>\n" +
+                "              <xs:element name=\"ResourceProxyList\">\n" +
+                "                <xs:complexType>\n" +
+                "                  <xs:sequence>\n" +
+                "                    <xs:element name=\"ResourceProxy\" minOccurs=\"0\" maxOccurs=\"unbounded\">\n" +
+                "                      <xs:complexType>\n" +
+                "                        <xs:sequence>\n" +
+                "                          <xs:element name=\"ResourceType\" type=\"xs:string\"/>\n" +
+                "                          <xs:element name=\"ResourceRef\" type=\"xs:anyURI\"/>\n" +
+                "                        </xs:sequence>\n" +
+                "                        <xs:attribute name=\"id\" type=\"xs:ID\" use=\"required\"/>\n" +
+                "                      </xs:complexType>\n" +
+                "                    </xs:element>\n" +
+                "                  </xs:sequence>\n" +
+                "                </xs:complexType>\n" +
+                "              </xs:element>\n" +
+                "              <xs:element name=\"JournalFileProxyList\"/>\n" +
+                "              <xs:element name=\"ResourceRelationList\"/>\n" +
+                "            </xs:sequence>\n" +
+                "          </xs:complexType>\n" +
+                "        </xs:element>\n" +
+                "        <xs:element name=\"Components\">\n" +
+                "          <xs:complexType>\n" +
+                "            <xs:sequence>\n");
+        if (rootName != null) {
+            out.write("              <xs:element ref=\"" + rootName +
+                    "\"/>\n");
+        } else {
+            out.write("              <xs:any namespace=\"##other\" processContents=\"strict\"/>\n");
+        }
+        out.write("            </xs:sequence>\n" +
+                "          </xs:complexType>\n" +
+                "        </xs:element>\n" +
+                "      </xs:sequence>\n" +
+                "      <xs:attribute name=\"CMDVersion\" type=\"xs:string\" use=\"required\"/>\n" +
+                "    </xs:complexType>\n" +
+                "  </xs:element>\n");
+        if (rootName != null) {
+            writeProfileElement(out, rootName);
+        }
+        out.write("</xs:schema>\n");
+    }
+
+
+    private static void writeProfileElement(Writer out, String rootName)
+            throws IOException {
+        out.write("  <xs:element name=\"" + rootName + "\">\n" +
+                "    <xs:complexType>\n" +
+                "      <xs:sequence>\n" +
+                "        <xs:element name=\"Item\" maxOccurs=\"unbounded\">\n" +
+                "          <xs:complexType>\n" +
+                "            <xs:sequence>\n" +
+                "              <xs:element name=\"Title\" type=\"xs:string\"/>\n" +
+                "              <xs:element name=\"Description\" type=\"xs:string\" minOccurs=\"0\"/>\n" +
+                "            </xs:sequence>\n" +
+                "          </xs:complexType>\n" +
+                "        </xs:element>\n" +
+                "      </xs:sequence>\n" +
+                "    </xs:complexType>\n" +
+                "  </xs:element>\n");
+    }
+
+
+    private static void writeCatalog(File file, File schemaDirectory)
+            throws IOException {
+        final Writer out = newWriter(file);
+        try {
+            out.write(XML_DECLARATION);
+            out.write("<catalog xmlns=\"urn:oasis:names:tc:entity:xmlns:xml:catalog\">\n");
+            out.write("  <rewriteURI uriStartString=\"" + SCHEMA_BASE_URI +
+                    "\" rewritePrefix=\"" +
+                    schemaDirectory.getAbsoluteFile().toURI() + "\"/>\n");
+            out.write("</catalog>\n");
+        } finally {
+            out.close();
+        }
+    }
+
+
+    private static String getSchemaFileName(int profile, boolean cmd12) {
+        return String.format(Locale.ENGLISH, "profile-%04d-%s.xsd", profile,
+                cmd12 ? "1.2" : "1.1");
+    }
+
+
+    private static String getRootName(int profile) {
+        return String.format(Locale.ENGLISH, "Profile%04d", profile);
+    }
+
+
+    private static Writer newWriter(File file) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(file), StandardCharsets.UTF_8));
+    }
+
+
+    private static void mkdirs(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("error creating directory '" +
+                    directory + "'");
+        }
+    }
+
+
+    public static class Builder {
+        private final File directory;
+        private int fileCount = 1000;
+        private int profileCount = 10;
+        private double cmd12Ratio = 0.5;
+        private int medianComponents = 4;
+        private double componentSigma = 1.0;
+        private int minProxies = 0;
+        private int maxProxies = 10;
+        private int handleCount = 100000;
+        private double errorRate = 0.1;
+        private Layout layout = Layout.DIRECTORY;
+        private long seed = 42;
+
+
+        public Builder(final File directory) {
+            if (directory == null) {
+                throw new NullPointerException("directory == null");
+            }
+            this.directory = directory;
+        }
+
+
+        public Builder fileCount(int fileCount) {
+            if (fileCount < 1) {
+                throw new IllegalArgumentException("fileCount < 1");
+            }
+            this.fileCount = fileCount;
+            return this;
+        }
+
+
+        public Builder profileCount(int profileCount) {
+            if (profileCount < 1) {
+                throw new IllegalArgumentException("profileCount < 1");
+            }
+            this.profileCount = profileCount;
+            return this;
+        }
+
+
+        /*
+         * fraction of CMDI 1.2 instances, the others are CMDI 1.1
+         */
+        public Builder cmd12Ratio(double cmd12Ratio) {
+            if ((cmd12Ratio < 0) || (cmd12Ratio > 1)) {
+                throw new IllegalArgumentException("cmd12Ratio not in [0, 1]");
+            }
+            this.cmd12Ratio = cmd12Ratio;
+            return this;
+        }
+
+
+        /*
+         * log-normal distribution of the number of components per
+         * instance; a sigma of 0 makes all instances the same size.
+         */
+        public Builder components(int median, double sigma) {
+            if (median < 1) {
+                throw new IllegalArgumentException("median < 1");
+            }
+            if (sigma < 0) {
+                throw new IllegalArgumentException("sigma < 0");
+            }
+            this.medianComponents = median;
+            this.componentSigma   = sigma;
+            return this;
+        }
+
+
+        public Builder proxies(int min, int max) {
+            if (min < 0) {
+                throw new IllegalArgumentException("min < 0");
+            }
+            if (max < min) {
+                throw new IllegalArgumentException("max < min");
+            }
+            this.minProxies = min;
+            this.maxProxies = max;
+            return this;
+        }
+
+
+        /*
+         * number of distinct handles referenced by the corpus
+         */
+        public Builder handleCount(int handleCount) {
+            if (handleCount < 1) {
+                throw new IllegalArgumentException("handleCount < 1");
+            }
+            this.handleCount = handleCount;
+            return this;
+        }
+
+
+        /*
+         * fraction of instances with an injected error
+         */
+        public Builder errorRate(double errorRate) {
+            if ((errorRate < 0) || (errorRate > 1)) {
+                throw new IllegalArgumentException("errorRate not in [0, 1]");
+            }
+            this.errorRate = errorRate;
+            return this;
+        }
+
+
+        public Builder layout(Layout layout) {
+            if (layout == null) {
+                throw new NullPointerException("layout == null");
+            }
+            this.layout = layout;
+            return this;
+        }
+
+
+        public Builder seed(long seed) {
+            this.seed = seed;
+            return this;
+        }
+
+
+        public CorpusGenerator build() {
+            return new CorpusGenerator(this);
+        }
+    } // class Builder
+
+
+    public static void main(String[] args) {
+        final Options options = new Options();
+        options.addOption(Option.builder().longOpt("files").hasArg()
+                .argName("COUNT").desc("number of files (default: 1000)")
+                .build());
+        options.addOption(Option.builder().longOpt("profiles").hasArg()
+                .argName("COUNT").desc("number of profiles (default: 10)")
+                .build());
+        options.addOption(Option.builder().longOpt("cmd12").hasArg()
+                .argName("RATIO")
+                .desc("fraction of CMDI 1.2 instances (default: 0.5)")
+                .build());
+        options.addOption(Option.builder().longOpt("components").hasArg()
+                .argName("MEDIAN")
+                .desc("median number of components per file (default: 4)")
+                .build());
+        options.addOption(Option.builder().longOpt("components-sigma")
+                .hasArg().argName("SIGMA")
+                .desc("sigma of the log-normal size distribution (default: 1.0)")
+                .build());
+        options.addOption(Option.builder().longOpt("min-proxies").hasArg()
+                .argName("COUNT")
+                .desc("minimum number of ResourceProxy elements (default: 0)")
+                .build());
+        options.addOption(Option.builder().longOpt("max-proxies").hasArg()
+                .argName("COUNT")
+                .desc("maximum number of ResourceProxy elements (default: 10)")
+                .build());
+        options.addOption(Option.builder().longOpt("handles").hasArg()
+                .argName("COUNT")
+                .desc("number of distinct handles (default: 100000)")
+                .build());
+        options.addOption(Option.builder().longOpt("error-rate").hasArg()
+                .argName("RATE")
+                .desc("fraction of files with an injected error (default: 0.1)")
+                .build());
+        options.addOption(Option.builder().longOpt("zip")
+                .desc("write the corpus as ZIP archive")
+                .build());
+        options.addOption(Option.builder().longOpt("seed").hasArg()
+                .argName("SEED").desc("random seed (default: 42)")
+                .build());
+        try {
+            final CommandLineParser parser = new DefaultParser();
+            final CommandLine line = parser.parse(options, args);
+            final String[] remaining = line.getArgs();
+            if ((remaining == null) || (remaining.length != 1)) {
+                throw new ParseException("require <DIRECTORY> as " +
+                        "additional command line parameter");
+            }
+            final Builder builder = new Builder(new File(remaining[0]));
+            if (line.hasOption("files")) {
+                builder.fileCount(
+                        Integer.parseInt(line.getOptionValue("files")));
+            }
+            if (line.hasOption("profiles")) {
+                builder.profileCount(
+                        Integer.parseInt(line.getOptionValue("profiles")));
+            }
+            if (line.hasOption("cmd12")) {
+                builder.cmd12Ratio(
+                        Double.parseDouble(line.getOptionValue("cmd12")));
+            }
+            builder.components(
+                    Integer.parseInt(line.getOptionValue("components", "4")),
+                    Double.parseDouble(
+                            line.getOptionValue("components-sigma", "1.0")));
+            builder.proxies(
+                    Integer.parseInt(line.getOptionValue("min-proxies", "0")),
+                    Integer.parseInt(line.getOptionValue("max-proxies", "10")));
+            if (line.hasOption("handles")) {
+                builder.handleCount(
+                        Integer.parseInt(line.getOptionValue("handles")));
+            }
+            if (line.hasOption("error-rate")) {
+                builder.errorRate(
+                        Double.parseDouble(line.getOptionValue("error-rate")));
+            }
+            if (line.hasOption("zip")) {
+                builder.layout(Layout.ZIP);
+            }
+            if (line.hasOption("seed")) {
+                builder.seed(Long.parseLong(line.getOptionValue("seed")));
+            }
+
+            final CorpusGenerator generator = builder.build();
+            mkdirs(generator.getDirectory());
+            final long started = System.currentTimeMillis();
+            generator.generate();
+            System.err.println("generated " + generator.getFileCount() +
+                    " files in " + (System.currentTimeMillis() - started) +
+                    " ms: " + generator.getCorpus());
+        } catch (ParseException e) {
+            System.err.println("error parsing command line arguments: " +
+                    e.getMessage());
+            new HelpFormatter().printHelp(
+                    "corpus-generator [OPTIONS...] <DIRECTORY>", options);
+            System.exit(64); /* EX_USAGE */
+        } catch (IllegalArgumentException e) {
+            System.err.println("invalid argument: " + e.getMessage());
+            System.exit(64); /* EX_USAGE */
+        } catch (IOException e) {
+            System.err.println("error generating corpus: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+} // class CorpusGenerator
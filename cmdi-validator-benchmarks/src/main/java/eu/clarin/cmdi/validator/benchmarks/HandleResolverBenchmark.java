@@ -0,0 +1,143 @@
+/**
+ * This software is copyright (c) 2014 by
+ *  - Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ * This is free software. You can redistribute it
+ * and/or modify it under the terms described in
+ * the GNU General Public License v3 of which you
+ * should have received a copy. Otherwise you can download
+ * it from
+ *
+ *   http://www.gnu.org/licenses/gpl-3.0.txt
+ *
+ * @copyright Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ *
+ * @license http://www.gnu.org/licenses/gpl-3.0.txt
+ *  GNU General Public License v3
+ */
+package eu.clarin.cmdi.validator.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import eu.clarin.cmdi.validator.utils.HandleResolver;
+import eu.clarin.cmdi.validator.utils.HandleResultStore;
+import eu.clarin.cmdi.validator.utils.LRUCache;
+
+
+/*
+ * Measures the cache hit path of the handle resolver, which is what
+ * dominates once the caches are warm. "synchronizedLRUCache" is the
+ * previous design (one monitor around an access-ordered LinkedHashMap) as
+ * a baseline. No network access is performed: the resolver is warmed up
+ * from a pre-populated persistent store.
+ *
+ * Run the thread sweep with:
+ *   java -cp target/benchmarks.jar \
+ *     eu.clarin.cmdi.validator.benchmarks.HandleResolverBenchmark
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HandleResolverBenchmark {
+    private static final int HANDLE_COUNT = 8 * 1024;
+    private static final int[] THREAD_COUNTS = { 1, 2, 4, 8, 16, 32, 64 };
+    private File cacheDirectory;
+    private URI[] handles;
+    private HandleResolver resolver;
+    private LRUCache<URI, Integer> lruCache;
+
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        handles = new URI[HANDLE_COUNT];
+        for (int i = 0; i < handles.length; i++) {
+            handles[i] = URI.create("http://hdl.handle.net/11022/0000-0000-" +
+                    String.format("%04X", i));
+        }
+
+        cacheDirectory = Files.createTempDirectory("bench-hdl-").toFile();
+        final HandleResultStore store = new HandleResultStore(
+                new File(cacheDirectory, "handles.db"),
+                TimeUnit.DAYS.toMillis(1), TimeUnit.DAYS.toMillis(1));
+        for (URI handle : handles) {
+            store.put(handle, 200);
+        }
+        store.close();
+
+        resolver = new HandleResolver(8, cacheDirectory,
+                TimeUnit.DAYS.toMillis(1), TimeUnit.DAYS.toMillis(1));
+        lruCache = new LRUCache<URI, Integer>(16 * 1024);
+        for (URI handle : handles) {
+            resolver.resolve(handle);
+            lruCache.put(handle, Integer.valueOf(200));
+        }
+    }
+
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        final File[] files = cacheDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        cacheDirectory.delete();
+    }
+
+
+    @Benchmark
+    public int resolver() throws IOException {
+        return resolver.resolve(nextHandle());
+    }
+
+
+    @Benchmark
+    public int synchronizedLRUCache() {
+        final URI handle = nextHandle();
+        synchronized (lruCache) {
+            return lruCache.get(handle).intValue();
+        }
+    }
+
+
+    private URI nextHandle() {
+        return handles[ThreadLocalRandom.current().nextInt(handles.length)];
+    }
+
+
+    public static void main(String[] args) throws RunnerException {
+        for (int threads : THREAD_COUNTS) {
+            final Options options = new OptionsBuilder()
+                    .include(HandleResolverBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .build();
+            new Runner(options).run();
+        }
+    }
+
+} // class HandleResolverBenchmark
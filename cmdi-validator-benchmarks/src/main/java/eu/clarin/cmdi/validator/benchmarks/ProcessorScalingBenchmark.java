@@ -0,0 +1,130 @@
+/**
+ * This software is copyright (c) 2014 by
+ *  - Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ * This is free software. You can redistribute it
+ * and/or modify it under the terms described in
+ * the GNU General Public License v3 of which you
+ * should have received a copy. Otherwise you can download
+ * it from
+ *
+ *   http://www.gnu.org/licenses/gpl-3.0.txt
+ *
+ * @copyright Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ *
+ * @license http://www.gnu.org/licenses/gpl-3.0.txt
+ *  GNU General Public License v3
+ */
+package eu.clarin.cmdi.validator.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import eu.clarin.cmdi.validator.CMDIValidationHandlerAdapter;
+import eu.clarin.cmdi.validator.CMDIValidator;
+import eu.clarin.cmdi.validator.CMDIValidatorConfig;
+import eu.clarin.cmdi.validator.CMDIValidatorException;
+import eu.clarin.cmdi.validator.CMDIValidatorInitException;
+import eu.clarin.cmdi.validator.ThreadedCMDIValidatorProcessor;
+
+
+/*
+ * End-to-end throughput (files per second) of the threaded processor for
+ * a sweep of thread counts. Each invocation validates the whole corpus
+ * with a new validator; creating the validator (e.g. compiling the
+ * Schematron rules) happens in the invocation setup and is not measured,
+ * but the grammars are compiled anew by each validator.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ProcessorScalingBenchmark {
+    private static final int FILE_COUNT  = 2000;
+    private static final int PROXY_COUNT = 16;
+    @Param({ "1", "2", "4", "8", "16" })
+    public int threads;
+    @Param({ "false", "true" })
+    public boolean schematron;
+    private BenchmarkCorpus corpus;
+    private ThreadedCMDIValidatorProcessor processor;
+    private Handler handler;
+    private CMDIValidator validator;
+
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        corpus = new BenchmarkCorpus(FILE_COUNT, 4, PROXY_COUNT);
+        processor = new ThreadedCMDIValidatorProcessor(threads);
+        processor.start();
+    }
+
+
+    @Setup(Level.Invocation)
+    public void createValidator() throws CMDIValidatorInitException {
+        handler = new Handler();
+        final CMDIValidatorConfig.Builder builder = corpus.newConfig(handler);
+        if (!schematron) {
+            builder.disableSchematron();
+        }
+        builder.retainMessageCauses(false);
+        validator = new CMDIValidator(builder.build());
+    }
+
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        processor.shutdown();
+        corpus.close();
+    }
+
+
+    @Benchmark
+    @OperationsPerInvocation(FILE_COUNT)
+    public void validateCorpus() throws CMDIValidatorException,
+            InterruptedException {
+        processor.process(validator);
+        handler.await();
+        if (handler.result != CMDIValidator.Result.OK) {
+            throw new CMDIValidatorException("validation failed: " +
+                    handler.result);
+        }
+    }
+
+
+    private static final class Handler extends CMDIValidationHandlerAdapter {
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private volatile CMDIValidator.Result result;
+
+
+        @Override
+        public void onJobFinished(CMDIValidator.Result result)
+                throws CMDIValidatorException {
+            this.result = result;
+            latch.countDown();
+        }
+
+
+        private void await() throws InterruptedException {
+            latch.await();
+        }
+    } // class Handler
+
+} // class ProcessorScalingBenchmark
@@ -0,0 +1,115 @@
+/**
+ * This software is copyright (c) 2014 by
+ *  - Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ * This is free software. You can redistribute it
+ * and/or modify it under the terms described in
+ * the GNU General Public License v3 of which you
+ * should have received a copy. Otherwise you can download
+ * it from
+ *
+ *   http://www.gnu.org/licenses/gpl-3.0.txt
+ *
+ * @copyright Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ *
+ * @license http://www.gnu.org/licenses/gpl-3.0.txt
+ *  GNU General Public License v3
+ */
+package eu.clarin.cmdi.validator.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import eu.clarin.cmdi.validator.CMDISchemaLoader;
+
+
+/*
+ * Measures the file cache hit path of the schema loader under contention,
+ * i.e. what every grammar pool miss costs once all schemas are in the
+ * cache. The stream is only opened and closed, so the benchmark is
+ * dominated by the cache index and its locking rather than by I/O.
+ *
+ * Run the thread sweep with:
+ *   java -cp target/benchmarks.jar \
+ *     eu.clarin.cmdi.validator.benchmarks.SchemaLoaderBenchmark
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SchemaLoaderBenchmark {
+    private static final int[] THREAD_COUNTS = { 1, 2, 4, 8, 16, 32 };
+    @Param({ "1", "32" })
+    public int profiles;
+    private BenchmarkCorpus corpus;
+    private CMDISchemaLoader schemaLoader;
+    private String[] schemaLocations;
+
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        corpus = new BenchmarkCorpus(1, profiles, 0);
+        schemaLoader = corpus.newSchemaLoader();
+        final List<String> locations = corpus.getSchemaLocations();
+        schemaLocations = locations.toArray(new String[locations.size()]);
+
+        /* load all schemas into the cache */
+        for (String schemaLocation : schemaLocations) {
+            load(schemaLocation);
+        }
+    }
+
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        corpus.close();
+    }
+
+
+    @Benchmark
+    public void loadSchemaFile() throws IOException {
+        load(schemaLocations[ThreadLocalRandom.current().nextInt(
+                schemaLocations.length)]);
+    }
+
+
+    private void load(String schemaLocation) throws IOException {
+        final InputStream stream = schemaLoader.loadSchemaFile(
+                BenchmarkCorpus.CMD_NS, schemaLocation);
+        stream.close();
+    }
+
+
+    public static void main(String[] args) throws RunnerException {
+        for (int threads : THREAD_COUNTS) {
+            final Options options = new OptionsBuilder()
+                    .include(SchemaLoaderBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .build();
+            new Runner(options).run();
+        }
+    }
+
+} // class SchemaLoaderBenchmark
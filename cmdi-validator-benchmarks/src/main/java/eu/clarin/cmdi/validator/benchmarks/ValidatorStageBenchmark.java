@@ -0,0 +1,163 @@
+/**
+ * This software is copyright (c) 2014 by
+ *  - Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ * This is free software. You can redistribute it
+ * and/or modify it under the terms described in
+ * the GNU General Public License v3 of which you
+ * should have received a copy. Otherwise you can download
+ * it from
+ *
+ *   http://www.gnu.org/licenses/gpl-3.0.txt
+ *
+ * @copyright Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ *
+ * @license http://www.gnu.org/licenses/gpl-3.0.txt
+ *  GNU General Public License v3
+ */
+package eu.clarin.cmdi.validator.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.saxon.s9api.XdmNode;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import eu.clarin.cmdi.validator.CMDISchemaLoader;
+import eu.clarin.cmdi.validator.CMDIValidationHandlerAdapter;
+import eu.clarin.cmdi.validator.CMDIValidator;
+import eu.clarin.cmdi.validator.CMDIValidatorConfig;
+import eu.clarin.cmdi.validator.CMDIValidatorException;
+import eu.clarin.cmdi.validator.CMDIValidatorExtension;
+import eu.clarin.cmdi.validator.CMDIValidatorInitException;
+import eu.clarin.cmdi.validator.CMDIWriteableValidationReport;
+import eu.clarin.cmdi.validator.SimpleCMDIValidatorProcessor;
+import eu.clarin.cmdi.validator.extensions.CheckHandlesExtension;
+
+
+/*
+ * Measures the average time to validate a file on a single thread, for
+ * different combinations of validation stages:
+ *
+ *   parse       parsing and schema validation, no tree is built
+ *   tree        parsing and schema validation, building a tree
+ *   schematron  tree plus Schematron validation
+ *   handles     parse plus PID syntax checks (streaming)
+ *   resolve     handles plus resolving PIDs from the pre-populated
+ *               persistent store (a stub resolver without network access)
+ *
+ * The cost of Schematron validation is the difference between "schematron"
+ * and "tree". Each invocation validates the whole corpus with a new
+ * validator, that is created in the invocation setup. The schema loader
+ * and the handle caches are shared by all validators and are warmed up
+ * before the measurement, but every validator compiles the grammars anew.
+ * The "profiles" parameter controls the number of distinct schema
+ * locations: with more profiles than the grammar pool caches, grammars
+ * have to be re-compiled from the schema cache.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ValidatorStageBenchmark {
+    private static final int FILE_COUNT  = 1024;
+    private static final int PROXY_COUNT = 16;
+    @Param({ "parse", "tree", "schematron", "handles", "resolve" })
+    public String stages;
+    @Param({ "1", "32" })
+    public int profiles;
+    private final SimpleCMDIValidatorProcessor processor =
+            new SimpleCMDIValidatorProcessor();
+    private BenchmarkCorpus corpus;
+    private CheckHandlesExtension checkHandlesExtension;
+    private CMDIValidatorConfig config;
+    private CMDIValidator validator;
+
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, CMDIValidatorException,
+            CMDIValidatorInitException {
+        corpus = new BenchmarkCorpus(FILE_COUNT, profiles, PROXY_COUNT);
+        final CMDISchemaLoader schemaLoader = corpus.newSchemaLoader();
+        final CMDIValidatorConfig.Builder builder =
+                corpus.newConfig(new CMDIValidationHandlerAdapter());
+        builder.schemaLoader(schemaLoader);
+        if ("parse".equals(stages)) {
+            builder.disableSchematron();
+        } else if ("tree".equals(stages)) {
+            builder.disableSchematron();
+            builder.extension(new TreeExtension());
+        } else if ("handles".equals(stages)) {
+            builder.disableSchematron();
+            checkHandlesExtension = new CheckHandlesExtension(false);
+            builder.extension(checkHandlesExtension);
+        } else if ("resolve".equals(stages)) {
+            builder.disableSchematron();
+            checkHandlesExtension = new CheckHandlesExtension(true,
+                    corpus.getCacheDirectory());
+            builder.extension(checkHandlesExtension);
+        } else if (!"schematron".equals(stages)) {
+            throw new IllegalArgumentException("unknown stages: " + stages);
+        }
+        builder.retainMessageCauses(false);
+        config = builder.build();
+
+        /* load the schemas and warm the handle caches */
+        processor.process(new CMDIValidator(config));
+    }
+
+
+    @Setup(Level.Invocation)
+    public void createValidator() throws CMDIValidatorInitException {
+        validator = new CMDIValidator(config);
+    }
+
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (checkHandlesExtension != null) {
+            checkHandlesExtension.close();
+        }
+        corpus.close();
+    }
+
+
+    @Benchmark
+    @OperationsPerInvocation(FILE_COUNT)
+    public void validate() throws CMDIValidatorException {
+        processor.process(validator);
+    }
+
+
+    /*
+     * does nothing, but makes the validator build a tree
+     */
+    private static final class TreeExtension extends CMDIValidatorExtension {
+        @Override
+        public void validate(XdmNode document,
+                CMDIWriteableValidationReport report)
+                throws CMDIValidatorException {
+        }
+
+
+        @Override
+        protected void doInitialize() throws CMDIValidatorInitException {
+        }
+    } // class TreeExtension
+
+} // class ValidatorStageBenchmark
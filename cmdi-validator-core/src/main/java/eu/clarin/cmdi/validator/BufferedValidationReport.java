@@ -0,0 +1,224 @@
+/**
+ * This software is copyright (c) 2014 by
+ *  - Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ * This is free software. You can redistribute it
+ * and/or modify it under the terms described in
+ * the GNU General Public License v3 of which you
+ * should have received a copy. Otherwise you can download
+ * it from
+ *
+ *   http://www.gnu.org/licenses/gpl-3.0.txt
+ *
+ * @copyright Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ *
+ * @license http://www.gnu.org/licenses/gpl-3.0.txt
+ *  GNU General Public License v3
+ */
+package eu.clarin.cmdi.validator;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/*
+ * The report of one validation stage, if stages run concurrently. Messages
+ * are buffered until the stage is merged into the document's report, so
+ * the order of messages does not depend on scheduling. Messages reported
+ * after the merge (by deferred, asynchronous checks) are passed on
+ * directly. Queries are answered by the document's report.
+ */
+final class BufferedValidationReport implements CMDIWriteableValidationReport {
+    private static final class Entry {
+        private final Severity severity;
+        private final int line;
+        private final int col;
+        private final String message;
+        private final Throwable cause;
+
+
+        private Entry(Severity severity, int line, int col, String message,
+                Throwable cause) {
+            this.severity = severity;
+            this.line     = line;
+            this.col      = col;
+            this.message  = message;
+            this.cause    = cause;
+        }
+    } // class Entry
+    private final CMDIWriteableValidationReport target;
+    private List<Entry> entries = new ArrayList<Entry>(8);
+
+
+    BufferedValidationReport(CMDIWriteableValidationReport target) {
+        if (target == null) {
+            throw new NullPointerException("target == null");
+        }
+        this.target = target;
+    }
+
+
+    /*
+     * Pass the buffered messages to the document's report. Must be called
+     * by the thread owning the document's report.
+     */
+    synchronized void merge() {
+        if (entries != null) {
+            for (Entry entry : entries) {
+                report(entry.severity, entry.line, entry.col, entry.message,
+                        entry.cause);
+            }
+            entries = null;
+        }
+    }
+
+
+    @Override
+    public File getFile() {
+        return target.getFile();
+    }
+
+
+    @Override
+    public String getSchemaLocation() {
+        return target.getSchemaLocation();
+    }
+
+
+    @Override
+    public void setFile(File file) {
+        throw new UnsupportedOperationException("setFile");
+    }
+
+
+    @Override
+    public boolean isSuccess() {
+        return target.isSuccess();
+    }
+
+
+    @Override
+    public boolean isWarning() {
+        return target.isWarning();
+    }
+
+
+    @Override
+    public boolean isFailed() {
+        return target.isFailed();
+    }
+
+
+    @Override
+    public Severity getHighestSeverity() {
+        return target.getHighestSeverity();
+    }
+
+
+    @Override
+    public boolean isHighestSeverity(Severity severity) {
+        return target.isHighestSeverity(severity);
+    }
+
+
+    @Override
+    public List<Message> getMessages() {
+        return target.getMessages();
+    }
+
+
+    @Override
+    public Message getFirstMessage() {
+        return target.getFirstMessage();
+    }
+
+
+    @Override
+    public Message getFirstMessage(Severity severity) {
+        return target.getFirstMessage(severity);
+    }
+
+
+    @Override
+    public int getMessageCount() {
+        return target.getMessageCount();
+    }
+
+
+    @Override
+    public int getMessageCount(Severity severity) {
+        return target.getMessageCount(severity);
+    }
+
+
+    @Override
+    public void reportInfo(int line, int col, String message) {
+        reportInfo(line, col, message, null);
+    }
+
+
+    @Override
+    public void reportInfo(int line, int col, String message,
+            Throwable cause) {
+        add(Severity.INFO, line, col, message, cause);
+    }
+
+
+    @Override
+    public void reportWarning(int line, int col, String message) {
+        reportWarning(line, col, message, null);
+    }
+
+
+    @Override
+    public void reportWarning(int line, int col, String message,
+            Throwable cause) {
+        add(Severity.WARNING, line, col, message, cause);
+    }
+
+
+    @Override
+    public void reportError(int line, int col, String message) {
+        reportError(line, col, message, null);
+    }
+
+
+    @Override
+    public void reportError(int line, int col, String message,
+            Throwable cause) {
+        add(Severity.ERROR, line, col, message, cause);
+    }
+
+
+    @Override
+    public Deferral defer() {
+        return target.defer();
+    }
+
+
+    private synchronized void add(Severity severity, int line, int col,
+            String message, Throwable cause) {
+        if (entries != null) {
+            entries.add(new Entry(severity, line, col, message, cause));
+        } else {
+            report(severity, line, col, message, cause);
+        }
+    }
+
+
+    private void report(Severity severity, int line, int col, String message,
+            Throwable cause) {
+        switch (severity) {
+        case INFO:
+            target.reportInfo(line, col, message, cause);
+            break;
+        case WARNING:
+            target.reportWarning(line, col, message, cause);
+            break;
+        default:
+            target.reportError(line, col, message, cause);
+            break;
+        } // switch
+    }
+
+} // class BufferedValidationReport
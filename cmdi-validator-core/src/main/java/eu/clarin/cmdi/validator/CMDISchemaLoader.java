@@ -17,17 +17,35 @@
 package eu.clarin.cmdi.validator;
 
 import java.io.File;
+import java.io.FileFilter;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.nio.channels.FileLock;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.xml.XMLConstants;
 
@@ -49,8 +67,129 @@ import org.apache.http.protocol.HttpContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import eu.clarin.cmdi.validator.utils.LatencyHistogram;
+
 public final class CMDISchemaLoader {
+    public enum EvictionPolicy {
+        LRU, LFU
+    }
+    public static final class Statistics {
+        private final long bundledHitCount;
+        private final long fileCacheHitCount;
+        private final long negativeCacheHitCount;
+        private final long downloadCount;
+        private final long downloadFailureCount;
+        private final long bytesDownloaded;
+        private final long pendingWaitCount;
+        private final int currentPendingCount;
+        private final int currentCacheSize;
+        private final long currentCacheBytes;
+        private final LatencyHistogram.Snapshot downloadLatency;
+        private final LatencyHistogram.Snapshot pendingWaitLatency;
+
+        private Statistics(long bundledHitCount,
+                long fileCacheHitCount,
+                long negativeCacheHitCount,
+                long downloadCount,
+                long downloadFailureCount,
+                long bytesDownloaded,
+                long pendingWaitCount,
+                int currentPendingCount,
+                int currentCacheSize,
+                long currentCacheBytes,
+                LatencyHistogram.Snapshot downloadLatency,
+                LatencyHistogram.Snapshot pendingWaitLatency) {
+            this.bundledHitCount       = bundledHitCount;
+            this.fileCacheHitCount     = fileCacheHitCount;
+            this.negativeCacheHitCount = negativeCacheHitCount;
+            this.downloadCount         = downloadCount;
+            this.downloadFailureCount  = downloadFailureCount;
+            this.bytesDownloaded       = bytesDownloaded;
+            this.pendingWaitCount      = pendingWaitCount;
+            this.currentPendingCount   = currentPendingCount;
+            this.currentCacheSize      = currentCacheSize;
+            this.currentCacheBytes     = currentCacheBytes;
+            this.downloadLatency       = downloadLatency;
+            this.pendingWaitLatency    = pendingWaitLatency;
+        }
+
+
+        public long getBundledHitCount() {
+            return bundledHitCount;
+        }
+
+
+        public long getFileCacheHitCount() {
+            return fileCacheHitCount;
+        }
+
+
+        public long getNegativeCacheHitCount() {
+            return negativeCacheHitCount;
+        }
+
+
+        public long getDownloadCount() {
+            return downloadCount;
+        }
+
+
+        public long getDownloadFailureCount() {
+            return downloadFailureCount;
+        }
+
+
+        public long getBytesDownloaded() {
+            return bytesDownloaded;
+        }
+
+
+        public long getPendingWaitCount() {
+            return pendingWaitCount;
+        }
+
+
+        public int getCurrentPendingCount() {
+            return currentPendingCount;
+        }
+
+
+        public int getCurrentCacheSize() {
+            return currentCacheSize;
+        }
+
+
+        public long getCurrentCacheBytes() {
+            return currentCacheBytes;
+        }
+
+
+        public long getTotalRequestsCount() {
+            return bundledHitCount + fileCacheHitCount +
+                    negativeCacheHitCount + downloadCount +
+                    downloadFailureCount;
+        }
+
+
+        public float getHitRate() {
+            final long total = getTotalRequestsCount();
+            return (total > 0)
+                    ? ((float) (bundledHitCount + fileCacheHitCount) / total)
+                    : 0.0f;
+        }
+
+
+        public LatencyHistogram.Snapshot getDownloadLatency() {
+            return downloadLatency;
+        }
+
+
+        public LatencyHistogram.Snapshot getPendingWaitLatency() {
+            return pendingWaitLatency;
+        }
+    }
     public static final long DISABLE_CACHE_AGING = -1;
+    public static final long DISABLE_CACHE_SIZE_LIMIT = -1;
     private static final Logger logger =
             LoggerFactory.getLogger(CMDISchemaLoader.class);
     private static final String USER_AGENT =
@@ -58,18 +197,50 @@ public final class CMDISchemaLoader {
     private static final String XML_XSD_RESSOURCE = "/xml.xsd";
     private static final String EXTENSION_XSD   = "xsd";
     private static final String EXTENSION_ERROR = "error";
+    private static final String EXTENSION_LOCK  = "lock";
+    private static final String TEMP_FILE_PREFIX = "download-";
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+    private static final long STALE_LOCK_TIMEOUT = TimeUnit.MINUTES.toMillis(5);
+    private static final long LOCK_POLL_INTERVAL = 250;
+    private static final long LOCK_REFRESH_INTERVAL =
+            TimeUnit.SECONDS.toMillis(10);
+    private static final int BUFFER_SIZE = 8192;
+    private static final long SWEEP_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+    private static final float SWEEP_LOW_WATERMARK = 0.9f;
+    private static final byte[] LOCK_OWNER =
+            ManagementFactory.getRuntimeMXBean().getName().getBytes();
     private final File cacheDirectory;
     private final long maxCacheAge;
     private final long maxNegativeCacheAge;
+    private final long staleLockTimeout;
     private final CloseableHttpClient httpClient;
+    private final CMDISchemaLocationCanonicalizer canonicalizer;
+    private final long maxCacheSize;
+    private final EvictionPolicy evictionPolicy;
+    private final SchemaCacheIndex index;
+    private final ScheduledExecutorService sweeper;
     private final Set<String> pending = new HashSet<String>(128);
+    private final Map<String, List<Runnable>> pendingListeners =
+            new HashMap<String, List<Runnable>>();
+    private final AtomicLong bundledHitCount       = new AtomicLong();
+    private final AtomicLong fileCacheHitCount     = new AtomicLong();
+    private final AtomicLong negativeCacheHitCount = new AtomicLong();
+    private final AtomicLong downloadCount         = new AtomicLong();
+    private final AtomicLong downloadFailureCount  = new AtomicLong();
+    private final AtomicLong bytesDownloaded       = new AtomicLong();
+    private final AtomicLong pendingWaitCount      = new AtomicLong();
+    private final LatencyHistogram downloadLatency = new LatencyHistogram();
+    private final LatencyHistogram pendingWaitLatency =
+            new LatencyHistogram();
     private final Object guard = new Object();
     private final Object waiter = new Object();
 
 
     public CMDISchemaLoader(File cacheDirectory, long maxCacheAge,
             long maxNegativeCacheAge, int connectTimeout,
-            int socketTimeout) {
+            int socketTimeout,
+            CMDISchemaLocationCanonicalizer canonicalizer,
+            long maxCacheSize, EvictionPolicy evictionPolicy) {
         if (cacheDirectory == null) {
             throw new NullPointerException("cacheDirectory == null");
         }
@@ -79,10 +250,66 @@ public final class CMDISchemaLoader {
         if (maxNegativeCacheAge < -1) {
             throw new IllegalArgumentException("maxNegativeCacheAge < -1");
         }
+        if (canonicalizer == null) {
+            throw new NullPointerException("canonicalizer == null");
+        }
+        if ((maxCacheSize < 1) && (maxCacheSize != DISABLE_CACHE_SIZE_LIMIT)) {
+            throw new IllegalArgumentException("maxCacheSize < 1");
+        }
+        if (evictionPolicy == null) {
+            throw new NullPointerException("evictionPolicy == null");
+        }
         this.cacheDirectory      = cacheDirectory;
         this.maxCacheAge         = maxCacheAge;
         this.maxNegativeCacheAge = maxNegativeCacheAge;
+        this.staleLockTimeout    = getStaleLockTimeout(connectTimeout,
+                socketTimeout);
         this.httpClient          = createHttpClient(connectTimeout, socketTimeout);
+        this.canonicalizer       = canonicalizer;
+        this.maxCacheSize        = maxCacheSize;
+        this.evictionPolicy      = evictionPolicy;
+        removeStaleTempFiles();
+        this.index = new SchemaCacheIndex(cacheDirectory,
+                EXTENSION_XSD, EXTENSION_ERROR);
+        if (maxCacheSize != DISABLE_CACHE_SIZE_LIMIT) {
+            this.sweeper = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable target) {
+                            final Thread thread =
+                                    new Thread(target, "schema-cache-sweeper");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            this.sweeper.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    sweep();
+                }
+            }, 0, SWEEP_INTERVAL, TimeUnit.MILLISECONDS);
+        } else {
+            this.sweeper = null;
+        }
+    }
+
+
+    public CMDISchemaLoader(File cacheDirectory, long maxCacheAge,
+            long maxNegativeCacheAge, int connectTimeout,
+            int socketTimeout,
+            CMDISchemaLocationCanonicalizer canonicalizer) {
+        this(cacheDirectory, maxCacheAge, maxNegativeCacheAge,
+                connectTimeout, socketTimeout, canonicalizer,
+                DISABLE_CACHE_SIZE_LIMIT, EvictionPolicy.LRU);
+    }
+
+
+    public CMDISchemaLoader(File cacheDirectory, long maxCacheAge,
+            long maxNegativeCacheAge, int connectTimeout,
+            int socketTimeout) {
+        this(cacheDirectory, maxCacheAge, maxNegativeCacheAge,
+                connectTimeout, socketTimeout,
+                CMDISchemaLocationCanonicalizer.IDENTITY);
     }
 
 
@@ -102,6 +329,14 @@ public final class CMDISchemaLoader {
     }
 
 
+    public String canonicalizeSchemaLocation(String schemaLocation) {
+        if (schemaLocation == null) {
+            throw new NullPointerException("schemaLocation == null");
+        }
+        return canonicalizer.canonicalize(schemaLocation);
+    }
+
+
     public InputStream loadSchemaFile(String targetNamespace,
             String schemaLocation) throws IOException {
         if (targetNamespace == null) {
@@ -110,6 +345,7 @@ public final class CMDISchemaLoader {
         if (schemaLocation == null) {
             throw new NullPointerException("schemaLocation == null");
         }
+        schemaLocation = canonicalizer.canonicalize(schemaLocation);
 
         logger.trace("loading schema: targetNamespace={}, location={}",
                 targetNamespace, schemaLocation);
@@ -118,6 +354,7 @@ public final class CMDISchemaLoader {
             stream = this.getClass().getResourceAsStream(XML_XSD_RESSOURCE);
             if (stream != null) {
                 logger.trace("using bundled schema for '{}'", schemaLocation);
+                bundledHitCount.incrementAndGet();
                 return stream;
             }
             logger.warn("unable to load bundled schema for '{}', " +
@@ -125,38 +362,157 @@ public final class CMDISchemaLoader {
         }
 
         // fall back to file cache ...
+        final String cacheKey = makeCacheKey(schemaLocation);
         final File cacheDataFile =
-                makeFile(schemaLocation, EXTENSION_XSD);
+                makeFile(cacheKey, EXTENSION_XSD);
         final File cacheErrorFile =
-                makeFile(schemaLocation, EXTENSION_ERROR);
+                makeFile(cacheKey, EXTENSION_ERROR);
+
+        final long[] waitTime = new long[1];
+        try {
+            return loadSchemaFile(schemaLocation, cacheKey, cacheDataFile,
+                    cacheErrorFile, waitTime);
+        } finally {
+            if (waitTime[0] > 0) {
+                pendingWaitCount.incrementAndGet();
+                pendingWaitLatency.recordNanos(waitTime[0]);
+            }
+        }
+    }
+
 
+    public boolean hasPendingDownloads() {
+        synchronized (pending) {
+            return !pending.isEmpty();
+        } // synchronized (pending)
+    }
+
+
+    /*
+     * Check, if a download of the given schema location is pending.
+     */
+    public boolean isPending(String schemaLocation) {
+        if (schemaLocation == null) {
+            throw new NullPointerException("schemaLocation == null");
+        }
+        schemaLocation = canonicalizer.canonicalize(schemaLocation);
+        synchronized (pending) {
+            return pending.contains(schemaLocation);
+        } // synchronized (pending)
+    }
+
+
+    /*
+     * Register a listener, that is called once the pending download of
+     * the given schema location has completed (or failed). Returns false
+     * and does not register the listener, if no download is pending for
+     * the schema location. Listeners are called from the downloading
+     * thread and must not block.
+     */
+    public boolean addPendingListener(String schemaLocation,
+            Runnable listener) {
+        if (schemaLocation == null) {
+            throw new NullPointerException("schemaLocation == null");
+        }
+        if (listener == null) {
+            throw new NullPointerException("listener == null");
+        }
+        schemaLocation = canonicalizer.canonicalize(schemaLocation);
+        synchronized (pending) {
+            if (!pending.contains(schemaLocation)) {
+                return false;
+            }
+            List<Runnable> listeners = pendingListeners.get(schemaLocation);
+            if (listeners == null) {
+                listeners = new ArrayList<Runnable>(4);
+                pendingListeners.put(schemaLocation, listeners);
+            }
+            listeners.add(listener);
+            return true;
+        } // synchronized (pending)
+    }
+
+
+    public Statistics getStatistics() {
+        int currentPendingCount;
+        synchronized (pending) {
+            currentPendingCount = pending.size();
+        } // synchronized (pending)
+        return new Statistics(bundledHitCount.get(),
+                fileCacheHitCount.get(),
+                negativeCacheHitCount.get(),
+                downloadCount.get(),
+                downloadFailureCount.get(),
+                bytesDownloaded.get(),
+                pendingWaitCount.get(),
+                currentPendingCount,
+                index.size(),
+                index.getTotalSize(),
+                downloadLatency.getSnapshot(),
+                pendingWaitLatency.getSnapshot());
+    }
+
+
+    private InputStream loadSchemaFile(String schemaLocation,
+            String cacheKey, File cacheDataFile, File cacheErrorFile,
+            long[] waitTime) throws IOException {
         for (;;) {
             boolean doDownload = false;
 
             synchronized (guard) {
                 /*
-                 * check, if an earlier attempt to download the schema failed.
+                 * Lookups are answered from the cache index. Entries, that
+                 * are not in the index (e.g. added by other processes), are
+                 * checked on the file system after acquiring the lock file.
                  */
-                if (cacheErrorFile.exists()) {
-                    if (isExpired(cacheErrorFile, maxNegativeCacheAge)) {
-                        logger.trace("-> error file '{}' expired",
-                                cacheErrorFile);
-                        cacheErrorFile.delete();
-                    } else {
-                        throw new IOException("cached error condition detected");
+                final SchemaCacheIndex.Entry entry = index.get(cacheKey);
+                if (entry != null) {
+                    /*
+                     * check, if an earlier attempt to download the schema
+                     * failed.
+                     */
+                    if (entry.hasError()) {
+                        if (isExpired(entry.getErrorTimestamp(),
+                                maxNegativeCacheAge)) {
+                            logger.trace("-> error file '{}' expired",
+                                    cacheErrorFile);
+                            index.clearError(cacheKey);
+                            cacheErrorFile.delete();
+                        } else {
+                            negativeCacheHitCount.incrementAndGet();
+                            throw new IOException(
+                                    "cached error condition detected");
+                        }
                     }
-                }
 
-                if (cacheDataFile.exists()) {
-                    if (isExpired(cacheDataFile, maxCacheAge)) {
-                        logger.debug("cached entry for '{}' has expired",
-                                schemaLocation);
-                        cacheDataFile.delete();
-                    } else {
-                        synchronized (pending) {
-                            if (!pending.contains(schemaLocation)) {
-                                logger.trace("-> '{}' from file cache", schemaLocation);
-                                return new FileInputStream(cacheDataFile);
+                    /*
+                     * Cache files are only ever replaced by an atomic
+                     * rename, so they can be opened without any locking.
+                     * Expired files are kept until they are replaced, so
+                     * concurrent readers (also in other processes) never
+                     * see a missing file.
+                     */
+                    if (entry.hasData()) {
+                        if (isExpired(entry.getDataTimestamp(), maxCacheAge)) {
+                            logger.debug("cached entry for '{}' has expired",
+                                    schemaLocation);
+                        } else {
+                            synchronized (pending) {
+                                if (!pending.contains(schemaLocation)) {
+                                    try {
+                                        final InputStream in =
+                                                new FileInputStream(cacheDataFile);
+                                        logger.trace("-> '{}' from file cache",
+                                                schemaLocation);
+                                        index.touch(entry);
+                                        fileCacheHitCount.incrementAndGet();
+                                        return in;
+                                    } catch (FileNotFoundException e) {
+                                        logger.debug("cached entry for '{}' " +
+                                                "was removed", schemaLocation);
+                                        index.removeData(cacheKey);
+                                    }
+                                }
                             }
                         }
                     }
@@ -175,41 +531,113 @@ public final class CMDISchemaLoader {
             if (doDownload) {
                 boolean failed = false;
                 try {
-                    download(cacheDataFile, schemaLocation);
-                    logger.trace("downloaded schema from '{}' succesfully", schemaLocation);
-                    return new FileInputStream(cacheDataFile);
-                } catch (IOException e) {
-                    logger.error("downloading schema from '{}' failed", schemaLocation);
-                    logger.error("cause:", e);
-                    failed = true;
-                    throw e;
-                } finally {
-                    synchronized (guard) {
+                    final File cacheLockFile =
+                            makeFile(cacheKey, EXTENSION_LOCK);
+                    final long lockStart = System.nanoTime();
+                    if (lockCacheEntry(cacheLockFile, schemaLocation)) {
+                        waitTime[0] += System.nanoTime() - lockStart;
+                    }
+                    try {
+                        /*
+                         * another process might have downloaded the schema
+                         * while we were waiting for the lock
+                         */
+                        if (cacheErrorFile.exists() &&
+                                !isExpired(cacheErrorFile.lastModified(),
+                                        maxNegativeCacheAge)) {
+                            index.recordError(cacheKey,
+                                    cacheErrorFile.lastModified());
+                            negativeCacheHitCount.incrementAndGet();
+                            throw new IOException(
+                                    "cached error condition detected");
+                        }
+                        if (cacheDataFile.exists() &&
+                                !isExpired(cacheDataFile.lastModified(),
+                                        maxCacheAge)) {
+                            logger.trace("-> '{}' downloaded by other process",
+                                    schemaLocation);
+                            index.recordData(cacheKey, cacheDataFile.length(),
+                                    cacheDataFile.lastModified());
+                            fileCacheHitCount.incrementAndGet();
+                            return new FileInputStream(cacheDataFile);
+                        }
+
+                        final long downloadStart = System.nanoTime();
+                        try {
+                            download(cacheDataFile, cacheLockFile,
+                                    schemaLocation);
+                            downloadLatency.recordNanos(
+                                    System.nanoTime() - downloadStart);
+                            downloadCount.incrementAndGet();
+                            bytesDownloaded.addAndGet(cacheDataFile.length());
+                            index.recordData(cacheKey, cacheDataFile.length(),
+                                    cacheDataFile.lastModified());
+                            if ((sweeper != null) &&
+                                    (index.getTotalSize() > maxCacheSize)) {
+                                sweeper.execute(new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        sweep();
+                                    }
+                                });
+                            }
+                        } catch (IOException e) {
+                            downloadLatency.recordNanos(
+                                    System.nanoTime() - downloadStart);
+                            downloadFailureCount.incrementAndGet();
+                            logger.error("downloading schema from '{}' failed", schemaLocation);
+                            logger.error("cause:", e);
+                            failed = true;
+                            throw e;
+                        }
+                        logger.trace("downloaded schema from '{}' succesfully", schemaLocation);
+                        return new FileInputStream(cacheDataFile);
+                    } finally {
                         if (failed) {
+                            final long now = System.currentTimeMillis();
                             if (cacheErrorFile.exists()) {
-                                cacheErrorFile.setLastModified(
-                                        System.currentTimeMillis());
+                                cacheErrorFile.setLastModified(now);
                             } else {
                                 cacheErrorFile.createNewFile();
                             }
+                            index.recordError(cacheKey, now);
                         }
+                        unlockCacheEntry(cacheLockFile);
+                    }
+                } finally {
+                    List<Runnable> listeners = null;
+                    synchronized (guard) {
                         synchronized (pending) {
                             logger.trace("pending - '{}'", schemaLocation);
                             pending.remove(schemaLocation);
+                            listeners = pendingListeners.remove(schemaLocation);
                             synchronized (waiter) {
                                 logger.trace("notify all waiters for downloading schema from '{}'", schemaLocation);
                                 waiter.notifyAll();
                             } // synchronized (waiter)
                         }// synchronized (pending)
                     } // synchronized (guard)
+                    if (listeners != null) {
+                        for (Runnable listener : listeners) {
+                            try {
+                                listener.run();
+                            } catch (Throwable e) {
+                                logger.error("error calling pending " +
+                                        "download listener", e);
+                            }
+                        }
+                    }
                 }
             } else {
+                final long waitStart = System.nanoTime();
                 try {
                     synchronized (waiter) {
                         logger.trace("waiting for download schema from '{}'", schemaLocation);
                         waiter.wait();
                     } // synchronized (waiter)
+                    waitTime[0] += System.nanoTime() - waitStart;
                 } catch (InterruptedException e) {
+                    waitTime[0] += System.nanoTime() - waitStart;
                     throw new InterruptedIOException(
                             "interrupted while waiting for download");
                 }
@@ -218,11 +646,15 @@ public final class CMDISchemaLoader {
     }
 
 
-    private void download(File cacheFile, String schemaLocation)
-            throws IOException {
+    private void download(File cacheFile, File lockFile,
+            String schemaLocation) throws IOException {
         try {
             logger.debug("downloading schema from '{}'", schemaLocation);
             final URI uri = new URI(schemaLocation);
+            if ("file".equalsIgnoreCase(uri.getScheme())) {
+                copy(cacheFile, uri);
+                return;
+            }
             final HttpGet request = new HttpGet(uri);
             try {
                 logger.trace("submitting HTTP request: {}", uri.toString());
@@ -237,21 +669,32 @@ public final class CMDISchemaLoader {
                                     "request returned no message body");
                         }
 
-                        FileOutputStream out = null;
+                        final File tempFile = File.createTempFile(
+                                TEMP_FILE_PREFIX, TEMP_FILE_SUFFIX,
+                                cacheDirectory);
+                        boolean published = false;
                         try {
-                            out = new FileOutputStream(cacheFile);
-                            // use exclusive lock
-                            final FileLock lock = out.getChannel().lock();
+                            final InputStream in = entity.getContent();
+                            FileOutputStream out = null;
                             try {
-                                entity.writeTo(out);
+                                out = new FileOutputStream(tempFile);
+                                copy(in, out, lockFile);
                                 out.flush();
                                 out.getFD().sync();
                             } finally {
-                                lock.release();
+                                try {
+                                    if (out != null) {
+                                        out.close();
+                                    }
+                                } finally {
+                                    in.close();
+                                }
                             }
+                            publish(tempFile, cacheFile);
+                            published = true;
                         } finally {
-                            if (out != null) {
-                                out.close();
+                            if (!published) {
+                                tempFile.delete();
                             }
                         }
                     } else {
@@ -263,12 +706,6 @@ public final class CMDISchemaLoader {
                                     status.getStatusCode());
                         } // switch
                     }
-                } catch (IOException e) {
-                    /* delete broken cache file */
-                    if (cacheFile != null) {
-                        cacheFile.delete();
-                    }
-                    throw e;
                 } finally {
                     /* make sure to release allocated resources */
                     response.close();
@@ -283,7 +720,236 @@ public final class CMDISchemaLoader {
     }
 
 
-    private File makeFile(String schemaLocation, String extension) {
+    /*
+     * Local schemas, e.g. from a catalog mapping schema locations to local
+     * copies, are copied into the cache just like downloaded ones.
+     */
+    private void copy(File cacheFile, URI uri) throws IOException {
+        final File source;
+        try {
+            source = new File(uri);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("schemaLocation uri is invalid: " + uri, e);
+        }
+        if (!source.isFile()) {
+            throw new IOException("not found: " + uri);
+        }
+        final File tempFile = File.createTempFile(TEMP_FILE_PREFIX,
+                TEMP_FILE_SUFFIX, cacheDirectory);
+        boolean published = false;
+        try {
+            Files.copy(source.toPath(), tempFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+            publish(tempFile, cacheFile);
+            published = true;
+        } finally {
+            if (!published) {
+                tempFile.delete();
+            }
+        }
+    }
+
+
+    /*
+     * Copy the response body and keep the lock file of the entry fresh
+     * meanwhile, so waiting processes do not consider a long download to
+     * be stale.
+     */
+    private static void copy(InputStream in, OutputStream out,
+            File lockFile) throws IOException {
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        long refreshed = System.currentTimeMillis();
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+            final long now = System.currentTimeMillis();
+            if ((now - refreshed) >= LOCK_REFRESH_INTERVAL) {
+                if (!lockFile.setLastModified(now)) {
+                    logger.debug("failed to refresh lock file '{}'",
+                            lockFile);
+                }
+                refreshed = now;
+            }
+        }
+    }
+
+
+    private static void publish(File tempFile, File cacheFile)
+            throws IOException {
+        final Path source = tempFile.toPath();
+        final Path target = cacheFile.toPath();
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            logger.debug("atomic move not supported, falling back " +
+                    "to non-atomic move for '{}'", cacheFile);
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+
+    /*
+     * Cross-process single-flight: the lock file is created atomically and
+     * removed after the download finished. While the response body is
+     * copied, its owner touches the lock file regularly. A lock file, that
+     * has not been touched within the stale lock timeout, is considered to
+     * belong to a crashed process and is removed. The timeout covers the
+     * connect and socket timeouts, i.e. the longest time the owner can
+     * wait for the server without touching the lock file. In the (unlikely)
+     * case, that a stale lock is broken while its owner is still alive,
+     * the schema is downloaded twice, but due to atomic publishing the
+     * cache is never corrupted.
+     */
+    private boolean lockCacheEntry(File lockFile, String schemaLocation)
+            throws IOException {
+        final Path path = lockFile.toPath();
+        boolean logged = false;
+        for (;;) {
+            try {
+                Files.write(path, LOCK_OWNER, StandardOpenOption.CREATE_NEW,
+                        StandardOpenOption.WRITE);
+                logger.trace("acquired lock file '{}'", lockFile);
+                return logged;
+            } catch (FileAlreadyExistsException e) {
+                /* FALL-THROUGH */
+            }
+
+            final long lastModified = lockFile.lastModified();
+            if ((lastModified > 0) && ((System.currentTimeMillis() -
+                    lastModified) > staleLockTimeout)) {
+                logger.warn("removing stale lock file '{}'", lockFile);
+                lockFile.delete();
+                continue;
+            }
+
+            if (!logged) {
+                logger.debug("waiting for other process downloading " +
+                        "schema from '{}'", schemaLocation);
+                logged = true;
+            }
+            try {
+                Thread.sleep(LOCK_POLL_INTERVAL);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException(
+                        "interrupted while waiting for lock file");
+            }
+        } // for
+    }
+
+
+    private void unlockCacheEntry(File lockFile) {
+        if (!lockFile.delete()) {
+            logger.warn("failed to remove lock file '{}'", lockFile);
+        }
+    }
+
+
+    private void removeStaleTempFiles() {
+        final File[] files = cacheDirectory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                final String name = file.getName();
+                return name.startsWith(TEMP_FILE_PREFIX) &&
+                        name.endsWith(TEMP_FILE_SUFFIX);
+            }
+        });
+        if (files != null) {
+            for (File file : files) {
+                if ((System.currentTimeMillis() - file.lastModified()) >
+                        staleLockTimeout) {
+                    logger.debug("removing stale temporary file '{}'", file);
+                    file.delete();
+                }
+            }
+        }
+    }
+
+
+    /*
+     * Evict entries according to the eviction policy until the cache
+     * size is below the low watermark. Expired negative cache entries
+     * are removed as well.
+     */
+    private void sweep() {
+        try {
+            /* account for entries added or evicted by other processes */
+            index.refresh();
+            final long now = System.currentTimeMillis();
+            long total = 0;
+            for (SchemaCacheIndex.Entry entry : index.getEntries(null)) {
+                if (entry.hasError() && (maxNegativeCacheAge !=
+                        DISABLE_CACHE_AGING) && ((now -
+                                entry.getErrorTimestamp()) >= maxNegativeCacheAge)) {
+                    synchronized (guard) {
+                        makeFile(entry.getKey(), EXTENSION_ERROR).delete();
+                        index.clearError(entry.getKey());
+                    } // synchronized (guard)
+                }
+                if (entry.hasData()) {
+                    total += entry.getDataSize();
+                }
+            }
+            if (total <= maxCacheSize) {
+                return;
+            }
+
+            final long target = (long) (maxCacheSize * SWEEP_LOW_WATERMARK);
+            logger.debug("schema cache exceeds size limit ({} > {} bytes), " +
+                    "evicting entries", total, maxCacheSize);
+            int evicted = 0;
+            for (SchemaCacheIndex.Entry entry :
+                index.getEntries(makeEvictionOrder(evictionPolicy))) {
+                if (total <= target) {
+                    break;
+                }
+                if (!entry.hasData()) {
+                    continue;
+                }
+                synchronized (guard) {
+                    final File file = makeFile(entry.getKey(), EXTENSION_XSD);
+                    final long size = entry.getDataSize();
+                    if (file.delete() || !file.exists()) {
+                        logger.trace("evicted '{}' from schema cache", file);
+                        index.removeData(entry.getKey());
+                        total -= size;
+                        evicted++;
+                    }
+                } // synchronized (guard)
+            }
+            logger.debug("evicted {} entries from schema cache", evicted);
+        } catch (Throwable e) {
+            logger.error("error while sweeping schema cache", e);
+        }
+    }
+
+
+    private static Comparator<SchemaCacheIndex.Entry> makeEvictionOrder(
+            final EvictionPolicy policy) {
+        return new Comparator<SchemaCacheIndex.Entry>() {
+            @Override
+            public int compare(SchemaCacheIndex.Entry e1,
+                    SchemaCacheIndex.Entry e2) {
+                if (policy == EvictionPolicy.LFU) {
+                    final int c = compareLongs(e1.getHits(), e2.getHits());
+                    if (c != 0) {
+                        return c;
+                    }
+                }
+                return compareLongs(
+                        Math.max(e1.getLastAccess(), e1.getDataTimestamp()),
+                        Math.max(e2.getLastAccess(), e2.getDataTimestamp()));
+            }
+        };
+    }
+
+
+    private static int compareLongs(long x, long y) {
+        return (x < y) ? -1 : ((x == y) ? 0 : 1);
+    }
+
+
+    private String makeCacheKey(String schemaLocation) {
         final StringBuilder sb = new StringBuilder();
         for (int i = 0; i < schemaLocation.length(); i++) {
             final char c = schemaLocation.charAt(i);
@@ -313,8 +979,28 @@ public final class CMDISchemaLoader {
                 sb.append(c);
             }
         } // for
-        sb.append(".").append(extension);
-        return new File(cacheDirectory, sb.toString());
+        return sb.toString();
+    }
+
+
+    private File makeFile(String cacheKey, String extension) {
+        return new File(cacheDirectory, cacheKey + "." + extension);
+    }
+
+
+    /*
+     * A lock owner, that waits for the server, does not touch its lock
+     * file for up to the connect plus socket timeout, so the stale timeout
+     * must be longer than that. Without a timeout (zero), the owner might
+     * wait forever and the default applies.
+     */
+    private static long getStaleLockTimeout(int connectTimeout,
+            int socketTimeout) {
+        if ((connectTimeout <= 0) || (socketTimeout <= 0)) {
+            return STALE_LOCK_TIMEOUT;
+        }
+        return Math.max(STALE_LOCK_TIMEOUT,
+                2L * ((long) connectTimeout + (long) socketTimeout));
     }
 
 
@@ -361,9 +1047,9 @@ public final class CMDISchemaLoader {
     }
 
 
-    private static boolean isExpired(File file, long maxAge) {
+    private static boolean isExpired(long timestamp, long maxAge) {
         if (maxAge != DISABLE_CACHE_AGING) {
-            return (System.currentTimeMillis() - file.lastModified()) >= maxAge;
+            return (System.currentTimeMillis() - timestamp) >= maxAge;
         } else {
             return false;
         }
@@ -372,6 +1058,10 @@ public final class CMDISchemaLoader {
 
     @Override
     protected void finalize() throws Throwable {
+        if (sweeper != null) {
+            sweeper.shutdownNow();
+        }
+        index.close();
         httpClient.close();
     }
 
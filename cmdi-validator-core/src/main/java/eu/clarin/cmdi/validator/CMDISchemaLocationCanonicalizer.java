@@ -0,0 +1,37 @@
+/**
+ * This software is copyright (c) 2014 by
+ *  - Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ * This is free software. You can redistribute it
+ * and/or modify it under the terms described in
+ * the GNU General Public License v3 of which you
+ * should have received a copy. Otherwise you can download
+ * it from
+ *
+ *   http://www.gnu.org/licenses/gpl-3.0.txt
+ *
+ * @copyright Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ *
+ * @license http://www.gnu.org/licenses/gpl-3.0.txt
+ *  GNU General Public License v3
+ */
+package eu.clarin.cmdi.validator;
+
+
+/*
+ * All aliases of a schema location must map to the same canonical location,
+ * because it is used as key for the schema file cache and the grammar pool.
+ */
+public interface CMDISchemaLocationCanonicalizer {
+
+    public static final CMDISchemaLocationCanonicalizer IDENTITY =
+            new CMDISchemaLocationCanonicalizer() {
+                @Override
+                public String canonicalize(String schemaLocation) {
+                    return schemaLocation;
+                }
+            };
+
+
+    public String canonicalize(String schemaLocation);
+
+} // interface CMDISchemaLocationCanonicalizer
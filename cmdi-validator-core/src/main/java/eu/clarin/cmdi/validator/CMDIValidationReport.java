@@ -82,6 +82,16 @@ public interface CMDIValidationReport {
     public File getFile();
 
 
+    /*
+     * The schema location given for the namespace of the document's root
+     * element (usually the CMDI profile) or null, if it is not known. The
+     * default returns null for implementations, that do not track it.
+     */
+    public default String getSchemaLocation() {
+        return null;
+    }
+
+
     public boolean isSuccess();
 
 
@@ -18,20 +18,35 @@ package eu.clarin.cmdi.validator;
 
 import java.io.File;
 import java.io.FileFilter;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 import javax.xml.XMLConstants;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import javax.xml.transform.ErrorListener;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.sax.SAXSource;
@@ -74,13 +89,23 @@ import org.apache.xerces.xni.parser.XMLInputSource;
 import org.apache.xerces.xni.parser.XMLParseException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
 import org.xml.sax.ErrorHandler;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 import org.xml.sax.SAXParseException;
+import org.xml.sax.helpers.DefaultHandler;
 
+import eu.clarin.cmdi.validator.CMDIValidatorExtension.StreamingHandler;
+import eu.clarin.cmdi.validator.metrics.ValidatorMetrics;
 import eu.clarin.cmdi.validator.utils.LRUCache;
+import eu.clarin.cmdi.validator.utils.LatencyHistogram;
 import eu.clarin.cmdi.validator.utils.LocationUtils;
+import eu.clarin.cmdi.validator.utils.SchemaLocationCatalog;
+import eu.clarin.cmdi.validator.utils.StreamFile;
+import eu.clarin.cmdi.validator.utils.TarStreamReader;
+import eu.clarin.cmdi.validator.utils.ZipArchive;
 
 
 public final class CMDIValidator {
@@ -115,19 +140,44 @@ public final class CMDIValidator {
             "http://apache.org/xml/features/validation/schema-full-checking";
     private static final String HONOUR_ALL_SCHEMA_LOCATIONS_ID =
             "http://apache.org/xml/features/honour-all-schemaLocations";
+    private static final String XSI_SCHEMA_LOCATION = "schemaLocation";
+    private static final String XSI_NO_NAMESPACE_SCHEMA_LOCATION =
+            "noNamespaceSchemaLocation";
     private static final int INITAL_SYMBOL_TABLE_SIZE = 16141;
+    private static final long DEFERRED_POLL_INTERVAL = 250;
+    private static final int MAX_PENDING_REPORTS = 1024;
     private static final QName SVRL_S = new QName("s");
     private static final QName SVRL_L = new QName("l");
+    private static final StreamingHandler[] NO_STREAMING_HANDLERS =
+            new StreamingHandler[0];
     private final Processor processor;
     private final CMDISchemaLoader schemaLoader;
     private final XsltExecutable schematronValidatorExecutable;
     private final XQueryExecutable analyzeSchematronReport;
     private final List<CMDIValidatorExtension> extensions;
-    private final FileEnumerator files;
+    private final boolean requiresDocument;
+    private final ForkJoinPool stagePool;
+    private final boolean retainMessageCauses;
+    private final Instruments instruments;
+    private final FileSource files;
     private final CMDIValidationHandler handler;
     private final Map<Thread, ThreadContext> contexts =
             new ConcurrentHashMap<Thread, ThreadContext>();
     private final AtomicInteger threadsProcessing = new AtomicInteger();
+    private final Map<String, List<File>> deferred =
+            new HashMap<String, List<File>>();
+    private final LinkedList<File> redispatched = new LinkedList<File>();
+    private int deferredCount = 0;
+    private int pendingReports = 0;
+    private final CMDIWriteableValidatonReportImpl.CompletionListener
+        reportListener =
+            new CMDIWriteableValidatonReportImpl.CompletionListener() {
+                @Override
+                public void onCompleted(
+                        CMDIWriteableValidatonReportImpl report) {
+                    deliverReport(report);
+                }
+            };
     private State state = State.INIT;
     private Result result = null;
 
@@ -220,22 +270,89 @@ public final class CMDIValidator {
          * initialize extensions
          */
         final List<CMDIValidatorExtension> exts = config.getExtensions();
+        boolean requiresDocument = (schematronValidatorExecutable != null);
         if (exts != null) {
             this.extensions =
                     new ArrayList<CMDIValidatorExtension>(exts.size());
             for (CMDIValidatorExtension extension : exts) {
                 extension.initalize(processor);
                 extensions.add(extension);
+                requiresDocument |= extension.requiresDocument();
             }
         } else {
             this.extensions = null;
         }
+        /*
+         * Without Schematron and tree based extensions, documents are only
+         * parsed and schema validated, but no tree is built.
+         */
+        this.requiresDocument = requiresDocument;
+
+        /*
+         * Schematron and extensions of a document may run concurrently; this
+         * only pays off, if there are at least two of those stages.
+         */
+        final int stages = ((schematronValidatorExecutable != null) ? 1 : 0) +
+                ((extensions != null) ? extensions.size() : 0);
+        if (config.isParallelStages() && (stages > 1)) {
+            this.stagePool = new ForkJoinPool(
+                    Runtime.getRuntime().availableProcessors());
+        } else {
+            this.stagePool = null;
+        }
 
         /*
          * other stuff
          */
+        this.retainMessageCauses = config.isRetainMessageCauses();
         final TFile root = new TFile(src);
-        this.files       = new FileEnumerator(root, config.getFileFilter());
+        if ((config.getInputStream() != null) ||
+                (root.isFile() && TarStreamReader.isTarArchive(root.getName()))) {
+            logger.debug("reading tar archive '{}' as a stream", root);
+            InputStream in = config.getInputStream();
+            if (in == null) {
+                try {
+                    in = new FileInputStream(root.getPath());
+                } catch (IOException e) {
+                    throw new CMDIValidatorInitException(
+                            "error reading archive '" + root + "': " +
+                                    e.getMessage(), e);
+                }
+            }
+            this.files = new TarStreamEnumerator(new TarStreamReader(
+                    root.getPath(), in, config.getFileFilter(),
+                    TarStreamReader.DEFAULT_MAX_ENTRIES,
+                    config.getStreamBufferSize(),
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            synchronized (CMDIValidator.this) {
+                                CMDIValidator.this.notifyAll();
+                            } // synchronized (CMDIValidator.this)
+                        }
+                    }));
+        } else if (config.isDirectArchiveAccess() && root.isArchive() &&
+                (root.getEnclArchive() == null)) {
+            logger.debug("reading archive '{}' directly", root);
+            try {
+                this.files = new ArchiveEnumerator(
+                        new ZipArchive(new File(root.getPath())),
+                        config.getFileFilter());
+            } catch (IOException e) {
+                throw new CMDIValidatorInitException(
+                        "error reading archive '" + root + "': " +
+                                e.getMessage(), e);
+            }
+        } else {
+            this.files = new FileEnumerator(root, config.getFileFilter());
+        }
+        if (config.getMetrics() != null) {
+            this.instruments = new Instruments(config.getMetrics());
+            registerMetrics(config.getMetrics());
+        } else {
+            /* not published, but keeps instrumentation simple */
+            this.instruments = new Instruments(new ValidatorMetrics());
+        }
         if (config.getHandler() == null) {
             throw new NullPointerException("handler == null");
         }
@@ -248,11 +365,32 @@ public final class CMDIValidator {
     }
 
 
+    public CMDISchemaLoader getSchemaLoader() {
+        return schemaLoader;
+    }
+
+
+    /*
+     * The number of files to validate. Unless the count is exact (see
+     * isFileCountExact()), this is a running estimate, that converges while
+     * the directories are traversed.
+     */
+    public synchronized long getEstimatedFileCount() {
+        return files.getEstimatedFileCount();
+    }
+
+
+    public synchronized boolean isFileCountExact() {
+        return files.isFileCountExact();
+    }
+
+
     public void abort() {
         synchronized (this) {
             if ((state == State.INIT) || (state == State.RUN)) {
                 state = State.DONE;
                 files.flush();
+                flushDeferred();
                 if (result == null) {
                     result = Result.ABORTED;
                 }
@@ -262,8 +400,18 @@ public final class CMDIValidator {
 
 
     boolean processOneFile() throws CMDIValidatorException {
+        return processOneFile(null);
+    }
+
+
+    /*
+     * If given, busyCount is incremented while this thread validates a file,
+     * i.e. not while it waits for work.
+     */
+    boolean processOneFile(AtomicInteger busyCount)
+            throws CMDIValidatorException {
         try {
-            TFile file = null;
+            File file = null;
             boolean done;
 
             threadsProcessing.incrementAndGet();
@@ -280,31 +428,61 @@ public final class CMDIValidator {
                     }
                     /* FALL-THROUGH */
                 case RUN:
-                    file = files.nextFile();
+                    file = redispatched.poll();
+                    if ((file == null) &&
+                            (pendingReports < MAX_PENDING_REPORTS)) {
+                        file = files.nextFile();
+                    }
                     if (files.isEmpty() && (state == State.RUN)) {
                         state = State.DONE;
                     }
                     break;
+                case DONE:
+                    /* deferred files still need to be processed */
+                    file = redispatched.poll();
+                    break;
                 default:
                     // ignore
                 }
 
-                done = (state == State.DONE);
+                if ((file == null) && ((deferredCount > 0) ||
+                        (pendingReports > 0) || (state == State.RUN))) {
+                    /*
+                     * nothing to do until a pending schema download or a
+                     * deferred report completes, or the file source
+                     * provides more files
+                     */
+                    try {
+                        wait(DEFERRED_POLL_INTERVAL);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+
+                done = isDone();
             } // synchronized (this)
 
             if (file != null) {
-                ThreadContext context = contexts.get(Thread.currentThread());
-                if (context == null) {
-                    context = new ThreadContext();
-                    contexts.put(Thread.currentThread(), context);
+                if (busyCount != null) {
+                    busyCount.incrementAndGet();
+                }
+                try {
+                    final ThreadContext context = getThreadContext();
+                    if (!deferIfSchemaPending(context, file)) {
+                        context.validate(file);
+                    }
+                } finally {
+                    if (busyCount != null) {
+                        busyCount.decrementAndGet();
+                    }
                 }
-                context.validate(file);
             }
 
             return done;
         } catch (Throwable e) {
             synchronized (this) {
                 state = State.DONE;
+                flushDeferred();
                 if (result == null) {
                     result = Result.ERROR;
                 }
@@ -318,11 +496,15 @@ public final class CMDIValidator {
         } finally {
             if (threadsProcessing.decrementAndGet() <= 0) {
                 synchronized (this) {
-                    if (state == State.DONE) {
+                    if (isDone()) {
                         state = State.FINI;
                         if (result == null) {
                             result = Result.OK;
                         }
+                        if (stagePool != null) {
+                            stagePool.shutdown();
+                        }
+                        files.close();
 
                         // notify handler
                         handler.onJobFinished(result);
@@ -333,36 +515,311 @@ public final class CMDIValidator {
     }
 
 
+    private static InputStream openStream(File file) throws IOException {
+        if (file instanceof StreamFile) {
+            return ((StreamFile) file).openStream();
+        }
+        return new TFileInputStream(file);
+    }
+
+
+    private ThreadContext getThreadContext() {
+        ThreadContext context = contexts.get(Thread.currentThread());
+        if (context == null) {
+            context = new ThreadContext();
+            contexts.put(Thread.currentThread(), context);
+        }
+        return context;
+    }
+
+
+    /*
+     * If the schema of a file is currently being downloaded by another
+     * thread, park the file in a per-schema queue instead of blocking this
+     * thread in the schema loader. Parked files are re-dispatched, once the
+     * download has completed or failed.
+     */
+    private boolean deferIfSchemaPending(ThreadContext context, File file) {
+        if (!schemaLoader.hasPendingDownloads()) {
+            return false;
+        }
+        for (String location : context.sniffSchemaLocations(file)) {
+            final String schemaLocation =
+                    schemaLoader.canonicalizeSchemaLocation(location);
+            if (!schemaLoader.isPending(schemaLocation)) {
+                /* not being downloaded; the schema loader has it */
+                continue;
+            }
+            synchronized (this) {
+                if (state == State.FINI) {
+                    return false;
+                }
+                List<File> queue = deferred.get(schemaLocation);
+                if (queue != null) {
+                    logger.debug("deferring file '{}' until schema '{}' " +
+                            "is loaded", file, schemaLocation);
+                    queue.add(file);
+                    deferredCount++;
+                    return true;
+                }
+                queue = new LinkedList<File>();
+                queue.add(file);
+                deferred.put(schemaLocation, queue);
+                deferredCount++;
+            } // synchronized (this)
+
+            final Runnable listener = new Runnable() {
+                @Override
+                public void run() {
+                    redispatch(schemaLocation, null);
+                }
+            };
+            if (schemaLoader.addPendingListener(schemaLocation, listener)) {
+                logger.debug("deferring file '{}' until schema '{}' " +
+                        "is loaded", file, schemaLocation);
+                return true;
+            }
+
+            /*
+             * download completed in the meantime; re-dispatch files, that
+             * other threads might have added to the queue, and process this
+             * file right away.
+             */
+            redispatch(schemaLocation, file);
+        }
+        return false;
+    }
+
+
+    private void redispatch(String schemaLocation, File exclude) {
+        synchronized (this) {
+            final List<File> queue = deferred.remove(schemaLocation);
+            if (queue != null) {
+                deferredCount -= queue.size();
+                if (exclude != null) {
+                    queue.remove(exclude);
+                }
+                if (result == null) {
+                    logger.debug("re-dispatching {} deferred files for " +
+                            "schema '{}'", queue.size(), schemaLocation);
+                    redispatched.addAll(queue);
+                }
+                notifyAll();
+            }
+        } // synchronized (this)
+    }
+
+
+    private boolean isDone() {
+        return (state == State.DONE) && (deferredCount == 0) &&
+                redispatched.isEmpty() && (pendingReports == 0);
+    }
+
+
+    /*
+     * Publish gauges of the validator, the schema loader and the extensions.
+     */
+    private void registerMetrics(final ValidatorMetrics metrics) {
+        metrics.gauge("files_per_second",
+                "Average number of validated files per second",
+                metrics.rate(instruments.files));
+        metrics.gauge("bytes_per_second",
+                "Average number of validated bytes per second",
+                metrics.rate(instruments.bytes));
+        metrics.gauge("files_estimated",
+                "Estimated number of files to validate",
+                new ValidatorMetrics.Gauge() {
+                    @Override
+                    public double getValue() {
+                        return getEstimatedFileCount();
+                    }
+                });
+        metrics.gauge("threads_processing",
+                "Number of threads currently validating files",
+                new ValidatorMetrics.Gauge() {
+                    @Override
+                    public double getValue() {
+                        return threadsProcessing.get();
+                    }
+                });
+        metrics.gauge("pending_reports",
+                "Number of reports waiting for deferred checks or delivery",
+                new ValidatorMetrics.Gauge() {
+                    @Override
+                    public double getValue() {
+                        synchronized (CMDIValidator.this) {
+                            return pendingReports;
+                        } // synchronized (CMDIValidator.this)
+                    }
+                });
+        metrics.gauge("deferred_files",
+                "Number of files waiting for a schema download",
+                new ValidatorMetrics.Gauge() {
+                    @Override
+                    public double getValue() {
+                        synchronized (CMDIValidator.this) {
+                            return deferredCount + redispatched.size();
+                        } // synchronized (CMDIValidator.this)
+                    }
+                });
+
+        metrics.counter("schema_requests_total",
+                "Number of schema requests to the schema loader",
+                new ValidatorMetrics.Gauge() {
+                    @Override
+                    public double getValue() {
+                        return schemaLoader.getStatistics()
+                                .getTotalRequestsCount();
+                    }
+                });
+        metrics.counter("schema_cache_hits_total",
+                "Number of schemas served from the bundle or file cache",
+                new ValidatorMetrics.Gauge() {
+                    @Override
+                    public double getValue() {
+                        final CMDISchemaLoader.Statistics stats =
+                                schemaLoader.getStatistics();
+                        return stats.getBundledHitCount() +
+                                stats.getFileCacheHitCount();
+                    }
+                });
+        metrics.counter("schema_downloads_total",
+                "Number of schema downloads",
+                new ValidatorMetrics.Gauge() {
+                    @Override
+                    public double getValue() {
+                        return schemaLoader.getStatistics().getDownloadCount();
+                    }
+                });
+        metrics.counter("schema_download_failures_total",
+                "Number of failed schema downloads",
+                new ValidatorMetrics.Gauge() {
+                    @Override
+                    public double getValue() {
+                        return schemaLoader.getStatistics()
+                                .getDownloadFailureCount();
+                    }
+                });
+        metrics.gauge("schema_pending_downloads",
+                "Number of schema downloads in progress",
+                new ValidatorMetrics.Gauge() {
+                    @Override
+                    public double getValue() {
+                        return schemaLoader.getStatistics()
+                                .getCurrentPendingCount();
+                    }
+                });
+        metrics.gauge("schema_cache_bytes",
+                "Size of the schema file cache in bytes",
+                new ValidatorMetrics.Gauge() {
+                    @Override
+                    public double getValue() {
+                        return schemaLoader.getStatistics()
+                                .getCurrentCacheBytes();
+                    }
+                });
+        metrics.summary("schema_download_seconds",
+                "Schema download latency",
+                new ValidatorMetrics.Summary() {
+                    @Override
+                    public LatencyHistogram.Snapshot getSnapshot() {
+                        return schemaLoader.getStatistics()
+                                .getDownloadLatency();
+                    }
+                });
+
+        if (extensions != null) {
+            for (CMDIValidatorExtension extension : extensions) {
+                extension.registerMetrics(metrics);
+            }
+        }
+    }
+
+
+    /*
+     * Hand a completed report to the handler. This might be called by a
+     * thread of an extension, if an extension has deferred the report.
+     */
+    private void deliverReport(CMDIWriteableValidatonReportImpl report) {
+        try {
+            instruments.files.increment();
+            if (report.isFailed()) {
+                instruments.invalidFiles.increment();
+            }
+            instruments.messages.add(report.getMessageCount());
+            handler.onValidationReport(report);
+        } catch (CMDIValidatorException e) {
+            logger.error("error processing validation report for file " +
+                    "'{}': {}", report.getFile(), e.getMessage(), e);
+            synchronized (this) {
+                if ((state == State.INIT) || (state == State.RUN)) {
+                    state = State.DONE;
+                    files.flush();
+                }
+                flushDeferred();
+                if (result == null) {
+                    result = Result.ERROR;
+                }
+            } // synchronized (this)
+        } finally {
+            synchronized (this) {
+                pendingReports--;
+                notifyAll();
+            } // synchronized (this)
+        }
+    }
+
+
+    private void flushDeferred() {
+        deferred.clear();
+        redispatched.clear();
+        deferredCount = 0;
+        notifyAll();
+    }
+
+
+    /*
+     * Returns the default directory for cached schemas and handle resolution
+     * results. The directory is created, if it does not exist.
+     */
+    public static File getDefaultCacheDirectory()
+            throws CMDIValidatorInitException {
+        File cacheDirectory = null;
+        if (SystemUtils.IS_OS_WINDOWS &&
+                (SystemUtils.JAVA_IO_TMPDIR != null)) {
+            cacheDirectory =
+                    new File(SystemUtils.JAVA_IO_TMPDIR, "cmdi-validator");
+        } else if (SystemUtils.IS_OS_UNIX &&
+                (SystemUtils.USER_HOME != null)) {
+            cacheDirectory =
+                    new File(SystemUtils.USER_HOME, ".cmdi-validator");
+        }
+        if (cacheDirectory != null) {
+            if (!cacheDirectory.exists()) {
+                if (!cacheDirectory.mkdir()) {
+                    throw new CMDIValidatorInitException(
+                            "cannot create cache directory: " +
+                                    cacheDirectory);
+                }
+            }
+        } else {
+            if (SystemUtils.JAVA_IO_TMPDIR == null) {
+                throw new CMDIValidatorInitException(
+                        "cannot determine temporary directory");
+            }
+            cacheDirectory = new File(SystemUtils.JAVA_IO_TMPDIR);
+        }
+        return cacheDirectory;
+    }
+
+
     private static CMDISchemaLoader initSchemaLoader(
             final CMDIValidatorConfig config) throws CMDIValidatorInitException {
         int connectTimeout = config.getConnectTimeout();
         int socketTimeout = config.getSocketTimeout();
         File cacheDirectory = config.getSchemaCacheDirectory();
         if (cacheDirectory == null) {
-            if (SystemUtils.IS_OS_WINDOWS &&
-                    (SystemUtils.JAVA_IO_TMPDIR != null)) {
-                cacheDirectory =
-                        new File(SystemUtils.JAVA_IO_TMPDIR, "cmdi-validator");
-            } else if (SystemUtils.IS_OS_UNIX &&
-                    (SystemUtils.USER_HOME != null)) {
-                cacheDirectory =
-                        new File(SystemUtils.USER_HOME, ".cmdi-validator");
-            }
-            if (cacheDirectory != null) {
-                if (!cacheDirectory.exists()) {
-                    if (!cacheDirectory.mkdir()) {
-                        throw new CMDIValidatorInitException(
-                                "cannot create cache directory: " +
-                                        cacheDirectory);
-                    }
-                }
-            } else {
-                if (SystemUtils.JAVA_IO_TMPDIR == null) {
-                    throw new CMDIValidatorInitException(
-                            "cannot determine temporary directory");
-                }
-                cacheDirectory = new File(SystemUtils.JAVA_IO_TMPDIR);
-            }
+            cacheDirectory = getDefaultCacheDirectory();
         } else {
             if (!cacheDirectory.isDirectory()) {
                 throw new CMDIValidatorInitException(
@@ -375,7 +832,19 @@ public final class CMDIValidator {
                         cacheDirectory.getAbsolutePath() + "' is not writable");
             }
         }
-        return new CMDISchemaLoader(cacheDirectory, CMDISchemaLoader.DISABLE_CACHE_AGING, connectTimeout, socketTimeout);
+        CMDISchemaLocationCanonicalizer canonicalizer =
+                config.getSchemaLocationCanonicalizer();
+        if (canonicalizer == null) {
+            canonicalizer = SchemaLocationCatalog.createDefault();
+        }
+        return new CMDISchemaLoader(cacheDirectory,
+                CMDISchemaLoader.DISABLE_CACHE_AGING,
+                TimeUnit.HOURS.toMillis(1),
+                connectTimeout,
+                socketTimeout,
+                canonicalizer,
+                config.getSchemaCacheMaxSize(),
+                config.getSchemaCacheEvictionPolicy());
     }
 
 
@@ -463,11 +932,121 @@ public final class CMDIValidator {
     }
 
 
+    private static List<ContentHandler> nonNull(StreamingHandler[] handlers,
+            ContentHandler first) {
+        final List<ContentHandler> result =
+                new ArrayList<ContentHandler>(handlers.length + 1);
+        result.add(first);
+        for (StreamingHandler handler : handlers) {
+            if (handler != null) {
+                result.add(handler);
+            }
+        }
+        return result;
+    }
+
+
+    /*
+     * Records the schema location of the root element's namespace in the
+     * report, while the document is parsed.
+     */
+    private final class SchemaLocationSniffer extends DefaultHandler {
+        private final CMDIWriteableValidatonReportImpl report;
+        private boolean done = false;
+
+
+        private SchemaLocationSniffer(CMDIWriteableValidatonReportImpl report) {
+            this.report = report;
+        }
+
+
+        @Override
+        public void startElement(String uri, String localName, String qName,
+                Attributes atts) throws SAXException {
+            if (done) {
+                return;
+            }
+            done = true;
+            String location = null;
+            final String value = atts.getValue(
+                    XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI,
+                    XSI_SCHEMA_LOCATION);
+            if (value != null) {
+                /* pairs of namespace URI and location */
+                final String[] tokens = value.trim().split("\\s+");
+                for (int i = 1; i < tokens.length; i += 2) {
+                    if ((location == null) || uri.equals(tokens[i - 1])) {
+                        location = tokens[i];
+                    }
+                }
+            }
+            if (location == null) {
+                location = atts.getValue(
+                        XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI,
+                        XSI_NO_NAMESPACE_SCHEMA_LOCATION);
+            }
+            if ((location != null) && !location.trim().isEmpty()) {
+                report.setSchemaLocation(
+                        schemaLoader.canonicalizeSchemaLocation(
+                                location.trim()));
+            }
+        }
+    } // class SchemaLocationSniffer
+
+
+    /*
+     * counters and histograms updated by the validator
+     */
+    private static final class Instruments {
+        private final ValidatorMetrics.Counter files;
+        private final ValidatorMetrics.Counter invalidFiles;
+        private final ValidatorMetrics.Counter bytes;
+        private final ValidatorMetrics.Counter messages;
+        private final ValidatorMetrics.Counter grammarHits;
+        private final ValidatorMetrics.Counter grammarShadowHits;
+        private final ValidatorMetrics.Counter grammarMisses;
+        private final LatencyHistogram fileLatency;
+        private final LatencyHistogram parseLatency;
+        private final LatencyHistogram schematronLatency;
+        private final LatencyHistogram extensionLatency;
+
+
+        private Instruments(ValidatorMetrics metrics) {
+            this.files = metrics.counter("files_total",
+                    "Number of validated files");
+            this.invalidFiles = metrics.counter("files_invalid_total",
+                    "Number of invalid files");
+            this.bytes = metrics.counter("bytes_total",
+                    "Number of validated bytes");
+            this.messages = metrics.counter("messages_total",
+                    "Number of reported messages");
+            this.grammarHits = metrics.counter("grammar_cache_hits_total",
+                    "Number of grammar pool hits");
+            this.grammarShadowHits = metrics.counter(
+                    "grammar_shadow_cache_hits_total",
+                    "Number of grammar pool hits in the shadow cache");
+            this.grammarMisses = metrics.counter("grammar_cache_misses_total",
+                    "Number of grammar pool misses");
+            this.fileLatency = metrics.histogram("file_seconds",
+                    "Time to validate a file (without deferred checks)");
+            this.parseLatency = metrics.histogram("stage_parse_seconds",
+                    "Time to parse and schema validate a file");
+            this.schematronLatency = metrics.histogram(
+                    "stage_schematron_seconds",
+                    "Time for Schematron validation of a file");
+            this.extensionLatency = metrics.histogram(
+                    "stage_extension_seconds",
+                    "Time for running an extension on a file");
+        }
+    } // class Instruments
+
+
     private final class ThreadContext {
         private final SAXParser parser;
         private final XsltTransformer schematronValidator;
         private final DocumentBuilder builder;
-        private CMDIWriteableValidationReport report;
+        private final XMLInputFactory headerInputFactory;
+        private CMDIWriteableValidatonReportImpl report;
 
 
         private ThreadContext() {
@@ -493,7 +1072,9 @@ public final class CMDIValidator {
             };
 
             SymbolTable symbols = new SymbolTable(INITAL_SYMBOL_TABLE_SIZE);
-            ShadowCacheXMLGrammarPool pool = new ShadowCacheXMLGrammarPool(8);
+            ShadowCacheXMLGrammarPool pool =
+                    new ShadowCacheXMLGrammarPool(8, schemaLoader,
+                            instruments);
 
             XMLSchemaLoader xsdLoader = new XMLSchemaLoader(symbols);
             xsdLoader.setParameter(GRAMMAR_POOL, pool);
@@ -610,41 +1191,140 @@ public final class CMDIValidator {
             } else {
                 this.schematronValidator = null;
             }
+
+            /*
+             * initialize StAX for sniffing instance headers
+             */
+            this.headerInputFactory = XMLInputFactory.newInstance();
+            this.headerInputFactory.setProperty(
+                    XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+            this.headerInputFactory.setProperty(
+                    XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES,
+                    Boolean.FALSE);
         }
 
 
-        private void validate(final TFile file) throws CMDIValidatorException {
-            TFileInputStream stream = null;
+        /*
+         * Extract the schema locations from the root element of an instance
+         * without parsing the whole document. Errors are ignored, they will
+         * be reported by the actual validation.
+         */
+        private List<String> sniffSchemaLocations(final File file) {
+            final List<String> locations = new ArrayList<String>(2);
+            InputStream stream = null;
+            XMLStreamReader reader = null;
+            try {
+                stream = openStream(file);
+                reader = headerInputFactory.createXMLStreamReader(stream);
+                while (reader.hasNext()) {
+                    if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+                        continue;
+                    }
+                    for (int i = 0; i < reader.getAttributeCount(); i++) {
+                        if (!XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI.equals(
+                                reader.getAttributeNamespace(i))) {
+                            continue;
+                        }
+                        final String name = reader.getAttributeLocalName(i);
+                        final String value = reader.getAttributeValue(i);
+                        if (XSI_SCHEMA_LOCATION.equals(name)) {
+                            /* pairs of namespace URI and location */
+                            final String[] tokens = value.trim().split("\\s+");
+                            for (int j = 1; j < tokens.length; j += 2) {
+                                locations.add(tokens[j]);
+                            }
+                        } else if (XSI_NO_NAMESPACE_SCHEMA_LOCATION.equals(name)) {
+                            locations.add(value.trim());
+                        }
+                    }
+                    break;
+                }
+            } catch (XMLStreamException e) {
+                logger.trace("error sniffing header of file '{}'", file, e);
+            } catch (IOException e) {
+                logger.trace("error sniffing header of file '{}'", file, e);
+            } finally {
+                if (reader != null) {
+                    try {
+                        reader.close();
+                    } catch (XMLStreamException e) {
+                        /* IGNORE */
+                    }
+                }
+                if (stream != null) {
+                    try {
+                        stream.close();
+                    } catch (IOException e) {
+                        /* IGNORE */
+                    }
+                }
+            }
+            return locations;
+        }
+
+
+        private void validate(final File file) throws CMDIValidatorException {
+            final long started = System.nanoTime();
+            InputStream stream = null;
             try {
 
                 /*
                  * step 0: prepare
                  */
-                logger.debug("validating file '{}' ({} bytes)",
-                        file, file.length());
-                report = new CMDIWriteableValidatonReportImpl();
+                final long length = file.length();
+                logger.debug("validating file '{}' ({} bytes)", file, length);
+                instruments.bytes.add(length);
+                synchronized (CMDIValidator.this) {
+                    pendingReports++;
+                } // synchronized (CMDIValidator.this)
+                report = new CMDIWriteableValidatonReportImpl(reportListener,
+                        retainMessageCauses);
                 report.setFile(file);
-                stream = new TFileInputStream(file);
+                stream = openStream(file);
 
                 /*
-                 * step 1: parse document and perform schema validation
+                 * step 1: parse document and perform schema validation;
+                 * streaming extensions see the document while it is parsed
                  */
-                final XdmNode document = parseInstance(stream);
-
-                if (document != null) {
-                    /*
-                     * step 2: perform Schematron validation
-                     */
-                    if (schematronValidator != null) {
-                        validateSchematron(document);
-                    }
+                final BufferedValidationReport[] stageReports =
+                        createStageReports();
+                final StreamingHandler[] handlers =
+                        createStreamingHandlers(stageReports);
+                boolean parsed = false;
+                XdmNode document = null;
+                if (requiresDocument) {
+                    document = parseInstance(stream, handlers);
+                    parsed = (document != null);
+                } else {
+                    parsed = parseInstanceWithoutTree(stream, handlers);
+                }
+                instruments.parseLatency.recordNanos(
+                        System.nanoTime() - started);
+
+                if (parsed) {
+                    if (stageReports != null) {
+                        /*
+                         * step 2 and 3: run Schematron validation and
+                         * extensions concurrently
+                         */
+                        runStagesConcurrently(document, handlers,
+                                stageReports);
+                    } else {
+                        /*
+                         * step 2: perform Schematron validation
+                         */
+                        if (schematronValidator != null) {
+                            validateSchematron(document, report);
+                        }
 
-                    /*
-                     * step 3: run extensions, if any
-                     */
-                    if (extensions != null) {
-                        for (CMDIValidatorExtension extension : extensions) {
-                            extension.validate(document, report);
+                        /*
+                         * step 3: run extensions, if any
+                         */
+                        if (extensions != null) {
+                            for (int i = 0; i < extensions.size(); i++) {
+                                runExtension(i, document, handlers[i],
+                                        report);
+                            }
                         }
                     }
                 }
@@ -662,24 +1342,167 @@ public final class CMDIValidator {
                     throw new CMDIValidatorException(
                             "error closing file '" + file + "'", e);
                 } finally {
-                    if ((report != null) && (handler != null)) {
+                    if (report != null) {
                         try {
-                            handler.onValidationReport(report);
+                            /* delivered right now, unless deferred */
+                            report.release();
                         } finally {
                             report = null;
                         }
                     }
+                    if (file instanceof StreamFile) {
+                        ((StreamFile) file).release();
+                    }
+                    instruments.fileLatency.recordNanos(
+                            System.nanoTime() - started);
                 }
             }
         }
 
 
-        private XdmNode parseInstance(InputStream stream)
+        /*
+         * Returns a report for each stage (Schematron first, then the
+         * extensions), if stages run concurrently, or null otherwise.
+         */
+        private BufferedValidationReport[] createStageReports() {
+            if (stagePool == null) {
+                return null;
+            }
+            final BufferedValidationReport[] reports =
+                    new BufferedValidationReport[1 + extensions.size()];
+            for (int i = 0; i < reports.length; i++) {
+                reports[i] = new BufferedValidationReport(report);
+            }
+            return reports;
+        }
+
+
+        /*
+         * Returns the streaming handler of each extension (or null, if the
+         * extension is not streaming).
+         */
+        private StreamingHandler[] createStreamingHandlers(
+                BufferedValidationReport[] stageReports) {
+            if (extensions == null) {
+                return NO_STREAMING_HANDLERS;
+            }
+            final StreamingHandler[] handlers =
+                    new StreamingHandler[extensions.size()];
+            for (int i = 0; i < handlers.length; i++) {
+                handlers[i] = extensions.get(i).newStreamingHandler(
+                        (stageReports != null) ? stageReports[1 + i] : report);
+            }
+            return handlers;
+        }
+
+
+        private void runExtension(int idx, XdmNode document,
+                StreamingHandler handler,
+                CMDIWriteableValidationReport target)
                 throws CMDIValidatorException {
+            final long started = System.nanoTime();
             try {
+                if (handler != null) {
+                    handler.finish(document);
+                } else {
+                    extensions.get(idx).validate(document, target);
+                }
+            } finally {
+                instruments.extensionLatency.recordNanos(
+                        System.nanoTime() - started);
+            }
+        }
+
+
+        /*
+         * Fork the extensions onto the stage pool and perform Schematron
+         * validation on the current thread. The stage reports are merged in
+         * stage order, so the messages are in the same order as if the
+         * stages had run one after another. Like in sequential mode, stages
+         * after a failed stage do not contribute to the report.
+         */
+        private void runStagesConcurrently(final XdmNode document,
+                final StreamingHandler[] handlers,
+                final BufferedValidationReport[] stageReports)
+                throws CMDIValidatorException {
+            final List<Future<Void>> tasks =
+                    new ArrayList<Future<Void>>(extensions.size());
+            for (int i = 0; i < extensions.size(); i++) {
+                final int idx = i;
+                tasks.add(stagePool.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        runExtension(idx, document, handlers[idx],
+                                stageReports[1 + idx]);
+                        return null;
+                    }
+                }));
+            }
+
+            CMDIValidatorException failure = null;
+            if (schematronValidator != null) {
                 try {
-                    final SAXSource source =
-                            new SAXSource(parser, new InputSource(stream));
+                    validateSchematron(document, stageReports[0]);
+                } catch (CMDIValidatorException e) {
+                    failure = e;
+                }
+            }
+            stageReports[0].merge();
+
+            boolean interrupted = false;
+            RuntimeException unexpected = null;
+            for (int i = 0; i < tasks.size(); i++) {
+                /* always wait for all stages, they share the document */
+                try {
+                    for (;;) {
+                        try {
+                            tasks.get(i).get();
+                            break;
+                        } catch (InterruptedException e) {
+                            interrupted = true;
+                        }
+                    }
+                } catch (ExecutionException e) {
+                    if ((failure == null) && (unexpected == null)) {
+                        final Throwable cause = e.getCause();
+                        if (cause instanceof CMDIValidatorException) {
+                            failure = (CMDIValidatorException) cause;
+                        } else if (cause instanceof RuntimeException) {
+                            unexpected = (RuntimeException) cause;
+                        } else if (cause instanceof Error) {
+                            throw (Error) cause;
+                        } else {
+                            failure = new CMDIValidatorException(
+                                    "error running extension", cause);
+                        }
+                        stageReports[1 + i].merge();
+                    }
+                    continue;
+                }
+                if ((failure == null) && (unexpected == null)) {
+                    stageReports[1 + i].merge();
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            if (unexpected != null) {
+                throw unexpected;
+            }
+        }
+
+
+        private XdmNode parseInstance(InputStream stream,
+                StreamingHandler[] handlers) throws CMDIValidatorException {
+            try {
+                try {
+                    final SAXSource source = new SAXSource(
+                            new TeeXMLReader(parser, nonNull(handlers,
+                                    new SchemaLocationSniffer(report))),
+                            new InputSource(stream));
                     return builder.build(source);
                 } finally {
                     /* recycle parser */
@@ -705,8 +1528,44 @@ public final class CMDIValidator {
         }
 
 
-        private void validateSchematron(XdmNode document)
+        private boolean parseInstanceWithoutTree(InputStream stream,
+                StreamingHandler[] handlers) throws CMDIValidatorException {
+            try {
+                try {
+                    final TeeXMLReader reader =
+                            new TeeXMLReader(parser, nonNull(handlers,
+                                    new SchemaLocationSniffer(report)));
+                    reader.parse(new InputSource(stream));
+                    return true;
+                } finally {
+                    /* recycle parser */
+                    try {
+                        parser.reset();
+                    } catch (XNIException e) {
+                        throw new CMDIValidatorException(
+                                "error resetting parser", e);
+                    } finally {
+                        /* really make sure, stream is closed */
+                        stream.close();
+                    }
+                }
+            } catch (SAXException e) {
+                /* already reported by the error handler */
+                logger.trace("error parsing instance", e);
+                return false;
+            } catch (IOException e) {
+                final String message = (e.getMessage() != null)
+                        ? e.getMessage()
+                        : "input/output error";
+                throw new CMDIValidatorException(message, e);
+            }
+        }
+
+
+        private void validateSchematron(XdmNode document,
+                CMDIWriteableValidationReport target)
                 throws CMDIValidatorException {
+            final long started = System.nanoTime();
             try {
                 logger.trace("performing schematron validation ...");
                 schematronValidator.setSource(document.asSource());
@@ -743,11 +1602,11 @@ public final class CMDIValidator {
                             column = LocationUtils.getColumnNumber(n);
                         }
                         if ("I".equals(s)) {
-                            report.reportInfo(line, column, m);
+                            target.reportInfo(line, column, m);
                         } else if ("W".equals(s)) {
-                            report.reportWarning(line, column, m);
+                            target.reportWarning(line, column, m);
                         } else {
-                            report.reportError(line, column, m);
+                            target.reportError(line, column, m);
                         }
                     } // for
                     if (xpathCompiler != null) {
@@ -758,6 +1617,9 @@ public final class CMDIValidator {
             } catch (SaxonApiException e) {
                 throw new CMDIValidatorException(
                         "error performing schematron validation", e);
+            } finally {
+                instruments.schematronLatency.recordNanos(
+                        System.nanoTime() - started);
             }
         }
 
@@ -792,31 +1654,57 @@ public final class CMDIValidator {
     }
 
 
-    private static final class FileEnumerator {
+    /*
+     * the files to validate; only accessed while holding the lock of the
+     * validator
+     */
+    private interface FileSource {
+        public File nextFile();
+
+        public boolean isEmpty();
+
+        public void flush();
+
+        public void close();
+
+        public long getEstimatedFileCount();
+
+        public boolean isFileCountExact();
+    } // interface FileSource
+
+
+    /*
+     * Enumerates the files below the root in depth first order, listing
+     * each directory only once. While traversing, it keeps a running
+     * estimate of the total number of files: files in the directories
+     * listed so far are counted exactly, and each directory not listed yet
+     * is assumed to contain as many files as the completed directories at
+     * the same depth on average. As long as there are none, the files found
+     * so far below the sibling being traversed serve as a lower bound. The
+     * estimate converges and is exact, once the last directory has been
+     * listed. For a ZIP archive, the exact count is read from its central
+     * directory up front.
+     */
+    private static final class FileEnumerator implements FileSource {
         private final class FileList {
             private final TFile[] fileList;
+            private final boolean[] isDirectory;
+            private final int depth;
             private int idx = 0;
+            private int pendingDirectories;
+            private long subtreeFileCount;
 
 
-            private FileList(TFile[] fileList) {
-                this.fileList = fileList;
+            private FileList(TFile[] fileList, boolean[] isDirectory,
+                    int depth, int directoryCount) {
+                this.fileList           = fileList;
+                this.isDirectory        = isDirectory;
+                this.depth              = depth;
+                this.pendingDirectories = directoryCount;
+                this.subtreeFileCount   = fileList.length - directoryCount;
             }
 
 
-            private TFile nextFile() {
-                while (idx < fileList.length) {
-                    final TFile file = fileList[idx++];
-                    if (file.isDirectory()) {
-                        return file;
-                    }
-                    if ((filter != null) && !filter.accept(file)) {
-                        continue;
-                    }
-                    return file;
-                } // while
-                return null;
-            }
-
             private int size() {
                 return (fileList.length - idx);
             }
@@ -824,74 +1712,532 @@ public final class CMDIValidator {
         private final FileFilter filter;
         private final LinkedList<FileList> stack =
                 new LinkedList<FileList>();
+        private long exactFileCount = -1;
+        private long listedFileCount = 0;
+        private long listedDirectoryCount = 0;
+        private long[] completedDirectoryCount = new long[8];
+        private long[] completedFileCount = new long[8];
 
 
         FileEnumerator(TFile root, FileFilter filter) {
             if (root == null) {
                 throw new NullPointerException("root == null");
             }
+            this.filter = filter;
             if (root.isDirectory()) {
-                pushDirectory(root);
-            } else {
-                stack.add(new FileList(new TFile[] { root }));
+                if (root.isArchive()) {
+                    exactFileCount = countArchiveEntries(root, filter);
+                }
+                pushDirectory(root, 0);
+            } else if ((filter == null) || filter.accept(root)) {
+                stack.add(new FileList(new TFile[] { root },
+                        new boolean[] { false }, 0, 0));
+                listedFileCount++;
             }
-            this.filter = filter;
         }
 
 
-        boolean isEmpty() {
-            return stack.isEmpty();
+        @Override
+        public boolean isEmpty() {
+            for (FileList list : stack) {
+                if (list.size() > 0) {
+                    return false;
+                }
+            }
+            return true;
         }
 
 
-        TFile nextFile() {
-            for (;;) {
-                if (stack.isEmpty()) {
-                    break;
-                }
+        @Override
+        public File nextFile() {
+            while (!stack.isEmpty()) {
                 final FileList list = stack.peek();
-                final TFile file = list.nextFile();
-                if ((list.size() == 0) || (file == null)) {
-                    stack.pop();
-                    if (file == null) {
+                if (list.size() > 0) {
+                    final int i = list.idx++;
+                    if (list.isDirectory[i]) {
+                        list.pendingDirectories--;
+                        pushDirectory(list.fileList[i], list.depth + 1);
                         continue;
                     }
+                    return list.fileList[i];
                 }
-                if (file.isDirectory()) {
-                    pushDirectory(file);
-                    continue;
-                }
-                return file;
+                stack.pop();
+                complete(list.depth, list.subtreeFileCount);
             }
             return null;
         }
 
 
-        void flush() {
+        @Override
+        public void flush() {
             stack.clear();
         }
 
 
-        private void pushDirectory(TFile directory) {
+        @Override
+        public void close() {
+            /* archives are unmounted by the caller */
+        }
+
+
+        @Override
+        public long getEstimatedFileCount() {
+            if (exactFileCount != -1) {
+                return exactFileCount;
+            }
+            double estimate = listedFileCount;
+            for (FileList list : stack) {
+                if (list.pendingDirectories > 0) {
+                    estimate += list.pendingDirectories *
+                            getMeanFileCount(list.depth + 1);
+                }
+            }
+            return Math.round(estimate);
+        }
+
+
+        @Override
+        public boolean isFileCountExact() {
+            if (exactFileCount != -1) {
+                return true;
+            }
+            for (FileList list : stack) {
+                if (list.pendingDirectories > 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+
+        private double getMeanFileCount(int depth) {
+            if ((depth < completedDirectoryCount.length) &&
+                    (completedDirectoryCount[depth] > 0)) {
+                return (double) completedFileCount[depth] /
+                        (double) completedDirectoryCount[depth];
+            }
+            /*
+             * the sibling being traversed has at least as many files as
+             * found so far
+             */
+            long partial = 0;
+            for (FileList list : stack) {
+                if (list.depth == depth) {
+                    partial = list.subtreeFileCount;
+                    break;
+                }
+            }
+            final double mean = (listedDirectoryCount > 0)
+                    ? ((double) listedFileCount / (double) listedDirectoryCount)
+                    : 0.0;
+            return Math.max(partial, mean);
+        }
+
+
+        private void pushDirectory(TFile directory, int depth) {
             final TFile[] files = directory.listFiles();
+            int count = 0;
+            int directoryCount = 0;
+            boolean[] isDirectory = null;
             if ((files != null) && (files.length > 0)) {
-                stack.push(new FileList(files));
+                isDirectory = new boolean[files.length];
+                for (TFile file : files) {
+                    if (file.isDirectory()) {
+                        isDirectory[count] = true;
+                        directoryCount++;
+                    } else if ((filter != null) && !filter.accept(file)) {
+                        continue;
+                    }
+                    files[count++] = file;
+                }
+            }
+            listedDirectoryCount++;
+            listedFileCount += (count - directoryCount);
+            if (count > 0) {
+                stack.push(new FileList((count < files.length)
+                            ? Arrays.copyOf(files, count)
+                            : files,
+                        isDirectory, depth, directoryCount));
+            } else {
+                complete(depth, 0);
+            }
+        }
+
+
+        private void complete(int depth, long fileCount) {
+            if (depth >= completedDirectoryCount.length) {
+                final int size = Math.max(depth + 1,
+                        completedDirectoryCount.length * 2);
+                completedDirectoryCount =
+                        Arrays.copyOf(completedDirectoryCount, size);
+                completedFileCount = Arrays.copyOf(completedFileCount, size);
+            }
+            completedDirectoryCount[depth]++;
+            completedFileCount[depth] += fileCount;
+            if (!stack.isEmpty()) {
+                stack.peek().subtreeFileCount += fileCount;
+            }
+        }
+
+
+        /*
+         * Count the files in a ZIP archive from its central directory.
+         * Returns -1, if the archive cannot be read this way (e.g. if it
+         * is nested in another archive) or contains nested archives.
+         */
+        private static long countArchiveEntries(TFile archive,
+                FileFilter filter) {
+            ZipFile zip = null;
+            try {
+                zip = new ZipFile(archive);
+                long count = 0;
+                final Enumeration<? extends ZipEntry> entries = zip.entries();
+                while (entries.hasMoreElements()) {
+                    final ZipEntry entry = entries.nextElement();
+                    if (entry.isDirectory()) {
+                        continue;
+                    }
+                    final TFile file = new TFile(archive, entry.getName());
+                    if (file.isArchive()) {
+                        logger.debug("archive '{}' contains nested " +
+                                "archives; estimating file count", archive);
+                        return -1;
+                    }
+                    if ((filter != null) && !filter.accept(file)) {
+                        continue;
+                    }
+                    count++;
+                }
+                logger.debug("archive '{}' contains {} files", archive, count);
+                return count;
+            } catch (IOException e) {
+                logger.debug("cannot read central directory of archive " +
+                        "'{}': {}", archive, e.getMessage());
+                return -1;
+            } finally {
+                if (zip != null) {
+                    try {
+                        zip.close();
+                    } catch (IOException e) {
+                        /* IGNORE */
+                    }
+                }
             }
         }
 
     } // class FileEnumerator
 
 
+    /*
+     * Enumerates the entries of a ZIP archive, that is read directly, in
+     * the order of their data in the archive. Entries are only dispatched
+     * here; the worker threads read and inflate them concurrently. Nested
+     * archives are opened, when they are reached, so the file count is
+     * exact, unless there are nested archives left to open; for those, the
+     * average number of files of the nested archives opened so far is
+     * assumed. All archives are closed, when validation has finished.
+     */
+    private static final class ArchiveEnumerator implements FileSource {
+        private static final String ARCHIVE_SUFFIX = ".zip";
+        private final class EntryList {
+            private final ZipArchive archive;
+            private final List<ZipArchive.Entry> entries;
+            private int pendingArchives;
+            private int idx = 0;
+
+
+            private EntryList(ZipArchive archive,
+                    List<ZipArchive.Entry> entries, int pendingArchives) {
+                this.archive         = archive;
+                this.entries         = entries;
+                this.pendingArchives = pendingArchives;
+            }
+
+
+            private int size() {
+                return (entries.size() - idx);
+            }
+        }
+        private final FileFilter filter;
+        private final LinkedList<EntryList> stack =
+                new LinkedList<EntryList>();
+        private final List<ZipArchive> archives = new ArrayList<ZipArchive>();
+        private long listedFileCount = 0;
+        private long nestedArchiveCount = 0;
+        private long nestedFileCount = 0;
+
+
+        ArchiveEnumerator(ZipArchive archive, FileFilter filter) {
+            this.filter = filter;
+            archives.add(archive);
+            push(archive);
+        }
+
+
+        @Override
+        public File nextFile() {
+            while (!stack.isEmpty()) {
+                final EntryList list = stack.peek();
+                if (list.size() > 0) {
+                    final ZipArchive.Entry entry =
+                            list.entries.get(list.idx++);
+                    final ArchiveEntryFile file =
+                            new ArchiveEntryFile(list.archive, entry);
+                    if (isArchive(entry)) {
+                        list.pendingArchives--;
+                        try {
+                            final ZipArchive nested =
+                                    list.archive.openArchive(entry);
+                            archives.add(nested);
+                            final long count = listedFileCount;
+                            push(nested);
+                            nestedArchiveCount++;
+                            nestedFileCount += (listedFileCount - count);
+                            continue;
+                        } catch (IOException e) {
+                            /* like TrueVFS, treat it as a regular file */
+                            logger.debug("error reading nested archive " +
+                                    "'{}': {}", file, e.getMessage());
+                            if ((filter != null) && !filter.accept(file)) {
+                                continue;
+                            }
+                            listedFileCount++;
+                        }
+                    }
+                    return file;
+                }
+                stack.pop();
+            }
+            return null;
+        }
+
+
+        @Override
+        public boolean isEmpty() {
+            for (EntryList list : stack) {
+                if (list.size() > 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+
+        @Override
+        public void flush() {
+            stack.clear();
+        }
+
+
+        @Override
+        public void close() {
+            for (ZipArchive archive : archives) {
+                try {
+                    archive.close();
+                } catch (IOException e) {
+                    logger.debug("error closing archive '{}': {}",
+                            archive.getName(), e.getMessage());
+                }
+            }
+            archives.clear();
+        }
+
+
+        @Override
+        public long getEstimatedFileCount() {
+            double estimate = listedFileCount;
+            if (nestedArchiveCount > 0) {
+                final double mean =
+                        (double) nestedFileCount / (double) nestedArchiveCount;
+                for (EntryList list : stack) {
+                    estimate += list.pendingArchives * mean;
+                }
+            }
+            return Math.round(estimate);
+        }
+
+
+        @Override
+        public boolean isFileCountExact() {
+            for (EntryList list : stack) {
+                if (list.pendingArchives > 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+
+        private void push(ZipArchive archive) {
+            final List<ZipArchive.Entry> entries =
+                    new ArrayList<ZipArchive.Entry>();
+            int pendingArchives = 0;
+            for (ZipArchive.Entry entry : archive.getEntries()) {
+                if (entry.isDirectory()) {
+                    continue;
+                }
+                if (isArchive(entry)) {
+                    pendingArchives++;
+                } else if ((filter != null) &&
+                        !filter.accept(new ArchiveEntryFile(archive, entry))) {
+                    continue;
+                } else {
+                    listedFileCount++;
+                }
+                entries.add(entry);
+            }
+            if (!entries.isEmpty()) {
+                stack.push(new EntryList(archive, entries, pendingArchives));
+            }
+        }
+
+
+        private static boolean isArchive(ZipArchive.Entry entry) {
+            final String name = entry.getName();
+            return name.regionMatches(true,
+                    name.length() - ARCHIVE_SUFFIX.length(),
+                    ARCHIVE_SUFFIX, 0, ARCHIVE_SUFFIX.length());
+        }
+    } // class ArchiveEnumerator
+
+
+    /*
+     * Dispatches the entries of a tar archive, that is read as a stream, in
+     * the order they are read. Entries may not be available yet, even
+     * though the archive has not been read completely; the validator waits
+     * for the reader then. An error reading the archive is passed on as a
+     * file, that fails to open, so it ends validation like any other read
+     * error. The file count is exact, once the archive has been read.
+     */
+    private static final class TarStreamEnumerator implements FileSource {
+        private final TarStreamReader reader;
+        private boolean errorDispatched = false;
+        private boolean flushed = false;
+
+
+        TarStreamEnumerator(TarStreamReader reader) {
+            this.reader = reader;
+        }
+
+
+        @Override
+        public File nextFile() {
+            if (flushed) {
+                return null;
+            }
+            final File file = reader.poll();
+            if ((file == null) && !errorDispatched && reader.isExhausted() &&
+                    (reader.getError() != null)) {
+                errorDispatched = true;
+                return new ReadErrorFile(reader.getName(), reader.getError());
+            }
+            return file;
+        }
+
+
+        @Override
+        public boolean isEmpty() {
+            return flushed || (reader.isExhausted() &&
+                    (errorDispatched || (reader.getError() == null)));
+        }
+
+
+        @Override
+        public void flush() {
+            flushed = true;
+            close();
+        }
+
+
+        @Override
+        public void close() {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                logger.debug("error closing archive '{}': {}",
+                        reader.getName(), e.getMessage());
+            }
+        }
+
+
+        @Override
+        public long getEstimatedFileCount() {
+            return reader.getEntryCount();
+        }
+
+
+        @Override
+        public boolean isFileCountExact() {
+            return reader.isFinished();
+        }
+    } // class TarStreamEnumerator
+
+
+    @SuppressWarnings("serial")
+    private static final class ReadErrorFile extends StreamFile {
+        private final IOException error;
+
+
+        private ReadErrorFile(String path, IOException error) {
+            super(path);
+            this.error = error;
+        }
+
+
+        @Override
+        public InputStream openStream() throws IOException {
+            throw error;
+        }
+
+
+        @Override
+        public long length() {
+            return 0;
+        }
+    } // class ReadErrorFile
+
+
+    @SuppressWarnings("serial")
+    private static final class ArchiveEntryFile extends StreamFile {
+        private final ZipArchive archive;
+        private final ZipArchive.Entry entry;
+
+
+        private ArchiveEntryFile(ZipArchive archive, ZipArchive.Entry entry) {
+            super(archive.getName() + "/" + entry.getName());
+            this.archive = archive;
+            this.entry   = entry;
+        }
+
+
+        @Override
+        public InputStream openStream() throws IOException {
+            return archive.openStream(entry);
+        }
+
+
+        @Override
+        public long length() {
+            return entry.getSize();
+        }
+    } // class ArchiveEntryFile
+
+
     private static final class ShadowCacheXMLGrammarPool implements
             XMLGrammarPool {
         private final Set<Grammar> cache =
                 new LinkedHashSet<Grammar>();
         private final Map<String, Grammar> shadowCache;
+        private final CMDISchemaLoader schemaLoader;
+        private final Instruments instruments;
         private boolean locked = false;
 
 
-        private ShadowCacheXMLGrammarPool(int shadowCacheSize) {
-            this.shadowCache = new LRUCache<String, Grammar>(shadowCacheSize);
+        private ShadowCacheXMLGrammarPool(int shadowCacheSize,
+                CMDISchemaLoader schemaLoader, Instruments instruments) {
+            this.shadowCache  = new LRUCache<String, Grammar>(shadowCacheSize);
+            this.schemaLoader = schemaLoader;
+            this.instruments  = instruments;
         }
 
 
@@ -927,6 +2273,7 @@ public final class CMDIValidator {
                         namespace,
                         desc.getNamespace(),
                         desc.getLiteralSystemId());
+                instruments.grammarHits.increment();
                 return result;
             }
 
@@ -942,15 +2289,19 @@ public final class CMDIValidator {
             }
 
             if (locationHint != null) {
+                locationHint =
+                        schemaLoader.canonicalizeSchemaLocation(locationHint);
                 Grammar grammar = shadowCache.get(locationHint);
                 if (grammar != null) {
                     logger.trace("-> match from shadow cache: {} -> {}",
                             grammar.getGrammarDescription().getNamespace(),
                             locationHint);
+                    instruments.grammarShadowHits.increment();
                     return grammar;
                 }
             }
             logger.trace("-> miss");
+            instruments.grammarMisses.increment();
             return null;
         }
 
@@ -992,11 +2343,16 @@ public final class CMDIValidator {
                         } else {
                             final String literalSystemId =
                                         gd.getLiteralSystemId();
-                            if (!shadowCache.containsKey(literalSystemId)) {
+                            if (literalSystemId == null) {
+                                continue;
+                            }
+                            final String location = schemaLoader
+                                    .canonicalizeSchemaLocation(literalSystemId);
+                            if (!shadowCache.containsKey(location)) {
                                 logger.trace("shadow cached grammar: {} / {}",
                                         gd.getNamespace(),
-                                        gd.getLiteralSystemId());
-                                shadowCache.put(literalSystemId, grammar);
+                                        location);
+                                shadowCache.put(location, grammar);
                             }
                         }
                     }
@@ -18,20 +18,34 @@ package eu.clarin.cmdi.validator;
 
 import java.io.File;
 import java.io.FileFilter;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
+import eu.clarin.cmdi.validator.metrics.ValidatorMetrics;
+import eu.clarin.cmdi.validator.utils.TarStreamReader;
+
 
 public class CMDIValidatorConfig {
     private final File root;
     private final CMDIValidationHandler handler;
     private FileFilter fileFilter = null;
     private File schemaCacheDirectory = null;
+    private long schemaCacheMaxSize = CMDISchemaLoader.DISABLE_CACHE_SIZE_LIMIT;
+    private CMDISchemaLoader.EvictionPolicy schemaCacheEvictionPolicy =
+            CMDISchemaLoader.EvictionPolicy.LRU;
     private CMDISchemaLoader schemaLoader = null;
+    private CMDISchemaLocationCanonicalizer schemaLocationCanonicalizer = null;
     private File schematronSchemaFile = null;
     private boolean schematronDisabled = false;
     private List<CMDIValidatorExtension> extensions = null;
+    private boolean parallelStages = false;
+    private boolean directArchiveAccess = false;
+    private InputStream inputStream = null;
+    private long streamBufferSize = TarStreamReader.DEFAULT_MAX_BYTES;
+    private boolean retainMessageCauses = true;
+    private ValidatorMetrics metrics = null;
     private int connectTimeout = 60000;
     private int socketTimeout = 60000;
 
@@ -69,11 +83,26 @@ public class CMDIValidatorConfig {
     }
 
 
+    public long getSchemaCacheMaxSize() {
+        return schemaCacheMaxSize;
+    }
+
+
+    public CMDISchemaLoader.EvictionPolicy getSchemaCacheEvictionPolicy() {
+        return schemaCacheEvictionPolicy;
+    }
+
+
     public CMDISchemaLoader getSchemaLoader() {
         return schemaLoader;
     }
 
 
+    public CMDISchemaLocationCanonicalizer getSchemaLocationCanonicalizer() {
+        return schemaLocationCanonicalizer;
+    }
+
+
     public File getSchematronSchemaFile() {
         return schematronSchemaFile;
     }
@@ -93,6 +122,36 @@ public class CMDIValidatorConfig {
     }
 
 
+    public boolean isParallelStages() {
+        return parallelStages;
+    }
+
+
+    public boolean isDirectArchiveAccess() {
+        return directArchiveAccess;
+    }
+
+
+    public InputStream getInputStream() {
+        return inputStream;
+    }
+
+
+    public long getStreamBufferSize() {
+        return streamBufferSize;
+    }
+
+
+    public boolean isRetainMessageCauses() {
+        return retainMessageCauses;
+    }
+
+
+    public ValidatorMetrics getMetrics() {
+        return metrics;
+    }
+
+
     public int getConnectTimeout() {
         return connectTimeout;
     }
@@ -135,6 +194,26 @@ public class CMDIValidatorConfig {
         }
 
 
+        public Builder schemaCacheMaxSize(final long schemaCacheMaxSize) {
+            if ((schemaCacheMaxSize < 1) && (schemaCacheMaxSize !=
+                    CMDISchemaLoader.DISABLE_CACHE_SIZE_LIMIT)) {
+                throw new IllegalArgumentException("schemaCacheMaxSize < 1");
+            }
+            config.schemaCacheMaxSize = schemaCacheMaxSize;
+            return this;
+        }
+
+
+        public Builder schemaCacheEvictionPolicy(
+                final CMDISchemaLoader.EvictionPolicy evictionPolicy) {
+            if (evictionPolicy == null) {
+                throw new NullPointerException("evictionPolicy == null");
+            }
+            config.schemaCacheEvictionPolicy = evictionPolicy;
+            return this;
+        }
+
+
         public Builder schemaLoader(final CMDISchemaLoader schemaLoader) {
             if (schemaLoader == null) {
                 throw new NullPointerException("schemaLoader == null");
@@ -144,6 +223,16 @@ public class CMDIValidatorConfig {
         }
 
 
+        public Builder schemaLocationCanonicalizer(
+                final CMDISchemaLocationCanonicalizer canonicalizer) {
+            if (canonicalizer == null) {
+                throw new NullPointerException("canonicalizer == null");
+            }
+            config.schemaLocationCanonicalizer = canonicalizer;
+            return this;
+        }
+
+
         public Builder schematronSchemaFile(final File schematronSchemaFile) {
             if (schematronSchemaFile == null) {
                 throw new NullPointerException("schematronSchemaFile == null");
@@ -180,6 +269,83 @@ public class CMDIValidatorConfig {
             return this;
         }
 
+        /*
+         * Run Schematron validation and the extensions of a document
+         * concurrently. Messages are still reported in stage order.
+         */
+        public Builder parallelStages(boolean parallelStages) {
+            config.parallelStages = parallelStages;
+            return this;
+        }
+
+
+        /*
+         * If the root is a ZIP archive, read it directly instead of mounting
+         * it through TrueVFS, so worker threads read and inflate entries in
+         * parallel. Archives below a root directory are still read through
+         * TrueVFS.
+         */
+        public Builder directArchiveAccess(boolean directArchiveAccess) {
+            config.directArchiveAccess = directArchiveAccess;
+            return this;
+        }
+
+
+        /*
+         * Validate the files of a tar archive (optionally compressed with
+         * gzip, bzip2, xz or zstd), that is read from a stream, e.g. the
+         * standard input, instead of the root. The root only names the
+         * archive in reports. A root, that is a tar archive itself, is
+         * always read as a stream.
+         */
+        public Builder inputStream(final InputStream inputStream) {
+            if (inputStream == null) {
+                throw new NullPointerException("inputStream == null");
+            }
+            config.inputStream = inputStream;
+            return this;
+        }
+
+
+        /*
+         * The maximum number of bytes of a tar archive, that are read ahead
+         * of validation and kept in memory.
+         */
+        public Builder streamBufferSize(final long streamBufferSize) {
+            if (streamBufferSize < 1) {
+                throw new IllegalArgumentException("streamBufferSize < 1");
+            }
+            config.streamBufferSize = streamBufferSize;
+            return this;
+        }
+
+
+        /*
+         * Keep the exceptions, that caused report messages. Parser
+         * exceptions and their stack traces are by far the largest part of
+         * a report, so disable this when reports are retained in bulk and
+         * causes are not needed.
+         */
+        public Builder retainMessageCauses(boolean retainMessageCauses) {
+            config.retainMessageCauses = retainMessageCauses;
+            return this;
+        }
+
+
+        /*
+         * Publish metrics of the validation run (throughput, stage latencies,
+         * schema loader and extension statistics) to a registry. A registry
+         * can only be used by one validator.
+         */
+        public Builder metrics(final ValidatorMetrics metrics) {
+            if (metrics == null) {
+                throw new NullPointerException("metrics == null");
+            }
+            config.metrics = metrics;
+            return this;
+        }
+
+
         public Builder connectTimeout(int connectTimeout) {
             config.connectTimeout = connectTimeout;
             return this;
@@ -16,11 +16,30 @@
  */
 package eu.clarin.cmdi.validator;
 
+import org.xml.sax.helpers.DefaultHandler;
+
 import net.sf.saxon.s9api.Processor;
 import net.sf.saxon.s9api.XdmNode;
 
+import eu.clarin.cmdi.validator.metrics.ValidatorMetrics;
+
 
 public abstract class CMDIValidatorExtension {
+    /*
+     * Receives the SAX events of a document while it is being parsed and
+     * schema validated, e.g. to collect values early. If the document has
+     * been parsed successfully, finish() is called instead of validate().
+     * The handler is used by one thread for one document only.
+     */
+    public static abstract class StreamingHandler extends DefaultHandler {
+        /*
+         * Complete validation of the document. The document is null, if no
+         * tree has been built, because neither Schematron validation nor
+         * any other extension required it.
+         */
+        public abstract void finish(final XdmNode document)
+                throws CMDIValidatorException;
+    } // class StreamingHandler
     protected Processor processor;
 
 
@@ -39,6 +58,34 @@ public abstract class CMDIValidatorExtension {
             throws CMDIValidatorException;
 
 
+    /*
+     * Create a handler, that receives the parse events of the document to
+     * be validated with the given report, or null, if the extension only
+     * works on the tree (the default).
+     */
+    public StreamingHandler newStreamingHandler(
+            final CMDIWriteableValidationReport report) {
+        return null;
+    }
+
+
+    /*
+     * Whether the extension needs the tree of the document. Extensions,
+     * that do all their work in a streaming handler, should return false.
+     */
+    public boolean requiresDocument() {
+        return true;
+    }
+
+
+    /*
+     * Publish statistics of the extension to the metrics registry of the
+     * validator. Called once after initialization, if metrics are enabled.
+     */
+    public void registerMetrics(final ValidatorMetrics metrics) {
+    }
+
+
     protected abstract void doInitialize() throws CMDIValidatorInitException;
 
 } // class CMDIValidatorExtension
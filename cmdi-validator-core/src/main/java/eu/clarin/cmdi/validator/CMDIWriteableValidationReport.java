@@ -39,4 +39,18 @@ public interface CMDIWriteableValidationReport extends CMDIValidationReport {
 
     public void reportError(int line, int col, String message, Throwable cause);
 
+
+    /*
+     * Postpone handing this report to the validation handler until the
+     * returned deferral has been completed, e.g. to wait for results of
+     * asynchronous checks. All messages must be reported before the deferral
+     * is completed and the report must not be accessed afterwards.
+     */
+    public Deferral defer();
+
+
+    public interface Deferral {
+        public void complete();
+    } // interface Deferral
+
 } // interface CMDIWriteableValidationReport
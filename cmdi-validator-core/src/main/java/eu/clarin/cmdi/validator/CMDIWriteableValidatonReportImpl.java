@@ -1,14 +1,63 @@
 package eu.clarin.cmdi.validator;
 
 import java.io.File;
-import java.util.ArrayList;
+import java.util.AbstractList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
-
+import java.util.RandomAccess;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/*
+ * Messages are not kept as objects, but in parallel arrays: severity, line
+ * and column are packed into one long, the text is split into an interned
+ * template and its arguments, which are packed into a single buffer for
+ * all messages of the report (see MessageTemplates), and causes are only
+ * retained on request. Message objects are created on access.
+ */
 final class CMDIWriteableValidatonReportImpl implements CMDIWriteableValidationReport {
+    interface CompletionListener {
+        public void onCompleted(CMDIWriteableValidatonReportImpl report);
+    } // interface CompletionListener
+    private static final Severity[] SEVERITIES = Severity.values();
+    private static final int MAX_COLUMN = (1 << 29) - 1;
+    private static final int INITIAL_CAPACITY = 8;
     private File file;
-    private List<Message> messages;
+    private String schemaLocation;
+    private int count = 0;
+    /* bits 0-1 severity, bits 2-31 column, bits 32-63 line */
+    private long[] positions;
+    private String[] templates;
+    private int[] argumentOffsets;
+    private StringBuilder argumentBuffer;
+    private StringBuilder templateBuffer;
+    private Throwable[] causes;
+    private final int[] severityCounts = new int[SEVERITIES.length];
+    private final int[] severityFirst = new int[SEVERITIES.length];
     private Severity highestSeverity = Severity.INFO;
+    private final AtomicInteger holds = new AtomicInteger(1);
+    private final CompletionListener listener;
+    private final boolean retainCauses;
+
+
+    CMDIWriteableValidatonReportImpl(CompletionListener listener,
+            boolean retainCauses) {
+        this.listener     = listener;
+        this.retainCauses = retainCauses;
+        Arrays.fill(severityFirst, -1);
+    }
+
+
+    CMDIWriteableValidatonReportImpl(CompletionListener listener) {
+        this(listener, true);
+    }
+
+
+    CMDIWriteableValidatonReportImpl() {
+        this(null);
+    }
 
 
     @Override
@@ -23,6 +72,17 @@ final class CMDIWriteableValidatonReportImpl implements CMDIWriteableValidationR
     }
 
 
+    @Override
+    public String getSchemaLocation() {
+        return schemaLocation;
+    }
+
+
+    void setSchemaLocation(String schemaLocation) {
+        this.schemaLocation = schemaLocation;
+    }
+
+
     @Override
     public boolean isSuccess() {
         return isHighestSeverity(Severity.INFO);
@@ -58,8 +118,8 @@ final class CMDIWriteableValidatonReportImpl implements CMDIWriteableValidationR
 
     @Override
     public List<Message> getMessages() {
-        if ((messages != null) && !messages.isEmpty()) {
-            return Collections.unmodifiableList(messages);
+        if (count > 0) {
+            return new MessageList();
         } else {
             return Collections.emptyList();
         }
@@ -68,9 +128,7 @@ final class CMDIWriteableValidatonReportImpl implements CMDIWriteableValidationR
 
     @Override
     public Message getFirstMessage() {
-        return ((messages != null) && !messages.isEmpty())
-                ? messages.get(0)
-                : null;
+        return (count > 0) ? new MessageImpl(0) : null;
     }
 
 
@@ -79,23 +137,14 @@ final class CMDIWriteableValidatonReportImpl implements CMDIWriteableValidationR
         if (severity == null) {
             throw new NullPointerException("severity == null");
         }
-
-        if ((messages != null) && !messages.isEmpty()) {
-            for (Message msg : messages) {
-                if (severity.equals(msg.getSeverity())) {
-                    return msg;
-                }
-            }
-        }
-        return null;
+        final int idx = severityFirst[severity.ordinal()];
+        return (idx != -1) ? new MessageImpl(idx) : null;
     }
 
 
     @Override
     public int getMessageCount() {
-        return ((messages != null) && !messages.isEmpty())
-                ? messages.size()
-                : 0;
+        return count;
     }
 
 
@@ -104,16 +153,7 @@ final class CMDIWriteableValidatonReportImpl implements CMDIWriteableValidationR
         if (severity == null) {
             throw new NullPointerException("severity == null");
         }
-
-        int count = 0;
-        if ((messages != null) && !messages.isEmpty()) {
-            for (Message msg : messages) {
-                if (severity.equals(msg.getSeverity())) {
-                    count++;
-                }
-            }
-        }
-        return count;
+        return severityCounts[severity.ordinal()];
     }
 
 
@@ -156,67 +196,174 @@ final class CMDIWriteableValidatonReportImpl implements CMDIWriteableValidationR
     }
 
 
-    private void addMessage(final Severity severity,
+    @Override
+    public Deferral defer() {
+        holds.incrementAndGet();
+        return new Deferral() {
+            private final AtomicBoolean completed = new AtomicBoolean();
+
+            @Override
+            public void complete() {
+                if (completed.compareAndSet(false, true)) {
+                    release();
+                }
+            }
+        };
+    }
+
+
+    /*
+     * Drop a hold on this report. The validator holds the report while
+     * validating; the completion listener is notified when the last hold
+     * has been dropped.
+     */
+    boolean release() {
+        if (holds.decrementAndGet() == 0) {
+            if (listener != null) {
+                listener.onCompleted(this);
+            }
+            return true;
+        }
+        return false;
+    }
+
+
+    /* deferred checks might report from other threads */
+    private synchronized void addMessage(final Severity severity,
             final int line,
             final int col,
             final String message,
             final Throwable cause) {
-        if (messages == null) {
-            messages = new ArrayList<Message>(8);
+        if (positions == null) {
+            positions = new long[INITIAL_CAPACITY];
+            templates = new String[INITIAL_CAPACITY];
+            argumentOffsets = new int[INITIAL_CAPACITY];
+        } else if (count == positions.length) {
+            final int capacity = count + (count >> 1);
+            positions = Arrays.copyOf(positions, capacity);
+            templates = Arrays.copyOf(templates, capacity);
+            argumentOffsets = Arrays.copyOf(argumentOffsets, capacity);
+            if (causes != null) {
+                causes = Arrays.copyOf(causes, capacity);
+            }
         }
         if (severity.priority() > highestSeverity.priority()) {
             highestSeverity = severity;
         }
-        messages.add(new MessageImpl(severity, line, col, message, cause));
+
+        final int idx = count;
+        positions[idx] = pack(severity, line, col);
+        argumentOffsets[idx] = MessageTemplates.NO_ARGUMENTS;
+        if (message != null) {
+            if (argumentBuffer == null) {
+                argumentBuffer = new StringBuilder(256);
+                templateBuffer = new StringBuilder(256);
+            }
+            final int offset = argumentBuffer.length();
+            final String template = MessageTemplates.split(message,
+                    templateBuffer, argumentBuffer);
+            if (template != null) {
+                templates[idx] = template;
+                if (argumentBuffer.length() > offset) {
+                    argumentOffsets[idx] = offset;
+                }
+            } else {
+                templates[idx] = message;
+            }
+        }
+        if (retainCauses && (cause != null)) {
+            if (causes == null) {
+                causes = new Throwable[positions.length];
+            }
+            causes[idx] = cause;
+        }
+        final int s = severity.ordinal();
+        if (severityFirst[s] == -1) {
+            severityFirst[s] = idx;
+        }
+        severityCounts[s]++;
+        count++;
+    }
+
+
+    private static long pack(Severity severity, int line, int col) {
+        if (col > MAX_COLUMN) {
+            col = MAX_COLUMN;
+        } else if (col < -MAX_COLUMN) {
+            col = -1;
+        }
+        return ((long) line << 32) |
+                ((col & 0x3FFFFFFFL) << 2) |
+                severity.ordinal();
     }
 
 
-    private static final class MessageImpl implements
-            CMDIValidationReport.Message {
-        private final Severity severity;
-        private final int line;
-        private final int col;
-        private final String message;
-        private final Throwable cause;
+    private final class MessageList extends AbstractList<Message>
+            implements RandomAccess {
+        private final int size = count;
+
+
+        @Override
+        public Message get(int index) {
+            if ((index < 0) || (index >= size)) {
+                throw new IndexOutOfBoundsException("index out of range: " +
+                        index);
+            }
+            return new MessageImpl(index);
+        }
+
+
+        @Override
+        public int size() {
+            return size;
+        }
+    } // class MessageList
+
+
+    private final class MessageImpl implements CMDIValidationReport.Message {
+        private final int idx;
+        private String message;
 
 
-        private MessageImpl(Severity severity, int line, int col,
-                String message, Throwable cause) {
-            this.severity = severity;
-            this.line = line;
-            this.col = col;
-            this.message = message;
-            this.cause = cause;
+        private MessageImpl(int idx) {
+            this.idx = idx;
         }
 
 
         @Override
         public Severity getSeverity() {
-            return severity;
+            return SEVERITIES[(int) (positions[idx] & 0x3)];
         }
 
 
         @Override
         public int getLineNumber() {
-            return line;
+            return (int) (positions[idx] >> 32);
         }
 
 
         @Override
         public int getColumnNumber() {
-            return col;
+            return ((int) positions[idx]) >> 2;
         }
 
 
         @Override
         public String getMessage() {
+            if (message == null) {
+                final String template = templates[idx];
+                if (template != null) {
+                    message = MessageTemplates.format(template,
+                            argumentBuffer, argumentOffsets[idx]);
+                }
+            }
             return message;
         }
 
 
         @Override
         public Throwable getCause() {
-            return cause;
+            return (causes != null) ? causes[idx] : null;
         }
     } // class MessageImpl
 
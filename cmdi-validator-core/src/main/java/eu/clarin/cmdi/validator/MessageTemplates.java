@@ -0,0 +1,139 @@
+/**
+ * This software is copyright (c) 2014 by
+ *  - Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ * This is free software. You can redistribute it
+ * and/or modify it under the terms described in
+ * the GNU General Public License v3 of which you
+ * should have received a copy. Otherwise you can download
+ * it from
+ *
+ *   http://www.gnu.org/licenses/gpl-3.0.txt
+ *
+ * @copyright Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ *
+ * @license http://www.gnu.org/licenses/gpl-3.0.txt
+ *  GNU General Public License v3
+ */
+package eu.clarin.cmdi.validator;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+
+/*
+ * Splits report messages into a template and arguments. Parser and
+ * Schematron messages mostly differ only in their quoted parts (element
+ * names, values, URIs), so the quoted parts become arguments and the
+ * remaining text is interned and shared by all reports. The arguments of
+ * all messages of a report are packed into one buffer, each argument is
+ * terminated by the slot character; a message only keeps the offset of
+ * its first argument. Messages without quoted parts are interned as a
+ * whole and have no arguments. The number of interned templates is
+ * bounded; once the limit has been reached, new templates are used
+ * without interning.
+ */
+final class MessageTemplates {
+    /* a private use character, marks the argument slots of a template */
+    static final char SLOT = '\uE000';
+    /* offset of a message without arguments */
+    static final int NO_ARGUMENTS = -1;
+    private static final int MAX_TEMPLATES = 8192;
+    private static final ConcurrentMap<String, String> templates =
+            new ConcurrentHashMap<String, String>(256);
+
+
+    private MessageTemplates() {
+    }
+
+
+    /*
+     * Returns the template of the message and appends the arguments to
+     * args; template is a scratch buffer. Returns null, if the message
+     * already contains the slot character. Round-tripping is exact, even
+     * if quotes are used as apostrophes.
+     */
+    static String split(String message, StringBuilder template,
+            StringBuilder args) {
+        if ((message.indexOf('\'') == -1) && (message.indexOf('"') == -1)) {
+            return intern(message);
+        }
+        if (message.indexOf(SLOT) != -1) {
+            return null;
+        }
+        template.setLength(0);
+        int last = 0;
+        int pos = 0;
+        while (pos < message.length()) {
+            final char c = message.charAt(pos);
+            if ((c == '\'') || (c == '"')) {
+                final int end = message.indexOf(c, pos + 1);
+                if (end == -1) {
+                    break;
+                }
+                template.append(message, last, pos + 1).append(SLOT);
+                args.append(message, pos + 1, end).append(SLOT);
+                last = end;
+                pos  = end + 1;
+            } else {
+                pos++;
+            }
+        }
+        if (last == 0) {
+            return intern(message);
+        }
+        template.append(message, last, message.length());
+        return intern(template.toString());
+    }
+
+
+    /*
+     * Fill the argument slots of a template with the arguments starting at
+     * offset in args.
+     */
+    static String format(String template, CharSequence args, int offset) {
+        if (offset == NO_ARGUMENTS) {
+            return template;
+        }
+        int slots = 0;
+        for (int i = 0; i < template.length(); i++) {
+            if (template.charAt(i) == SLOT) {
+                slots++;
+            }
+        }
+        int end = offset;
+        for (int n = 0; n < slots; end++) {
+            if (args.charAt(end) == SLOT) {
+                n++;
+            }
+        }
+        final StringBuilder sb = new StringBuilder(
+                template.length() + (end - offset) - (2 * slots));
+        int pos = offset;
+        for (int i = 0; i < template.length(); i++) {
+            final char c = template.charAt(i);
+            if (c == SLOT) {
+                char a;
+                while ((a = args.charAt(pos++)) != SLOT) {
+                    sb.append(a);
+                }
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+
+    private static String intern(String template) {
+        final String interned = templates.get(template);
+        if (interned != null) {
+            return interned;
+        }
+        if (templates.size() >= MAX_TEMPLATES) {
+            return template;
+        }
+        final String existing = templates.putIfAbsent(template, template);
+        return (existing != null) ? existing : template;
+    }
+
+} // class MessageTemplates
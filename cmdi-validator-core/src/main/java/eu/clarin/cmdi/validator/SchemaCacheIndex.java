@@ -0,0 +1,604 @@
+/**
+ * This software is copyright (c) 2014 by
+ *  - Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ * This is free software. You can redistribute it
+ * and/or modify it under the terms described in
+ * the GNU General Public License v3 of which you
+ * should have received a copy. Otherwise you can download
+ * it from
+ *
+ *   http://www.gnu.org/licenses/gpl-3.0.txt
+ *
+ * @copyright Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ *
+ * @license http://www.gnu.org/licenses/gpl-3.0.txt
+ *  GNU General Public License v3
+ */
+package eu.clarin.cmdi.validator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/*
+ * In-memory index of the schema file cache, that is backed by an append-only
+ * log file in the cache directory. Each line of the log records a state
+ * change of an entry:
+ *
+ *   D <size> <timestamp> <key>   (schema data published)
+ *   E <timestamp> <key>          (download failed, negative cache entry)
+ *   R <key>                      (schema data removed)
+ *   C <key>                      (negative cache entry cleared)
+ *   A <timestamp> <hits> <key>   (access information, written on compaction)
+ *
+ * Several processes may share one cache directory. Reading and appending
+ * the log as well as compacting it are serialized by an exclusive lock on
+ * a lock file next to it (and a monitor per directory within the JVM, as
+ * file locks are held per process). Before appending, a process first
+ * replays the records, that other processes appended since it last read
+ * the log, so it can act on their downloads and evictions. Compaction
+ * writes a snapshot to a unique temporary file and renames it over the
+ * log; processes notice the replaced log by its file key and replay the
+ * new one from the start. Records of other processes still only arrive,
+ * when the log is read, so callers must be prepared that an indexed file
+ * was removed by another process and must consult the file system on a
+ * miss.
+ */
+final class SchemaCacheIndex {
+    static final class Entry {
+        private final String key;
+        private volatile long dataSize      = -1;
+        private volatile long dataTimestamp = -1;
+        private volatile long errorTimestamp = -1;
+        private volatile long lastAccess;
+        private volatile int hits;
+
+
+        private Entry(String key) {
+            this.key = key;
+        }
+
+
+        String getKey() {
+            return key;
+        }
+
+
+        boolean hasData() {
+            return dataTimestamp != -1;
+        }
+
+
+        long getDataSize() {
+            return dataSize;
+        }
+
+
+        long getDataTimestamp() {
+            return dataTimestamp;
+        }
+
+
+        boolean hasError() {
+            return errorTimestamp != -1;
+        }
+
+
+        long getErrorTimestamp() {
+            return errorTimestamp;
+        }
+
+
+        long getLastAccess() {
+            return lastAccess;
+        }
+
+
+        int getHits() {
+            return hits;
+        }
+    } // class Entry
+    private static final Logger logger =
+            LoggerFactory.getLogger(SchemaCacheIndex.class);
+    private static final String INDEX_FILE_NAME = "cache.index";
+    private static final String LOCK_FILE_NAME  = "cache.index.lock";
+    private static final String TEMP_FILE_PREFIX = "cache.index-";
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    /* compact, when the log has grown by this much since the last snapshot */
+    private static final long COMPACT_THRESHOLD = 64 * 1024;
+    private static final ConcurrentMap<String, Object> monitors =
+            new ConcurrentHashMap<String, Object>();
+    private final File cacheDirectory;
+    private final File indexFile;
+    private final File lockFile;
+    private final Object monitor;
+    private final String dataSuffix;
+    private final String errorSuffix;
+    private final Map<String, Entry> entries =
+            new ConcurrentHashMap<String, Entry>(256);
+    private OutputStream log;
+    /* identity of the log file, that has been read up to position */
+    private Object logKey = null;
+    private long position = 0;
+    private long snapshotLength = 0;
+
+
+    SchemaCacheIndex(File cacheDirectory, String dataExtension,
+            String errorExtension) {
+        this.cacheDirectory = cacheDirectory;
+        this.indexFile      = new File(cacheDirectory, INDEX_FILE_NAME);
+        this.lockFile       = new File(cacheDirectory, LOCK_FILE_NAME);
+        this.monitor        = getMonitor(lockFile);
+        this.dataSuffix     = "." + dataExtension;
+        this.errorSuffix    = "." + errorExtension;
+        synchronized (this) {
+            synchronized (monitor) {
+                try {
+                    final FileLock lock = lockIndex();
+                    try {
+                        if (indexFile.exists()) {
+                            replay();
+                            snapshotLength = position;
+                            logger.debug("loaded schema cache index " +
+                                    "({} entries)", entries.size());
+                        } else {
+                            rebuild();
+                            writeSnapshot();
+                        }
+                    } finally {
+                        unlockIndex(lock);
+                    }
+                } catch (IOException e) {
+                    logger.warn("error reading schema cache index, " +
+                            "rebuilding: {}", e.getMessage());
+                    entries.clear();
+                    rebuild();
+                }
+            } // synchronized (monitor)
+        } // synchronized (this)
+    }
+
+
+    Entry get(String key) {
+        return entries.get(key);
+    }
+
+
+    void touch(Entry entry) {
+        entry.lastAccess = System.currentTimeMillis();
+        entry.hits++; /* racy, but only used as an eviction hint */
+    }
+
+
+    void recordData(String key, long size, long timestamp) {
+        final Entry entry = getOrCreate(key);
+        entry.dataSize      = size;
+        entry.dataTimestamp = timestamp;
+        entry.lastAccess    = System.currentTimeMillis();
+        append("D " + size + " " + timestamp + " " + key);
+    }
+
+
+    void removeData(String key) {
+        final Entry entry = entries.get(key);
+        if ((entry != null) && entry.hasData()) {
+            entry.dataSize      = -1;
+            entry.dataTimestamp = -1;
+            removeIfEmpty(entry);
+            append("R " + key);
+        }
+    }
+
+
+    void recordError(String key, long timestamp) {
+        final Entry entry = getOrCreate(key);
+        entry.errorTimestamp = timestamp;
+        append("E " + timestamp + " " + key);
+    }
+
+
+    void clearError(String key) {
+        final Entry entry = entries.get(key);
+        if ((entry != null) && entry.hasError()) {
+            entry.errorTimestamp = -1;
+            removeIfEmpty(entry);
+            append("C " + key);
+        }
+    }
+
+
+    long getTotalSize() {
+        long total = 0;
+        for (Entry entry : entries.values()) {
+            if (entry.hasData()) {
+                total += entry.dataSize;
+            }
+        }
+        return total;
+    }
+
+
+    int size() {
+        return entries.size();
+    }
+
+
+    List<Entry> getEntries(Comparator<Entry> order) {
+        final List<Entry> result = new ArrayList<Entry>(entries.values());
+        if (order != null) {
+            Collections.sort(result, order);
+        }
+        return result;
+    }
+
+
+    /*
+     * Replay the records, that other processes have appended to the log.
+     */
+    synchronized void refresh() {
+        synchronized (monitor) {
+            try {
+                final FileLock lock = lockIndex();
+                try {
+                    replay();
+                } finally {
+                    unlockIndex(lock);
+                }
+            } catch (IOException e) {
+                logger.warn("error reading schema cache index: {}",
+                        e.getMessage());
+            }
+        } // synchronized (monitor)
+    }
+
+
+    synchronized void compact() {
+        synchronized (monitor) {
+            try {
+                final FileLock lock = lockIndex();
+                try {
+                    replay();
+                    writeSnapshot();
+                } finally {
+                    unlockIndex(lock);
+                }
+            } catch (IOException e) {
+                logger.warn("error compacting schema cache index: {}",
+                        e.getMessage());
+            }
+        } // synchronized (monitor)
+    }
+
+
+    synchronized void close() {
+        compact();
+        closeLog();
+    }
+
+
+    private Entry getOrCreate(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            synchronized (entries) {
+                entry = entries.get(key);
+                if (entry == null) {
+                    entry = new Entry(key);
+                    entries.put(key, entry);
+                }
+            } // synchronized (entries)
+        }
+        return entry;
+    }
+
+
+    private void removeIfEmpty(Entry entry) {
+        if (!entry.hasData() && !entry.hasError()) {
+            entries.remove(entry.key);
+        }
+    }
+
+
+    private synchronized void append(String record) {
+        synchronized (monitor) {
+            try {
+                final FileLock lock = lockIndex();
+                try {
+                    /* also notices a log replaced by a compaction */
+                    replay();
+                    if (log == null) {
+                        log = new FileOutputStream(indexFile, true);
+                        logKey = getFileKey(indexFile);
+                    }
+                    /* a single write per record keeps a line together,
+                     * even if an appender does not honor the lock */
+                    log.write((record + "\n").getBytes(UTF8));
+                    /* the entry might have been dropped by the replay */
+                    replayRecord(record);
+                    if (indexFile.length() >
+                            (2 * snapshotLength + COMPACT_THRESHOLD)) {
+                        replay();
+                        writeSnapshot();
+                    }
+                } finally {
+                    unlockIndex(lock);
+                }
+            } catch (IOException e) {
+                logger.warn("error writing schema cache index: {}",
+                        e.getMessage());
+                closeLog();
+            }
+        } // synchronized (monitor)
+    }
+
+
+    private void closeLog() {
+        if (log != null) {
+            try {
+                log.close();
+            } catch (IOException e) {
+                /* IGNORE */
+            } finally {
+                log = null;
+            }
+        }
+    }
+
+
+    /*
+     * Read the records appended to the log since it was last read. If the
+     * log has been replaced (or removed) in the meantime, the new log is
+     * read from the start and entries, that are not in it anymore, are
+     * dropped. An incomplete last line is left for the next time. Must be
+     * called while holding the lock.
+     */
+    private void replay() throws IOException {
+        final Object key = getFileKey(indexFile);
+        Set<String> seen = null;
+        if ((key == null) || !key.equals(logKey) ||
+                (indexFile.length() < position)) {
+            closeLog();
+            if (logKey != null) {
+                seen = new HashSet<String>();
+            }
+            logKey   = key;
+            position = 0;
+            if (key == null) {
+                return;
+            }
+        }
+
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        final FileChannel channel = FileChannel.open(indexFile.toPath(),
+                StandardOpenOption.READ);
+        try {
+            final ByteBuffer chunk = ByteBuffer.allocate(8192);
+            long offset = position;
+            int n;
+            while ((n = channel.read(chunk, offset)) > 0) {
+                buffer.write(chunk.array(), 0, n);
+                offset += n;
+                chunk.clear();
+            }
+        } finally {
+            channel.close();
+        }
+
+        final byte[] data = buffer.toByteArray();
+        int skipped = 0;
+        int start = 0;
+        for (int i = 0; i < data.length; i++) {
+            if (data[i] == '\n') {
+                final String line = new String(data, start, i - start, UTF8);
+                if (!replayRecord(line)) {
+                    skipped++;
+                } else if (seen != null) {
+                    /* the key is the last field of every record */
+                    seen.add(line.substring(line.lastIndexOf(' ') + 1));
+                }
+                start = i + 1;
+            }
+        }
+        position += start;
+        if (seen != null) {
+            entries.keySet().retainAll(seen);
+        }
+        if (skipped > 0) {
+            logger.debug("skipped {} malformed records in schema " +
+                    "cache index", skipped);
+        }
+    }
+
+
+    /*
+     * Replace the log by a snapshot of the index. Must be called while
+     * holding the lock, after replaying the log.
+     */
+    private void writeSnapshot() throws IOException {
+        final File tempFile = File.createTempFile(TEMP_FILE_PREFIX,
+                TEMP_FILE_SUFFIX, cacheDirectory);
+        try {
+            final StringBuilder sb = new StringBuilder();
+            for (Entry entry : entries.values()) {
+                if (entry.hasData()) {
+                    sb.append("D ").append(entry.dataSize).append(' ')
+                        .append(entry.dataTimestamp).append(' ')
+                        .append(entry.key).append('\n');
+                }
+                if (entry.hasError()) {
+                    sb.append("E ").append(entry.errorTimestamp)
+                        .append(' ').append(entry.key).append('\n');
+                }
+                if (entry.lastAccess > 0) {
+                    sb.append("A ").append(entry.lastAccess).append(' ')
+                        .append(entry.hits).append(' ')
+                        .append(entry.key).append('\n');
+                }
+            }
+            final byte[] data = sb.toString().getBytes(UTF8);
+            final FileOutputStream out = new FileOutputStream(tempFile);
+            try {
+                out.write(data);
+                out.flush();
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+            closeLog();
+            try {
+                Files.move(tempFile.toPath(), indexFile.toPath(),
+                        StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempFile.toPath(), indexFile.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+            logKey         = getFileKey(indexFile);
+            position       = data.length;
+            snapshotLength = data.length;
+            logger.debug("compacted schema cache index ({} entries)",
+                    entries.size());
+        } finally {
+            tempFile.delete();
+        }
+    }
+
+
+    private FileLock lockIndex() throws IOException {
+        final FileChannel channel = FileChannel.open(lockFile.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try {
+            return channel.lock();
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+
+    private static void unlockIndex(FileLock lock) {
+        try {
+            /* closing the channel releases the lock */
+            lock.channel().close();
+        } catch (IOException e) {
+            /* IGNORE */
+        }
+    }
+
+
+    /*
+     * The identity of a file (e.g. its inode), that changes when the file
+     * is replaced. File systems without file keys fall back to the
+     * creation time of the file.
+     */
+    private static Object getFileKey(File file) throws IOException {
+        try {
+            final BasicFileAttributes attributes = Files.readAttributes(
+                    file.toPath(), BasicFileAttributes.class);
+            final Object key = attributes.fileKey();
+            return (key != null) ? key : attributes.creationTime();
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+
+    private static Object getMonitor(File lockFile) {
+        String path;
+        try {
+            path = lockFile.getCanonicalPath();
+        } catch (IOException e) {
+            path = lockFile.getAbsolutePath();
+        }
+        final Object monitor = new Object();
+        final Object existing = monitors.putIfAbsent(path, monitor);
+        return (existing != null) ? existing : monitor;
+    }
+
+
+    private boolean replayRecord(String line) {
+        final String[] parts = line.split(" ", 4);
+        try {
+            if ("D".equals(parts[0]) && (parts.length == 4)) {
+                final Entry entry = getOrCreate(parts[3]);
+                entry.dataSize      = Long.parseLong(parts[1]);
+                entry.dataTimestamp = Long.parseLong(parts[2]);
+            } else if ("A".equals(parts[0]) && (parts.length == 4)) {
+                final Entry entry = entries.get(parts[3]);
+                if (entry != null) {
+                    entry.lastAccess = Long.parseLong(parts[1]);
+                    entry.hits       = Integer.parseInt(parts[2]);
+                }
+            } else if ("E".equals(parts[0]) && (parts.length == 3)) {
+                getOrCreate(parts[2]).errorTimestamp =
+                        Long.parseLong(parts[1]);
+            } else if ("R".equals(parts[0]) && (parts.length == 2)) {
+                final Entry entry = entries.get(parts[1]);
+                if (entry != null) {
+                    entry.dataSize      = -1;
+                    entry.dataTimestamp = -1;
+                    removeIfEmpty(entry);
+                }
+            } else if ("C".equals(parts[0]) && (parts.length == 2)) {
+                final Entry entry = entries.get(parts[1]);
+                if (entry != null) {
+                    entry.errorTimestamp = -1;
+                    removeIfEmpty(entry);
+                }
+            } else {
+                return false;
+            }
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+
+    private void rebuild() {
+        final File[] files = cacheDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                final String name = file.getName();
+                if (name.endsWith(dataSuffix)) {
+                    final Entry entry = getOrCreate(name.substring(0,
+                            name.length() - dataSuffix.length()));
+                    entry.dataSize      = file.length();
+                    entry.dataTimestamp = file.lastModified();
+                } else if (name.endsWith(errorSuffix)) {
+                    getOrCreate(name.substring(0, name.length() -
+                            errorSuffix.length())).errorTimestamp =
+                                    file.lastModified();
+                }
+            } // for
+        }
+        logger.debug("rebuilt schema cache index ({} entries)",
+                entries.size());
+    }
+
+} // class SchemaCacheIndex
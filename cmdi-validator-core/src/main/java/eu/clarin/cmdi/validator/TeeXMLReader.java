@@ -0,0 +1,276 @@
+/**
+ * This software is copyright (c) 2014 by
+ *  - Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ * This is free software. You can redistribute it
+ * and/or modify it under the terms described in
+ * the GNU General Public License v3 of which you
+ * should have received a copy. Otherwise you can download
+ * it from
+ *
+ *   http://www.gnu.org/licenses/gpl-3.0.txt
+ *
+ * @copyright Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ *
+ * @license http://www.gnu.org/licenses/gpl-3.0.txt
+ *  GNU General Public License v3
+ */
+package eu.clarin.cmdi.validator;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.DTDHandler;
+import org.xml.sax.EntityResolver;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXNotRecognizedException;
+import org.xml.sax.SAXNotSupportedException;
+import org.xml.sax.XMLReader;
+
+
+/*
+ * An XMLReader, that passes the content events of the wrapped reader to
+ * additional handlers, before they are passed to the content handler set by
+ * the consumer (e.g. Saxon's tree builder). Everything else, including the
+ * error handler, is left to the wrapped reader.
+ */
+final class TeeXMLReader implements XMLReader {
+    private final XMLReader reader;
+    private final ContentHandler[] handlers;
+    private ContentHandler contentHandler;
+
+
+    TeeXMLReader(XMLReader reader, List<? extends ContentHandler> handlers) {
+        if (reader == null) {
+            throw new NullPointerException("reader == null");
+        }
+        if (handlers == null) {
+            throw new NullPointerException("handlers == null");
+        }
+        this.reader   = reader;
+        this.handlers = handlers.toArray(new ContentHandler[handlers.size()]);
+        this.reader.setContentHandler(new Tee());
+    }
+
+
+    @Override
+    public boolean getFeature(String name)
+            throws SAXNotRecognizedException, SAXNotSupportedException {
+        return reader.getFeature(name);
+    }
+
+
+    @Override
+    public void setFeature(String name, boolean value)
+            throws SAXNotRecognizedException, SAXNotSupportedException {
+        reader.setFeature(name, value);
+    }
+
+
+    @Override
+    public Object getProperty(String name)
+            throws SAXNotRecognizedException, SAXNotSupportedException {
+        return reader.getProperty(name);
+    }
+
+
+    @Override
+    public void setProperty(String name, Object value)
+            throws SAXNotRecognizedException, SAXNotSupportedException {
+        reader.setProperty(name, value);
+    }
+
+
+    @Override
+    public void setEntityResolver(EntityResolver resolver) {
+        reader.setEntityResolver(resolver);
+    }
+
+
+    @Override
+    public EntityResolver getEntityResolver() {
+        return reader.getEntityResolver();
+    }
+
+
+    @Override
+    public void setDTDHandler(DTDHandler handler) {
+        reader.setDTDHandler(handler);
+    }
+
+
+    @Override
+    public DTDHandler getDTDHandler() {
+        return reader.getDTDHandler();
+    }
+
+
+    @Override
+    public void setContentHandler(ContentHandler handler) {
+        this.contentHandler = handler;
+    }
+
+
+    @Override
+    public ContentHandler getContentHandler() {
+        return contentHandler;
+    }
+
+
+    @Override
+    public void setErrorHandler(ErrorHandler handler) {
+        reader.setErrorHandler(handler);
+    }
+
+
+    @Override
+    public ErrorHandler getErrorHandler() {
+        return reader.getErrorHandler();
+    }
+
+
+    @Override
+    public void parse(InputSource input) throws IOException, SAXException {
+        reader.parse(input);
+    }
+
+
+    @Override
+    public void parse(String systemId) throws IOException, SAXException {
+        reader.parse(systemId);
+    }
+
+
+    private final class Tee implements ContentHandler {
+        @Override
+        public void setDocumentLocator(Locator locator) {
+            for (ContentHandler handler : handlers) {
+                handler.setDocumentLocator(locator);
+            }
+            if (contentHandler != null) {
+                contentHandler.setDocumentLocator(locator);
+            }
+        }
+
+
+        @Override
+        public void startDocument() throws SAXException {
+            for (ContentHandler handler : handlers) {
+                handler.startDocument();
+            }
+            if (contentHandler != null) {
+                contentHandler.startDocument();
+            }
+        }
+
+
+        @Override
+        public void endDocument() throws SAXException {
+            for (ContentHandler handler : handlers) {
+                handler.endDocument();
+            }
+            if (contentHandler != null) {
+                contentHandler.endDocument();
+            }
+        }
+
+
+        @Override
+        public void startPrefixMapping(String prefix, String uri)
+                throws SAXException {
+            for (ContentHandler handler : handlers) {
+                handler.startPrefixMapping(prefix, uri);
+            }
+            if (contentHandler != null) {
+                contentHandler.startPrefixMapping(prefix, uri);
+            }
+        }
+
+
+        @Override
+        public void endPrefixMapping(String prefix) throws SAXException {
+            for (ContentHandler handler : handlers) {
+                handler.endPrefixMapping(prefix);
+            }
+            if (contentHandler != null) {
+                contentHandler.endPrefixMapping(prefix);
+            }
+        }
+
+
+        @Override
+        public void startElement(String uri, String localName, String qName,
+                Attributes atts) throws SAXException {
+            for (ContentHandler handler : handlers) {
+                handler.startElement(uri, localName, qName, atts);
+            }
+            if (contentHandler != null) {
+                contentHandler.startElement(uri, localName, qName, atts);
+            }
+        }
+
+
+        @Override
+        public void endElement(String uri, String localName, String qName)
+                throws SAXException {
+            for (ContentHandler handler : handlers) {
+                handler.endElement(uri, localName, qName);
+            }
+            if (contentHandler != null) {
+                contentHandler.endElement(uri, localName, qName);
+            }
+        }
+
+
+        @Override
+        public void characters(char[] ch, int start, int length)
+                throws SAXException {
+            for (ContentHandler handler : handlers) {
+                handler.characters(ch, start, length);
+            }
+            if (contentHandler != null) {
+                contentHandler.characters(ch, start, length);
+            }
+        }
+
+
+        @Override
+        public void ignorableWhitespace(char[] ch, int start, int length)
+                throws SAXException {
+            for (ContentHandler handler : handlers) {
+                handler.ignorableWhitespace(ch, start, length);
+            }
+            if (contentHandler != null) {
+                contentHandler.ignorableWhitespace(ch, start, length);
+            }
+        }
+
+
+        @Override
+        public void processingInstruction(String target, String data)
+                throws SAXException {
+            for (ContentHandler handler : handlers) {
+                handler.processingInstruction(target, data);
+            }
+            if (contentHandler != null) {
+                contentHandler.processingInstruction(target, data);
+            }
+        }
+
+
+        @Override
+        public void skippedEntity(String name) throws SAXException {
+            for (ContentHandler handler : handlers) {
+                handler.skippedEntity(name);
+            }
+            if (contentHandler != null) {
+                contentHandler.skippedEntity(name);
+            }
+        }
+    } // class Tee
+
+} // class TeeXMLReader
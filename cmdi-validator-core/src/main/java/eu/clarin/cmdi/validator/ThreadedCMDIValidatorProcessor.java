@@ -23,10 +23,13 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import eu.clarin.cmdi.validator.metrics.ValidatorMetrics;
+
 
 public class ThreadedCMDIValidatorProcessor implements CMDIValidatorProcessor {
     private static final Logger logger =
@@ -34,6 +37,7 @@ public class ThreadedCMDIValidatorProcessor implements CMDIValidatorProcessor {
     private final int threads;
     private final List<CMDIValidator> validators =
             new ArrayList<CMDIValidator>();
+    private final AtomicInteger busyWorkers = new AtomicInteger();
     private int idx = 0;
     private boolean running = false;
     private ThreadGroup workers;
@@ -88,6 +92,36 @@ public class ThreadedCMDIValidatorProcessor implements CMDIValidatorProcessor {
     }
 
 
+    /*
+     * Publish the utilization of the worker threads.
+     */
+    public void registerMetrics(final ValidatorMetrics metrics) {
+        metrics.gauge("workers_total", "Number of worker threads",
+                new ValidatorMetrics.Gauge() {
+                    @Override
+                    public double getValue() {
+                        return threads;
+                    }
+                });
+        metrics.gauge("workers_busy", "Number of worker threads processing " +
+                "a file", new ValidatorMetrics.Gauge() {
+                    @Override
+                    public double getValue() {
+                        return busyWorkers.get();
+                    }
+                });
+        metrics.gauge("validators_queued", "Number of validators with work " +
+                "left", new ValidatorMetrics.Gauge() {
+                    @Override
+                    public double getValue() {
+                        synchronized (validators) {
+                            return validators.size();
+                        } // synchronized (validators)
+                    }
+                });
+    }
+
+
     @Override
     public void process(final CMDIValidator validator)
             throws CMDIValidatorException {
@@ -148,7 +182,7 @@ public class ThreadedCMDIValidatorProcessor implements CMDIValidatorProcessor {
                     // got something to do ... proceed
                     if (validator != null) {
                         try {
-                            done = validator.processOneFile();
+                            done = validator.processOneFile(busyWorkers);
                         } catch (CMDIValidatorException e) {
                             logger.error("error processing validator: {}",
                                     e.getMessage(), e);
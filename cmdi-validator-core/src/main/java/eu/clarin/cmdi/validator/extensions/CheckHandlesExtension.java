@@ -16,22 +16,48 @@
  */
 package eu.clarin.cmdi.validator.extensions;
 
+import java.io.File;
+import java.io.FileFilter;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 import org.apache.http.HttpStatus;
+import org.xml.sax.Attributes;
+import org.xml.sax.Locator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.java.truevfs.access.TFile;
+import net.java.truevfs.access.TFileInputStream;
 import net.sf.saxon.s9api.SaxonApiException;
 import net.sf.saxon.s9api.XPathCompiler;
 import net.sf.saxon.s9api.XPathExecutable;
 import net.sf.saxon.s9api.XPathSelector;
 import net.sf.saxon.s9api.XdmItem;
 import net.sf.saxon.s9api.XdmNode;
+import eu.clarin.cmdi.validator.CMDIValidationReport.Severity;
 import eu.clarin.cmdi.validator.CMDIValidatorException;
 import eu.clarin.cmdi.validator.CMDIValidatorExtension;
 import eu.clarin.cmdi.validator.CMDIValidatorInitException;
 import eu.clarin.cmdi.validator.CMDIWriteableValidationReport;
+import eu.clarin.cmdi.validator.CMDIWriteableValidationReport.Deferral;
+import eu.clarin.cmdi.validator.metrics.ValidatorMetrics;
 import eu.clarin.cmdi.validator.utils.HandleResolver;
+import eu.clarin.cmdi.validator.utils.LatencyHistogram;
 import eu.clarin.cmdi.validator.utils.LocationUtils;
 
 public class CheckHandlesExtension extends CMDIValidatorExtension {
@@ -41,13 +67,56 @@ public class CheckHandlesExtension extends CMDIValidatorExtension {
     private static final String HDL_PROXY_HTTPS = "https";
     private static final String HDL_PROXY_HOST = "hdl.handle.net";
     private static final String URN_SCHEME = "urn";
+    private static final String RESOURCE_PROXY = "ResourceProxy";
+    private static final String RESOURCE_TYPE = "ResourceType";
+    private static final String RESOURCE_REF = "ResourceRef";
+    private static final Logger logger =
+            LoggerFactory.getLogger(CheckHandlesExtension.class);
+    private static final LatencyHistogram EMPTY_HISTOGRAM =
+            new LatencyHistogram();
     private final boolean resolveHandles;
+    private final File cacheDirectory;
+    private final int maxConcurrentRequests;
+    private final int maxRequestsPerHost;
+    private final HandleResolver.Strategy strategy;
     private HandleResolver resolver = null;
     private XPathExecutable xpath;
 
 
+    /*
+     * If a cache directory is supplied, handle resolution results are
+     * persisted in this directory and re-used across runs.
+     */
+    public CheckHandlesExtension(boolean resolveHandles, File cacheDirectory,
+            int maxConcurrentRequests, int maxRequestsPerHost,
+            HandleResolver.Strategy strategy) {
+        if (strategy == null) {
+            throw new NullPointerException("strategy == null");
+        }
+        this.resolveHandles        = resolveHandles;
+        this.cacheDirectory        = cacheDirectory;
+        this.maxConcurrentRequests = maxConcurrentRequests;
+        this.maxRequestsPerHost    = maxRequestsPerHost;
+        this.strategy              = strategy;
+    }
+
+
+    public CheckHandlesExtension(boolean resolveHandles, File cacheDirectory,
+            int maxConcurrentRequests, int maxRequestsPerHost) {
+        this(resolveHandles, cacheDirectory, maxConcurrentRequests,
+                maxRequestsPerHost, HandleResolver.Strategy.FOLLOW_REDIRECTS);
+    }
+
+
+    public CheckHandlesExtension(boolean resolveHandles, File cacheDirectory) {
+        this(resolveHandles, cacheDirectory,
+                HandleResolver.DEFAULT_MAX_CONCURRENT_REQUESTS,
+                HandleResolver.DEFAULT_MAX_REQUESTS_PER_HOST);
+    }
+
+
     public CheckHandlesExtension(boolean resolveHandles) {
-        this.resolveHandles = resolveHandles;
+        this(resolveHandles, null);
     }
 
 
@@ -61,10 +130,155 @@ public class CheckHandlesExtension extends CMDIValidatorExtension {
     }
 
 
+    @Override
+    public void registerMetrics(final ValidatorMetrics metrics) {
+        if (!resolveHandles) {
+            return;
+        }
+        metrics.counter("handle_requests_total",
+                "Number of handle lookups",
+                new StatisticsGauge() {
+                    @Override
+                    protected long getValue(HandleResolver.Statistics stats) {
+                        return stats.getTotalRequestsCount();
+                    }
+                });
+        metrics.gauge("handle_requests_current",
+                "Number of handle lookups in progress",
+                new StatisticsGauge() {
+                    @Override
+                    protected long getValue(HandleResolver.Statistics stats) {
+                        return stats.getCurrentRequestsCount();
+                    }
+                });
+        metrics.counter("handle_cache_hits_total",
+                "Number of handle lookups served from the cache",
+                new StatisticsGauge() {
+                    @Override
+                    protected long getValue(HandleResolver.Statistics stats) {
+                        return stats.getCacheHitCount();
+                    }
+                });
+        metrics.counter("handle_cache_misses_total",
+                "Number of handle lookups not served from the cache",
+                new StatisticsGauge() {
+                    @Override
+                    protected long getValue(HandleResolver.Statistics stats) {
+                        return stats.getCacheMissCount();
+                    }
+                });
+        metrics.counter("handle_store_hits_total",
+                "Number of handle lookups served from the persistent store",
+                new StatisticsGauge() {
+                    @Override
+                    protected long getValue(HandleResolver.Statistics stats) {
+                        return stats.getStoreHitCount();
+                    }
+                });
+        metrics.counter("handle_coalesced_total",
+                "Number of handle lookups joining a lookup in progress",
+                new StatisticsGauge() {
+                    @Override
+                    protected long getValue(HandleResolver.Statistics stats) {
+                        return stats.getCoalescedCount();
+                    }
+                });
+        metrics.counter("handle_fast_fails_total",
+                "Number of handle lookups failed due to an unhealthy host",
+                new StatisticsGauge() {
+                    @Override
+                    protected long getValue(HandleResolver.Statistics stats) {
+                        return stats.getFastFailCount();
+                    }
+                });
+        metrics.counter("handle_timeouts_total",
+                "Number of handle lookups timed out",
+                new StatisticsGauge() {
+                    @Override
+                    protected long getValue(HandleResolver.Statistics stats) {
+                        return stats.getTimeoutCount();
+                    }
+                });
+        metrics.counter("handle_unknown_hosts_total",
+                "Number of handle lookups to unknown hosts",
+                new StatisticsGauge() {
+                    @Override
+                    protected long getValue(HandleResolver.Statistics stats) {
+                        return stats.getUnknownHostCount();
+                    }
+                });
+        metrics.counter("handle_errors_total",
+                "Number of failed handle lookups",
+                new StatisticsGauge() {
+                    @Override
+                    protected long getValue(HandleResolver.Statistics stats) {
+                        return stats.getErrorCount();
+                    }
+                });
+        metrics.gauge("handle_cache_size",
+                "Number of entries in the handle cache",
+                new StatisticsGauge() {
+                    @Override
+                    protected long getValue(HandleResolver.Statistics stats) {
+                        return stats.getCurrentCacheSize();
+                    }
+                });
+        metrics.gauge("handle_store_size",
+                "Number of entries in the persistent handle store",
+                new StatisticsGauge() {
+                    @Override
+                    protected long getValue(HandleResolver.Statistics stats) {
+                        return stats.getCurrentStoreSize();
+                    }
+                });
+        metrics.summary("handle_request_seconds",
+                "Handle lookup latency",
+                new StatisticsSummary() {
+                    @Override
+                    protected LatencyHistogram.Snapshot getSnapshot(
+                            HandleResolver.Statistics stats) {
+                        return stats.getRequestLatency();
+                    }
+                });
+        metrics.summary("handle_queue_wait_seconds",
+                "Time handle lookups waited in the queue",
+                new StatisticsSummary() {
+                    @Override
+                    protected LatencyHistogram.Snapshot getSnapshot(
+                            HandleResolver.Statistics stats) {
+                        return stats.getQueueWaitLatency();
+                    }
+                });
+        metrics.summary("handle_permit_wait_seconds",
+                "Time handle lookups waited for a connection permit",
+                new StatisticsSummary() {
+                    @Override
+                    protected LatencyHistogram.Snapshot getSnapshot(
+                            HandleResolver.Statistics stats) {
+                        return stats.getPermitWaitLatency();
+                    }
+                });
+    }
+
+
+    public void close() {
+        if (resolver != null) {
+            resolver.close();
+        }
+    }
+
+
     @Override
     protected void doInitialize() throws CMDIValidatorInitException {
-        if (resolveHandles) {
-            this.resolver = new HandleResolver();
+        /*
+         * the extension may be initialized by more than one validator in
+         * turn; the resolver and its caches are kept until close()
+         */
+        if (resolveHandles && (resolver == null)) {
+            this.resolver = new HandleResolver(maxConcurrentRequests,
+                    maxRequestsPerHost, cacheDirectory,
+                    HandleResolver.DEFAULT_POSITIVE_TTL,
+                    HandleResolver.DEFAULT_NEGATIVE_TTL, false, strategy, null);
         }
 
         try {
@@ -77,47 +291,264 @@ public class CheckHandlesExtension extends CMDIValidatorExtension {
     }
 
 
+    /*
+     * Warm up the resolver before validation: collect the resource
+     * references of all files below root, and resolve each distinct PID
+     * once. Lookups are started while the files are being scanned, so
+     * scanning and network I/O overlap. Returns the number of distinct
+     * PIDs. The results of all PIDs are kept in memory, without an upper
+     * bound, until the resolver is closed; with a cache directory, they
+     * are persisted for later runs as well.
+     */
+    public int prefetch(final File root, final FileFilter filter) {
+        if (root == null) {
+            throw new NullPointerException("root == null");
+        }
+        if (resolver == null) {
+            throw new IllegalStateException("extension is not initialized " +
+                    "or not configured to resolve handles");
+        }
+        final XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES,
+                Boolean.FALSE);
+        final Set<URI> uris = new HashSet<URI>();
+        final List<CompletableFuture<Integer>> futures =
+                new ArrayList<CompletableFuture<Integer>>();
+        final int files = prefetch(new TFile(root), filter, factory, uris,
+                futures);
+        logger.debug("scanned {} files, waiting for {} PIDs to be resolved",
+                files, uris.size());
+        CompletableFuture.allOf(futures.toArray(
+                new CompletableFuture<?>[futures.size()])).join();
+        return uris.size();
+    }
+
+
+    private int prefetch(final TFile file, final FileFilter filter,
+            final XMLInputFactory factory, final Set<URI> uris,
+            final List<CompletableFuture<Integer>> futures) {
+        if (file.isDirectory()) {
+            int count = 0;
+            final TFile[] entries = file.listFiles();
+            if (entries != null) {
+                for (TFile entry : entries) {
+                    count += prefetch(entry, filter, factory, uris, futures);
+                }
+            }
+            return count;
+        }
+        if ((filter != null) && !filter.accept(file)) {
+            return 0;
+        }
+        for (String handle : scanResourceRefs(file, factory)) {
+            final URI uri = toActionableURI(handle);
+            if ((uri != null) && uris.add(uri)) {
+                futures.add(resolver.resolveAsync(uri));
+            }
+        }
+        return 1;
+    }
+
+
+    /*
+     * Stream the references of resource proxies of type "Resource" or
+     * "Metadata", as selected by XPATH, without building a tree. Errors
+     * are ignored, they will be reported by the actual validation.
+     */
+    private static List<String> scanResourceRefs(final TFile file,
+            final XMLInputFactory factory) {
+        final List<String> refs = new ArrayList<String>();
+        TFileInputStream stream = null;
+        XMLStreamReader reader = null;
+        try {
+            stream = new TFileInputStream(file);
+            reader = factory.createXMLStreamReader(stream);
+            String type = null;
+            String ref  = null;
+            while (reader.hasNext()) {
+                if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+                    if (reader.isEndElement() &&
+                            RESOURCE_PROXY.equals(reader.getLocalName())) {
+                        if (("Resource".equals(type) ||
+                                "Metadata".equals(type)) && (ref != null)) {
+                            refs.add(ref);
+                        }
+                        type = null;
+                        ref  = null;
+                    }
+                    continue;
+                }
+                final String name = reader.getLocalName();
+                if (RESOURCE_TYPE.equals(name)) {
+                    type = reader.getElementText();
+                } else if (RESOURCE_REF.equals(name)) {
+                    ref = reader.getElementText().trim();
+                    if (ref.isEmpty()) {
+                        ref = null;
+                    }
+                }
+            } // while
+        } catch (XMLStreamException e) {
+            logger.trace("error scanning file '{}'", file, e);
+        } catch (IOException e) {
+            logger.trace("error scanning file '{}'", file, e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (XMLStreamException e) {
+                    /* IGNORE */
+                }
+            }
+            if (stream != null) {
+                try {
+                    stream.close();
+                } catch (IOException e) {
+                    /* IGNORE */
+                }
+            }
+        }
+        return refs;
+    }
+
+
+    /*
+     * Map a PID to the URI, that validate() would resolve, or null.
+     */
+    private static URI toActionableURI(final String handle) {
+        try {
+            final URI uri = new URI(handle);
+            if (HDL_SCHEME.equalsIgnoreCase(uri.getScheme())) {
+                String path = uri.getSchemeSpecificPart();
+                if (!path.startsWith("/")) {
+                    path = "/" + path;
+                }
+                return new URI(HDL_PROXY_HTTP, HDL_PROXY_HOST, path, null);
+            } else if ((HDL_PROXY_HTTP.equalsIgnoreCase(uri.getScheme()) ||
+                    HDL_PROXY_HTTPS.equalsIgnoreCase(uri.getScheme())) &&
+                    (uri.getHost() != null)) {
+                return uri;
+            }
+        } catch (URISyntaxException e) {
+            /* IGNORE */
+        }
+        return null;
+    }
+
+
     @Override
     public void validate(final XdmNode document,
             final CMDIWriteableValidationReport report)
             throws CMDIValidatorException {
+        final List<Finding> findings = new ArrayList<Finding>();
         try {
             XPathSelector selector = xpath.load();
             selector.setContextItem(document);
             for (XdmItem item : selector) {
-                String handle = null;
-                final int line   = LocationUtils.getLineNumber(item);
-                final int column = LocationUtils.getColumnNumber(item);
-                final String h = item.getStringValue();
-                if (h != null) {
-                    handle = h.trim();
-                    if (handle.isEmpty()) {
-                        handle = null;
-                    } else {
-                        if (!handle.equals(h)) {
-                            report.reportWarning(line, column, "handle '" + h +
-                                    "' contains leading or tailing spaces " +
-                                    "within <ResourceRef> element");
-                        }
-                    }
-                }
-
-                if (handle != null) {
-                    checkHandleURISyntax(report, handle, line, column);
-                } else {
-                    report.reportError(line, column,
-                            "invalid handle (<ResourceRef> was empty)");
-                }
+                checkResourceRef(findings, null, item.getStringValue(),
+                        LocationUtils.getLineNumber(item),
+                        LocationUtils.getColumnNumber(item));
             }
         } catch (SaxonApiException e) {
             throw new CMDIValidatorException("failed to check handles", e);
         }
+
+        if (!findings.isEmpty()) {
+            reportFindings(report, findings);
+        }
     }
 
 
-    private void checkHandleURISyntax(
-            final CMDIWriteableValidationReport report, final String handle,
-            final int line, final int column) throws CMDIValidatorException {
+    /*
+     * Collect the resource references while the document is parsed and
+     * start resolving them right away. Messages are only reported, after
+     * the document has been parsed (and schema validated) successfully.
+     */
+    @Override
+    public StreamingHandler newStreamingHandler(
+            final CMDIWriteableValidationReport report) {
+        return new ResourceRefHandler(report);
+    }
+
+
+    @Override
+    public boolean requiresDocument() {
+        return false;
+    }
+
+
+    private void checkResourceRef(final List<Finding> findings,
+            final Map<URI, CompletableFuture<Integer>> started,
+            final String h, final int line, final int column)
+            throws CMDIValidatorException {
+        String handle = null;
+        if (h != null) {
+            handle = h.trim();
+            if (handle.isEmpty()) {
+                handle = null;
+            } else {
+                if (!handle.equals(h)) {
+                    findings.add(new Finding(Severity.WARNING, line, column,
+                            "handle '" + h + "' contains leading or " +
+                            "tailing spaces within <ResourceRef> element"));
+                }
+            }
+        }
+
+        if (handle != null) {
+            checkHandleURISyntax(findings, started, handle, line, column);
+        } else {
+            findings.add(new Finding(Severity.ERROR, line, column,
+                    "invalid handle (<ResourceRef> was empty)"));
+        }
+    }
+
+
+    /*
+     * All lookups of a document have been started at once. If some are still
+     * running, the report is deferred and the findings are reported by the
+     * thread completing the last lookup. Either way, the messages about the
+     * syntax of a ResourceRef and the result of its lookup are reported
+     * together, in document order.
+     */
+    private void reportFindings(final CMDIWriteableValidationReport report,
+            final List<Finding> findings) {
+        final List<CompletableFuture<Integer>> pending =
+                new ArrayList<CompletableFuture<Integer>>();
+        for (Finding finding : findings) {
+            if ((finding.result != null) && !finding.result.isDone()) {
+                pending.add(finding.result);
+            }
+        }
+        if (pending.isEmpty()) {
+            for (Finding finding : findings) {
+                reportFinding(report, finding);
+            }
+        } else {
+            final Deferral deferral = report.defer();
+            CompletableFuture.allOf(pending.toArray(
+                    new CompletableFuture<?>[pending.size()])).whenComplete(
+                    new BiConsumer<Void, Throwable>() {
+                        @Override
+                        public void accept(Void ignored, Throwable t) {
+                            try {
+                                for (Finding finding : findings) {
+                                    reportFinding(report, finding);
+                                }
+                            } finally {
+                                deferral.complete();
+                            }
+                        }
+                    });
+        }
+    }
+
+
+    private void checkHandleURISyntax(final List<Finding> findings,
+            final Map<URI, CompletableFuture<Integer>> started,
+            final String handle, final int line, final int column)
+            throws CMDIValidatorException {
         try {
             final URI uri = new URI(handle);
             if (HDL_SCHEME.equalsIgnoreCase(uri.getScheme())) {
@@ -128,7 +559,8 @@ public class CheckHandlesExtension extends CMDIValidatorExtension {
                 try {
                     final URI actionableURI =
                             new URI(HDL_PROXY_HTTP, HDL_PROXY_HOST, path, null);
-                    checkHandleResolves(report, actionableURI, line, column);
+                    checkHandleResolves(findings, started, actionableURI, line,
+                            column);
                 } catch (URISyntaxException e) {
                     /* should not happen */
                     throw new CMDIValidatorException(
@@ -136,91 +568,310 @@ public class CheckHandlesExtension extends CMDIValidatorExtension {
                 }
             } else if (URN_SCHEME.equals(uri.getScheme())) {
                 if (resolveHandles) {
-                    report.reportInfo(line, column, "PID '" + handle +
-                            "' skipped, because URN resolving is not supported");
+                    findings.add(new Finding(Severity.INFO, line, column,
+                            "PID '" + handle + "' skipped, because URN " +
+                            "resolving is not supported"));
                 } else {
-                    report.reportInfo(line, column, "PID '" + handle +
-                            "' skipped, because URN sytax checking is not supported");
+                    findings.add(new Finding(Severity.INFO, line, column,
+                            "PID '" + handle + "' skipped, because URN " +
+                            "sytax checking is not supported"));
                 }
             } else if (HDL_PROXY_HTTP.equalsIgnoreCase(uri.getScheme()) ||
                     HDL_PROXY_HTTPS.equalsIgnoreCase(uri.getScheme())) {
                 if (uri.getHost() != null) {
                     if (!HDL_PROXY_HOST.equalsIgnoreCase(uri.getHost())) {
-                        report.reportError(line, column,
+                        findings.add(new Finding(Severity.ERROR, line, column,
                                 "The URI of PID '" + handle +
                                 "' contains an unexpected host part of '" +
-                                uri.getHost() + "'");
+                                uri.getHost() + "'"));
                     }
-                    checkHandleResolves(report, uri, line, column);
+                    checkHandleResolves(findings, started, uri, line, column);
                 } else {
-                    report.reportError(line, column, "The URI of PID '" +
-                            handle + "' is missing the host part");
+                    findings.add(new Finding(Severity.ERROR, line, column,
+                            "The URI of PID '" + handle +
+                            "' is missing the host part"));
                 }
             } else {
                 if (uri.getScheme() != null) {
-                    report.reportError(line, column,
+                    findings.add(new Finding(Severity.ERROR, line, column,
                             "The URI of PID '" + handle +
                             "' contains an unexpected schema part of '" +
-                            uri.getScheme() + "'");
+                            uri.getScheme() + "'"));
                 } else {
-                    report.reportError(line, column, "The URI of PID '" +
-                            handle + "' is missing a proper schema part");
+                    findings.add(new Finding(Severity.ERROR, line, column,
+                            "The URI of PID '" + handle +
+                            "' is missing a proper schema part"));
                 }
             }
         } catch (URISyntaxException e) {
-            report.reportError(line, column, "PID '" + handle +
-                    "' is not a well-formed URI: " + e.getMessage());
+            findings.add(new Finding(Severity.ERROR, line, column,
+                    "PID '" + handle + "' is not a well-formed URI: " +
+                    e.getMessage()));
         }
     }
 
 
-    private void checkHandleResolves(
-            final CMDIWriteableValidationReport result, final URI uri,
-            final int line, final int column) throws CMDIValidatorException {
+    /*
+     * Lookups, that have already been started while parsing, are re-used.
+     */
+    private void checkHandleResolves(final List<Finding> findings,
+            final Map<URI, CompletableFuture<Integer>> started,
+            final URI uri, final int line, final int column) {
         if (resolver != null) {
-            try {
-                int code = resolver.resolve(uri);
-                switch (code) {
-                case HttpStatus.SC_OK:
-                    /* no special message in this case */
-                    break;
-                case HttpStatus.SC_UNAUTHORIZED:
-                    /* FALL-THROUGH */
-                case HttpStatus.SC_FORBIDDEN:
-                    result.reportInfo(line, column, "PID '" + uri +
-                            "' resolved to an access protected resource (" +
-                            code + ")");
-                    break;
-                case HttpStatus.SC_NOT_FOUND:
-                    result.reportError(line, column, "PID '" + uri +
-                            "' resolved to an non-existing resource (" +
-                            code + ")");
-                    break;
-                case HandleResolver.TIMEOUT:
-                    result.reportWarning(line, column,
-                            "Timeout while resolving PID '" + uri + "'");
-                    break;
-                case HandleResolver.UNKNOWN_HOST:
-                    result.reportWarning(line, column,
-                            "Unable to resolve host '" + uri.getHost() +
-                            "' while resolving PID '" + uri + "'");
-                    break;
-                case HandleResolver.ERROR:
-                    result.reportWarning(line, column,
-                            "An error occurred while resolving PID '" +
-                            uri + "'");
-                    break;
-                default:
-                    result.reportWarning(-line, column, "PID '" + uri +
-                            "' resolved with an unexpected result (" +
-                            code + ")");
-                    break;
-                } // switch
-            } catch (IOException e) {
-                throw new CMDIValidatorException(
-                        "error while resolving handle '" + uri + "'", e);
+            CompletableFuture<Integer> result =
+                    (started != null) ? started.get(uri) : null;
+            if (result == null) {
+                result = resolver.resolveAsync(uri);
             }
+            findings.add(new Finding(uri, line, column, result));
+        }
+    }
+
+
+    private void reportFinding(final CMDIWriteableValidationReport result,
+            final Finding finding) {
+        final int line   = finding.line;
+        final int column = finding.column;
+        if (finding.result == null) {
+            switch (finding.severity) {
+            case INFO:
+                result.reportInfo(line, column, finding.message);
+                break;
+            case WARNING:
+                result.reportWarning(line, column, finding.message);
+                break;
+            default:
+                result.reportError(line, column, finding.message);
+                break;
+            } // switch
+            return;
         }
+        final URI uri    = finding.uri;
+        final int code   = finding.result.join().intValue();
+        switch (code) {
+        case HttpStatus.SC_OK:
+            /* no special message in this case */
+            break;
+        case HttpStatus.SC_UNAUTHORIZED:
+            /* FALL-THROUGH */
+        case HttpStatus.SC_FORBIDDEN:
+            result.reportInfo(line, column, "PID '" + uri +
+                    "' resolved to an access protected resource (" +
+                    code + ")");
+            break;
+        case HttpStatus.SC_NOT_FOUND:
+            result.reportError(line, column, "PID '" + uri +
+                    "' resolved to an non-existing resource (" +
+                    code + ")");
+            break;
+        case HandleResolver.TIMEOUT:
+            result.reportWarning(line, column,
+                    "Timeout while resolving PID '" + uri + "'");
+            break;
+        case HandleResolver.UNKNOWN_HOST:
+            result.reportWarning(line, column,
+                    "Unable to resolve host '" + uri.getHost() +
+                    "' while resolving PID '" + uri + "'");
+            break;
+        case HandleResolver.ERROR:
+            result.reportWarning(line, column,
+                    "An error occurred while resolving PID '" +
+                    uri + "'");
+            break;
+        default:
+            result.reportWarning(-line, column, "PID '" + uri +
+                    "' resolved with an unexpected result (" +
+                    code + ")");
+            break;
+        } // switch
     }
 
+
+    /*
+     * Collects the references of resource proxies of type "Resource" or
+     * "Metadata", like XPATH, in document order.
+     */
+    private final class ResourceRefHandler extends StreamingHandler {
+        private final CMDIWriteableValidationReport report;
+        private final List<ResourceRef> refs = new ArrayList<ResourceRef>();
+        private final Map<URI, CompletableFuture<Integer>> started =
+                new HashMap<URI, CompletableFuture<Integer>>();
+        private final List<ResourceRef> proxyRefs =
+                new ArrayList<ResourceRef>(2);
+        private final StringBuilder text = new StringBuilder();
+        private Locator locator;
+        private int depth = 0;
+        private int proxyDepth = -1;
+        private String proxyType;
+        private boolean collecting = false;
+
+
+        private ResourceRefHandler(CMDIWriteableValidationReport report) {
+            this.report = report;
+        }
+
+
+        @Override
+        public void setDocumentLocator(Locator locator) {
+            this.locator = locator;
+        }
+
+
+        @Override
+        public void startElement(String uri, String localName, String qName,
+                Attributes attributes) {
+            depth++;
+            if (RESOURCE_PROXY.equals(localName)) {
+                proxyDepth = depth;
+                proxyType  = null;
+                proxyRefs.clear();
+            } else if ((depth == proxyDepth + 1) &&
+                    (RESOURCE_TYPE.equals(localName) ||
+                            RESOURCE_REF.equals(localName))) {
+                text.setLength(0);
+                collecting = true;
+                if (RESOURCE_REF.equals(localName)) {
+                    proxyRefs.add(new ResourceRef(
+                            (locator != null) ? locator.getLineNumber() : -1,
+                            (locator != null) ? locator.getColumnNumber() : -1));
+                }
+            }
+        }
+
+
+        @Override
+        public void characters(char[] ch, int start, int length) {
+            if (collecting) {
+                text.append(ch, start, length);
+            }
+        }
+
+
+        @Override
+        public void endElement(String uri, String localName, String qName) {
+            if (collecting && (depth == proxyDepth + 1)) {
+                collecting = false;
+                if (RESOURCE_TYPE.equals(localName)) {
+                    proxyType = text.toString();
+                } else {
+                    proxyRefs.get(proxyRefs.size() - 1).value =
+                            text.toString();
+                }
+            } else if (depth == proxyDepth) {
+                if ("Resource".equals(proxyType) ||
+                        "Metadata".equals(proxyType)) {
+                    for (ResourceRef ref : proxyRefs) {
+                        refs.add(ref);
+                        if (resolver != null) {
+                            /* start early, finish() joins the lookup */
+                            final URI actionable =
+                                    toActionableURI(ref.value.trim());
+                            if ((actionable != null) &&
+                                    !started.containsKey(actionable)) {
+                                started.put(actionable,
+                                        resolver.resolveAsync(actionable));
+                            }
+                        }
+                    }
+                }
+                proxyDepth = -1;
+                proxyRefs.clear();
+            }
+            depth--;
+        }
+
+
+        @Override
+        public void finish(XdmNode document) throws CMDIValidatorException {
+            final List<Finding> findings =
+                    new ArrayList<Finding>(refs.size());
+            for (ResourceRef ref : refs) {
+                checkResourceRef(findings, started, ref.value, ref.line,
+                        ref.column);
+            }
+            if (!findings.isEmpty()) {
+                reportFindings(report, findings);
+            }
+        }
+    } // class ResourceRefHandler
+
+
+    /*
+     * the resolver only exists after initialization
+     */
+    private abstract class StatisticsGauge implements ValidatorMetrics.Gauge {
+        @Override
+        public final double getValue() {
+            final HandleResolver.Statistics stats = getStatistics();
+            return (stats != null) ? getValue(stats) : 0;
+        }
+
+
+        protected abstract long getValue(HandleResolver.Statistics stats);
+    } // class StatisticsGauge
+
+
+    private abstract class StatisticsSummary
+            implements ValidatorMetrics.Summary {
+        @Override
+        public final LatencyHistogram.Snapshot getSnapshot() {
+            final HandleResolver.Statistics stats = getStatistics();
+            return (stats != null)
+                    ? getSnapshot(stats)
+                    : EMPTY_HISTOGRAM.getSnapshot();
+        }
+
+
+        protected abstract LatencyHistogram.Snapshot getSnapshot(
+                HandleResolver.Statistics stats);
+    } // class StatisticsSummary
+
+
+    private static final class ResourceRef {
+        private final int line;
+        private final int column;
+        private String value = "";
+
+
+        private ResourceRef(int line, int column) {
+            this.line   = line;
+            this.column = column;
+        }
+    } // class ResourceRef
+
+
+    /*
+     * A message about a ResourceRef or the lookup of its PID.
+     */
+    private static final class Finding {
+        private final Severity severity;
+        private final String message;
+        private final URI uri;
+        private final CompletableFuture<Integer> result;
+        private final int line;
+        private final int column;
+
+
+        private Finding(Severity severity, int line, int column,
+                String message) {
+            this.severity = severity;
+            this.message  = message;
+            this.uri      = null;
+            this.result   = null;
+            this.line     = line;
+            this.column   = column;
+        }
+
+
+        private Finding(URI uri, int line, int column,
+                CompletableFuture<Integer> result) {
+            this.severity = null;
+            this.message  = null;
+            this.uri      = uri;
+            this.result   = result;
+            this.line     = line;
+            this.column   = column;
+        }
+    } // class Finding
+
 } // CheckHandleExtension
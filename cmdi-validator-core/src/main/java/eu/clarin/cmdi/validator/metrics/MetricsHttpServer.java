@@ -0,0 +1,118 @@
+/**
+ * This software is copyright (c) 2014 by
+ *  - Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ * This is free software. You can redistribute it
+ * and/or modify it under the terms described in
+ * the GNU General Public License v3 of which you
+ * should have received a copy. Otherwise you can download
+ * it from
+ *
+ *   http://www.gnu.org/licenses/gpl-3.0.txt
+ *
+ * @copyright Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ *
+ * @license http://www.gnu.org/licenses/gpl-3.0.txt
+ *  GNU General Public License v3
+ */
+package eu.clarin.cmdi.validator.metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+
+/*
+ * Serves the metrics in the Prometheus text exposition format at
+ * "/metrics". The server only listens on the loopback interface and uses
+ * a single daemon thread.
+ */
+public final class MetricsHttpServer {
+    public static final String PATH = "/metrics";
+    private static final Logger logger =
+            LoggerFactory.getLogger(MetricsHttpServer.class);
+    private static final String CONTENT_TYPE =
+            "text/plain; version=0.0.4; charset=utf-8";
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+
+    public MetricsHttpServer(final ValidatorMetrics metrics, int port)
+            throws IOException {
+        if (metrics == null) {
+            throw new NullPointerException("metrics == null");
+        }
+        if ((port < 0) || (port > 65535)) {
+            throw new IllegalArgumentException("port out of range");
+        }
+        this.server = HttpServer.create(new InetSocketAddress(
+                InetAddress.getLoopbackAddress(), port), 4);
+        this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable target) {
+                final Thread thread = new Thread(target, "metrics-http");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.server.setExecutor(executor);
+        this.server.createContext(PATH, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    if (!"GET".equals(exchange.getRequestMethod()) &&
+                            !"HEAD".equals(exchange.getRequestMethod())) {
+                        exchange.sendResponseHeaders(405, -1);
+                        return;
+                    }
+                    final StringWriter buffer = new StringWriter(8192);
+                    metrics.writeTextExposition(buffer);
+                    final byte[] body = buffer.toString()
+                            .getBytes(StandardCharsets.UTF_8);
+                    exchange.getResponseHeaders().set("Content-Type",
+                            CONTENT_TYPE);
+                    if ("HEAD".equals(exchange.getRequestMethod())) {
+                        exchange.sendResponseHeaders(200, -1);
+                        return;
+                    }
+                    exchange.sendResponseHeaders(200, body.length);
+                    final OutputStream out = exchange.getResponseBody();
+                    out.write(body);
+                    out.flush();
+                } catch (RuntimeException e) {
+                    logger.warn("error serving metrics: {}", e.getMessage());
+                    exchange.sendResponseHeaders(500, -1);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        this.server.start();
+        logger.debug("serving metrics at http://{}:{}{}",
+                server.getAddress().getHostString(), getPort(), PATH);
+    }
+
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+} // class MetricsHttpServer
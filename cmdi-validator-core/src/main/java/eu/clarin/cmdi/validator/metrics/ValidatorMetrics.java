@@ -0,0 +1,449 @@
+/**
+ * This software is copyright (c) 2014 by
+ *  - Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ * This is free software. You can redistribute it
+ * and/or modify it under the terms described in
+ * the GNU General Public License v3 of which you
+ * should have received a copy. Otherwise you can download
+ * it from
+ *
+ *   http://www.gnu.org/licenses/gpl-3.0.txt
+ *
+ * @copyright Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ *
+ * @license http://www.gnu.org/licenses/gpl-3.0.txt
+ *  GNU General Public License v3
+ */
+package eu.clarin.cmdi.validator.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import eu.clarin.cmdi.validator.utils.LatencyHistogram;
+
+
+/*
+ * A small registry for metrics of a validation run: counters, gauges and
+ * latency summaries. The registry can be published as JMX MBean and be
+ * written in the Prometheus text exposition format (see
+ * MetricsHttpServer). Metric names follow Prometheus conventions; all names
+ * get the prefix "cmdi_validator_". Values are only gathered when the
+ * metrics are read, e.g. gauges poll the statistics of the schema loader
+ * and the handle resolver.
+ */
+public final class ValidatorMetrics {
+    public static final String PREFIX = "cmdi_validator_";
+    public static final String JMX_DOMAIN = "eu.clarin.cmdi.validator";
+
+    public interface Gauge {
+        public double getValue();
+    } // interface Gauge
+
+    public interface Summary {
+        public LatencyHistogram.Snapshot getSnapshot();
+    } // interface Summary
+
+    public static final class Counter {
+        private final LongAdder value = new LongAdder();
+
+
+        private Counter() {
+        }
+
+
+        public void increment() {
+            value.increment();
+        }
+
+
+        public void add(long delta) {
+            value.add(delta);
+        }
+
+
+        public long get() {
+            return value.sum();
+        }
+    } // class Counter
+
+    private enum Type {
+        COUNTER, GAUGE, SUMMARY;
+    } // enum Type
+
+    private static final class Metric {
+        private final String name;
+        private final String help;
+        private final Type type;
+        private final Gauge gauge;
+        private final Summary summary;
+
+
+        private Metric(String name, String help, Type type, Gauge gauge,
+                Summary summary) {
+            this.name    = name;
+            this.help    = help;
+            this.type    = type;
+            this.gauge   = gauge;
+            this.summary = summary;
+        }
+    } // class Metric
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99 };
+    private static final String[] SUMMARY_ATTRIBUTES =
+        { "_count", "_mean_ms", "_p50_ms", "_p99_ms", "_max_ms" };
+    private final Map<String, Metric> metrics =
+            new LinkedHashMap<String, Metric>();
+    private final long created = System.nanoTime();
+    private ObjectName objectName;
+
+
+    public ValidatorMetrics() {
+        gauge("uptime_seconds", "Time since the metrics were created",
+                new Gauge() {
+                    @Override
+                    public double getValue() {
+                        return (System.nanoTime() - created) / 1e9;
+                    }
+                });
+    }
+
+
+    /*
+     * Register a counter maintained by the registry.
+     */
+    public Counter counter(String name, String help) {
+        final Counter counter = new Counter();
+        counter(name, help, new Gauge() {
+            @Override
+            public double getValue() {
+                return counter.get();
+            }
+        });
+        return counter;
+    }
+
+
+    /*
+     * Register a counter maintained elsewhere.
+     */
+    public void counter(String name, String help, Gauge value) {
+        add(new Metric(name, help, Type.COUNTER, value, null));
+    }
+
+
+    public void gauge(String name, String help, Gauge value) {
+        add(new Metric(name, help, Type.GAUGE, value, null));
+    }
+
+
+    /*
+     * Register a latency histogram maintained by the registry.
+     */
+    public LatencyHistogram histogram(String name, String help) {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        summary(name, help, new Summary() {
+            @Override
+            public LatencyHistogram.Snapshot getSnapshot() {
+                return histogram.getSnapshot();
+            }
+        });
+        return histogram;
+    }
+
+
+    /*
+     * Register a latency summary maintained elsewhere. Latencies are
+     * exported in seconds.
+     */
+    public void summary(String name, String help, Summary value) {
+        add(new Metric(name, help, Type.SUMMARY, null, value));
+    }
+
+
+    /*
+     * Average rate per second of a counter since the registry was created.
+     */
+    public Gauge rate(final Counter counter) {
+        return new Gauge() {
+            @Override
+            public double getValue() {
+                final double seconds = (System.nanoTime() - created) / 1e9;
+                return (seconds > 0) ? (counter.get() / seconds) : 0.0;
+            }
+        };
+    }
+
+
+    /*
+     * The current value of a counter or gauge, or NaN, if there is no such
+     * metric.
+     */
+    public double getValue(String name) {
+        final Metric metric = getMetric(name);
+        if ((metric == null) || (metric.gauge == null)) {
+            return Double.NaN;
+        }
+        return metric.gauge.getValue();
+    }
+
+
+    /*
+     * A snapshot of a summary, or null, if there is no such metric.
+     */
+    public LatencyHistogram.Snapshot getSnapshot(String name) {
+        final Metric metric = getMetric(name);
+        if ((metric == null) || (metric.summary == null)) {
+            return null;
+        }
+        return metric.summary.getSnapshot();
+    }
+
+
+    /*
+     * Write all metrics in the Prometheus text exposition format
+     * (version 0.0.4).
+     */
+    public void writeTextExposition(Writer out) throws IOException {
+        for (Metric metric : getMetrics()) {
+            final String name = PREFIX + metric.name;
+            out.write("# HELP ");
+            out.write(name);
+            out.write(' ');
+            out.write(metric.help.replace("\\", "\\\\").replace("\n", "\\n"));
+            out.write("\n# TYPE ");
+            out.write(name);
+            out.write(' ');
+            out.write(metric.type.name().toLowerCase(Locale.ENGLISH));
+            out.write('\n');
+            if (metric.type == Type.SUMMARY) {
+                final LatencyHistogram.Snapshot snapshot =
+                        metric.summary.getSnapshot();
+                for (double quantile : QUANTILES) {
+                    out.write(name);
+                    out.write("{quantile=\"");
+                    out.write(Double.toString(quantile));
+                    out.write("\"} ");
+                    out.write(formatSeconds(snapshot.getPercentile(
+                            quantile * 100.0, TimeUnit.MICROSECONDS)));
+                    out.write('\n');
+                }
+                out.write(name);
+                out.write("_sum ");
+                out.write(formatSeconds(
+                        snapshot.getSum(TimeUnit.MICROSECONDS)));
+                out.write('\n');
+                out.write(name);
+                out.write("_count ");
+                out.write(Long.toString(snapshot.getCount()));
+                out.write('\n');
+            } else {
+                out.write(name);
+                out.write(' ');
+                out.write(formatValue(metric.gauge.getValue()));
+                out.write('\n');
+            }
+        }
+    }
+
+
+    /*
+     * Publish the metrics as MBean with the ObjectName
+     * "eu.clarin.cmdi.validator:type=Metrics,name=<name>" on the platform
+     * MBean server.
+     */
+    public synchronized ObjectName registerMBean(String name)
+            throws JMException {
+        if (objectName != null) {
+            throw new IllegalStateException("already registered");
+        }
+        final ObjectName objectName = new ObjectName(JMX_DOMAIN +
+                ":type=Metrics,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(
+                new MetricsMBean(), objectName);
+        this.objectName = objectName;
+        return objectName;
+    }
+
+
+    public synchronized void unregisterMBean() {
+        if (objectName != null) {
+            final MBeanServer server =
+                    ManagementFactory.getPlatformMBeanServer();
+            try {
+                server.unregisterMBean(objectName);
+            } catch (JMException e) {
+                /* IGNORE */
+            } finally {
+                objectName = null;
+            }
+        }
+    }
+
+
+    private synchronized void add(Metric metric) {
+        if (metric.name == null) {
+            throw new NullPointerException("name == null");
+        }
+        if (metric.help == null) {
+            throw new NullPointerException("help == null");
+        }
+        if (!metric.name.matches("[a-z_][a-z0-9_]*")) {
+            throw new IllegalArgumentException("invalid metric name: " +
+                    metric.name);
+        }
+        if (metrics.containsKey(metric.name)) {
+            throw new IllegalArgumentException("metric '" + metric.name +
+                    "' already registered");
+        }
+        metrics.put(metric.name, metric);
+    }
+
+
+    private synchronized List<Metric> getMetrics() {
+        return new ArrayList<Metric>(metrics.values());
+    }
+
+
+    private synchronized Metric getMetric(String name) {
+        return metrics.get(name);
+    }
+
+
+    private static String formatValue(double value) {
+        if ((value == Math.rint(value)) && !Double.isInfinite(value) &&
+                (Math.abs(value) < 1e15)) {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+
+
+    private static String formatSeconds(long micros) {
+        return Double.toString(micros / 1e6);
+    }
+
+
+    /*
+     * Counters and gauges are exposed as attributes with the metric name,
+     * summaries as a set of attributes with suffixes (e.g. "_p99_ms").
+     */
+    private final class MetricsMBean implements DynamicMBean {
+        @Override
+        public Object getAttribute(String attribute)
+                throws AttributeNotFoundException {
+            Metric metric = getMetric(attribute);
+            if (metric != null) {
+                if (metric.type == Type.SUMMARY) {
+                    throw new AttributeNotFoundException(attribute);
+                }
+                return Double.valueOf(metric.gauge.getValue());
+            }
+            for (String suffix : SUMMARY_ATTRIBUTES) {
+                if (!attribute.endsWith(suffix)) {
+                    continue;
+                }
+                metric = getMetric(attribute.substring(0,
+                        attribute.length() - suffix.length()));
+                if ((metric == null) || (metric.type != Type.SUMMARY)) {
+                    continue;
+                }
+                final LatencyHistogram.Snapshot snapshot =
+                        metric.summary.getSnapshot();
+                if ("_count".equals(suffix)) {
+                    return Double.valueOf(snapshot.getCount());
+                } else if ("_mean_ms".equals(suffix)) {
+                    return Double.valueOf(
+                            snapshot.getMean(TimeUnit.MILLISECONDS));
+                } else if ("_p50_ms".equals(suffix)) {
+                    return Double.valueOf(snapshot.getPercentile(50.0,
+                            TimeUnit.MILLISECONDS));
+                } else if ("_p99_ms".equals(suffix)) {
+                    return Double.valueOf(snapshot.getPercentile(99.0,
+                            TimeUnit.MILLISECONDS));
+                } else {
+                    return Double.valueOf(
+                            snapshot.getMax(TimeUnit.MILLISECONDS));
+                }
+            }
+            throw new AttributeNotFoundException(attribute);
+        }
+
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            final AttributeList result = new AttributeList();
+            for (String attribute : attributes) {
+                try {
+                    result.add(new Attribute(attribute,
+                            getAttribute(attribute)));
+                } catch (AttributeNotFoundException e) {
+                    /* skip unknown attributes */
+                }
+            }
+            return result;
+        }
+
+
+        @Override
+        public void setAttribute(Attribute attribute)
+                throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("metrics are read-only");
+        }
+
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+
+        @Override
+        public Object invoke(String actionName, Object[] params,
+                String[] signature) {
+            throw new UnsupportedOperationException(actionName);
+        }
+
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            final List<MBeanAttributeInfo> attributes =
+                    new ArrayList<MBeanAttributeInfo>();
+            for (Metric metric : getMetrics()) {
+                if (metric.type == Type.SUMMARY) {
+                    for (String suffix : SUMMARY_ATTRIBUTES) {
+                        attributes.add(new MBeanAttributeInfo(
+                                metric.name + suffix, "java.lang.Double",
+                                metric.help, true, false, false));
+                    }
+                } else {
+                    attributes.add(new MBeanAttributeInfo(metric.name,
+                            "java.lang.Double", metric.help, true, false,
+                            false));
+                }
+            }
+            return new MBeanInfo(ValidatorMetrics.class.getName(),
+                    "CMDI validator metrics",
+                    attributes.toArray(
+                            new MBeanAttributeInfo[attributes.size()]),
+                    null, null, null);
+        }
+    } // class MetricsMBean
+
+} // class ValidatorMetrics
@@ -0,0 +1,372 @@
+/**
+ * This software is copyright (c) 2014 by
+ *  - Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ * This is free software. You can redistribute it
+ * and/or modify it under the terms described in
+ * the GNU General Public License v3 of which you
+ * should have received a copy. Otherwise you can download
+ * it from
+ *
+ *   http://www.gnu.org/licenses/gpl-3.0.txt
+ *
+ * @copyright Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ *
+ * @license http://www.gnu.org/licenses/gpl-3.0.txt
+ *  GNU General Public License v3
+ */
+package eu.clarin.cmdi.validator.report;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import eu.clarin.cmdi.validator.CMDIValidationHandlerAdapter;
+import eu.clarin.cmdi.validator.CMDIValidationReport;
+import eu.clarin.cmdi.validator.CMDIValidationReport.Message;
+import eu.clarin.cmdi.validator.CMDIValidationReport.Severity;
+import eu.clarin.cmdi.validator.CMDIValidatorException;
+import eu.clarin.cmdi.validator.utils.HeavyHitters;
+
+
+/*
+ * Aggregates report messages into signatures with bounded memory. Messages
+ * are normalized by stripping quoted values, URIs and numbers, so that e.g.
+ * all "invalid content" errors for the same element collapse into one
+ * signature. Signatures are counted per severity and schema location
+ * (profile) with a Space-Saving heavy hitters table, that keeps a few
+ * sample files per signature. Exact message totals are kept for each
+ * severity and schema location; if there are too many schema locations,
+ * the rare ones are folded into a single group.
+ *
+ * The aggregator can be used as validation handler on its own or be fed
+ * reports through add().
+ */
+public class ErrorSignatureAggregator extends CMDIValidationHandlerAdapter {
+    public static final int DEFAULT_CAPACITY = 4096;
+    public static final int DEFAULT_SAMPLES  = 3;
+    public static final String OTHER_SCHEMA_LOCATIONS = "(other)";
+    private static final int MAX_GROUPS = 4096;
+
+    public static final class Signature {
+        private final Severity severity;
+        private final String schemaLocation;
+        private final String text;
+        private final long count;
+        private final long error;
+        private final List<String> samples;
+
+
+        private Signature(Severity severity, String schemaLocation,
+                String text, long count, long error, List<String> samples) {
+            this.severity       = severity;
+            this.schemaLocation = schemaLocation;
+            this.text           = text;
+            this.count          = count;
+            this.error          = error;
+            this.samples        = samples;
+        }
+
+
+        public Severity getSeverity() {
+            return severity;
+        }
+
+
+        /*
+         * the schema location or null, if the schema location of the files
+         * was not known
+         */
+        public String getSchemaLocation() {
+            return schemaLocation;
+        }
+
+
+        public String getText() {
+            return text;
+        }
+
+
+        public long getCount() {
+            return count;
+        }
+
+
+        /*
+         * maximum overestimation of the count
+         */
+        public long getError() {
+            return error;
+        }
+
+
+        public List<String> getSamples() {
+            return samples;
+        }
+    } // class Signature
+
+    public static final class Group {
+        private final Severity severity;
+        private final String schemaLocation;
+        private final long count;
+
+
+        private Group(Severity severity, String schemaLocation, long count) {
+            this.severity       = severity;
+            this.schemaLocation = schemaLocation;
+            this.count          = count;
+        }
+
+
+        public Severity getSeverity() {
+            return severity;
+        }
+
+
+        public String getSchemaLocation() {
+            return schemaLocation;
+        }
+
+
+        public long getCount() {
+            return count;
+        }
+    } // class Group
+
+    private static final class Key {
+        private final Severity severity;
+        private final String schemaLocation;
+        private final String text;
+        private final int hash;
+        private String[] samples;
+        private int sampleCount = 0;
+
+
+        private Key(Severity severity, String schemaLocation, String text) {
+            this.severity       = severity;
+            this.schemaLocation = schemaLocation;
+            this.text           = text;
+            int h = severity.hashCode();
+            h = 31 * h + ((schemaLocation != null)
+                    ? schemaLocation.hashCode() : 0);
+            this.hash = 31 * h + text.hashCode();
+        }
+
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return (hash == other.hash) &&
+                    (severity == other.severity) &&
+                    text.equals(other.text) &&
+                    ((schemaLocation != null)
+                            ? schemaLocation.equals(other.schemaLocation)
+                            : (other.schemaLocation == null));
+        }
+    } // class Key
+    private final int maxSamples;
+    private final HeavyHitters<Key> signatures;
+    private final Map<Key, long[]> groups = new HashMap<Key, long[]>();
+
+
+    public ErrorSignatureAggregator(int capacity, int maxSamples) {
+        if (maxSamples < 0) {
+            throw new IllegalArgumentException("maxSamples < 0");
+        }
+        this.signatures = new HeavyHitters<Key>(capacity);
+        this.maxSamples = maxSamples;
+    }
+
+
+    public ErrorSignatureAggregator() {
+        this(DEFAULT_CAPACITY, DEFAULT_SAMPLES);
+    }
+
+
+    @Override
+    public void onValidationReport(CMDIValidationReport report)
+            throws CMDIValidatorException {
+        add(report);
+    }
+
+
+    public synchronized void add(CMDIValidationReport report) {
+        if (report.getMessageCount() == 0) {
+            return;
+        }
+        /* null, if unknown; those messages are grouped together */
+        final String schemaLocation = report.getSchemaLocation();
+        final File file = report.getFile();
+        final String path = (file != null) ? file.getPath() : null;
+        for (Message msg : report.getMessages()) {
+            if (msg.getMessage() == null) {
+                continue;
+            }
+            final Key key = new Key(msg.getSeverity(), schemaLocation,
+                    normalize(msg.getMessage()));
+            final Key tracked = signatures.offer(key).getKey();
+            if (path != null) {
+                addSample(tracked, path);
+            }
+            countGroup(msg.getSeverity(), schemaLocation);
+        }
+    }
+
+
+    /*
+     * Returns the tracked signatures ordered by descending count.
+     */
+    public synchronized List<Signature> getSignatures() {
+        final List<HeavyHitters.Counter<Key>> counters =
+                signatures.getCounters();
+        final List<Signature> result =
+                new ArrayList<Signature>(counters.size());
+        for (HeavyHitters.Counter<Key> counter : counters) {
+            final Key key = counter.getKey();
+            final List<String> samples = new ArrayList<String>(
+                    key.sampleCount);
+            for (int i = 0; i < key.sampleCount; i++) {
+                samples.add(key.samples[i]);
+            }
+            result.add(new Signature(key.severity, key.schemaLocation,
+                    key.text, counter.getCount(), counter.getError(),
+                    Collections.unmodifiableList(samples)));
+        }
+        return result;
+    }
+
+
+    /*
+     * Returns the message totals per severity and schema location ordered
+     * by descending count.
+     */
+    public synchronized List<Group> getGroups() {
+        final List<Group> result = new ArrayList<Group>(groups.size());
+        for (Map.Entry<Key, long[]> entry : groups.entrySet()) {
+            result.add(new Group(entry.getKey().severity,
+                    entry.getKey().schemaLocation, entry.getValue()[0]));
+        }
+        Collections.sort(result, new Comparator<Group>() {
+            @Override
+            public int compare(Group a, Group b) {
+                return Long.compare(b.count, a.count);
+            }
+        });
+        return result;
+    }
+
+
+    public synchronized long getMessageCount() {
+        return signatures.getTotal();
+    }
+
+
+    public synchronized void clear() {
+        signatures.clear();
+        groups.clear();
+    }
+
+
+    /*
+     * Normalize a message into its signature: quoted parts become '*',
+     * URIs become <uri> and stand-alone numbers become #. Numbers within
+     * identifiers (e.g. the error codes of Xerces like "cvc-type.3.1.3")
+     * are kept.
+     */
+    public static String normalize(String message) {
+        final int length = message.length();
+        final StringBuilder sb = new StringBuilder(Math.min(length, 256));
+        int pos = 0;
+        while (pos < length) {
+            final char c = message.charAt(pos);
+            if ((c == '\'') || (c == '"')) {
+                final int end = message.indexOf(c, pos + 1);
+                if (end != -1) {
+                    sb.append(c).append('*').append(c);
+                    pos = end + 1;
+                    continue;
+                }
+            } else if (((c == 'h') || (c == 'H')) &&
+                    (message.regionMatches(true, pos, "http://", 0, 7) ||
+                     message.regionMatches(true, pos, "https://", 0, 8))) {
+                sb.append("<uri>");
+                while ((pos < length) &&
+                        !isUriDelimiter(message.charAt(pos))) {
+                    pos++;
+                }
+                continue;
+            } else if ((c >= '0') && (c <= '9')) {
+                final char prev = (pos > 0) ? message.charAt(pos - 1) : ' ';
+                if (!Character.isLetter(prev) && (prev != '.') &&
+                        (prev != '-') && (prev != '_')) {
+                    while ((pos < length) &&
+                            (Character.isDigit(message.charAt(pos)) ||
+                             (message.charAt(pos) == '.'))) {
+                        pos++;
+                    }
+                    sb.append('#');
+                    continue;
+                }
+            }
+            sb.append(c);
+            pos++;
+        }
+        return sb.toString();
+    }
+
+
+    private static boolean isUriDelimiter(char c) {
+        return Character.isWhitespace(c) || (c == ']') || (c == ')') ||
+                (c == '>') || (c == '\'') || (c == '"');
+    }
+
+
+    private void addSample(Key key, String path) {
+        if (maxSamples == 0) {
+            return;
+        }
+        if (key.samples == null) {
+            key.samples = new String[maxSamples];
+        }
+        if (key.sampleCount < maxSamples) {
+            /* a file usually has several messages with the same signature */
+            if ((key.sampleCount == 0) ||
+                    !path.equals(key.samples[key.sampleCount - 1])) {
+                key.samples[key.sampleCount++] = path;
+            }
+        }
+    }
+
+
+    private void countGroup(Severity severity, String schemaLocation) {
+        Key group = new Key(severity, schemaLocation, "");
+        long[] count = groups.get(group);
+        if (count == null) {
+            if (groups.size() >= MAX_GROUPS) {
+                group = new Key(severity, OTHER_SCHEMA_LOCATIONS, "");
+                count = groups.get(group);
+            }
+            if (count == null) {
+                count = new long[1];
+                groups.put(group, count);
+            }
+        }
+        count[0]++;
+    }
+
+} // class ErrorSignatureAggregator
@@ -0,0 +1,326 @@
+/**
+ * This software is copyright (c) 2014 by
+ *  - Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ * This is free software. You can redistribute it
+ * and/or modify it under the terms described in
+ * the GNU General Public License v3 of which you
+ * should have received a copy. Otherwise you can download
+ * it from
+ *
+ *   http://www.gnu.org/licenses/gpl-3.0.txt
+ *
+ * @copyright Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ *
+ * @license http://www.gnu.org/licenses/gpl-3.0.txt
+ *  GNU General Public License v3
+ */
+package eu.clarin.cmdi.validator.report;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+
+import eu.clarin.cmdi.validator.CMDIValidationReport;
+import eu.clarin.cmdi.validator.CMDIValidationReport.Message;
+import eu.clarin.cmdi.validator.CMDIValidationReport.Severity;
+
+
+/*
+ * Machine-readable output formats for validation reports. Every format is
+ * written incrementally: a header, one fragment per report and a footer,
+ * so no format needs to know about more than the current report.
+ */
+public enum ReportFormat {
+    /*
+     * One JSON object per line and report.
+     */
+    JSON_LINES {
+        @Override
+        void writeHeader(Writer out) throws IOException {
+        }
+
+
+        @Override
+        void writeReport(Writer out, CMDIValidationReport report)
+                throws IOException {
+            out.write("{\"file\":");
+            writeJsonString(out, getPath(report));
+            out.write(",\"status\":");
+            writeJsonString(out, getStatus(report));
+            out.write(",\"errors\":");
+            out.write(Integer.toString(report.getMessageCount(Severity.ERROR)));
+            out.write(",\"warnings\":");
+            out.write(Integer.toString(
+                    report.getMessageCount(Severity.WARNING)));
+            out.write(",\"messages\":[");
+            boolean first = true;
+            for (Message msg : report.getMessages()) {
+                if (!first) {
+                    out.write(',');
+                }
+                first = false;
+                out.write("{\"severity\":");
+                writeJsonString(out, getName(msg.getSeverity()));
+                out.write(",\"line\":");
+                out.write(Integer.toString(msg.getLineNumber()));
+                out.write(",\"column\":");
+                out.write(Integer.toString(msg.getColumnNumber()));
+                out.write(",\"message\":");
+                writeJsonString(out, msg.getMessage());
+                out.write('}');
+            }
+            out.write("]}\n");
+        }
+
+
+        @Override
+        void writeFooter(Writer out) throws IOException {
+        }
+    },
+    /*
+     * JUnit XML as understood by CI servers: each file is a test suite with
+     * a single test case, that fails if the file is invalid. Warnings and
+     * infos go to the test case's output.
+     */
+    JUNIT_XML {
+        @Override
+        void writeHeader(Writer out) throws IOException {
+            out.write(XML_DECLARATION);
+            out.write("<testsuites name=\"cmdi-validator\">\n");
+        }
+
+
+        @Override
+        void writeReport(Writer out, CMDIValidationReport report)
+                throws IOException {
+            final String path = getPath(report);
+            out.write("  <testsuite name=\"");
+            writeXmlText(out, path);
+            out.write("\" tests=\"1\" failures=\"");
+            out.write(report.isFailed() ? "1" : "0");
+            out.write("\" errors=\"0\" skipped=\"0\">\n");
+            out.write("    <testcase classname=\"");
+            final File file = report.getFile();
+            writeXmlText(out, ((file != null) && (file.getParent() != null))
+                    ? file.getParent() : "");
+            out.write("\" name=\"");
+            writeXmlText(out, (file != null) ? file.getName() : path);
+            out.write('"');
+            if (report.getMessageCount() == 0) {
+                out.write("/>\n");
+            } else {
+                out.write(">\n");
+                if (report.isFailed()) {
+                    final Message first =
+                            report.getFirstMessage(Severity.ERROR);
+                    out.write("      <failure type=\"error\" message=\"");
+                    writeXmlText(out, first.getMessage());
+                    out.write("\">");
+                    writeMessages(out, report, Severity.ERROR);
+                    out.write("</failure>\n");
+                }
+                if (report.getMessageCount() >
+                        report.getMessageCount(Severity.ERROR)) {
+                    out.write("      <system-out>");
+                    writeMessages(out, report, Severity.WARNING);
+                    writeMessages(out, report, Severity.INFO);
+                    out.write("</system-out>\n");
+                }
+                out.write("    </testcase>\n");
+            }
+            out.write("  </testsuite>\n");
+        }
+
+
+        @Override
+        void writeFooter(Writer out) throws IOException {
+            out.write("</testsuites>\n");
+        }
+
+
+        private void writeMessages(Writer out, CMDIValidationReport report,
+                Severity severity) throws IOException {
+            for (Message msg : report.getMessages()) {
+                if (msg.getSeverity() != severity) {
+                    continue;
+                }
+                out.write('(');
+                out.write(msg.getSeverity().getShortcut());
+                out.write(") ");
+                writeXmlText(out, msg.getMessage());
+                if ((msg.getLineNumber() != -1) &&
+                        (msg.getColumnNumber() != -1)) {
+                    out.write(" [line=");
+                    out.write(Integer.toString(msg.getLineNumber()));
+                    out.write(", column=");
+                    out.write(Integer.toString(msg.getColumnNumber()));
+                    out.write(']');
+                }
+                out.write('\n');
+            }
+        }
+    },
+    /*
+     * All reports merged into a single SVRL document. Each file starts with
+     * an active pattern naming the document, followed by one failed assert
+     * per message. The location is given as line and column, because the
+     * reports do not carry XPath locations.
+     */
+    SVRL {
+        @Override
+        void writeHeader(Writer out) throws IOException {
+            out.write(XML_DECLARATION);
+            out.write("<svrl:schematron-output " +
+                    "xmlns:svrl=\"http://purl.oclc.org/dsdl/svrl\" " +
+                    "title=\"CMDI validation\">\n");
+        }
+
+
+        @Override
+        void writeReport(Writer out, CMDIValidationReport report)
+                throws IOException {
+            out.write("  <svrl:active-pattern document=\"");
+            writeXmlText(out, getPath(report));
+            out.write("\"/>\n");
+            for (Message msg : report.getMessages()) {
+                out.write("  <svrl:failed-assert test=\"\" role=\"");
+                out.write(getName(msg.getSeverity()));
+                out.write("\" location=\"");
+                if ((msg.getLineNumber() != -1) &&
+                        (msg.getColumnNumber() != -1)) {
+                    out.write(Integer.toString(msg.getLineNumber()));
+                    out.write(':');
+                    out.write(Integer.toString(msg.getColumnNumber()));
+                }
+                out.write("\">\n    <svrl:text>");
+                writeXmlText(out, msg.getMessage());
+                out.write("</svrl:text>\n  </svrl:failed-assert>\n");
+            }
+        }
+
+
+        @Override
+        void writeFooter(Writer out) throws IOException {
+            out.write("</svrl:schematron-output>\n");
+        }
+    };
+    private static final String XML_DECLARATION =
+            "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n";
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+
+    abstract void writeHeader(Writer out) throws IOException;
+
+
+    abstract void writeReport(Writer out, CMDIValidationReport report)
+            throws IOException;
+
+
+    abstract void writeFooter(Writer out) throws IOException;
+
+
+    private static String getPath(CMDIValidationReport report) {
+        final File file = report.getFile();
+        return (file != null) ? file.getPath() : "";
+    }
+
+
+    private static String getStatus(CMDIValidationReport report) {
+        if (report.isFailed()) {
+            return "invalid";
+        } else if (report.isWarning()) {
+            return "warning";
+        } else {
+            return "valid";
+        }
+    }
+
+
+    private static String getName(Severity severity) {
+        switch (severity) {
+        case INFO:
+            return "info";
+        case WARNING:
+            return "warning";
+        default:
+            return "error";
+        } // switch
+    }
+
+
+    private static void writeJsonString(Writer out, String s)
+            throws IOException {
+        if (s == null) {
+            out.write("null");
+            return;
+        }
+        out.write('"');
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            switch (c) {
+            case '"':
+                out.write("\\\"");
+                break;
+            case '\\':
+                out.write("\\\\");
+                break;
+            case '\n':
+                out.write("\\n");
+                break;
+            case '\r':
+                out.write("\\r");
+                break;
+            case '\t':
+                out.write("\\t");
+                break;
+            default:
+                if (c < 0x20) {
+                    out.write("\\u00");
+                    out.write(HEX[c >> 4]);
+                    out.write(HEX[c & 0xF]);
+                } else {
+                    out.write(c);
+                }
+            } // switch
+        }
+        out.write('"');
+    }
+
+
+    private static void writeXmlText(Writer out, String s)
+            throws IOException {
+        if (s == null) {
+            return;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            switch (c) {
+            case '<':
+                out.write("&lt;");
+                break;
+            case '>':
+                out.write("&gt;");
+                break;
+            case '&':
+                out.write("&amp;");
+                break;
+            case '"':
+                out.write("&quot;");
+                break;
+            case '\n':
+            case '\r':
+            case '\t':
+                out.write(c);
+                break;
+            default:
+                if ((c < 0x20) || (c == 0xFFFE) || (c == 0xFFFF)) {
+                    /* not allowed in XML 1.0 */
+                    out.write('\uFFFD');
+                } else {
+                    out.write(c);
+                }
+            } // switch
+        }
+    }
+
+} // enum ReportFormat
@@ -0,0 +1,255 @@
+/**
+ * This software is copyright (c) 2014 by
+ *  - Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ * This is free software. You can redistribute it
+ * and/or modify it under the terms described in
+ * the GNU General Public License v3 of which you
+ * should have received a copy. Otherwise you can download
+ * it from
+ *
+ *   http://www.gnu.org/licenses/gpl-3.0.txt
+ *
+ * @copyright Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ *
+ * @license http://www.gnu.org/licenses/gpl-3.0.txt
+ *  GNU General Public License v3
+ */
+package eu.clarin.cmdi.validator.report;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import eu.clarin.cmdi.validator.CMDIValidationReport;
+
+
+/*
+ * Writes validation reports to a file in one of the machine-readable
+ * formats. Reports are handed over to a single writer thread through a
+ * bounded queue, so validator threads do not wait for I/O (unless the
+ * writer falls behind) and at most a small window of reports is retained,
+ * regardless of the size of the corpus.
+ */
+public final class ReportSink implements Closeable {
+    public static final int DEFAULT_WINDOW_SIZE = 64;
+    private static final Logger logger =
+            LoggerFactory.getLogger(ReportSink.class);
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final Object EOF = new Object();
+    private static final AtomicInteger threadCount = new AtomicInteger();
+    private final ReportFormat format;
+    private final Writer writer;
+    private final BlockingQueue<Object> queue;
+    private final Thread thread;
+    private volatile IOException failure;
+    private long reportCount = 0;
+    private boolean closed = false;
+    /* number of threads between the closed check and queuing a report */
+    private int writing = 0;
+
+
+    public ReportSink(OutputStream out, ReportFormat format, int windowSize) {
+        if (out == null) {
+            throw new NullPointerException("out == null");
+        }
+        if (format == null) {
+            throw new NullPointerException("format == null");
+        }
+        if (windowSize < 1) {
+            throw new IllegalArgumentException("windowSize < 1");
+        }
+        this.format = format;
+        this.writer = new BufferedWriter(new OutputStreamWriter(out,
+                StandardCharsets.UTF_8), BUFFER_SIZE);
+        this.queue  = new ArrayBlockingQueue<Object>(windowSize);
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeReports();
+            }
+        }, "report-writer-" + threadCount.incrementAndGet());
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+
+    public ReportSink(OutputStream out, ReportFormat format) {
+        this(out, format, DEFAULT_WINDOW_SIZE);
+    }
+
+
+    /*
+     * Opens a sink writing to a file, optionally gzip compressed.
+     */
+    public static ReportSink open(File file, ReportFormat format,
+            boolean gzip) throws IOException {
+        if (file == null) {
+            throw new NullPointerException("file == null");
+        }
+        OutputStream out = new FileOutputStream(file);
+        try {
+            if (gzip) {
+                out = new GZIPOutputStream(out, BUFFER_SIZE);
+            }
+            return new ReportSink(out, format);
+        } catch (IOException e) {
+            out.close();
+            throw e;
+        }
+    }
+
+
+    public ReportFormat getFormat() {
+        return format;
+    }
+
+
+    /*
+     * Queue a report for writing. Blocks, if the writer thread is a full
+     * window behind. A report is either written or rejected, when the sink
+     * is closed concurrently.
+     */
+    public void write(CMDIValidationReport report) throws IOException {
+        if (report == null) {
+            throw new NullPointerException("report == null");
+        }
+        checkFailure();
+        synchronized (this) {
+            if (closed) {
+                throw new IOException("report sink is closed");
+            }
+            writing++;
+        } // synchronized (this)
+        try {
+            queue.put(report);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while queuing " +
+                    "report");
+        } finally {
+            synchronized (this) {
+                if (--writing == 0) {
+                    notifyAll();
+                }
+            } // synchronized (this)
+        }
+    }
+
+
+    public synchronized long getReportCount() {
+        return reportCount;
+    }
+
+
+    /*
+     * Write all queued reports and the footer and close the file. Reports,
+     * that are being queued concurrently, are still written; the writer
+     * thread keeps draining the queue, so their threads do not block.
+     */
+    @Override
+    public void close() throws IOException {
+        boolean interrupted = false;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            while (writing > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } // synchronized (this)
+        for (;;) {
+            try {
+                queue.put(EOF);
+                thread.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        checkFailure();
+    }
+
+
+    private void checkFailure() throws IOException {
+        final IOException e = failure;
+        if (e != null) {
+            throw new IOException("error writing reports: " +
+                    e.getMessage(), e);
+        }
+    }
+
+
+    private void writeReports() {
+        try {
+            try {
+                format.writeHeader(writer);
+            } catch (IOException e) {
+                fail(e);
+            }
+            for (;;) {
+                final Object item = queue.take();
+                if (item == EOF) {
+                    break;
+                }
+                /* after a failure, keep draining, so nobody blocks */
+                if (failure == null) {
+                    try {
+                        format.writeReport(writer,
+                                (CMDIValidationReport) item);
+                        synchronized (this) {
+                            reportCount++;
+                        } // synchronized (this)
+                    } catch (IOException e) {
+                        fail(e);
+                    } catch (RuntimeException e) {
+                        fail(new IOException("unexpected error", e));
+                    }
+                }
+            }
+            if (failure == null) {
+                format.writeFooter(writer);
+            }
+        } catch (IOException e) {
+            fail(e);
+        } catch (InterruptedException e) {
+            failure = new InterruptedIOException("report writer interrupted");
+        } finally {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                if (failure == null) {
+                    fail(e);
+                }
+            }
+        }
+    }
+
+
+    private void fail(IOException e) {
+        logger.error("error writing reports: {}", e.getMessage());
+        failure = e;
+    }
+
+} // class ReportSink
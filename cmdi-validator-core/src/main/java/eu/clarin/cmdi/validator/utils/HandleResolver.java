@@ -16,23 +16,39 @@
  */
 package eu.clarin.cmdi.validator.utils;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InterruptedIOException;
 import java.net.SocketTimeoutException;
 import java.net.URI;
 import java.net.UnknownHostException;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
+import org.apache.http.HttpHeaders;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
 import org.apache.http.StatusLine;
 import org.apache.http.client.config.CookieSpecs;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpHead;
+import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.config.ConnectionConfig;
 import org.apache.http.config.SocketConfig;
 import org.apache.http.conn.ConnectTimeoutException;
@@ -42,38 +58,188 @@ import org.apache.http.impl.client.HttpClients;
 import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.protocol.BasicHttpContext;
 import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import eu.clarin.cmdi.validator.Version;
 
 public class HandleResolver {
+    /*
+     * How to decide, whether a handle resolves:
+     *  FOLLOW_REDIRECTS  send a HEAD request and follow the redirects of
+     *                    the handle proxy to the target resource; the
+     *                    result is the status code of the target resource
+     *  FIRST_REDIRECT    send a HEAD request, but do not follow redirects;
+     *                    a redirect counts as success (SC_OK), i.e. only
+     *                    the existence of the handle is checked
+     *  HANDLE_API        query the REST API of the handle proxy
+     *                    (/api/handles/{handle}) for handles on the handle
+     *                    proxy; the result is SC_OK, if the handle exists,
+     *                    and SC_NOT_FOUND otherwise. Other URIs are resolved
+     *                    like with FIRST_REDIRECT.
+     */
+    public static enum Strategy {
+        FOLLOW_REDIRECTS,
+        FIRST_REDIRECT,
+        HANDLE_API
+    }
+    public static final class HostStatistics {
+        private final String host;
+        private final long requestCount;
+        private final long timeoutCount;
+        private final long unknownHostCount;
+        private final long errorCount;
+        private final long fastFailCount;
+        private final int queuedCount;
+        private final boolean circuitOpen;
+        private final int currentTimeout;
+        private final LatencyHistogram.Snapshot latency;
+
+        HostStatistics(String host,
+                long requestCount,
+                long timeoutCount,
+                long unknownHostCount,
+                long errorCount,
+                long fastFailCount,
+                int queuedCount,
+                boolean circuitOpen,
+                int currentTimeout,
+                LatencyHistogram.Snapshot latency) {
+            this.host             = host;
+            this.requestCount     = requestCount;
+            this.timeoutCount     = timeoutCount;
+            this.unknownHostCount = unknownHostCount;
+            this.errorCount       = errorCount;
+            this.fastFailCount    = fastFailCount;
+            this.queuedCount      = queuedCount;
+            this.circuitOpen      = circuitOpen;
+            this.currentTimeout   = currentTimeout;
+            this.latency          = latency;
+        }
+
+
+        public String getHost() {
+            return host;
+        }
+
+
+        /*
+         * requests, that have actually been sent to the host
+         */
+        public long getRequestCount() {
+            return requestCount;
+        }
+
+
+        public long getTimeoutCount() {
+            return timeoutCount;
+        }
+
+
+        public long getUnknownHostCount() {
+            return unknownHostCount;
+        }
+
+
+        public long getErrorCount() {
+            return errorCount;
+        }
+
+
+        public long getFastFailCount() {
+            return fastFailCount;
+        }
+
+
+        /*
+         * fraction of requests, that failed with a timeout, an unknown host
+         * or another error
+         */
+        public float getFailureRate() {
+            if (requestCount > 0) {
+                return (timeoutCount + unknownHostCount + errorCount) /
+                        (float) requestCount;
+            }
+            return 0.0f;
+        }
+
+
+        /*
+         * requests waiting for a free per-host request slot
+         */
+        public int getQueuedCount() {
+            return queuedCount;
+        }
+
+
+        public boolean isCircuitOpen() {
+            return circuitOpen;
+        }
+
+
+        /*
+         * current socket timeout in milliseconds
+         */
+        public int getCurrentTimeout() {
+            return currentTimeout;
+        }
+
+
+        public LatencyHistogram.Snapshot getLatency() {
+            return latency;
+        }
+    }
     public static final class Statistics {
         private final long cacheHitCount;
         private final long cacheMissCount;
+        private final long storeHitCount;
+        private final long coalescedCount;
         private final long timeoutCount;
         private final long unknownHostCount;
         private final long errorCount;
+        private final long fastFailCount;
         private final long totalRequestsCount;
         private final int currentRequestsCount;
         private final int currentCacheSize;
+        private final int currentStoreSize;
+        private final LatencyHistogram.Snapshot requestLatency;
+        private final LatencyHistogram.Snapshot queueWaitLatency;
+        private final LatencyHistogram.Snapshot permitWaitLatency;
+        private final List<HostStatistics> hostStatistics;
 
         private Statistics(long cacheHitCount,
                 long cacheMissCount,
+                long storeHitCount,
+                long coalescedCount,
                 long timeoutCount,
                 long unknownHostCount,
                 long errorCount,
+                long fastFailCount,
                 long totalRequestsCount,
                 int currentRequestsCount,
-                int currentCacheSize) {
+                int currentCacheSize,
+                int currentStoreSize,
+                LatencyHistogram.Snapshot requestLatency,
+                LatencyHistogram.Snapshot queueWaitLatency,
+                LatencyHistogram.Snapshot permitWaitLatency,
+                List<HostStatistics> hostStatistics) {
             this.cacheHitCount        = cacheHitCount;
             this.cacheMissCount       = cacheMissCount;
+            this.storeHitCount        = storeHitCount;
+            this.coalescedCount       = coalescedCount;
             this.timeoutCount         = timeoutCount;
             this.unknownHostCount     = unknownHostCount;
             this.errorCount           = errorCount;
+            this.fastFailCount        = fastFailCount;
             this.totalRequestsCount   = totalRequestsCount;
             this.currentRequestsCount = currentRequestsCount;
             this.currentCacheSize     = currentCacheSize;
+            this.currentStoreSize     = currentStoreSize;
+            this.requestLatency       = requestLatency;
+            this.queueWaitLatency     = queueWaitLatency;
+            this.permitWaitLatency    = permitWaitLatency;
+            this.hostStatistics       = hostStatistics;
         }
 
 
@@ -87,6 +253,23 @@ public class HandleResolver {
         }
 
 
+        /*
+         * cache hits, that have been answered by results of a previous run
+         */
+        public long getStoreHitCount() {
+            return storeHitCount;
+        }
+
+
+        /*
+         * cache misses, that have joined a request for the same handle
+         * already in progress
+         */
+        public long getCoalescedCount() {
+            return coalescedCount;
+        }
+
+
         public long getTimeoutCount() {
             return timeoutCount;
         }
@@ -102,6 +285,15 @@ public class HandleResolver {
         }
 
 
+        /*
+         * requests, that have not been performed, because the host
+         * did not respond to previous requests
+         */
+        public long getFastFailCount() {
+            return fastFailCount;
+        }
+
+
         public long getTotalRequestsCount() {
             return totalRequestsCount;
         }
@@ -114,6 +306,44 @@ public class HandleResolver {
         public int getCurrentCacheSize() {
             return currentCacheSize;
         }
+
+
+        public int getCurrentStoreSize() {
+            return currentStoreSize;
+        }
+
+
+        /*
+         * duration of the HTTP requests, including redirects
+         */
+        public LatencyHistogram.Snapshot getRequestLatency() {
+            return requestLatency;
+        }
+
+
+        /*
+         * time from scheduling a request until a resolver thread started
+         * it, including waiting for a per-host request slot
+         */
+        public LatencyHistogram.Snapshot getQueueWaitLatency() {
+            return queueWaitLatency;
+        }
+
+
+        /*
+         * time spent waiting for one of the maxConcurrentRequests permits
+         */
+        public LatencyHistogram.Snapshot getPermitWaitLatency() {
+            return permitWaitLatency;
+        }
+
+
+        /*
+         * per-host statistics, hosts with most requests first
+         */
+        public List<HostStatistics> getHostStatistics() {
+            return hostStatistics;
+        }
     }
     private static final Logger logger =
             LoggerFactory.getLogger(HandleResolver.class);
@@ -122,137 +352,347 @@ public class HandleResolver {
     public static final int ERROR        = -3;
     private static final String USER_AGENT =
             "CMDI-Validator-HandleResolver/" + Version.getVersion();
-    private static final int DEFAULT_MAX_CONCURRENT_REQUESTS = 8;
+    public static final int DEFAULT_MAX_CONCURRENT_REQUESTS = 8;
+    public static final int DEFAULT_MAX_REQUESTS_PER_HOST = 4;
     private static final int DEFAULT_CONNECT_TIMEOUT = 5000;
     private static final int DEFAULT_SOCKET_TIMEOUT = 10000;
-    private final LRUCache<URI, Integer> cache =
-            new LRUCache<URI, Integer>(16 * 1024);
-    private final Set<URI> pending;
+    private static final String STORE_FILE_NAME = "handles.db";
+    private static final String EXISTENCE_STORE_FILE_NAME = "handles-exist.db";
+    public static final long DEFAULT_POSITIVE_TTL = TimeUnit.DAYS.toMillis(7);
+    public static final long DEFAULT_NEGATIVE_TTL = TimeUnit.HOURS.toMillis(12);
+    public static final URI DEFAULT_HANDLE_API =
+            URI.create("https://hdl.handle.net/api/handles/");
+    private static final String HANDLE_PROXY_HOST = "hdl.handle.net";
+    private final ConcurrentMap<URI, CompletableFuture<Integer>> pending;
+    private final ConcurrentMap<String, HandleResolverHost> hosts =
+            new ConcurrentHashMap<String, HandleResolverHost>();
+    private final int maxRequestsPerHost;
+    private final Strategy strategy;
+    private final URI handleApi;
+    private final ExecutorService executor;
     private final int maxConcurrentRequestsCount;
     private final Semaphore maxConcurrentRequests;
+    private final RequestConfig requestConfig;
     private final CloseableHttpClient client;
-    private long cacheHitCount                = 0;
-    private long cacheMissCount               = 0;
+    private final HandleResultStore results;
+    private final LongAdder cacheHitCount     = new LongAdder();
+    private final LongAdder cacheMissCount    = new LongAdder();
+    private final LongAdder coalescedCount    = new LongAdder();
+    private final LatencyHistogram requestLatency    = new LatencyHistogram();
+    private final LatencyHistogram queueWaitLatency  = new LatencyHistogram();
+    private final LatencyHistogram permitWaitLatency = new LatencyHistogram();
     private AtomicLong timeoutCount           = new AtomicLong();
     private AtomicLong unknownHostCount       = new AtomicLong();
     private AtomicLong errorCount             = new AtomicLong();
+    private AtomicLong fastFailCount          = new AtomicLong();
     private AtomicLong totalRequestsCount     = new AtomicLong();
     private AtomicInteger currentRequestCount = new AtomicInteger();
-    private final Object waiter = new Object();
 
 
-    public HandleResolver(int maxConcurrentRequests) {
+    /*
+     * If a cache directory is supplied, results are kept in a persistent
+     * store within this directory and are re-used by later runs until they
+     * expire. Results for handles, that did not resolve to an existing
+     * resource, expire after negativeTTL milliseconds. All results of a run
+     * are kept in memory, for very large corpora they can be kept off-heap.
+     * At most maxRequestsPerHost of the maxConcurrentRequests concurrent
+     * requests are sent to the same host, so a host, that does not respond,
+     * cannot block the requests to other hosts. Requests to a host re-use
+     * kept-alive connections.
+     * For the HANDLE_API strategy, handleApi is the base URI of the REST
+     * API (DEFAULT_HANDLE_API, if null).
+     */
+    public HandleResolver(int maxConcurrentRequests, int maxRequestsPerHost,
+            File cacheDirectory, long positiveTTL, long negativeTTL,
+            boolean offHeap, Strategy strategy, URI handleApi) {
         if (maxConcurrentRequests < 1) {
             throw new IllegalArgumentException("maxConcurrentRequests < 1");
         }
-        this.pending = new HashSet<URI>(maxConcurrentRequests * 4);
-        this.client = createHttpClient(DEFAULT_CONNECT_TIMEOUT,
-                DEFAULT_SOCKET_TIMEOUT);
+        if (maxRequestsPerHost < 1) {
+            throw new IllegalArgumentException("maxRequestsPerHost < 1");
+        }
+        if (maxRequestsPerHost > maxConcurrentRequests) {
+            throw new IllegalArgumentException(
+                    "maxRequestsPerHost > maxConcurrentRequests");
+        }
+        if (strategy == null) {
+            throw new NullPointerException("strategy == null");
+        }
+        this.strategy  = strategy;
+        this.handleApi = (handleApi != null) ? handleApi : DEFAULT_HANDLE_API;
+        if (cacheDirectory != null) {
+            /*
+             * results of the strategies, that only check the existence of
+             * the handle, are not interchangeable with the others
+             */
+            final String name = (strategy == Strategy.FOLLOW_REDIRECTS)
+                    ? STORE_FILE_NAME
+                    : EXISTENCE_STORE_FILE_NAME;
+            this.results = new HandleResultStore(
+                    new File(cacheDirectory, name),
+                    positiveTTL, negativeTTL, offHeap);
+        } else {
+            /* results are valid for the lifetime of the resolver */
+            this.results = new HandleResultStore(null,
+                    Long.MAX_VALUE, Long.MAX_VALUE, offHeap);
+        }
+        this.pending = new ConcurrentHashMap<URI, CompletableFuture<Integer>>(
+                maxConcurrentRequests * 4);
+        this.executor = Executors.newFixedThreadPool(maxConcurrentRequests,
+                new ThreadFactory() {
+                    private final AtomicInteger id = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        final Thread thread = new Thread(r,
+                                "handle-resolver-" + id.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        this.maxRequestsPerHost = maxRequestsPerHost;
+        this.requestConfig = RequestConfig.custom()
+                .setAuthenticationEnabled(false)
+                .setRedirectsEnabled(strategy == Strategy.FOLLOW_REDIRECTS)
+                .setMaxRedirects(4)
+                .setCircularRedirectsAllowed(false)
+                .setCookieSpec(CookieSpecs.IGNORE_COOKIES)
+                .setConnectTimeout(DEFAULT_CONNECT_TIMEOUT)
+                .setSocketTimeout(DEFAULT_SOCKET_TIMEOUT)
+                .setConnectionRequestTimeout(0) /* infinite */
+                .setStaleConnectionCheckEnabled(false)
+                .build();
+        this.client = createHttpClient(maxRequestsPerHost, requestConfig);
         this.maxConcurrentRequestsCount = maxConcurrentRequests;
         this.maxConcurrentRequests = new Semaphore(maxConcurrentRequests, true);
     }
 
 
+    public HandleResolver(int maxConcurrentRequests, int maxRequestsPerHost,
+            File cacheDirectory, long positiveTTL, long negativeTTL,
+            boolean offHeap) {
+        this(maxConcurrentRequests, maxRequestsPerHost, cacheDirectory,
+                positiveTTL, negativeTTL, offHeap, Strategy.FOLLOW_REDIRECTS,
+                null);
+    }
+
+
+    public HandleResolver(int maxConcurrentRequests, int maxRequestsPerHost,
+            File cacheDirectory, long positiveTTL, long negativeTTL) {
+        this(maxConcurrentRequests, maxRequestsPerHost, cacheDirectory,
+                positiveTTL, negativeTTL, false);
+    }
+
+
+    public HandleResolver(int maxConcurrentRequests, File cacheDirectory,
+            long positiveTTL, long negativeTTL) {
+        this(maxConcurrentRequests,
+                Math.min(DEFAULT_MAX_REQUESTS_PER_HOST, maxConcurrentRequests),
+                cacheDirectory, positiveTTL, negativeTTL);
+    }
+
+
+    public HandleResolver(int maxConcurrentRequests) {
+        this(maxConcurrentRequests, null, 0, 0);
+    }
+
+
+    public HandleResolver(File cacheDirectory) {
+        this(DEFAULT_MAX_CONCURRENT_REQUESTS, cacheDirectory,
+                DEFAULT_POSITIVE_TTL, DEFAULT_NEGATIVE_TTL);
+    }
+
+
     public HandleResolver() {
         this(DEFAULT_MAX_CONCURRENT_REQUESTS);
     }
 
 
+    public Strategy getStrategy() {
+        return strategy;
+    }
+
+
     public int resolve(final URI handle) throws IOException {
+        try {
+            return resolveAsync(handle).get().intValue();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            throw new IOException("error resolving handle '" + handle + "'",
+                    e.getCause());
+        }
+    }
+
+
+    /*
+     * Resolve a handle without blocking the calling thread. Concurrent
+     * lookups of the same handle share one request. The returned future
+     * never completes exceptionally, failures are signaled by the
+     * TIMEOUT, UNKNOWN_HOST and ERROR result codes.
+     */
+    public CompletableFuture<Integer> resolveAsync(final URI handle) {
         if (handle == null) {
             throw new NullPointerException("handle == null");
         }
         logger.debug("resolving '{}'", handle);
         totalRequestsCount.incrementAndGet();
-        for (;;) {
-            boolean doResolve = false;
-            synchronized (cache) {
-                final Integer cached = cache.get(handle);
-                if (cached != null) {
-                    logger.trace("got cached result for '{}': {}",
-                            handle, cached);
-                    cacheHitCount++;
-                    return cached.intValue();
-                }
-                cacheMissCount++;
+        final int cached = results.get(handle);
+        if (cached != HandleResultStore.NO_RESULT) {
+            logger.trace("got cached result for '{}': {}", handle, cached);
+            cacheHitCount.increment();
+            return CompletableFuture.completedFuture(Integer.valueOf(cached));
+        }
+        cacheMissCount.increment();
+
+        // wait for pending resolve result or schedule a new request
+        final CompletableFuture<Integer> future =
+                new CompletableFuture<Integer>();
+        final CompletableFuture<Integer> p = pending.putIfAbsent(handle, future);
+        if (p != null) {
+            coalescedCount.increment();
+            return p;
+        }
 
-                synchronized (pending) {
-                    if (!pending.contains(handle)) {
-                        doResolve = true;
-                        pending.add(handle);
-                    }
-                } // synchronized (pending)
-            } // synchronized (cache)
+        /*
+         * A request might have completed between the cache lookup and
+         * registering the future. Results are cached before the future is
+         * removed, so checking the cache again is sufficient.
+         */
+        final int recent = results.get(handle);
+        if (recent != HandleResultStore.NO_RESULT) {
+            pending.remove(handle, future);
+            future.complete(Integer.valueOf(recent));
+            return future;
+        }
 
-            // either resolve in this thread of wait for pending resolve result
-            if (doResolve) {
+        final boolean useApi = (strategy == Strategy.HANDLE_API) &&
+                isHandleProxyURI(handle);
+        final URI target = useApi ? getHandleApiURI(handle) : handle;
+        final HandleResolverHost host = getHost(target);
+        final long scheduled = System.nanoTime();
+        final Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                queueWaitLatency.recordNanos(System.nanoTime() - scheduled);
                 int result = ERROR;
+                boolean performed = false;
+                boolean probe = false;
                 try {
-                    result = doResolve(handle);
+                    final int circuit =
+                            host.checkCircuit(System.currentTimeMillis());
+                    probe = (circuit == HandleResolverHost.PROBE);
+                    if ((circuit == 0) || probe) {
+                        performed = true;
+                        result = doResolve(target, useApi, host);
+                    } else {
+                        logger.trace("fast-failing '{}'", handle);
+                        fastFailCount.incrementAndGet();
+                        result = circuit;
+                    }
+                } catch (IOException e) {
+                    logger.debug("error resolving '{}': {}",
+                            handle, e.getMessage());
+                    host.recordError();
+                    result = ERROR;
                 } finally {
-                    // cache result and notify other threads
-                    synchronized (cache) {
-                        logger.trace("caching result {} for '{}'",
-                                result, handle);
-                        cache.put(handle, Integer.valueOf(result));
-                        synchronized (pending) {
-                            pending.remove(handle);
-                            synchronized (waiter) {
-                                waiter.notifyAll();
-                            } // synchronized (waiter)
-                        } // synchronized (pending)
-                    } // synchronized (cache)
-                    if (result == ERROR) {
-                        errorCount.incrementAndGet();
+                    if (probe) {
+                        host.finishProbe();
+                    }
+
+                    // cache result and notify waiting parties
+                    logger.trace("caching result {} for '{}'",
+                            result, handle);
+                    try {
+                        if (performed) {
+                            results.put(handle, result);
+                        }
+                    } catch (RuntimeException e) {
+                        /* the result is still delivered, just not cached */
+                        logger.warn("error caching result for '{}': {}",
+                                handle, e.getMessage());
+                    } finally {
+                        pending.remove(handle, future);
+                        if (result == ERROR) {
+                            errorCount.incrementAndGet();
+                        }
+                        future.complete(Integer.valueOf(result));
+
+                        // hand over the host permit
+                        final Runnable next = host.release();
+                        if (next != null) {
+                            executor.execute(next);
+                        }
                     }
-                }
-                return result;
-            } else {
-                try {
-                    synchronized (waiter) {
-                        waiter.wait();
-                    } // synchronized (waiter)
-                } catch (InterruptedException e) {
-                    errorCount.incrementAndGet();
-                    return ERROR;
                 }
             }
-        } // for
+        };
+        if (host.acquire(task)) {
+            executor.execute(task);
+        }
+        return future;
     }
 
 
     public Statistics getStatistics() {
-        synchronized (cache) {
-            return new Statistics(cacheHitCount,
-                    cacheMissCount,
-                    timeoutCount.get(),
-                    unknownHostCount.get(),
-                    errorCount.get(),
-                    totalRequestsCount.get(),
-                    currentRequestCount.get(),
-                    cache.size());
-        } // synchronized (cache)
+        final List<HostStatistics> hostStatistics =
+                new ArrayList<HostStatistics>(hosts.size());
+        for (HandleResolverHost host : hosts.values()) {
+            hostStatistics.add(host.getStatistics());
+        }
+        Collections.sort(hostStatistics, new Comparator<HostStatistics>() {
+            @Override
+            public int compare(HostStatistics o1, HostStatistics o2) {
+                final long n1 = o1.getRequestCount() + o1.getFastFailCount();
+                final long n2 = o2.getRequestCount() + o2.getFastFailCount();
+                if (n1 != n2) {
+                    return (n1 > n2) ? -1 : 1;
+                }
+                return o1.getHost().compareTo(o2.getHost());
+            }
+        });
+        return new Statistics(cacheHitCount.sum(),
+                cacheMissCount.sum(),
+                results.getRestoredHitCount(),
+                coalescedCount.sum(),
+                timeoutCount.get(),
+                unknownHostCount.get(),
+                errorCount.get(),
+                fastFailCount.get(),
+                totalRequestsCount.get(),
+                currentRequestCount.get(),
+                results.size(),
+                results.isPersistent() ? results.size() : 0,
+                requestLatency.getSnapshot(),
+                queueWaitLatency.getSnapshot(),
+                permitWaitLatency.getSnapshot(),
+                Collections.unmodifiableList(hostStatistics));
     }
 
 
     public void clear() {
         try {
+            // acquire all permits to deny any requests from happening ...
+            maxConcurrentRequests.acquire(maxConcurrentRequestsCount);
             try {
-                // acquire all permits to deny any requests from happening ...
-                maxConcurrentRequests.acquire(maxConcurrentRequestsCount);
-
                 // clear data
-                synchronized (cache) {
-                    cache.clear();
-                    cacheHitCount  = 0;
-                    cacheMissCount = 0;
-                    timeoutCount.set(0);
-                    unknownHostCount.set(0);
-                    errorCount.set(0);
-                    totalRequestsCount.set(0);
-                } // synchronized (cache)
+                results.clear();
+                cacheHitCount.reset();
+                cacheMissCount.reset();
+                coalescedCount.reset();
+                requestLatency.reset();
+                queueWaitLatency.reset();
+                permitWaitLatency.reset();
+                for (HandleResolverHost host : hosts.values()) {
+                    host.resetStatistics();
+                }
+                timeoutCount.set(0);
+                unknownHostCount.set(0);
+                errorCount.set(0);
+                fastFailCount.set(0);
+                totalRequestsCount.set(0);
             } finally {
-                maxConcurrentRequests.release();
+                maxConcurrentRequests.release(maxConcurrentRequestsCount);
             }
         } catch (InterruptedException e) {
             /* IGNORE */
@@ -260,36 +700,97 @@ public class HandleResolver {
     }
 
 
-    private int doResolve(final URI handle) throws IOException {
-        logger.trace("performing HTTP request for '{}'", handle);
+    /*
+     * Write all pending results to the persistent store. The resolver can
+     * still be used afterwards.
+     */
+    public void close() {
+        results.close();
+    }
+
+
+    private HandleResolverHost getHost(final URI handle) {
+        final String name = (handle.getHost() != null)
+                ? handle.getHost().toLowerCase()
+                : "";
+        HandleResolverHost host = hosts.get(name);
+        if (host == null) {
+            final HandleResolverHost h = new HandleResolverHost(name,
+                    maxRequestsPerHost, DEFAULT_CONNECT_TIMEOUT,
+                    DEFAULT_SOCKET_TIMEOUT);
+            host = hosts.putIfAbsent(name, h);
+            if (host == null) {
+                host = h;
+            }
+        }
+        return host;
+    }
 
+
+    private static boolean isHandleProxyURI(URI uri) {
+        return HANDLE_PROXY_HOST.equalsIgnoreCase(uri.getHost()) &&
+                (uri.getRawPath() != null) && (uri.getRawPath().length() > 1);
+    }
+
+
+    private URI getHandleApiURI(URI handle) {
+        /* the query of proxy URIs (e.g. "urlappend") is irrelevant here */
+        return handleApi.resolve(handle.getRawPath().substring(1) +
+                "?type=URL");
+    }
+
+
+    private int doResolve(final URI target, final boolean useApi,
+            final HandleResolverHost host) throws IOException {
+        logger.trace("performing HTTP request for '{}'", target);
+
+        final long waitStarted = System.nanoTime();
         try {
             maxConcurrentRequests.acquire();
         } catch (InterruptedException e) {
             throw new InterruptedIOException();
         }
+        permitWaitLatency.recordNanos(System.nanoTime() - waitStarted);
 
         currentRequestCount.incrementAndGet();
-        final HttpHead request = new HttpHead(handle);
+        final HttpRequestBase request =
+                useApi ? new HttpGet(target) : new HttpHead(target);
+        request.setConfig(RequestConfig.copy(requestConfig)
+                .setConnectTimeout(host.getConnectTimeout())
+                .setSocketTimeout(host.getSocketTimeout())
+                .build());
+        final long started = System.nanoTime();
         try {
             final CloseableHttpResponse response =
                     client.execute(request, new BasicHttpContext());
             try {
                 final StatusLine status = response.getStatusLine();
-                return status.getStatusCode();
+                if (useApi) {
+                    /* read the body, so the connection can be re-used */
+                    EntityUtils.consume(response.getEntity());
+                }
+                host.recordSuccess(TimeUnit.NANOSECONDS.toMillis(
+                        System.nanoTime() - started));
+                return mapStatusCode(response, status.getStatusCode());
             } finally {
                 response.close();
             }
         } catch (ConnectTimeoutException e) {
             timeoutCount.incrementAndGet();
+            host.recordFailure(TIMEOUT);
             return TIMEOUT;
         } catch (SocketTimeoutException e) {
             timeoutCount.incrementAndGet();
+            host.recordFailure(TIMEOUT);
             return TIMEOUT;
         } catch (UnknownHostException e) {
             unknownHostCount.incrementAndGet();
+            host.recordFailure(UNKNOWN_HOST);
             return UNKNOWN_HOST;
         } finally {
+            final long elapsed = System.nanoTime() - started;
+            requestLatency.recordNanos(elapsed);
+            host.recordLatency(elapsed);
             request.reset();
             currentRequestCount.decrementAndGet();
             maxConcurrentRequests.release();
@@ -297,11 +798,33 @@ public class HandleResolver {
     }
 
 
-    private CloseableHttpClient createHttpClient(int connectTimeout,
-            int socketTimeout) {
+    private int mapStatusCode(HttpResponse response, int code) {
+        switch (strategy) {
+        case FIRST_REDIRECT:
+            /* FALL-THROUGH */
+        case HANDLE_API:
+            /*
+             * The handle API answers with SC_OK for existing handles (also
+             * for handles without an URL value) and SC_NOT_FOUND otherwise.
+             */
+            if ((code >= HttpStatus.SC_MULTIPLE_CHOICES) &&
+                    (code < HttpStatus.SC_BAD_REQUEST) &&
+                    (code != HttpStatus.SC_NOT_MODIFIED) &&
+                    response.containsHeader(HttpHeaders.LOCATION)) {
+                return HttpStatus.SC_OK;
+            }
+            return code;
+        default:
+            return code;
+        } // switch
+    }
+
+
+    private CloseableHttpClient createHttpClient(int maxPerRoute,
+            RequestConfig requestConfig) {
         final PoolingHttpClientConnectionManager manager =
                 new PoolingHttpClientConnectionManager();
-        manager.setDefaultMaxPerRoute(8);
+        manager.setDefaultMaxPerRoute(maxPerRoute);
         manager.setMaxTotal(128);
 
         final SocketConfig socketConfig = SocketConfig.custom()
@@ -313,18 +836,6 @@ public class HandleResolver {
                 .setBufferSize(1024)
                 .build();
 
-        final RequestConfig requestConfig = RequestConfig.custom()
-                .setAuthenticationEnabled(false)
-                .setRedirectsEnabled(true)
-                .setMaxRedirects(4)
-                .setCircularRedirectsAllowed(false)
-                .setCookieSpec(CookieSpecs.IGNORE_COOKIES)
-                .setConnectTimeout(connectTimeout)
-                .setSocketTimeout(socketTimeout)
-                .setConnectionRequestTimeout(0) /* infinite */
-                .setStaleConnectionCheckEnabled(false)
-                .build();
-
         final ConnectionKeepAliveStrategy keepAliveStrategy =
                 new ConnectionKeepAliveStrategy() {
             @Override
@@ -347,6 +858,8 @@ public class HandleResolver {
 
     @Override
     protected void finalize() throws Throwable {
+        close();
+        executor.shutdownNow();
         client.close();
     }
 
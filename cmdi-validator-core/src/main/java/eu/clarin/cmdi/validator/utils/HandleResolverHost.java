@@ -0,0 +1,263 @@
+/**
+ * This software is copyright (c) 2014 by
+ *  - Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ * This is free software. You can redistribute it
+ * and/or modify it under the terms described in
+ * the GNU General Public License v3 of which you
+ * should have received a copy. Otherwise you can download
+ * it from
+ *
+ *   http://www.gnu.org/licenses/gpl-3.0.txt
+ *
+ * @copyright Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ *
+ * @license http://www.gnu.org/licenses/gpl-3.0.txt
+ *  GNU General Public License v3
+ */
+package eu.clarin.cmdi.validator.utils;
+
+import java.util.LinkedList;
+import java.util.Queue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/*
+ * Per-host state of the handle resolver:
+ *  - a pool of request permits; requests, that do not get a permit, are
+ *    queued and do not occupy a resolver thread
+ *  - a circuit breaker, that opens after repeated timeouts or unknown host
+ *    errors and fast-fails requests until a probe request succeeds
+ *  - a latency estimate (smoothed round-trip time and variance, as used
+ *    for TCP retransmission timeouts), from which the timeouts are derived
+ *  - request counters and a latency histogram for the statistics
+ */
+final class HandleResolverHost {
+    /*
+     * returned by checkCircuit() for the single request, that probes a
+     * host while the circuit breaker is open
+     */
+    static final int PROBE = 1;
+    private static final Logger logger =
+            LoggerFactory.getLogger(HandleResolverHost.class);
+    private static final int FAILURE_THRESHOLD = 5;
+    private static final long MIN_OPEN_TIME = 15000;
+    private static final long MAX_OPEN_TIME = 300000;
+    private static final int MIN_TIMEOUT = 2000;
+    private static final int MAX_BACKOFF = 2;
+    private static final double ALPHA = 0.125;
+    private static final double BETA  = 0.25;
+    private final String name;
+    private final int maxRequests;
+    private final int defaultConnectTimeout;
+    private final int defaultSocketTimeout;
+    private final int maxTimeout;
+    private final Queue<Runnable> waiting = new LinkedList<Runnable>();
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private int activeRequests = 0;
+    private int consecutiveFailures = 0;
+    private int lastFailure = 0;
+    private long openUntil = -1;
+    private long openTime = 0;
+    private boolean probing = false;
+    private double srtt = -1;
+    private double rttvar = 0;
+    private int backoff = 0;
+    private long requestCount = 0;
+    private long timeoutCount = 0;
+    private long unknownHostCount = 0;
+    private long errorCount = 0;
+    private long fastFailCount = 0;
+
+
+    HandleResolverHost(String name, int maxRequests,
+            int defaultConnectTimeout, int defaultSocketTimeout) {
+        this.name                  = name;
+        this.maxRequests           = maxRequests;
+        this.defaultConnectTimeout = defaultConnectTimeout;
+        this.defaultSocketTimeout  = defaultSocketTimeout;
+        this.maxTimeout            = 2 * defaultSocketTimeout;
+    }
+
+
+    String getName() {
+        return name;
+    }
+
+
+    /*
+     * Returns true, if the task may run now. Otherwise the task has been
+     * queued and will be returned by release(), once a permit is available.
+     */
+    synchronized boolean acquire(Runnable task) {
+        if (activeRequests < maxRequests) {
+            activeRequests++;
+            return true;
+        }
+        waiting.add(task);
+        return false;
+    }
+
+
+    /*
+     * Returns the next queued task, which inherits the permit, or null.
+     */
+    synchronized Runnable release() {
+        final Runnable next = waiting.poll();
+        if (next == null) {
+            activeRequests--;
+        }
+        return next;
+    }
+
+
+    /*
+     * Returns 0, if a request may be performed, or the result code to
+     * fail the request with, if the circuit breaker is open. After the
+     * breaker has been open for a while, a single probe request is let
+     * through (PROBE); its caller must call finishProbe(), once the request
+     * has ended, whatever its outcome.
+     */
+    synchronized int checkCircuit(long now) {
+        if (openUntil == -1) {
+            requestCount++;
+            return 0;
+        }
+        if ((now >= openUntil) && !probing) {
+            logger.debug("probing host '{}'", name);
+            probing = true;
+            requestCount++;
+            return PROBE;
+        }
+        fastFailCount++;
+        return lastFailure;
+    }
+
+
+    /*
+     * End a probe request. If neither success nor failure has been
+     * recorded for it (e.g. it ended with an error), the probe counts as
+     * failed, so the breaker stays open and another probe is let through
+     * later.
+     */
+    synchronized void finishProbe() {
+        if (probing) {
+            reopen();
+            logger.debug("probe of host '{}' ended with an error, " +
+                    "fast-failing requests for {} ms", name, openTime);
+        }
+    }
+
+
+    /*
+     * Record the duration of a request, regardless of its outcome.
+     */
+    void recordLatency(long nanos) {
+        latency.recordNanos(nanos);
+    }
+
+
+    synchronized void recordSuccess(long latency) {
+        if (srtt < 0) {
+            srtt   = latency;
+            rttvar = latency / 2.0;
+        } else {
+            rttvar = (1.0 - BETA) * rttvar + BETA * Math.abs(srtt - latency);
+            srtt   = (1.0 - ALPHA) * srtt + ALPHA * latency;
+        }
+        consecutiveFailures = 0;
+        backoff             = 0;
+        if (openUntil != -1) {
+            logger.info("host '{}' is responding again", name);
+            openUntil = -1;
+            openTime  = 0;
+            probing   = false;
+        }
+    }
+
+
+    synchronized void recordFailure(int result) {
+        if (result == HandleResolver.TIMEOUT) {
+            timeoutCount++;
+        } else {
+            unknownHostCount++;
+        }
+        lastFailure = result;
+        consecutiveFailures++;
+        if (backoff < MAX_BACKOFF) {
+            backoff++;
+        }
+        if (probing) {
+            reopen();
+            logger.debug("probe of host '{}' failed, fast-failing " +
+                    "requests for {} ms", name, openTime);
+        } else if ((openUntil == -1) &&
+                (consecutiveFailures >= FAILURE_THRESHOLD)) {
+            openTime  = MIN_OPEN_TIME;
+            openUntil = System.currentTimeMillis() + openTime;
+            logger.warn("host '{}' failed {} times in a row, fast-failing " +
+                    "requests for {} ms", name, consecutiveFailures,
+                    openTime);
+        }
+    }
+
+
+    /*
+     * Record an error, that does not indicate an unreachable host.
+     */
+    synchronized void recordError() {
+        errorCount++;
+    }
+
+
+    synchronized HandleResolver.HostStatistics getStatistics() {
+        return new HandleResolver.HostStatistics(name,
+                requestCount,
+                timeoutCount,
+                unknownHostCount,
+                errorCount,
+                fastFailCount,
+                waiting.size(),
+                openUntil != -1,
+                getSocketTimeout(),
+                latency.getSnapshot());
+    }
+
+
+    synchronized void resetStatistics() {
+        requestCount     = 0;
+        timeoutCount     = 0;
+        unknownHostCount = 0;
+        errorCount       = 0;
+        fastFailCount    = 0;
+        latency.reset();
+    }
+
+
+    synchronized int getConnectTimeout() {
+        return Math.min(backoff(defaultConnectTimeout), getSocketTimeout());
+    }
+
+
+    synchronized int getSocketTimeout() {
+        if (srtt < 0) {
+            return backoff(defaultSocketTimeout);
+        }
+        final int timeout = (int) Math.ceil(srtt + 4.0 * rttvar);
+        return backoff(Math.max(MIN_TIMEOUT, timeout));
+    }
+
+
+    private void reopen() {
+        openTime  = Math.min(2 * openTime, MAX_OPEN_TIME);
+        openUntil = System.currentTimeMillis() + openTime;
+        probing   = false;
+    }
+
+
+    private int backoff(int timeout) {
+        return (int) Math.min((long) timeout << backoff, maxTimeout);
+    }
+
+} // class HandleResolverHost
@@ -0,0 +1,620 @@
+/**
+ * This software is copyright (c) 2014 by
+ *  - Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ * This is free software. You can redistribute it
+ * and/or modify it under the terms described in
+ * the GNU General Public License v3 of which you
+ * should have received a copy. Otherwise you can download
+ * it from
+ *
+ *   http://www.gnu.org/licenses/gpl-3.0.txt
+ *
+ * @copyright Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ *
+ * @license http://www.gnu.org/licenses/gpl-3.0.txt
+ *  GNU General Public License v3
+ */
+package eu.clarin.cmdi.validator.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/*
+ * Store for handle resolution results, sized for corpora with millions of
+ * distinct handles. Results are kept in a primitive open-addressing table
+ * (optionally off-heap), that maps a 64-bit hash of the normalized handle
+ * to the status code and the time of resolution; no URI or Integer objects
+ * are retained. With 16 bytes per slot, ten million results need about
+ * 256 MB. Hash collisions are possible, but at 2^-64 per pair of handles
+ * they are of no practical concern.
+ *
+ * If a file is supplied, the store is backed by an append-only log, that
+ * is replayed on startup and compacted (dropping expired results) when it
+ * has grown too large and when the store is closed. The log starts with a
+ * magic number and then contains one 16 byte record (hash, value) per
+ * result.
+ *
+ * Several processes may share one log, e.g. concurrent runs with the same
+ * cache directory. As for the schema cache index, reading, appending and
+ * compacting the log are serialized by an exclusive lock on a lock file
+ * next to it (and a monitor per log within the JVM). Records are buffered
+ * and appended in batches of whole records. Before appending, a process
+ * reads the records, that others have appended since it last read the log;
+ * compaction therefore includes them, writes a snapshot to a unique
+ * temporary file and renames it over the log. Processes notice the
+ * replaced log by its file key and continue with the new one.
+ *
+ * Positive results (the handle resolved to an existing resource) and
+ * negative results (any other HTTP status) expire after different time
+ * spans. Network failures (negative status codes, e.g. timeouts or unknown
+ * hosts) are no answer of the server; they are only kept in memory and
+ * for at most a few minutes, so a transient outage is neither replayed by
+ * the next run nor remembered for the whole negative time span.
+ */
+public final class HandleResultStore {
+    public static final int NO_RESULT = Integer.MIN_VALUE;
+    private static final Logger logger =
+            LoggerFactory.getLogger(HandleResultStore.class);
+    private static final long MAGIC = 0x434d444948525331L; /* "CMDIHRS1" */
+    private static final int HEADER_SIZE = 8;
+    private static final int RECORD_SIZE = 16;
+    private static final int DEFAULT_CAPACITY = 16 * 1024;
+    private static final int FLUSH_INTERVAL = 256;
+    private static final int COMPACT_THRESHOLD = 64 * 1024;
+    private static final long FAILURE_TTL = TimeUnit.MINUTES.toMillis(5);
+    private static final String LOCK_FILE_SUFFIX = ".lock";
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+    private static final ConcurrentMap<String, Object> monitors =
+            new ConcurrentHashMap<String, Object>();
+    /*
+     * value layout: bits 0-15 status, bit 16 restored from the log,
+     * bits 17-63 minutes since the epoch
+     */
+    private static final long STATUS_MASK = 0xFFFFL;
+    private static final long RESTORED = 1L << 16;
+    private static final int TIMESTAMP_SHIFT = 17;
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME  = 0x100000001b3L;
+    private static final String HANDLE_PROXY = "hdl.handle.net";
+    private final File file;
+    private final long positiveTTL;
+    private final long negativeTTL;
+    private final File lockFile;
+    private final Object monitor;
+    private final HandleResultTable table;
+    private final LongAdder restoredHitCount = new LongAdder();
+    private final ByteBuffer unflushedRecords =
+            ByteBuffer.allocate(FLUSH_INTERVAL * RECORD_SIZE);
+    private FileOutputStream log;
+    /* identity of the log file, that has been read up to position */
+    private Object logKey = null;
+    private long position = 0;
+
+
+    /*
+     * If file is null, results are only kept in memory.
+     */
+    public HandleResultStore(File file, long positiveTTL, long negativeTTL,
+            boolean offHeap) {
+        if (positiveTTL < 0) {
+            throw new IllegalArgumentException("positiveTTL < 0");
+        }
+        if (negativeTTL < 0) {
+            throw new IllegalArgumentException("negativeTTL < 0");
+        }
+        this.file        = (file != null) ? file.getAbsoluteFile() : null;
+        this.positiveTTL = positiveTTL;
+        this.negativeTTL = negativeTTL;
+        if (file != null) {
+            this.lockFile = new File(this.file.getPath() + LOCK_FILE_SUFFIX);
+            this.monitor  = getMonitor(lockFile);
+        } else {
+            this.lockFile = null;
+            this.monitor  = null;
+        }
+        int capacity = DEFAULT_CAPACITY;
+        if ((file != null) && file.exists()) {
+            capacity = (int) Math.max(capacity,
+                    Math.min(file.length() / RECORD_SIZE, 1 << 28));
+        }
+        this.table = new HandleResultTable(capacity, offHeap);
+        if ((file != null) && file.exists()) {
+            synchronized (this) {
+                synchronized (monitor) {
+                    try {
+                        final FileLock lock = lockLog();
+                        try {
+                            replay();
+                        } finally {
+                            unlockLog(lock);
+                        }
+                        logger.debug("loaded {} handle results from '{}'",
+                                table.size(), file);
+                    } catch (IOException e) {
+                        logger.warn("error reading handle result store " +
+                                "'{}': {}", file, e.getMessage());
+                    }
+                } // synchronized (monitor)
+            } // synchronized (this)
+        }
+    }
+
+
+    public HandleResultStore(File file, long positiveTTL, long negativeTTL) {
+        this(file, positiveTTL, negativeTTL, false);
+    }
+
+
+    public boolean isPersistent() {
+        return file != null;
+    }
+
+
+    /*
+     * Returns the stored status or NO_RESULT, if there is no result or the
+     * result has expired.
+     */
+    public int get(URI uri) {
+        final long value = table.get(hash(uri));
+        if ((value != 0) && !isExpired(value, currentMinutes())) {
+            if ((value & RESTORED) != 0) {
+                restoredHitCount.increment();
+            }
+            return (short) (value & STATUS_MASK);
+        }
+        return NO_RESULT;
+    }
+
+
+    public void put(URI uri, int status) {
+        if ((status < Short.MIN_VALUE) || (status > Short.MAX_VALUE)) {
+            throw new IllegalArgumentException("status out of range");
+        }
+        final long key = hash(uri);
+        final long value = (currentMinutes() << TIMESTAMP_SHIFT) |
+                (status & STATUS_MASK);
+        table.put(key, value);
+        if ((file != null) && isDefinitive(status)) {
+            append(key, value);
+        }
+    }
+
+
+    public int size() {
+        return table.size();
+    }
+
+
+    /*
+     * number of lookups, that have been answered by results of a previous
+     * run
+     */
+    public long getRestoredHitCount() {
+        return restoredHitCount.sum();
+    }
+
+
+    /*
+     * Forget all results, including the persisted ones.
+     */
+    public synchronized void clear() {
+        table.clear();
+        restoredHitCount.reset();
+        if (file != null) {
+            unflushedRecords.clear();
+            compact(false);
+        }
+    }
+
+
+    /*
+     * Append the buffered results to the log.
+     */
+    public synchronized void flush() {
+        if ((file == null) || (unflushedRecords.position() == 0)) {
+            return;
+        }
+        synchronized (monitor) {
+            try {
+                final FileLock lock = lockLog();
+                try {
+                    replay();
+                    writeUnflushed();
+                    final long records =
+                            (position - HEADER_SIZE) / RECORD_SIZE;
+                    if (records > (COMPACT_THRESHOLD + 2 * table.size())) {
+                        writeSnapshot();
+                    }
+                } finally {
+                    unlockLog(lock);
+                }
+            } catch (IOException e) {
+                logger.warn("error writing handle result store: {}",
+                        e.getMessage());
+                unflushedRecords.clear();
+                closeLog();
+            }
+        } // synchronized (monitor)
+    }
+
+
+    public synchronized void close() {
+        if (file != null) {
+            compact(true);
+            closeLog();
+        }
+    }
+
+
+    /*
+     * Hash the normalized form of the URI without building it: scheme and
+     * host are case-insensitive and for the handle proxy also the scheme
+     * (http or https) and the case of the handle itself do not matter.
+     */
+    static long hash(URI uri) {
+        final String host = uri.getHost();
+        long h = FNV_OFFSET;
+        if ((host != null) && HANDLE_PROXY.equalsIgnoreCase(host)) {
+            h = update(h, "hdl:", false);
+            h = update(h, uri.getRawPath(), true);
+        } else {
+            h = update(h, uri.getScheme(), true);
+            h = update(h, "://", false);
+            h = update(h, host, true);
+            if (uri.getPort() != -1) {
+                h = update(h, ':');
+                h = update(h, Integer.toString(uri.getPort()), false);
+            }
+            h = update(h, uri.getRawPath(), false);
+        }
+        if (uri.getRawQuery() != null) {
+            h = update(h, '?');
+            h = update(h, uri.getRawQuery(), false);
+        }
+        /* final avalanche (fmix64 of MurmurHash3) */
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return (h != 0) ? h : 1;
+    }
+
+
+    private static long update(long h, String s, boolean foldCase) {
+        if (s != null) {
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (foldCase && (c >= 'a') && (c <= 'z')) {
+                    c -= 'a' - 'A';
+                }
+                h = update(h, c);
+            }
+        }
+        return h;
+    }
+
+
+    private static long update(long h, char c) {
+        h = (h ^ (c & 0xFF)) * FNV_PRIME;
+        return (h ^ (c >>> 8)) * FNV_PRIME;
+    }
+
+
+    private static long currentMinutes() {
+        return TimeUnit.MILLISECONDS.toMinutes(System.currentTimeMillis());
+    }
+
+
+    private boolean isExpired(long value, long now) {
+        final int status = (short) (value & STATUS_MASK);
+        final long ttl;
+        if (isPositive(status)) {
+            ttl = positiveTTL;
+        } else if (isDefinitive(status)) {
+            ttl = negativeTTL;
+        } else {
+            ttl = Math.min(negativeTTL, FAILURE_TTL);
+        }
+        final long age = now - (value >>> TIMESTAMP_SHIFT);
+        return TimeUnit.MINUTES.toMillis(age) >= ttl;
+    }
+
+
+    private static boolean isPositive(int status) {
+        /* access protected resources exist as well */
+        return (status >= 200) && (status < 300) ||
+                (status == 401) || (status == 403);
+    }
+
+
+    /*
+     * HTTP status codes are answers of the server, negative codes signal
+     * a failure to get one.
+     */
+    private static boolean isDefinitive(int status) {
+        return status >= 0;
+    }
+
+
+    private synchronized void append(long key, long value) {
+        unflushedRecords.putLong(key);
+        unflushedRecords.putLong(value);
+        if (!unflushedRecords.hasRemaining()) {
+            flush();
+        }
+    }
+
+
+    /*
+     * Replace the log by a snapshot of the results. If merge is true, the
+     * records, that other processes have appended, and the buffered ones
+     * are included.
+     */
+    private synchronized void compact(boolean merge) {
+        synchronized (monitor) {
+            try {
+                final FileLock lock = lockLog();
+                try {
+                    if (merge) {
+                        replay();
+                        writeUnflushed();
+                    }
+                    writeSnapshot();
+                } finally {
+                    unlockLog(lock);
+                }
+            } catch (IOException e) {
+                logger.warn("error compacting handle result store: {}",
+                        e.getMessage());
+            }
+        } // synchronized (monitor)
+    }
+
+
+    /*
+     * Append the buffered records as whole records with a single write.
+     * Must be called while holding the lock, after replaying the log.
+     */
+    private void writeUnflushed() throws IOException {
+        if (unflushedRecords.position() == 0) {
+            return;
+        }
+        if (log == null) {
+            log = new FileOutputStream(file, true);
+            if (file.length() == 0) {
+                final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putLong(MAGIC);
+                log.write(header.array());
+            }
+        }
+        log.write(unflushedRecords.array(), 0, unflushedRecords.position());
+        unflushedRecords.clear();
+        /* all records up to here are known */
+        logKey   = getFileKey(file);
+        position = file.length();
+    }
+
+
+    /*
+     * Read the records appended to the log since it was last read. If the
+     * log has been replaced (or removed) in the meantime, the new log is
+     * read from the start. A truncated last record (e.g. of a killed run)
+     * is cut off, otherwise all records appended later would be misaligned.
+     * Must be called while holding the lock.
+     */
+    private void replay() throws IOException {
+        final Object key = getFileKey(file);
+        if ((key == null) || !key.equals(logKey) ||
+                (file.length() < position)) {
+            closeLog();
+            logKey   = key;
+            position = 0;
+            if (key == null) {
+                return;
+            }
+        }
+
+        final FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            final long length = channel.size();
+            final DataInputStream reader = new DataInputStream(
+                    new BufferedInputStream(Channels.newInputStream(
+                            channel.position(position)), 64 * 1024));
+            if (position == 0) {
+                if (length < HEADER_SIZE) {
+                    /* a run was killed while creating the log */
+                    channel.truncate(0);
+                    return;
+                }
+                if (reader.readLong() != MAGIC) {
+                    logger.warn("ignoring handle result store '{}' with " +
+                            "unknown format", file);
+                    channel.truncate(0);
+                    return;
+                }
+                position = HEADER_SIZE;
+            }
+            final long records = (length - position) / RECORD_SIZE;
+            for (long i = 0; i < records; i++) {
+                merge(reader.readLong(), reader.readLong());
+            }
+            position += records * RECORD_SIZE;
+            if (length > position) {
+                logger.debug("dropping truncated record of handle result " +
+                        "store '{}'", file);
+                channel.truncate(position);
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+
+    /*
+     * Take over a result read from the log, unless a newer one is known.
+     * Failures written by older versions are dropped, expired results are
+     * dropped by compaction.
+     */
+    private void merge(long key, long value) {
+        if ((key == 0) || (value == 0) ||
+                !isDefinitive((short) (value & STATUS_MASK))) {
+            return;
+        }
+        final long current = table.get(key);
+        if ((current == 0) ||
+                ((current >>> TIMESTAMP_SHIFT) <= (value >>> TIMESTAMP_SHIFT))) {
+            table.put(key, value | RESTORED);
+        }
+    }
+
+
+    /*
+     * Replace the log by a snapshot of the results. Must be called while
+     * holding the lock.
+     */
+    private void writeSnapshot() throws IOException {
+        final File tempFile = File.createTempFile(file.getName() + "-",
+                TEMP_FILE_SUFFIX, file.getParentFile());
+        try {
+            final long now = currentMinutes();
+            final FileOutputStream out = new FileOutputStream(tempFile);
+            final int[] count = new int[1];
+            try {
+                final DataOutputStream writer = new DataOutputStream(
+                        new BufferedOutputStream(out, 64 * 1024));
+                writer.writeLong(MAGIC);
+                final IOException[] error = new IOException[1];
+                table.forEach(new HandleResultTable.Visitor() {
+                    @Override
+                    public void visit(long key, long value) {
+                        if ((error[0] != null) || isExpired(value, now) ||
+                                !isDefinitive((short) (value & STATUS_MASK))) {
+                            return;
+                        }
+                        try {
+                            writer.writeLong(key);
+                            writer.writeLong(value & ~RESTORED);
+                            count[0]++;
+                        } catch (IOException e) {
+                            error[0] = e;
+                        }
+                    }
+                });
+                if (error[0] != null) {
+                    throw error[0];
+                }
+                writer.flush();
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+            closeLog();
+            try {
+                Files.move(tempFile.toPath(), file.toPath(),
+                        StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempFile.toPath(), file.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+            logKey   = getFileKey(file);
+            position = HEADER_SIZE + (long) count[0] * RECORD_SIZE;
+            logger.debug("compacted handle result store ({} entries)",
+                    count[0]);
+        } finally {
+            tempFile.delete();
+        }
+    }
+
+
+    private void closeLog() {
+        if (log != null) {
+            try {
+                log.close();
+            } catch (IOException e) {
+                /* IGNORE */
+            } finally {
+                log = null;
+            }
+        }
+    }
+
+
+    private FileLock lockLog() throws IOException {
+        final FileChannel channel = FileChannel.open(lockFile.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try {
+            return channel.lock();
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+
+    private static void unlockLog(FileLock lock) {
+        try {
+            /* closing the channel releases the lock */
+            lock.channel().close();
+        } catch (IOException e) {
+            /* IGNORE */
+        }
+    }
+
+
+    /*
+     * The identity of a file (e.g. its inode), that changes when the file
+     * is replaced. File systems without file keys fall back to the
+     * creation time of the file.
+     */
+    private static Object getFileKey(File file) throws IOException {
+        try {
+            final BasicFileAttributes attributes = Files.readAttributes(
+                    file.toPath(), BasicFileAttributes.class);
+            final Object key = attributes.fileKey();
+            return (key != null) ? key : attributes.creationTime();
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+
+    private static Object getMonitor(File lockFile) {
+        String path;
+        try {
+            path = lockFile.getCanonicalPath();
+        } catch (IOException e) {
+            path = lockFile.getAbsolutePath();
+        }
+        final Object monitor = new Object();
+        final Object existing = monitors.putIfAbsent(path, monitor);
+        return (existing != null) ? existing : monitor;
+    }
+
+} // class HandleResultStore
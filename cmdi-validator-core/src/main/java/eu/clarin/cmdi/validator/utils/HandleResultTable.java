@@ -0,0 +1,297 @@
+/**
+ * This software is copyright (c) 2014 by
+ *  - Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ * This is free software. You can redistribute it
+ * and/or modify it under the terms described in
+ * the GNU General Public License v3 of which you
+ * should have received a copy. Otherwise you can download
+ * it from
+ *
+ *   http://www.gnu.org/licenses/gpl-3.0.txt
+ *
+ * @copyright Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ *
+ * @license http://www.gnu.org/licenses/gpl-3.0.txt
+ *  GNU General Public License v3
+ */
+package eu.clarin.cmdi.validator.utils;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.util.concurrent.locks.StampedLock;
+
+
+/*
+ * An open-addressing hash table (linear probing) mapping non-zero 64-bit
+ * keys to non-zero 64-bit values. A slot takes two longs and there are no
+ * per-entry objects, so large tables cause no GC pressure; optionally the
+ * slots are kept off-heap in direct buffers. A direct buffer cannot hold
+ * more than 2 GB, so off-heap slots are split into chunks of 1 GB.
+ *
+ * Readers do not lock: they use optimistic reads of a StampedLock and only
+ * fall back to a read lock, if a writer interfered. The slots and their
+ * mask are swapped as one immutable pair when the table grows, so an
+ * optimistic reader never indexes a buffer with the mask of another one.
+ * Writers are serialized, which is fine for the handle resolver, because
+ * each write follows a network round-trip.
+ */
+final class HandleResultTable {
+    interface Visitor {
+        public void visit(long key, long value);
+    } // interface Visitor
+    private static final class Slots {
+        private final LongBuffer[] chunks;
+        private final int shift;
+        private final int chunkMask;
+        private final int capacity;
+        private final int mask;
+
+
+        private Slots(LongBuffer[] chunks, int chunkCapacity, int capacity) {
+            this.chunks    = chunks;
+            this.shift     = Integer.numberOfTrailingZeros(chunkCapacity);
+            this.chunkMask = chunkCapacity - 1;
+            this.capacity  = capacity;
+            this.mask      = capacity - 1;
+        }
+
+
+        private long key(int idx) {
+            return chunks[idx >>> shift].get(2 * (idx & chunkMask));
+        }
+
+
+        private long value(int idx) {
+            return chunks[idx >>> shift].get(2 * (idx & chunkMask) + 1);
+        }
+
+
+        private void setKey(int idx, long key) {
+            chunks[idx >>> shift].put(2 * (idx & chunkMask), key);
+        }
+
+
+        private void setValue(int idx, long value) {
+            chunks[idx >>> shift].put(2 * (idx & chunkMask) + 1, value);
+        }
+    } // class Slots
+    private static final float LOAD_FACTOR = 0.75f;
+    private static final int MAX_CAPACITY = 1 << 29;
+    /* 16 bytes per slot, so a chunk takes 1 GB */
+    private static final int MAX_CHUNK_CAPACITY = 1 << 26;
+    private final boolean offHeap;
+    private final int maxChunkCapacity;
+    private final StampedLock lock = new StampedLock();
+    private volatile Slots slots;
+    private int size = 0;
+    private int threshold;
+
+
+    HandleResultTable(int initialCapacity, boolean offHeap) {
+        this(initialCapacity, offHeap, MAX_CHUNK_CAPACITY);
+    }
+
+
+    /*
+     * The chunk capacity (a power of two) is only lowered by tests, so
+     * they do not need gigabytes of memory to span several chunks.
+     */
+    HandleResultTable(int initialCapacity, boolean offHeap,
+            int maxChunkCapacity) {
+        if (initialCapacity < 1) {
+            throw new IllegalArgumentException("initialCapacity < 1");
+        }
+        if ((maxChunkCapacity < 1) ||
+                (Integer.bitCount(maxChunkCapacity) != 1) ||
+                (maxChunkCapacity > MAX_CHUNK_CAPACITY)) {
+            throw new IllegalArgumentException("invalid maxChunkCapacity");
+        }
+        this.offHeap          = offHeap;
+        this.maxChunkCapacity = maxChunkCapacity;
+        this.slots = allocate(
+                tableSizeFor((int) Math.ceil(initialCapacity / LOAD_FACTOR)));
+    }
+
+
+    long get(long key) {
+        checkKey(key);
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            final long value = lookup(slots, key);
+            if (lock.validate(stamp)) {
+                return value;
+            }
+        }
+        stamp = lock.readLock();
+        try {
+            return lookup(slots, key);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+
+    void put(long key, long value) {
+        checkKey(key);
+        if (value == 0) {
+            throw new IllegalArgumentException("value == 0");
+        }
+        final long stamp = lock.writeLock();
+        try {
+            if (size >= threshold) {
+                resize();
+            }
+            if (insert(slots, key, value)) {
+                size++;
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+
+    int size() {
+        final long stamp = lock.readLock();
+        try {
+            return size;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+
+    void clear() {
+        final long stamp = lock.writeLock();
+        try {
+            final Slots s = slots;
+            for (int i = 0; i < s.capacity; i++) {
+                s.setKey(i, 0);
+                s.setValue(i, 0);
+            }
+            size = 0;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+
+    /*
+     * Visit all entries. Writers are blocked while visiting.
+     */
+    void forEach(Visitor visitor) {
+        final long stamp = lock.readLock();
+        try {
+            final Slots s = slots;
+            for (int i = 0; i < s.capacity; i++) {
+                final long key = s.key(i);
+                if (key != 0) {
+                    visitor.visit(key, s.value(i));
+                }
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+
+    /*
+     * Returns the value for key or 0. Without a lock, a concurrent insert
+     * into the same slots might be seen partially, but indexes always stay
+     * within the slots and the probe sequence always terminates.
+     */
+    private static long lookup(Slots s, long key) {
+        int idx = (int) mix(key) & s.mask;
+        for (int probes = 0; probes <= s.mask; probes++) {
+            final long k = s.key(idx);
+            if (k == key) {
+                return s.value(idx);
+            }
+            if (k == 0) {
+                break;
+            }
+            idx = (idx + 1) & s.mask;
+        }
+        return 0;
+    }
+
+
+    private static boolean insert(Slots s, long key, long value) {
+        int idx = (int) mix(key) & s.mask;
+        for (;;) {
+            final long k = s.key(idx);
+            if (k == 0) {
+                s.setValue(idx, value);
+                s.setKey(idx, key);
+                return true;
+            }
+            if (k == key) {
+                s.setValue(idx, value);
+                return false;
+            }
+            idx = (idx + 1) & s.mask;
+        }
+    }
+
+
+    /*
+     * Rehash into new slots, that are only published when complete.
+     */
+    private void resize() {
+        final Slots old = slots;
+        if (old.capacity >= MAX_CAPACITY) {
+            throw new IllegalStateException("table is full");
+        }
+        final Slots grown = allocate(old.capacity << 1);
+        for (int i = 0; i < old.capacity; i++) {
+            final long key = old.key(i);
+            if (key != 0) {
+                insert(grown, key, old.value(i));
+            }
+        }
+        slots = grown;
+    }
+
+
+    private Slots allocate(int capacity) {
+        final int chunkCapacity;
+        final LongBuffer[] chunks;
+        if (offHeap) {
+            chunkCapacity = Math.min(capacity, maxChunkCapacity);
+            chunks = new LongBuffer[capacity / chunkCapacity];
+            for (int i = 0; i < chunks.length; i++) {
+                chunks[i] = ByteBuffer.allocateDirect(16 * chunkCapacity)
+                        .order(ByteOrder.nativeOrder()).asLongBuffer();
+            }
+        } else {
+            /* at most 2^30 longs, which a heap buffer can hold */
+            chunkCapacity = capacity;
+            chunks = new LongBuffer[] { LongBuffer.allocate(2 * capacity) };
+        }
+        this.threshold = (int) (capacity * LOAD_FACTOR);
+        return new Slots(chunks, chunkCapacity, capacity);
+    }
+
+
+    private static void checkKey(long key) {
+        if (key == 0) {
+            throw new IllegalArgumentException("key == 0");
+        }
+    }
+
+
+    private static int tableSizeFor(int n) {
+        int size = 16;
+        while ((size < n) && (size < MAX_CAPACITY)) {
+            size <<= 1;
+        }
+        return size;
+    }
+
+
+    /* keys are hashes already, but spread their high bits anyway */
+    private static long mix(long key) {
+        return key ^ (key >>> 32);
+    }
+
+} // class HandleResultTable
@@ -0,0 +1,210 @@
+/**
+ * This software is copyright (c) 2014 by
+ *  - Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ * This is free software. You can redistribute it
+ * and/or modify it under the terms described in
+ * the GNU General Public License v3 of which you
+ * should have received a copy. Otherwise you can download
+ * it from
+ *
+ *   http://www.gnu.org/licenses/gpl-3.0.txt
+ *
+ * @copyright Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ *
+ * @license http://www.gnu.org/licenses/gpl-3.0.txt
+ *  GNU General Public License v3
+ */
+package eu.clarin.cmdi.validator.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/*
+ * Approximate frequency counting with bounded memory (Space-Saving, Metwally
+ * et al.). At most capacity keys are tracked; when a new key arrives and
+ * the table is full, the key with the lowest count is replaced and the new
+ * key inherits its count. Counts are therefore overestimated by at most
+ * the count inherited (getError()), and every key, that occurs more than
+ * total / capacity times, is guaranteed to be tracked.
+ *
+ * The tracked counters are kept in a binary min-heap, so each offer takes
+ * O(log capacity). Not thread-safe.
+ */
+public final class HeavyHitters<K> {
+    public static final class Counter<K> {
+        private K key;
+        private long count;
+        private long error;
+        private int index;
+
+
+        private Counter(K key, long count, long error, int index) {
+            this.key   = key;
+            this.count = count;
+            this.error = error;
+            this.index = index;
+        }
+
+
+        public K getKey() {
+            return key;
+        }
+
+
+        public long getCount() {
+            return count;
+        }
+
+
+        /*
+         * maximum overestimation of the count
+         */
+        public long getError() {
+            return error;
+        }
+    } // class Counter
+    private final int capacity;
+    private final Map<K, Counter<K>> counters;
+    private final Counter<K>[] heap;
+    private int size = 0;
+    private long total = 0;
+
+
+    @SuppressWarnings("unchecked")
+    public HeavyHitters(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity < 1");
+        }
+        this.capacity = capacity;
+        this.counters = new HashMap<K, Counter<K>>(capacity * 2);
+        this.heap     = (Counter<K>[]) new Counter<?>[capacity];
+    }
+
+
+    /*
+     * Count an occurrence of the key. Returns the counter of the key; its
+     * key is the instance passed, when the key was (re-)admitted.
+     */
+    public Counter<K> offer(K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+        total++;
+        Counter<K> counter = counters.get(key);
+        if (counter != null) {
+            counter.count++;
+            siftDown(counter.index);
+            return counter;
+        }
+        if (size < capacity) {
+            counter = new Counter<K>(key, 1, 0, size);
+            heap[size] = counter;
+            siftUp(size++);
+        } else {
+            /* replace the minimum */
+            counter = heap[0];
+            counters.remove(counter.key);
+            counter.key   = key;
+            counter.error = counter.count;
+            counter.count++;
+            siftDown(0);
+        }
+        counters.put(key, counter);
+        return counter;
+    }
+
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+
+    public int size() {
+        return size;
+    }
+
+
+    /*
+     * number of offered keys
+     */
+    public long getTotal() {
+        return total;
+    }
+
+
+    /*
+     * Returns the tracked counters ordered by descending count.
+     */
+    public List<Counter<K>> getCounters() {
+        final List<Counter<K>> result = new ArrayList<Counter<K>>(size);
+        for (int i = 0; i < size; i++) {
+            result.add(heap[i]);
+        }
+        Collections.sort(result, new Comparator<Counter<K>>() {
+            @Override
+            public int compare(Counter<K> a, Counter<K> b) {
+                return Long.compare(b.count, a.count);
+            }
+        });
+        return result;
+    }
+
+
+    public void clear() {
+        counters.clear();
+        for (int i = 0; i < size; i++) {
+            heap[i] = null;
+        }
+        size  = 0;
+        total = 0;
+    }
+
+
+    private void siftUp(int idx) {
+        final Counter<K> counter = heap[idx];
+        while (idx > 0) {
+            final int parent = (idx - 1) >>> 1;
+            if (heap[parent].count <= counter.count) {
+                break;
+            }
+            move(parent, idx);
+            idx = parent;
+        }
+        heap[idx] = counter;
+        counter.index = idx;
+    }
+
+
+    private void siftDown(int idx) {
+        final Counter<K> counter = heap[idx];
+        for (;;) {
+            int child = 2 * idx + 1;
+            if (child >= size) {
+                break;
+            }
+            if ((child + 1 < size) &&
+                    (heap[child + 1].count < heap[child].count)) {
+                child++;
+            }
+            if (counter.count <= heap[child].count) {
+                break;
+            }
+            move(child, idx);
+            idx = child;
+        }
+        heap[idx] = counter;
+        counter.index = idx;
+    }
+
+
+    private void move(int from, int to) {
+        heap[to] = heap[from];
+        heap[to].index = to;
+    }
+
+} // class HeavyHitters
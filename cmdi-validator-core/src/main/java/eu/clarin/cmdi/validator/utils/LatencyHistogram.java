@@ -0,0 +1,187 @@
+/**
+ * This software is copyright (c) 2014 by
+ *  - Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ * This is free software. You can redistribute it
+ * and/or modify it under the terms described in
+ * the GNU General Public License v3 of which you
+ * should have received a copy. Otherwise you can download
+ * it from
+ *
+ *   http://www.gnu.org/licenses/gpl-3.0.txt
+ *
+ * @copyright Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ *
+ * @license http://www.gnu.org/licenses/gpl-3.0.txt
+ *  GNU General Public License v3
+ */
+package eu.clarin.cmdi.validator.utils;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/*
+ * A lock-free latency histogram in the spirit of HdrHistogram. Values are
+ * recorded in microseconds into logarithmic buckets, each power of two is
+ * split into SUB_BUCKETS linear sub-buckets, which bounds the relative error
+ * of reported percentiles to 1/SUB_BUCKETS.
+ */
+public final class LatencyHistogram {
+    public static final class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+
+        private Snapshot(long[] counts, long count, long sum, long max) {
+            this.counts = counts;
+            this.count  = count;
+            this.sum    = sum;
+            this.max    = max;
+        }
+
+
+        public long getCount() {
+            return count;
+        }
+
+
+        public long getMean(TimeUnit unit) {
+            return (count > 0) ? unit.convert(sum / count, TimeUnit.MICROSECONDS) : 0;
+        }
+
+
+        public long getSum(TimeUnit unit) {
+            return unit.convert(sum, TimeUnit.MICROSECONDS);
+        }
+
+
+        public long getMax(TimeUnit unit) {
+            return unit.convert(max, TimeUnit.MICROSECONDS);
+        }
+
+
+        public long getPercentile(double percentile, TimeUnit unit) {
+            if ((percentile < 0.0) || (percentile > 100.0)) {
+                throw new IllegalArgumentException(
+                        "percentile not in range [0, 100]");
+            }
+            if (count == 0) {
+                return 0;
+            }
+            final long rank = Math.max(1,
+                    (long) Math.ceil((percentile / 100.0) * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return unit.convert(Math.min(upperBound(i), max),
+                            TimeUnit.MICROSECONDS);
+                }
+            }
+            return unit.convert(max, TimeUnit.MICROSECONDS);
+        }
+
+
+        public Snapshot merge(Snapshot other) {
+            if (other == null) {
+                return this;
+            }
+            final long[] merged = new long[counts.length];
+            for (int i = 0; i < merged.length; i++) {
+                merged[i] = counts[i] + other.counts[i];
+            }
+            return new Snapshot(merged, count + other.count,
+                    sum + other.sum, Math.max(max, other.max));
+        }
+
+
+        @Override
+        public String toString() {
+            return String.format("n=%d, mean=%dms, p50=%dms, p90=%dms, " +
+                    "p99=%dms, max=%dms",
+                    count,
+                    getMean(TimeUnit.MILLISECONDS),
+                    getPercentile(50.0, TimeUnit.MILLISECONDS),
+                    getPercentile(90.0, TimeUnit.MILLISECONDS),
+                    getPercentile(99.0, TimeUnit.MILLISECONDS),
+                    getMax(TimeUnit.MILLISECONDS));
+        }
+    } // class Snapshot
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAGNITUDES = 40; /* ~12 days in microseconds */
+    private static final int BUCKET_COUNT = (MAGNITUDES + 1) * SUB_BUCKETS;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum   = new AtomicLong();
+    private final AtomicLong max   = new AtomicLong();
+
+
+    public void record(long duration, TimeUnit unit) {
+        long value = unit.toMicros(duration);
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(bucketIndex(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        for (;;) {
+            final long current = max.get();
+            if ((value <= current) || max.compareAndSet(current, value)) {
+                break;
+            }
+        }
+    }
+
+
+    public void recordNanos(long nanos) {
+        record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+
+    public Snapshot getSnapshot() {
+        final long[] c = new long[BUCKET_COUNT];
+        long n = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            c[i] = counts.get(i);
+            n += c[i];
+        }
+        return new Snapshot(c, n, sum.get(), max.get());
+    }
+
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+
+    private static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        final int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        final int shift = magnitude - SUB_BUCKET_BITS;
+        final int sub = (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+        final int idx = (shift + 1) * SUB_BUCKETS + sub;
+        return (idx < BUCKET_COUNT) ? idx : (BUCKET_COUNT - 1);
+    }
+
+
+    private static long upperBound(int idx) {
+        if (idx < SUB_BUCKETS) {
+            return idx;
+        }
+        final int shift = (idx / SUB_BUCKETS) - 1;
+        final long sub = idx % SUB_BUCKETS;
+        return ((SUB_BUCKETS + sub + 1) << shift) - 1;
+    }
+
+} // class LatencyHistogram
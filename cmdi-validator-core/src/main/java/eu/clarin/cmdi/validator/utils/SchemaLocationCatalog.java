@@ -0,0 +1,327 @@
+/**
+ * This software is copyright (c) 2014 by
+ *  - Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ * This is free software. You can redistribute it
+ * and/or modify it under the terms described in
+ * the GNU General Public License v3 of which you
+ * should have received a copy. Otherwise you can download
+ * it from
+ *
+ *   http://www.gnu.org/licenses/gpl-3.0.txt
+ *
+ * @copyright Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ *
+ * @license http://www.gnu.org/licenses/gpl-3.0.txt
+ *  GNU General Public License v3
+ */
+package eu.clarin.cmdi.validator.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+import eu.clarin.cmdi.validator.CMDISchemaLocationCanonicalizer;
+
+
+/*
+ * A rule set modeled after OASIS XML catalogs. Rules are applied in the
+ * following order, the first matching rule wins:
+ *  1) query stripping ("stripQuery", not part of OASIS catalogs)
+ *  2) exact matches ("uri", "system")
+ *  3) longest matching prefix ("rewriteURI", "rewriteSystem")
+ *  4) longest matching suffix ("uriSuffix", "systemSuffix")
+ * Query stripping is applied before the other rules and does not terminate
+ * rule processing. Rewritten locations are not fed into the rules again.
+ */
+public final class SchemaLocationCatalog implements
+        CMDISchemaLocationCanonicalizer {
+    private static final Logger logger =
+            LoggerFactory.getLogger(SchemaLocationCatalog.class);
+    private static final String CATALOG_NS_URI =
+            "urn:oasis:names:tc:entity:xmlns:xml:catalog";
+    private static final String CR_HTTP =
+            "http://catalog.clarin.eu/ds/ComponentRegistry/rest/registry/";
+    private static final String CR_HTTPS =
+            "https://catalog.clarin.eu/ds/ComponentRegistry/rest/registry/";
+    private final List<String> stripQueryPrefixes;
+    private final Map<String, String> uris;
+    private final List<Rule> rewriteRules;
+    private final List<Rule> suffixRules;
+
+
+    private SchemaLocationCatalog(Builder builder) {
+        this.stripQueryPrefixes =
+                new ArrayList<String>(builder.stripQueryPrefixes);
+        this.uris = new HashMap<String, String>(builder.uris);
+        this.rewriteRules = new ArrayList<Rule>(builder.rewriteRules);
+        this.suffixRules = new ArrayList<Rule>(builder.suffixRules);
+    }
+
+
+    @Override
+    public String canonicalize(String schemaLocation) {
+        if (schemaLocation == null) {
+            throw new NullPointerException("schemaLocation == null");
+        }
+
+        String location = schemaLocation;
+        for (String prefix : stripQueryPrefixes) {
+            if (location.startsWith(prefix)) {
+                final int idx = location.indexOf('?');
+                if (idx != -1) {
+                    location = location.substring(0, idx);
+                }
+                break;
+            }
+        } // for
+
+        final String uri = uris.get(location);
+        if (uri != null) {
+            return trace(schemaLocation, uri);
+        }
+
+        Rule best = null;
+        for (Rule rule : rewriteRules) {
+            if (location.startsWith(rule.match) && ((best == null) ||
+                    (rule.match.length() > best.match.length()))) {
+                best = rule;
+            }
+        } // for
+        if (best != null) {
+            return trace(schemaLocation, best.replacement +
+                    location.substring(best.match.length()));
+        }
+
+        for (Rule rule : suffixRules) {
+            if (location.endsWith(rule.match) && ((best == null) ||
+                    (rule.match.length() > best.match.length()))) {
+                best = rule;
+            }
+        } // for
+        if (best != null) {
+            return trace(schemaLocation, best.replacement);
+        }
+        return trace(schemaLocation, location);
+    }
+
+
+    private static String trace(String schemaLocation, String result) {
+        if (logger.isTraceEnabled() && !schemaLocation.equals(result)) {
+            logger.trace("canonicalized '{}' -> '{}'", schemaLocation, result);
+        }
+        return result;
+    }
+
+
+    public static SchemaLocationCatalog createDefault() {
+        return new Builder().addDefaultRules().build();
+    }
+
+
+    public static SchemaLocationCatalog load(File file) throws IOException {
+        return new Builder().load(file).addDefaultRules().build();
+    }
+
+
+    public static class Builder {
+        private final List<String> stripQueryPrefixes =
+                new ArrayList<String>();
+        private final Map<String, String> uris =
+                new HashMap<String, String>();
+        private final List<Rule> rewriteRules = new ArrayList<Rule>();
+        private final List<Rule> suffixRules = new ArrayList<Rule>();
+
+
+        public Builder stripQuery(String locationStartString) {
+            if (locationStartString == null) {
+                throw new NullPointerException("locationStartString == null");
+            }
+            stripQueryPrefixes.add(locationStartString);
+            return this;
+        }
+
+
+        public Builder uri(String name, String uri) {
+            if (name == null) {
+                throw new NullPointerException("name == null");
+            }
+            if (uri == null) {
+                throw new NullPointerException("uri == null");
+            }
+            if (!uris.containsKey(name)) {
+                uris.put(name, uri);
+            }
+            return this;
+        }
+
+
+        public Builder rewriteURI(String uriStartString, String rewritePrefix) {
+            if (uriStartString == null) {
+                throw new NullPointerException("uriStartString == null");
+            }
+            if (rewritePrefix == null) {
+                throw new NullPointerException("rewritePrefix == null");
+            }
+            addRule(rewriteRules, uriStartString, rewritePrefix);
+            return this;
+        }
+
+
+        public Builder uriSuffix(String uriSuffix, String uri) {
+            if (uriSuffix == null) {
+                throw new NullPointerException("uriSuffix == null");
+            }
+            if (uri == null) {
+                throw new NullPointerException("uri == null");
+            }
+            addRule(suffixRules, uriSuffix, uri);
+            return this;
+        }
+
+
+        /*
+         * Add the aliases of the CLARIN Component Registry: plain HTTP is
+         * mapped to HTTPS and the unversioned REST API is mapped to the
+         * (equivalent) "1.x" REST API. Query strings are ignored.
+         */
+        public Builder addDefaultRules() {
+            stripQuery(CR_HTTP);
+            stripQuery(CR_HTTPS);
+            rewriteURI(CR_HTTP + "profiles/",   CR_HTTPS + "1.x/profiles/");
+            rewriteURI(CR_HTTPS + "profiles/",  CR_HTTPS + "1.x/profiles/");
+            rewriteURI(CR_HTTP + "components/", CR_HTTPS + "1.x/components/");
+            rewriteURI(CR_HTTPS + "components/",
+                    CR_HTTPS + "1.x/components/");
+            rewriteURI("http://catalog.clarin.eu/",
+                    "https://catalog.clarin.eu/");
+            rewriteURI("http://infra.clarin.eu/", "https://infra.clarin.eu/");
+            return this;
+        }
+
+
+        public Builder load(File file) throws IOException {
+            if (file == null) {
+                throw new NullPointerException("file == null");
+            }
+            try {
+                final DocumentBuilderFactory factory =
+                        DocumentBuilderFactory.newInstance();
+                factory.setNamespaceAware(true);
+                factory.setExpandEntityReferences(false);
+                final DocumentBuilder builder = factory.newDocumentBuilder();
+                final Document document = builder.parse(file);
+                final Element root = document.getDocumentElement();
+                if (!CATALOG_NS_URI.equals(root.getNamespaceURI()) ||
+                        !"catalog".equals(root.getLocalName())) {
+                    throw new IOException("file '" + file +
+                            "' is not an OASIS XML catalog");
+                }
+                loadEntries(root);
+                logger.debug("loaded schema location catalog from '{}'",
+                        file);
+                return this;
+            } catch (ParserConfigurationException e) {
+                throw new IOException("error parsing catalog file '" +
+                        file + "'", e);
+            } catch (SAXException e) {
+                throw new IOException("error parsing catalog file '" +
+                        file + "'", e);
+            }
+        }
+
+
+        public SchemaLocationCatalog build() {
+            return new SchemaLocationCatalog(this);
+        }
+
+
+        private void loadEntries(Element parent) throws IOException {
+            final NodeList children = parent.getChildNodes();
+            for (int i = 0; i < children.getLength(); i++) {
+                final Node node = children.item(i);
+                if ((node.getNodeType() != Node.ELEMENT_NODE) ||
+                        !CATALOG_NS_URI.equals(node.getNamespaceURI())) {
+                    continue;
+                }
+                final Element element = (Element) node;
+                final String name = element.getLocalName();
+                if ("uri".equals(name)) {
+                    uri(attribute(element, "name"),
+                            attribute(element, "uri"));
+                } else if ("system".equals(name)) {
+                    uri(attribute(element, "systemId"),
+                            attribute(element, "uri"));
+                } else if ("rewriteURI".equals(name)) {
+                    rewriteURI(attribute(element, "uriStartString"),
+                            attribute(element, "rewritePrefix"));
+                } else if ("rewriteSystem".equals(name)) {
+                    rewriteURI(attribute(element, "systemIdStartString"),
+                            attribute(element, "rewritePrefix"));
+                } else if ("uriSuffix".equals(name)) {
+                    uriSuffix(attribute(element, "uriSuffix"),
+                            attribute(element, "uri"));
+                } else if ("systemSuffix".equals(name)) {
+                    uriSuffix(attribute(element, "systemIdSuffix"),
+                            attribute(element, "uri"));
+                } else if ("group".equals(name)) {
+                    loadEntries(element);
+                } else {
+                    logger.debug("ignoring unsupported catalog entry '{}'",
+                            name);
+                }
+            } // for
+        }
+
+
+        private static String attribute(Element element, String name)
+                throws IOException {
+            final String value = element.getAttribute(name);
+            if ((value == null) || value.isEmpty()) {
+                throw new IOException("catalog entry '" +
+                        element.getLocalName() + "' is missing attribute '" +
+                        name + "'");
+            }
+            return value;
+        }
+
+
+        private static void addRule(List<Rule> rules, String match,
+                String replacement) {
+            for (Rule rule : rules) {
+                if (rule.match.equals(match)) {
+                    /* first rule wins */
+                    return;
+                }
+            }
+            rules.add(new Rule(match, replacement));
+        }
+    } // class Builder
+
+
+    private static final class Rule {
+        private final String match;
+        private final String replacement;
+
+
+        private Rule(String match, String replacement) {
+            this.match       = match;
+            this.replacement = replacement;
+        }
+    } // class Rule
+
+} // class SchemaLocationCatalog
@@ -0,0 +1,71 @@
+/**
+ * This software is copyright (c) 2014 by
+ *  - Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ * This is free software. You can redistribute it
+ * and/or modify it under the terms described in
+ * the GNU General Public License v3 of which you
+ * should have received a copy. Otherwise you can download
+ * it from
+ *
+ *   http://www.gnu.org/licenses/gpl-3.0.txt
+ *
+ * @copyright Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ *
+ * @license http://www.gnu.org/licenses/gpl-3.0.txt
+ *  GNU General Public License v3
+ */
+package eu.clarin.cmdi.validator.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+
+/*
+ * A file, that is not read through the (virtual) file system, but from a
+ * stream supplied by its source, e.g. an entry of an archive, that is read
+ * directly. The path is only used for reporting; the validator opens the
+ * stream instead of the file. The stream may be opened more than once.
+ */
+@SuppressWarnings("serial")
+public abstract class StreamFile extends File {
+
+    protected StreamFile(String path) {
+        super(path);
+    }
+
+
+    public abstract InputStream openStream() throws IOException;
+
+
+    /*
+     * Called by the validator, once the file has been validated. Files,
+     * that hold their content in memory, drop it here, because reports
+     * keep a reference to the file. The default does nothing.
+     */
+    public void release() {
+    }
+
+
+    @Override
+    public abstract long length();
+
+
+    @Override
+    public boolean exists() {
+        return true;
+    }
+
+
+    @Override
+    public boolean isFile() {
+        return true;
+    }
+
+
+    @Override
+    public boolean isDirectory() {
+        return false;
+    }
+
+} // class StreamFile
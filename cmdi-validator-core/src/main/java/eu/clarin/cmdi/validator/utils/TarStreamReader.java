@@ -0,0 +1,338 @@
+/**
+ * This software is copyright (c) 2014 by
+ *  - Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ * This is free software. You can redistribute it
+ * and/or modify it under the terms described in
+ * the GNU General Public License v3 of which you
+ * should have received a copy. Otherwise you can download
+ * it from
+ *
+ *   http://www.gnu.org/licenses/gpl-3.0.txt
+ *
+ * @copyright Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ *
+ * @license http://www.gnu.org/licenses/gpl-3.0.txt
+ *  GNU General Public License v3
+ */
+package eu.clarin.cmdi.validator.utils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedList;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.compressors.CompressorException;
+import org.apache.commons.compress.compressors.CompressorStreamFactory;
+import org.apache.commons.compress.utils.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/*
+ * Reads a tar archive sequentially from a stream, e.g. a pipe or the
+ * standard input, without storing it on disk. The compression (gzip,
+ * bzip2, xz or zstd) is detected from the signature of the stream; xz and
+ * zstd require the respective codec libraries on the class path.
+ *
+ * A reader thread decompresses the stream and reads the regular files of
+ * the archive into memory. Entries are handed over through a buffer, that
+ * is bounded by the number of entries and their total size: if the
+ * consumer does not keep up, the reader thread blocks and, in turn, the
+ * producer of the stream. A single entry larger than the byte limit is
+ * still read, once the buffer has been drained. The content of an entry is
+ * dropped, once it has been validated (see StreamFile.release()).
+ */
+public final class TarStreamReader implements Closeable {
+    /*
+     * A regular file of the archive. The file filter sees an entry before
+     * its content has been read; the content is only available, after the
+     * entry has been taken from the reader.
+     */
+    @SuppressWarnings("serial")
+    public static final class Entry extends StreamFile {
+        private final long size;
+        private byte[] data;
+
+
+        private Entry(String path, long size) {
+            super(path);
+            this.size = size;
+        }
+
+
+        @Override
+        public InputStream openStream() throws IOException {
+            if (data == null) {
+                throw new IOException("content of entry '" + getPath() +
+                        "' not available");
+            }
+            return new ByteArrayInputStream(data);
+        }
+
+
+        @Override
+        public long length() {
+            return size;
+        }
+
+
+        @Override
+        public void release() {
+            data = null;
+        }
+    } // class Entry
+    public static final int DEFAULT_MAX_ENTRIES = 1024;
+    public static final long DEFAULT_MAX_BYTES  = 64L * 1024L * 1024L;
+    private static final Logger logger =
+            LoggerFactory.getLogger(TarStreamReader.class);
+    private static final String ENCODING = "UTF-8";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String[] SUFFIXES = {
+        ".tar", ".tar.gz", ".tgz", ".tar.bz2", ".tbz2", ".tar.xz", ".txz",
+        ".tar.zst", ".tzst"
+    };
+    private final String name;
+    private final InputStream in;
+    private final FileFilter filter;
+    private final int maxEntries;
+    private final long maxBytes;
+    private final Runnable listener;
+    private final LinkedList<Entry> queue = new LinkedList<Entry>();
+    private final Thread thread;
+    private long bufferedBytes = 0;
+    private long entryCount = 0;
+    private boolean finished = false;
+    private boolean closed = false;
+    private IOException error = null;
+
+
+    /*
+     * Start reading the archive. The name prefixes the paths of the
+     * entries. The filter (if not null) selects the entries to read; the
+     * listener (if not null) is run by the reader thread, whenever an
+     * entry has become available or the archive has been read completely.
+     */
+    public TarStreamReader(String name, InputStream in, FileFilter filter,
+            int maxEntries, long maxBytes, Runnable listener) {
+        if (name == null) {
+            throw new NullPointerException("name == null");
+        }
+        if (in == null) {
+            throw new NullPointerException("in == null");
+        }
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries < 1");
+        }
+        if (maxBytes < 1) {
+            throw new IllegalArgumentException("maxBytes < 1");
+        }
+        this.name       = name;
+        this.in         = in;
+        this.filter     = filter;
+        this.maxEntries = maxEntries;
+        this.maxBytes   = maxBytes;
+        this.listener   = listener;
+        this.thread     = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                read();
+            }
+        }, "tar-reader");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+
+    public String getName() {
+        return name;
+    }
+
+
+    /*
+     * Check, if a file name has the suffix of a (compressed) tar archive.
+     */
+    public static boolean isTarArchive(String fileName) {
+        for (String suffix : SUFFIXES) {
+            if (fileName.regionMatches(true,
+                    fileName.length() - suffix.length(),
+                    suffix, 0, suffix.length())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /*
+     * Take the next entry, that has been read, or null, if there is none
+     * available right now. Never blocks.
+     */
+    public synchronized Entry poll() {
+        final Entry entry = queue.poll();
+        if (entry != null) {
+            bufferedBytes -= entry.size;
+            notifyAll();
+        }
+        return entry;
+    }
+
+
+    /*
+     * True, if the archive has been read completely (or reading has
+     * failed) and all entries have been taken.
+     */
+    public synchronized boolean isExhausted() {
+        return finished && queue.isEmpty();
+    }
+
+
+    /*
+     * The error, that ended reading the archive, if any.
+     */
+    public synchronized IOException getError() {
+        return error;
+    }
+
+
+    /*
+     * The number of entries read so far, including those still buffered.
+     */
+    public synchronized long getEntryCount() {
+        return entryCount;
+    }
+
+
+    public synchronized boolean isFinished() {
+        return finished;
+    }
+
+
+    /*
+     * Stop reading. The stream is closed; buffered entries are dropped.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            queue.clear();
+            bufferedBytes = 0;
+            notifyAll();
+        } // synchronized (this)
+        if (thread != Thread.currentThread()) {
+            thread.interrupt();
+        }
+        in.close();
+    }
+
+
+    private void read() {
+        IOException failure = null;
+        try {
+            final TarArchiveInputStream tar = new TarArchiveInputStream(
+                    decompress(new BufferedInputStream(in, BUFFER_SIZE)),
+                    ENCODING);
+            TarArchiveEntry header;
+            while ((header = tar.getNextTarEntry()) != null) {
+                if (!header.isFile()) {
+                    continue;
+                }
+                final Entry entry = new Entry(
+                        name + "/" + header.getName(), header.getSize());
+                if ((filter != null) && !filter.accept(entry)) {
+                    continue;
+                }
+                if (entry.size > Integer.MAX_VALUE) {
+                    throw new IOException("entry '" + header.getName() +
+                            "' too large (" + entry.size + " bytes)");
+                }
+                if (!reserve(entry.size)) {
+                    return;
+                }
+                final byte[] data = new byte[(int) entry.size];
+                if (IOUtils.readFully(tar, data) < data.length) {
+                    throw new EOFException("unexpected end of entry '" +
+                            header.getName() + "'");
+                }
+                entry.data = data;
+                synchronized (this) {
+                    if (closed) {
+                        return;
+                    }
+                    queue.add(entry);
+                    entryCount++;
+                } // synchronized (this)
+                notifyListener();
+            }
+        } catch (IOException e) {
+            failure = e;
+        } catch (InterruptedException e) {
+            /* closed while waiting for the consumer */
+            return;
+        } finally {
+            synchronized (this) {
+                if (!closed && (failure != null)) {
+                    logger.debug("error reading archive '{}': {}",
+                            name, failure.getMessage());
+                    error = failure;
+                }
+                finished = true;
+                notifyAll();
+            } // synchronized (this)
+            notifyListener();
+        }
+    }
+
+
+    /*
+     * Wait until there is room in the buffer for an entry of the given
+     * size; returns false, if the reader has been closed in the meantime.
+     */
+    private synchronized boolean reserve(long size)
+            throws InterruptedException {
+        while (!closed && !queue.isEmpty() &&
+                ((queue.size() >= maxEntries) ||
+                        ((bufferedBytes + size) > maxBytes))) {
+            wait();
+        }
+        if (closed) {
+            return false;
+        }
+        bufferedBytes += size;
+        return true;
+    }
+
+
+    private void notifyListener() {
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+
+    private static InputStream decompress(InputStream in) throws IOException {
+        final String compression;
+        try {
+            compression = CompressorStreamFactory.detect(in);
+        } catch (CompressorException e) {
+            /* no known signature; assume an uncompressed archive */
+            return in;
+        }
+        logger.debug("reading {} compressed archive", compression);
+        try {
+            return new CompressorStreamFactory(true)
+                    .createCompressorInputStream(compression, in, true);
+        } catch (CompressorException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+} // class TarStreamReader
@@ -0,0 +1,699 @@
+/**
+ * This software is copyright (c) 2014 by
+ *  - Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ * This is free software. You can redistribute it
+ * and/or modify it under the terms described in
+ * the GNU General Public License v3 of which you
+ * should have received a copy. Otherwise you can download
+ * it from
+ *
+ *   http://www.gnu.org/licenses/gpl-3.0.txt
+ *
+ * @copyright Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ *
+ * @license http://www.gnu.org/licenses/gpl-3.0.txt
+ *  GNU General Public License v3
+ */
+package eu.clarin.cmdi.validator.utils;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/*
+ * Reads a ZIP archive directly by random access, without mounting it as a
+ * file system. The central directory is read once; entries are read with
+ * positional reads, so any number of threads can read (and inflate)
+ * entries at the same time without a lock on the archive. ZIP64 archives
+ * are supported. A nested archive, that is stored uncompressed, is read in
+ * place; a compressed one is inflated into a temporary file, that is
+ * deleted when the nested archive is closed.
+ *
+ * The CRC of an entry is verified, if its stream is read to the end.
+ * Encrypted entries and compression methods other than "stored" and
+ * "deflated" are not supported.
+ */
+public final class ZipArchive implements Closeable {
+    public static final class Entry {
+        private final String name;
+        private final int flags;
+        private final int method;
+        private final long crc;
+        private final long compressedSize;
+        private final long size;
+        private final long offset;
+
+
+        private Entry(String name, int flags, int method, long crc,
+                long compressedSize, long size, long offset) {
+            this.name           = name;
+            this.flags          = flags;
+            this.method         = method;
+            this.crc            = crc;
+            this.compressedSize = compressedSize;
+            this.size           = size;
+            this.offset         = offset;
+        }
+
+
+        public String getName() {
+            return name;
+        }
+
+
+        public long getSize() {
+            return size;
+        }
+
+
+        public long getCompressedSize() {
+            return compressedSize;
+        }
+
+
+        public boolean isDirectory() {
+            return name.endsWith("/");
+        }
+    } // class Entry
+    private static final Logger logger =
+            LoggerFactory.getLogger(ZipArchive.class);
+    private static final int LOC_SIG         = 0x04034b50;
+    private static final int CEN_SIG         = 0x02014b50;
+    private static final int END_SIG         = 0x06054b50;
+    private static final int ZIP64_END_SIG   = 0x06064b50;
+    private static final int ZIP64_LOC_SIG   = 0x07064b50;
+    private static final int LOC_HEADER_SIZE = 30;
+    private static final int CEN_HEADER_SIZE = 46;
+    private static final int END_HEADER_SIZE = 22;
+    private static final int ZIP64_LOC_SIZE  = 20;
+    private static final int ZIP64_END_SIZE  = 56;
+    private static final int ZIP64_EXTRA_ID  = 0x0001;
+    private static final int MAX_COMMENT_LENGTH = 0xFFFF;
+    private static final long ZIP64_MAGIC    = 0xFFFFFFFFL;
+    private static final int FLAG_ENCRYPTED  = 0x0001;
+    private static final int FLAG_UTF8       = 0x0800;
+    private static final int METHOD_STORED   = 0;
+    private static final int METHOD_DEFLATED = 8;
+    private static final int BUFFER_SIZE     = 8192;
+    /* entry names are encoded in CP437, unless flagged as UTF-8 */
+    private static final Charset DEFAULT_CHARSET =
+            Charset.isSupported("IBM437")
+                ? Charset.forName("IBM437")
+                : StandardCharsets.ISO_8859_1;
+    private static final String TEMP_FILE_PREFIX = "cmdi-validator-";
+    private static final String TEMP_FILE_SUFFIX = ".zip";
+    private static final Comparator<Entry> OFFSET_ORDER =
+            new Comparator<Entry>() {
+                @Override
+                public int compare(Entry e1, Entry e2) {
+                    return Long.compare(e1.offset, e2.offset);
+                }
+            };
+    private final String name;
+    private final ZipArchive parent;
+    private final long base;
+    private final File file;
+    private final boolean deleteOnClose;
+    private final long length;
+    private final List<Entry> entries;
+    private volatile FileChannel channel;
+    private volatile boolean closed = false;
+
+
+    public ZipArchive(File file) throws IOException {
+        this(file.getPath(), file, false);
+    }
+
+
+    private ZipArchive(String name, File file, boolean deleteOnClose)
+            throws IOException {
+        this.name          = name;
+        this.parent        = null;
+        this.base          = 0;
+        this.file          = file;
+        this.deleteOnClose = deleteOnClose;
+        this.channel       = FileChannel.open(file.toPath(),
+                StandardOpenOption.READ);
+        try {
+            this.length  = channel.size();
+            this.entries = readCentralDirectory();
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+
+    private ZipArchive(String name, ZipArchive parent, long base,
+            long length) throws IOException {
+        this.name          = name;
+        this.parent        = parent;
+        this.base          = base;
+        this.file          = null;
+        this.deleteOnClose = false;
+        this.channel       = null;
+        this.length        = length;
+        this.entries       = readCentralDirectory();
+    }
+
+
+    /*
+     * The path of the archive, nested archives are named by the path of
+     * the enclosing archive and the entry name.
+     */
+    public String getName() {
+        return name;
+    }
+
+
+    /*
+     * The entries of the archive in the order of their data in the
+     * archive, so reading them in order reads the archive sequentially.
+     */
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+
+    public InputStream openStream(Entry entry) throws IOException {
+        if (entry == null) {
+            throw new NullPointerException("entry == null");
+        }
+        if ((entry.flags & FLAG_ENCRYPTED) != 0) {
+            throw new ZipException("encrypted entry not supported: " +
+                    entry.name);
+        }
+        final InputStream in = new RangeInputStream(getDataOffset(entry),
+                entry.compressedSize);
+        switch (entry.method) {
+        case METHOD_STORED:
+            return new CheckedEntryInputStream(in, entry);
+        case METHOD_DEFLATED:
+            return new CheckedEntryInputStream(
+                    new EntryInflaterInputStream(in), entry);
+        default:
+            throw new ZipException("unsupported compression method " +
+                    entry.method + ": " + entry.name);
+        } // switch
+    }
+
+
+    /*
+     * Open an entry, that is a ZIP archive itself.
+     */
+    public ZipArchive openArchive(Entry entry) throws IOException {
+        if (entry == null) {
+            throw new NullPointerException("entry == null");
+        }
+        final String path = name + "/" + entry.name;
+        if ((entry.method == METHOD_STORED) &&
+                ((entry.flags & FLAG_ENCRYPTED) == 0)) {
+            return new ZipArchive(path, this, getDataOffset(entry),
+                    entry.size);
+        }
+
+        logger.debug("inflating nested archive '{}' into temporary file",
+                path);
+        final File temp = File.createTempFile(TEMP_FILE_PREFIX,
+                TEMP_FILE_SUFFIX);
+        try {
+            final InputStream in = openStream(entry);
+            try {
+                final OutputStream out = Files.newOutputStream(temp.toPath());
+                try {
+                    final byte[] buffer = new byte[BUFFER_SIZE];
+                    int n;
+                    while ((n = in.read(buffer)) != -1) {
+                        out.write(buffer, 0, n);
+                    }
+                } finally {
+                    out.close();
+                }
+            } finally {
+                in.close();
+            }
+            return new ZipArchive(path, temp, true);
+        } catch (IOException e) {
+            temp.delete();
+            throw e;
+        }
+    }
+
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        if (parent == null) {
+            try {
+                if (channel != null) {
+                    channel.close();
+                }
+            } finally {
+                if (deleteOnClose) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+
+    private List<Entry> readCentralDirectory() throws IOException {
+        /*
+         * find the end of central directory record; it is followed by a
+         * comment of up to 64K bytes
+         */
+        final int tailLength = (int) Math.min(length,
+                END_HEADER_SIZE + MAX_COMMENT_LENGTH);
+        final ByteBuffer tail = readFully(length - tailLength, tailLength);
+        int pos = tailLength - END_HEADER_SIZE;
+        while (pos >= 0) {
+            if ((tail.getInt(pos) == END_SIG) &&
+                    ((pos + END_HEADER_SIZE + (tail.getShort(pos + 20) & 0xFFFF))
+                            <= tailLength)) {
+                break;
+            }
+            pos--;
+        }
+        if (pos < 0) {
+            throw new ZipException("not a ZIP archive: " + name);
+        }
+        long endOffset   = length - tailLength + pos;
+        long count       = tail.getShort(pos + 10) & 0xFFFF;
+        long cenSize     = tail.getInt(pos + 12) & 0xFFFFFFFFL;
+        long cenOffset   = tail.getInt(pos + 16) & 0xFFFFFFFFL;
+
+        /*
+         * ZIP64: the locator precedes the end of central directory record
+         * and points to the ZIP64 end of central directory record
+         */
+        if (endOffset >= ZIP64_LOC_SIZE) {
+            final ByteBuffer locator =
+                    readFully(endOffset - ZIP64_LOC_SIZE, ZIP64_LOC_SIZE);
+            if (locator.getInt(0) == ZIP64_LOC_SIG) {
+                /*
+                 * the record usually directly precedes the locator, unless
+                 * data has been prepended to the archive
+                 */
+                long offset = locator.getLong(8);
+                if ((offset < 0) ||
+                        (offset > (endOffset - ZIP64_LOC_SIZE - ZIP64_END_SIZE)) ||
+                        (readFully(offset, 4).getInt(0) != ZIP64_END_SIG)) {
+                    offset = endOffset - ZIP64_LOC_SIZE - ZIP64_END_SIZE;
+                }
+                if (offset < 0) {
+                    throw new ZipException("invalid ZIP64 end header: " +
+                            name);
+                }
+                final ByteBuffer end = readFully(offset, ZIP64_END_SIZE);
+                if (end.getInt(0) != ZIP64_END_SIG) {
+                    throw new ZipException("invalid ZIP64 end header: " +
+                            name);
+                }
+                endOffset = offset;
+                count     = end.getLong(32);
+                cenSize   = end.getLong(40);
+                cenOffset = end.getLong(48);
+            }
+        }
+
+        /*
+         * data may be prepended to the archive (e.g. a self-extractor),
+         * offsets are relative to the start of the archive proper
+         */
+        final long prefix = endOffset - cenSize - cenOffset;
+        if ((prefix < 0) || (cenSize < 0) || (count < 0)) {
+            throw new ZipException("invalid end header: " + name);
+        }
+
+        final List<Entry> entries = new ArrayList<Entry>(
+                (int) Math.min(count, Integer.MAX_VALUE - 8));
+        final InputStream in = new BufferedInputStream(
+                new RangeInputStream(prefix + cenOffset, cenSize),
+                64 * 1024);
+        try {
+            final ByteBuffer header = ByteBuffer.allocate(CEN_HEADER_SIZE)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            for (long i = 0; i < count; i++) {
+                readFully(in, header.array(), CEN_HEADER_SIZE);
+                if (header.getInt(0) != CEN_SIG) {
+                    throw new ZipException("invalid central directory " +
+                            "header: " + name);
+                }
+                final int flags       = header.getShort(8) & 0xFFFF;
+                final int method      = header.getShort(10) & 0xFFFF;
+                final long crc        = header.getInt(16) & 0xFFFFFFFFL;
+                long compressedSize   = header.getInt(20) & 0xFFFFFFFFL;
+                long size             = header.getInt(24) & 0xFFFFFFFFL;
+                final int nameLength  = header.getShort(28) & 0xFFFF;
+                final int extraLength = header.getShort(30) & 0xFFFF;
+                final int commentLength = header.getShort(32) & 0xFFFF;
+                long offset           = header.getInt(42) & 0xFFFFFFFFL;
+
+                final byte[] name = new byte[nameLength];
+                readFully(in, name, nameLength);
+                final byte[] extra = new byte[extraLength];
+                readFully(in, extra, extraLength);
+                skipFully(in, commentLength);
+
+                if ((size == ZIP64_MAGIC) || (compressedSize == ZIP64_MAGIC) ||
+                        (offset == ZIP64_MAGIC)) {
+                    final ByteBuffer ext = ByteBuffer.wrap(extra)
+                            .order(ByteOrder.LITTLE_ENDIAN);
+                    while (ext.remaining() >= 4) {
+                        final int id = ext.getShort() & 0xFFFF;
+                        final int len = ext.getShort() & 0xFFFF;
+                        if (len > ext.remaining()) {
+                            break;
+                        }
+                        if (id != ZIP64_EXTRA_ID) {
+                            ext.position(ext.position() + len);
+                            continue;
+                        }
+                        final ByteBuffer data = ext.slice()
+                                .order(ByteOrder.LITTLE_ENDIAN);
+                        data.limit(len);
+                        if ((size == ZIP64_MAGIC) && (data.remaining() >= 8)) {
+                            size = data.getLong();
+                        }
+                        if ((compressedSize == ZIP64_MAGIC) &&
+                                (data.remaining() >= 8)) {
+                            compressedSize = data.getLong();
+                        }
+                        if ((offset == ZIP64_MAGIC) &&
+                                (data.remaining() >= 8)) {
+                            offset = data.getLong();
+                        }
+                        break;
+                    }
+                }
+
+                entries.add(new Entry(new String(name,
+                        ((flags & FLAG_UTF8) != 0)
+                                ? StandardCharsets.UTF_8
+                                : DEFAULT_CHARSET),
+                        flags, method, crc, compressedSize, size,
+                        prefix + offset));
+            }
+        } finally {
+            in.close();
+        }
+        Collections.sort(entries, OFFSET_ORDER);
+        logger.debug("read central directory of archive '{}' ({} entries)",
+                name, entries.size());
+        return Collections.unmodifiableList(entries);
+    }
+
+
+    private long getDataOffset(Entry entry) throws IOException {
+        final ByteBuffer header = readFully(entry.offset, LOC_HEADER_SIZE);
+        if (header.getInt(0) != LOC_SIG) {
+            throw new ZipException("invalid local header: " + entry.name);
+        }
+        return entry.offset + LOC_HEADER_SIZE +
+                (header.getShort(26) & 0xFFFF) +
+                (header.getShort(28) & 0xFFFF);
+    }
+
+
+    private ByteBuffer readFully(long position, int size) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(size)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (read(buffer, position + buffer.position()) == -1) {
+                throw new EOFException("unexpected end of archive: " + name);
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+
+    /*
+     * Positional read, that is safe to be called by several threads at
+     * once. If another thread has been interrupted while reading, the
+     * channel has been closed for everyone; it is opened again.
+     */
+    private int read(ByteBuffer buffer, long position) throws IOException {
+        if (position >= length) {
+            return -1;
+        }
+        if (buffer.remaining() > (length - position)) {
+            buffer.limit(buffer.position() + (int) (length - position));
+        }
+        if (parent != null) {
+            return parent.read(buffer, base + position);
+        }
+        for (;;) {
+            final FileChannel current = channel;
+            try {
+                return current.read(buffer, position);
+            } catch (ClosedByInterruptException e) {
+                throw e;
+            } catch (ClosedChannelException e) {
+                if (closed) {
+                    throw e;
+                }
+                reopen(current);
+            }
+        }
+    }
+
+
+    private synchronized void reopen(FileChannel current) throws IOException {
+        if (channel == current) {
+            logger.debug("re-opening archive '{}'", name);
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        }
+    }
+
+
+    private static void readFully(InputStream in, byte[] buffer, int length)
+            throws IOException {
+        int offset = 0;
+        while (offset < length) {
+            final int n = in.read(buffer, offset, length - offset);
+            if (n == -1) {
+                throw new EOFException("unexpected end of central directory");
+            }
+            offset += n;
+        }
+    }
+
+
+    private static void skipFully(InputStream in, long length)
+            throws IOException {
+        while (length > 0) {
+            final long n = in.skip(length);
+            if (n <= 0) {
+                if (in.read() == -1) {
+                    throw new EOFException(
+                            "unexpected end of central directory");
+                }
+                length--;
+            } else {
+                length -= n;
+            }
+        }
+    }
+
+
+    /*
+     * reads a range of the archive with positional reads
+     */
+    private final class RangeInputStream extends InputStream {
+        private long position;
+        private final long end;
+
+
+        private RangeInputStream(long position, long length) {
+            this.position = position;
+            this.end      = position + length;
+        }
+
+
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return (read(b, 0, 1) == -1) ? -1 : (b[0] & 0xFF);
+        }
+
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (position >= end) {
+                return -1;
+            }
+            final ByteBuffer buffer = ByteBuffer.wrap(b, off,
+                    (int) Math.min(len, end - position));
+            final int n = ZipArchive.this.read(buffer, position);
+            if (n == -1) {
+                throw new EOFException("unexpected end of archive: " + name);
+            }
+            position += n;
+            return n;
+        }
+
+
+        @Override
+        public long skip(long n) {
+            final long skipped = Math.max(0, Math.min(n, end - position));
+            position += skipped;
+            return skipped;
+        }
+
+
+        @Override
+        public int available() {
+            return (int) Math.min(end - position, Integer.MAX_VALUE);
+        }
+    } // class RangeInputStream
+
+
+    /*
+     * Inflates raw deflate data; the inflater needs an extra dummy byte
+     * at the end of the input.
+     */
+    private static final class EntryInflaterInputStream
+            extends InflaterInputStream {
+        private boolean eof = false;
+        private boolean closed = false;
+
+
+        private EntryInflaterInputStream(InputStream in) {
+            super(in, new Inflater(true), BUFFER_SIZE);
+        }
+
+
+        @Override
+        protected void fill() throws IOException {
+            if (eof) {
+                throw new EOFException("unexpected end of deflated data");
+            }
+            len = in.read(buf, 0, buf.length);
+            if (len == -1) {
+                buf[0] = 0;
+                len = 1;
+                eof = true;
+            }
+            inf.setInput(buf, 0, len);
+        }
+
+
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                inf.end();
+                super.close();
+            }
+        }
+    } // class EntryInflaterInputStream
+
+
+    /*
+     * verifies size and CRC of an entry, when it has been read completely
+     */
+    private static final class CheckedEntryInputStream
+            extends FilterInputStream {
+        private final Entry entry;
+        private final CRC32 crc = new CRC32();
+        private long count = 0;
+
+
+        private CheckedEntryInputStream(InputStream in, Entry entry) {
+            super(in);
+            this.entry = entry;
+        }
+
+
+        @Override
+        public int read() throws IOException {
+            final int b = in.read();
+            if (b != -1) {
+                crc.update(b);
+                count++;
+            } else {
+                verify();
+            }
+            return b;
+        }
+
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            final int n = in.read(b, off, len);
+            if (n > 0) {
+                crc.update(b, off, n);
+                count += n;
+            } else if (n == -1) {
+                verify();
+            }
+            return n;
+        }
+
+
+        @Override
+        public long skip(long n) throws IOException {
+            /* read skipped data, so it is verified, too */
+            final byte[] buffer = new byte[(int) Math.min(n, BUFFER_SIZE)];
+            long skipped = 0;
+            while (skipped < n) {
+                final int count = read(buffer, 0,
+                        (int) Math.min(n - skipped, buffer.length));
+                if (count == -1) {
+                    break;
+                }
+                skipped += count;
+            }
+            return skipped;
+        }
+
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+
+        private void verify() throws IOException {
+            if (count != entry.size) {
+                throw new ZipException("invalid entry size (expected " +
+                        entry.size + " but got " + count + " bytes): " +
+                        entry.name);
+            }
+            if (crc.getValue() != entry.crc) {
+                throw new ZipException("invalid entry CRC: " + entry.name);
+            }
+        }
+    } // class CheckedEntryInputStream
+
+} // class ZipArchive
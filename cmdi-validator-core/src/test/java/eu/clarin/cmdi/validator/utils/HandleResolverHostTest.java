@@ -0,0 +1,295 @@
+/**
+ * This software is copyright (c) 2014 by
+ *  - Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ * This is free software. You can redistribute it
+ * and/or modify it under the terms described in
+ * the GNU General Public License v3 of which you
+ * should have received a copy. Otherwise you can download
+ * it from
+ *
+ *   http://www.gnu.org/licenses/gpl-3.0.txt
+ *
+ * @copyright Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ *
+ * @license http://www.gnu.org/licenses/gpl-3.0.txt
+ *  GNU General Public License v3
+ */
+package eu.clarin.cmdi.validator.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+
+/*
+ * Drives the circuit breaker of a host with requests against a stub server
+ * on the loopback interface, that either answers immediately or stalls
+ * until the requests time out. Instead of waiting for the breaker to allow
+ * a probe, the tests pass a point in time after the longest open time.
+ */
+public class HandleResolverHostTest {
+    private static final int TIMEOUT = 300;
+    private static final int FAILURE_THRESHOLD = 5;
+    private static final long LATER = TimeUnit.MINUTES.toMillis(6);
+    private final AtomicInteger hits = new AtomicInteger();
+    private volatile CountDownLatch stall = new CountDownLatch(0);
+    private volatile boolean broken = false;
+    private ExecutorService executor;
+    private HttpServer server;
+    private URL url;
+
+
+    @Before
+    public void setUp() throws IOException {
+        executor = Executors.newCachedThreadPool();
+        server = HttpServer.create(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                hits.incrementAndGet();
+                try {
+                    stall.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                if (broken) {
+                    /* drop the connection without an answer */
+                    throw new IOException("broken");
+                }
+                exchange.sendResponseHeaders(200, -1);
+                exchange.close();
+            }
+        });
+        server.setExecutor(executor);
+        server.start();
+        url = new URL("http", "127.0.0.1", server.getAddress().getPort(),
+                "/11858/abc-1");
+    }
+
+
+    @After
+    public void tearDown() {
+        stall.countDown();
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+
+    @Test
+    public void circuitOpensProbesAndCloses() throws IOException {
+        final HandleResolverHost host = newHost();
+        setStalled(true);
+        for (int i = 0; i < FAILURE_THRESHOLD; i++) {
+            assertFalse(isOpen(host));
+            assertEquals(HandleResolver.TIMEOUT, request(host, now()));
+        }
+        assertTrue(isOpen(host));
+        assertEquals(FAILURE_THRESHOLD, hits.get());
+
+        /* open: fail fast without contacting the host */
+        assertEquals(HandleResolver.TIMEOUT, request(host, now()));
+        assertEquals(FAILURE_THRESHOLD, hits.get());
+        assertEquals(1, host.getStatistics().getFastFailCount());
+
+        /* after the open time, a single probe is let through */
+        setStalled(false);
+        assertEquals(HandleResolverHost.PROBE,
+                host.checkCircuit(now() + LATER));
+        assertEquals(HandleResolver.TIMEOUT, host.checkCircuit(now() + LATER));
+        assertEquals(200, perform(host));
+        host.finishProbe();
+        assertEquals(FAILURE_THRESHOLD + 1, hits.get());
+
+        /* closed again */
+        assertFalse(isOpen(host));
+        assertEquals(200, request(host, now()));
+        assertEquals(FAILURE_THRESHOLD + 2, hits.get());
+    }
+
+
+    @Test
+    public void failedProbeKeepsCircuitOpen() throws IOException {
+        final HandleResolverHost host = newHost();
+        setStalled(true);
+        for (int i = 0; i < FAILURE_THRESHOLD; i++) {
+            request(host, now());
+        }
+        assertTrue(isOpen(host));
+
+        assertEquals(HandleResolver.TIMEOUT, request(host, now() + LATER));
+        assertEquals(FAILURE_THRESHOLD + 1, hits.get());
+        assertTrue(isOpen(host));
+        assertEquals(HandleResolver.TIMEOUT, request(host, now()));
+        assertEquals(FAILURE_THRESHOLD + 1, hits.get());
+
+        /* the next probe succeeds */
+        setStalled(false);
+        assertEquals(200, request(host, now() + LATER));
+        assertFalse(isOpen(host));
+    }
+
+
+    @Test
+    public void probeEndingWithErrorKeepsCircuitOpen() throws IOException {
+        final HandleResolverHost host = newHost();
+        setStalled(true);
+        for (int i = 0; i < FAILURE_THRESHOLD; i++) {
+            request(host, now());
+        }
+        assertTrue(isOpen(host));
+
+        setStalled(false);
+        broken = true;
+        assertEquals(HandleResolver.ERROR, request(host, now() + LATER));
+        assertTrue(isOpen(host));
+        assertEquals(HandleResolver.TIMEOUT, request(host, now()));
+
+        /* the probe has ended, so another one is let through later */
+        broken = false;
+        assertEquals(200, request(host, now() + LATER));
+        assertFalse(isOpen(host));
+    }
+
+
+    @Test
+    public void successResetsFailureCount() throws IOException {
+        final HandleResolverHost host = newHost();
+        for (int round = 0; round < 2; round++) {
+            setStalled(true);
+            for (int i = 0; i < FAILURE_THRESHOLD - 1; i++) {
+                assertEquals(HandleResolver.TIMEOUT, request(host, now()));
+            }
+            setStalled(false);
+            assertEquals(200, request(host, now()));
+            assertFalse(isOpen(host));
+        }
+    }
+
+
+    @Test
+    public void timeoutsBackOffAfterFailures() throws IOException {
+        final HandleResolverHost host = newHost();
+        assertEquals(TIMEOUT, host.getSocketTimeout());
+        setStalled(true);
+        request(host, now());
+        assertEquals(2 * TIMEOUT, host.getSocketTimeout());
+        request(host, now());
+        /* capped at twice the default */
+        assertEquals(2 * TIMEOUT, host.getSocketTimeout());
+        assertEquals(2 * TIMEOUT, host.getConnectTimeout());
+    }
+
+
+    @Test
+    public void permitsAreHandedOver() {
+        final HandleResolverHost host =
+                new HandleResolverHost("localhost", 2, TIMEOUT, TIMEOUT);
+        final Runnable task = new Runnable() {
+            @Override
+            public void run() {
+            }
+        };
+        assertTrue(host.acquire(task));
+        assertTrue(host.acquire(task));
+        assertFalse(host.acquire(task));
+        assertEquals(1, host.getStatistics().getQueuedCount());
+        /* the queued task inherits the permit */
+        assertSame(task, host.release());
+        assertNull(host.release());
+        assertTrue(host.acquire(task));
+        assertFalse(host.acquire(task));
+    }
+
+
+    private static HandleResolverHost newHost() {
+        return new HandleResolverHost("127.0.0.1", 4, TIMEOUT, TIMEOUT);
+    }
+
+
+    private void setStalled(boolean stalled) {
+        if (stalled) {
+            stall = new CountDownLatch(1);
+        } else {
+            stall.countDown();
+        }
+    }
+
+
+    private static boolean isOpen(HandleResolverHost host) {
+        return host.getStatistics().isCircuitOpen();
+    }
+
+
+    private static long now() {
+        return System.currentTimeMillis();
+    }
+
+
+    /*
+     * The part of the resolver, that deals with the host.
+     */
+    private int request(HandleResolverHost host, long now)
+            throws IOException {
+        final int result = host.checkCircuit(now);
+        if (result == 0) {
+            return perform(host);
+        }
+        if (result != HandleResolverHost.PROBE) {
+            return result;
+        }
+        try {
+            return perform(host);
+        } finally {
+            host.finishProbe();
+        }
+    }
+
+
+    private int perform(HandleResolverHost host) throws IOException {
+        final long started = System.nanoTime();
+        final HttpURLConnection connection =
+                (HttpURLConnection) url.openConnection();
+        try {
+            connection.setRequestMethod("HEAD");
+            connection.setConnectTimeout(host.getConnectTimeout());
+            connection.setReadTimeout(host.getSocketTimeout());
+            final int code = connection.getResponseCode();
+            host.recordSuccess(TimeUnit.NANOSECONDS.toMillis(
+                    System.nanoTime() - started));
+            return code;
+        } catch (SocketTimeoutException e) {
+            host.recordFailure(HandleResolver.TIMEOUT);
+            return HandleResolver.TIMEOUT;
+        } catch (IOException e) {
+            host.recordError();
+            return HandleResolver.ERROR;
+        } finally {
+            host.recordLatency(System.nanoTime() - started);
+            connection.disconnect();
+        }
+    }
+
+} // class HandleResolverHostTest
@@ -0,0 +1,242 @@
+/**
+ * This software is copyright (c) 2014 by
+ *  - Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ * This is free software. You can redistribute it
+ * and/or modify it under the terms described in
+ * the GNU General Public License v3 of which you
+ * should have received a copy. Otherwise you can download
+ * it from
+ *
+ *   http://www.gnu.org/licenses/gpl-3.0.txt
+ *
+ * @copyright Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ *
+ * @license http://www.gnu.org/licenses/gpl-3.0.txt
+ *  GNU General Public License v3
+ */
+package eu.clarin.cmdi.validator.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class HandleResultStoreTest {
+    private static final long TTL = TimeUnit.DAYS.toMillis(1);
+    private static final int HEADER_SIZE = 8;
+    private static final int RECORD_SIZE = 16;
+    private File directory;
+    private File file;
+
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("handle-result-store").toFile();
+        file = new File(directory, "handles.db");
+    }
+
+
+    @After
+    public void tearDown() {
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        directory.delete();
+    }
+
+
+    @Test
+    public void replayRestoresResults() {
+        final HandleResultStore store = new HandleResultStore(file, TTL, TTL);
+        store.put(handle(1), 200);
+        store.put(handle(2), 404);
+        store.put(handle(1), 410);
+        store.flush();
+
+        final HandleResultStore restored =
+                new HandleResultStore(file, TTL, TTL);
+        assertEquals(2, restored.size());
+        assertEquals(410, restored.get(handle(1)));
+        assertEquals(404, restored.get(handle(2)));
+        assertEquals(HandleResultStore.NO_RESULT, restored.get(handle(3)));
+        assertEquals(2, restored.getRestoredHitCount());
+        /* the proxy URI is normalized */
+        assertEquals(410, restored.get(
+                URI.create("HTTPS://HDL.handle.net/11858/ABC-1")));
+    }
+
+
+    @Test
+    public void networkFailuresAreNotPersisted() {
+        final HandleResultStore store = new HandleResultStore(file, TTL, TTL);
+        store.put(handle(1), 200);
+        store.put(handle(2), HandleResolver.TIMEOUT);
+        store.put(handle(3), HandleResolver.UNKNOWN_HOST);
+        assertEquals(HandleResolver.TIMEOUT, store.get(handle(2)));
+        store.flush();
+        assertEquals(HEADER_SIZE + RECORD_SIZE, file.length());
+
+        final HandleResultStore restored =
+                new HandleResultStore(file, TTL, TTL);
+        assertEquals(1, restored.size());
+        assertEquals(HandleResultStore.NO_RESULT, restored.get(handle(2)));
+        assertEquals(HandleResultStore.NO_RESULT, restored.get(handle(3)));
+    }
+
+
+    @Test
+    public void truncatedRecordIsDropped() throws IOException {
+        final HandleResultStore store = new HandleResultStore(file, TTL, TTL);
+        store.put(handle(1), 200);
+        store.put(handle(2), 404);
+        store.flush();
+        final long length = file.length();
+
+        /* a run, that was killed while writing a record */
+        final FileOutputStream out = new FileOutputStream(file, true);
+        try {
+            out.write(new byte[RECORD_SIZE - 5]);
+        } finally {
+            out.close();
+        }
+
+        final HandleResultStore restored =
+                new HandleResultStore(file, TTL, TTL);
+        assertEquals(2, restored.size());
+        assertEquals(200, restored.get(handle(1)));
+        assertEquals(404, restored.get(handle(2)));
+
+        /* records appended afterwards must still be readable */
+        restored.put(handle(3), 200);
+        restored.flush();
+        assertEquals(length + RECORD_SIZE, file.length());
+        final HandleResultStore again = new HandleResultStore(file, TTL, TTL);
+        assertEquals(3, again.size());
+        assertEquals(200, again.get(handle(3)));
+    }
+
+
+    @Test
+    public void unknownFormatIsIgnored() throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.writeLong(0x1234567890L);
+            raf.writeLong(1);
+            raf.writeLong(1);
+        } finally {
+            raf.close();
+        }
+        final HandleResultStore store = new HandleResultStore(file, TTL, TTL);
+        assertEquals(0, store.size());
+        store.put(handle(1), 200);
+        store.flush();
+        assertEquals(1, new HandleResultStore(file, TTL, TTL).size());
+    }
+
+
+    @Test
+    public void compactionDropsOverwrittenRecords() {
+        final HandleResultStore store = new HandleResultStore(file, TTL, TTL);
+        /* overwrite the same results until the log gets compacted */
+        for (int i = 0; i < 100000; i++) {
+            store.put(handle(i % 10), 200 + (i % 10));
+        }
+        store.flush();
+        assertTrue("log has not been compacted: " + file.length(),
+                file.length() < (HEADER_SIZE + 100000L * RECORD_SIZE));
+
+        store.close();
+        assertEquals(HEADER_SIZE + 10 * RECORD_SIZE, file.length());
+        final HandleResultStore restored =
+                new HandleResultStore(file, TTL, TTL);
+        assertEquals(10, restored.size());
+        for (int i = 0; i < 10; i++) {
+            assertEquals(200 + i, restored.get(handle(i)));
+        }
+    }
+
+
+    @Test
+    public void compactionDropsExpiredResults() {
+        /* negative results expire immediately */
+        final HandleResultStore store = new HandleResultStore(file, TTL, 0);
+        store.put(handle(1), 200);
+        store.put(handle(2), 404);
+        assertEquals(HandleResultStore.NO_RESULT, store.get(handle(2)));
+        store.close();
+        assertEquals(HEADER_SIZE + RECORD_SIZE, file.length());
+
+        final HandleResultStore restored =
+                new HandleResultStore(file, TTL, TTL);
+        assertEquals(1, restored.size());
+        assertEquals(200, restored.get(handle(1)));
+    }
+
+
+    /*
+     * Two stores sharing a log stand in for two processes sharing a cache
+     * directory: neither compaction may drop the other's results.
+     */
+    @Test
+    public void sharedLogKeepsResultsOfAllStores() {
+        final HandleResultStore a = new HandleResultStore(file, TTL, TTL);
+        final HandleResultStore b = new HandleResultStore(file, TTL, TTL);
+        for (int i = 0; i < 1000; i++) {
+            a.put(handle(i), 200);
+            b.put(handle(1000 + i), 404);
+        }
+        a.flush();
+        b.flush();
+        a.close();
+        /* b still appends to the log, that a has replaced */
+        b.put(handle(2000), 410);
+        b.flush();
+        a.put(handle(2001), 200);
+        b.close();
+        a.close();
+
+        final HandleResultStore restored =
+                new HandleResultStore(file, TTL, TTL);
+        assertEquals(2002, restored.size());
+        assertEquals(200, restored.get(handle(0)));
+        assertEquals(404, restored.get(handle(1999)));
+        assertEquals(410, restored.get(handle(2000)));
+        assertEquals(200, restored.get(handle(2001)));
+        assertEquals(HEADER_SIZE + 2002 * RECORD_SIZE, file.length());
+        final File[] files = directory.listFiles();
+        for (File f : files) {
+            assertTrue("leftover file " + f, f.equals(file) ||
+                    f.getName().equals(file.getName() + ".lock"));
+        }
+    }
+
+
+    @Test
+    public void clearRemovesPersistedResults() {
+        final HandleResultStore store = new HandleResultStore(file, TTL, TTL);
+        store.put(handle(1), 200);
+        store.clear();
+        assertEquals(0, store.size());
+        assertEquals(0, new HandleResultStore(file, TTL, TTL).size());
+    }
+
+
+    private static URI handle(int i) {
+        return URI.create("http://hdl.handle.net/11858/abc-" + i);
+    }
+
+} // class HandleResultStoreTest
@@ -0,0 +1,195 @@
+/**
+ * This software is copyright (c) 2014 by
+ *  - Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ * This is free software. You can redistribute it
+ * and/or modify it under the terms described in
+ * the GNU General Public License v3 of which you
+ * should have received a copy. Otherwise you can download
+ * it from
+ *
+ *   http://www.gnu.org/licenses/gpl-3.0.txt
+ *
+ * @copyright Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ *
+ * @license http://www.gnu.org/licenses/gpl-3.0.txt
+ *  GNU General Public License v3
+ */
+package eu.clarin.cmdi.validator.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+
+public class HandleResultTableTest {
+    private static final int KEY_COUNT    = 20000;
+    private static final int ROUNDS       = 50;
+    private static final int READER_COUNT = 4;
+    private static final int CHUNK_CAPACITY = 64;
+
+
+    @Test
+    public void putAndGet() {
+        final HandleResultTable table = new HandleResultTable(1, false);
+        for (int i = 1; i <= 1000; i++) {
+            table.put(key(i), value(i));
+        }
+        table.put(key(1), 42);
+        assertEquals(1000, table.size());
+        assertEquals(42, table.get(key(1)));
+        for (int i = 2; i <= 1000; i++) {
+            assertEquals(value(i), table.get(key(i)));
+        }
+        assertEquals(0, table.get(key(1001)));
+        table.clear();
+        assertEquals(0, table.size());
+        assertEquals(0, table.get(key(2)));
+    }
+
+
+    @Test
+    public void concurrentGetWhileResizing() throws InterruptedException {
+        for (int round = 0; round < ROUNDS; round++) {
+            runConcurrentGetWhileResizing(false, 1 << 26);
+        }
+    }
+
+
+    @Test
+    public void concurrentGetWhileResizingOffHeap()
+            throws InterruptedException {
+        for (int round = 0; round < ROUNDS; round++) {
+            runConcurrentGetWhileResizing(true, 1 << 26);
+        }
+    }
+
+
+    @Test
+    public void concurrentGetWhileResizingChunked()
+            throws InterruptedException {
+        for (int round = 0; round < ROUNDS; round++) {
+            runConcurrentGetWhileResizing(true, CHUNK_CAPACITY);
+        }
+    }
+
+
+    /*
+     * Off-heap slots are split into chunks; with small chunks, a table
+     * spans many of them without needing gigabytes of memory.
+     */
+    @Test
+    public void offHeapTableGrowsPastChunkCapacity() {
+        final HandleResultTable table =
+                new HandleResultTable(1, true, CHUNK_CAPACITY);
+        for (int i = 1; i <= KEY_COUNT; i++) {
+            table.put(key(i), value(i));
+        }
+        assertEquals(KEY_COUNT, table.size());
+        for (int i = 1; i <= KEY_COUNT; i++) {
+            assertEquals(value(i), table.get(key(i)));
+        }
+        assertEquals(0, table.get(key(KEY_COUNT + 1)));
+        final long[] sum = new long[2];
+        table.forEach(new HandleResultTable.Visitor() {
+            @Override
+            public void visit(long key, long value) {
+                sum[0]++;
+                sum[1] += value;
+            }
+        });
+        assertEquals(KEY_COUNT, sum[0]);
+        assertEquals((long) KEY_COUNT * (KEY_COUNT + 1) / 2, sum[1]);
+        table.clear();
+        assertEquals(0, table.size());
+        assertEquals(0, table.get(key(1)));
+    }
+
+
+    /*
+     * A writer fills a table, that starts with the smallest capacity, so
+     * it grows many times, while readers look up keys, that have been
+     * written already (must be found) or not yet (must either be missing
+     * or have the correct value). Small tables grow most often, so the
+     * round is repeated rather than using more keys.
+     */
+    private static void runConcurrentGetWhileResizing(boolean offHeap,
+            int maxChunkCapacity) throws InterruptedException {
+        final HandleResultTable table =
+                new HandleResultTable(1, offHeap, maxChunkCapacity);
+        final AtomicLong written = new AtomicLong();
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicReference<Throwable> failure =
+                new AtomicReference<Throwable>();
+        final CountDownLatch started = new CountDownLatch(READER_COUNT);
+        final Thread[] readers = new Thread[READER_COUNT];
+        for (int r = 0; r < READER_COUNT; r++) {
+            final long seed = r;
+            readers[r] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    final Random random = new Random(seed);
+                    started.countDown();
+                    try {
+                        while (!done.get()) {
+                            final long n = written.get();
+                            if (n > 0) {
+                                final int i = 1 + random.nextInt((int) n);
+                                final long value = table.get(key(i));
+                                if (value != value(i)) {
+                                    throw new AssertionError("key " + i +
+                                            ": expected " + value(i) +
+                                            " but was " + value);
+                                }
+                            }
+                            final int j = 1 + random.nextInt(KEY_COUNT);
+                            final long value = table.get(key(j));
+                            if ((value != 0) && (value != value(j))) {
+                                throw new AssertionError("key " + j +
+                                        ": unexpected value " + value);
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            });
+            readers[r].start();
+        }
+
+        started.await();
+        try {
+            for (int i = 1; i <= KEY_COUNT; i++) {
+                table.put(key(i), value(i));
+                written.set(i);
+            }
+        } finally {
+            done.set(true);
+            for (Thread reader : readers) {
+                reader.join();
+            }
+        }
+        assertNull("reader failed: " + failure.get(), failure.get());
+        assertEquals(KEY_COUNT, table.size());
+        for (int i = 1; i <= KEY_COUNT; i++) {
+            assertEquals(value(i), table.get(key(i)));
+        }
+    }
+
+
+    private static long key(int i) {
+        return i * 0x9E3779B97F4A7C15L;
+    }
+
+
+    private static long value(int i) {
+        return i;
+    }
+
+} // class HandleResultTableTest
@@ -20,11 +20,20 @@ import humanize.Humanize;
 
 import java.io.File;
 import java.io.FileFilter;
+import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+
 import net.java.truevfs.access.TFile;
 import net.java.truevfs.access.TVFS;
 import net.java.truevfs.kernel.spec.FsSyncException;
@@ -42,6 +51,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import eu.clarin.cmdi.validator.ThreadedCMDIValidatorProcessor;
+import eu.clarin.cmdi.validator.CMDISchemaLoader;
 import eu.clarin.cmdi.validator.CMDIValidator;
 import eu.clarin.cmdi.validator.CMDIValidatorConfig;
 import eu.clarin.cmdi.validator.CMDIValidatorException;
@@ -51,13 +61,23 @@ import eu.clarin.cmdi.validator.CMDIValidationReport;
 import eu.clarin.cmdi.validator.CMDIValidationReport.Message;
 import eu.clarin.cmdi.validator.CMDIValidationReport.Severity;
 import eu.clarin.cmdi.validator.extensions.CheckHandlesExtension;
+import eu.clarin.cmdi.validator.metrics.MetricsHttpServer;
+import eu.clarin.cmdi.validator.metrics.ValidatorMetrics;
+import eu.clarin.cmdi.validator.report.ErrorSignatureAggregator;
+import eu.clarin.cmdi.validator.report.ReportFormat;
+import eu.clarin.cmdi.validator.report.ReportSink;
 import eu.clarin.cmdi.validator.utils.HandleResolver;
+import eu.clarin.cmdi.validator.utils.LatencyHistogram;
+import eu.clarin.cmdi.validator.utils.SchemaLocationCatalog;
+import eu.clarin.cmdi.validator.utils.TarStreamReader;
 
 
 public class CMDIValidatorTool {
     private static final String PRG_NAME                   = "cmdi-validator";
     private static final long DEFAULT_PROGRESS_INTERVAL    = 15000;
     private static final Locale LOCALE                     = Locale.ENGLISH;
+    private static final String STDIN_PATH                 = "-";
+    private static final String STDIN_NAME                 = "stdin";
     private static final String OPT_DEBUG                  = "d";
     private static final String OPT_DEBUG_TRACE            = "D";
     private static final String OPT_QUIET                  = "q";
@@ -66,11 +86,34 @@ public class CMDIValidatorTool {
     private static final String OPT_NO_THREADS             = "T";
     private static final String OPT_NO_ESTIMATE            = "E";
     private static final String OPT_SCHEMA_CACHE_DIR       = "c";
+    private static final String OPT_SCHEMA_CATALOG         = "C";
+    private static final String OPT_SCHEMA_CACHE_SIZE      = "z";
     private static final String OPT_NO_SCHEMATRON          = "S";
     private static final String OPT_SCHEMATRON_FILE        = "s";
     private static final String OPT_FILENAME_FILTER        = "F";
     private static final String OPT_CHECK_PIDS             = "p";
     private static final String OPT_CHECK_AND_RESOLVE_PIDS = "P";
+    private static final String OPT_PREFETCH_PIDS          = "W";
+    private static final String OPT_PID_RESOLUTION         = "R";
+    private static final String OPT_PARALLEL_STAGES        = "J";
+    private static final String OPT_DIRECT_ARCHIVE         = "direct-archive";
+    private static final String OPT_REPORT_JSONL           = "report-jsonl";
+    private static final String OPT_REPORT_JUNIT           = "report-junit";
+    private static final String OPT_REPORT_SVRL            = "report-svrl";
+    private static final String OPT_ERROR_SUMMARY          = "error-summary";
+    private static final String OPT_METRICS_PORT           = "metrics-port";
+    private static final String OPT_BENCHMARK              = "benchmark";
+    private static final String OPT_BENCHMARK_RUNS         = "benchmark-runs";
+    private static final int DEFAULT_BENCHMARK_RUNS        = 3;
+    private static final int PREFETCH_MAX_CONCURRENT_REQUESTS = 32;
+    private static final int PREFETCH_MAX_REQUESTS_PER_HOST   = 16;
+    private static final int MAX_HOST_STATISTICS              = 25;
+    private static final int MAX_ERROR_SIGNATURES             = 25;
+    private static final int MAX_ERROR_GROUPS                 = 10;
+    private static final String[] BENCHMARK_STAGES = {
+        "file_seconds", "stage_parse_seconds", "stage_schematron_seconds",
+        "stage_extension_seconds"
+    };
     private static final Logger logger =
             LoggerFactory.getLogger(CMDIValidatorTool.class);
     private static final org.apache.log4j.ConsoleAppender appender;
@@ -87,11 +130,24 @@ public class CMDIValidatorTool {
         boolean estimate            = true;
         long progressInterval       = DEFAULT_PROGRESS_INTERVAL;
         File schemaCacheDir         = null;
+        File schemaCatalogFile      = null;
+        long schemaCacheSize        = -1;
         boolean disableSchematron   = false;
         File schematronFile         = null;
         FileFilter fileFilter       = null;
         boolean checkPids           = false;
         boolean checkAndResolvePids = false;
+        boolean prefetchPids        = false;
+        HandleResolver.Strategy pidResolution =
+                HandleResolver.Strategy.FOLLOW_REDIRECTS;
+        boolean parallelStages      = false;
+        boolean directArchive       = false;
+        boolean errorSummary        = false;
+        int metricsPort             = -1;
+        int[] benchmarkThreadCounts = null;
+        int benchmarkRuns           = DEFAULT_BENCHMARK_RUNS;
+        final Map<ReportFormat, File> reportFiles =
+                new EnumMap<ReportFormat, File>(ReportFormat.class);
 
         /*
          * setup command line parser
@@ -116,6 +172,28 @@ public class CMDIValidatorTool {
             if (line.hasOption(OPT_CHECK_PIDS) && line.hasOption(OPT_CHECK_AND_RESOLVE_PIDS)) {
                 throw new ParseException("The -p and -P options are mutually exclusive");
             }
+            if (line.hasOption(OPT_PREFETCH_PIDS) && !line.hasOption(OPT_CHECK_AND_RESOLVE_PIDS)) {
+                throw new ParseException("The -W option requires the -P option");
+            }
+            if (line.hasOption(OPT_PID_RESOLUTION) && !line.hasOption(OPT_CHECK_AND_RESOLVE_PIDS)) {
+                throw new ParseException("The -R option requires the -P option");
+            }
+            if (line.hasOption(OPT_BENCHMARK) &&
+                    (line.hasOption(OPT_THREAD_COUNT) || line.hasOption(OPT_NO_THREADS))) {
+                throw new ParseException("The --benchmark option and the -t and -T options are mutually exclusive");
+            }
+            if (line.hasOption(OPT_BENCHMARK) &&
+                    (line.hasOption(OPT_PREFETCH_PIDS) ||
+                     line.hasOption(OPT_REPORT_JSONL) ||
+                     line.hasOption(OPT_REPORT_JUNIT) ||
+                     line.hasOption(OPT_REPORT_SVRL) ||
+                     line.hasOption(OPT_ERROR_SUMMARY) ||
+                     line.hasOption(OPT_METRICS_PORT))) {
+                throw new ParseException("The --benchmark option cannot be combined with -W, --report-*, --error-summary or --metrics-port");
+            }
+            if (line.hasOption(OPT_BENCHMARK_RUNS) && !line.hasOption(OPT_BENCHMARK)) {
+                throw new ParseException("The --benchmark-runs option requires the --benchmark option");
+            }
 
             // extract options
             if (line.hasOption(OPT_DEBUG)) {
@@ -159,6 +237,22 @@ public class CMDIValidatorTool {
                 }
                 schemaCacheDir = new File(dir);
             }
+            if (line.hasOption(OPT_SCHEMA_CACHE_SIZE)) {
+                schemaCacheSize = parseSize(
+                        line.getOptionValue(OPT_SCHEMA_CACHE_SIZE));
+                if (schemaCacheSize < 1) {
+                    throw new ParseException("invalid argument for -" +
+                            OPT_SCHEMA_CACHE_SIZE);
+                }
+            }
+            if (line.hasOption(OPT_SCHEMA_CATALOG)) {
+                String name = line.getOptionValue(OPT_SCHEMA_CATALOG);
+                if ((name == null) || name.isEmpty()) {
+                    throw new ParseException("invalid argument for -" +
+                            OPT_SCHEMA_CATALOG);
+                }
+                schemaCatalogFile = new File(name);
+            }
             if (line.hasOption(OPT_NO_SCHEMATRON)) {
                 disableSchematron = true;
             }
@@ -190,12 +284,82 @@ public class CMDIValidatorTool {
             if (line.hasOption(OPT_CHECK_AND_RESOLVE_PIDS)) {
                 checkAndResolvePids = true;
             }
+            if (line.hasOption(OPT_PREFETCH_PIDS)) {
+                prefetchPids = true;
+            }
+            if (line.hasOption(OPT_PID_RESOLUTION)) {
+                final String value = line.getOptionValue(OPT_PID_RESOLUTION);
+                if ("follow".equals(value)) {
+                    pidResolution = HandleResolver.Strategy.FOLLOW_REDIRECTS;
+                } else if ("first-redirect".equals(value)) {
+                    pidResolution = HandleResolver.Strategy.FIRST_REDIRECT;
+                } else if ("api".equals(value)) {
+                    pidResolution = HandleResolver.Strategy.HANDLE_API;
+                } else {
+                    throw new ParseException("invalid argument for -" +
+                            OPT_PID_RESOLUTION);
+                }
+            }
+            if (line.hasOption(OPT_PARALLEL_STAGES)) {
+                parallelStages = true;
+            }
+            if (line.hasOption(OPT_DIRECT_ARCHIVE)) {
+                directArchive = true;
+            }
+            parseReportFile(line, OPT_REPORT_JSONL, ReportFormat.JSON_LINES,
+                    reportFiles);
+            parseReportFile(line, OPT_REPORT_JUNIT, ReportFormat.JUNIT_XML,
+                    reportFiles);
+            parseReportFile(line, OPT_REPORT_SVRL, ReportFormat.SVRL,
+                    reportFiles);
+            if (line.hasOption(OPT_ERROR_SUMMARY)) {
+                errorSummary = true;
+            }
+            if (line.hasOption(OPT_METRICS_PORT)) {
+                try {
+                    metricsPort = Integer.parseInt(
+                            line.getOptionValue(OPT_METRICS_PORT));
+                    if ((metricsPort < 0) || (metricsPort > 65535)) {
+                        throw new ParseException("invalid argument for --" +
+                                OPT_METRICS_PORT);
+                    }
+                } catch (NumberFormatException e) {
+                    throw new ParseException("invalid number");
+                }
+            }
+            if (line.hasOption(OPT_BENCHMARK)) {
+                benchmarkThreadCounts = parseThreadCounts(
+                        line.getOptionValue(OPT_BENCHMARK));
+                /* progress is not reported when benchmarking */
+                estimate = false;
+            }
+            if (line.hasOption(OPT_BENCHMARK_RUNS)) {
+                try {
+                    benchmarkRuns = Integer.parseInt(
+                            line.getOptionValue(OPT_BENCHMARK_RUNS));
+                    if (benchmarkRuns < 1) {
+                        throw new ParseException("invalid argument for --" +
+                                OPT_BENCHMARK_RUNS);
+                    }
+                } catch (NumberFormatException e) {
+                    throw new ParseException("invalid number");
+                }
+            }
 
             final String[] remaining = line.getArgs();
             if ((remaining == null) || (remaining.length == 0)) {
-                throw new ParseException("require <DIRECTORY> or <FILE> as " +
+                throw new ParseException("require <DIRECTORY>, <FILE> or " +
+                        "\"-\" (tar archive on standard input) as " +
                         "additional command line parameter");
             }
+            final boolean stdin = STDIN_PATH.equals(remaining[0]);
+            if (prefetchPids &&
+                    (stdin || TarStreamReader.isTarArchive(remaining[0]))) {
+                throw new ParseException("The -W option cannot be used with a tar archive");
+            }
+            if (stdin && (benchmarkThreadCounts != null)) {
+                throw new ParseException("The --benchmark option cannot be used with standard input");
+            }
 
             final org.apache.log4j.Logger log =
                     org.apache.log4j.Logger.getLogger(
@@ -217,10 +381,20 @@ public class CMDIValidatorTool {
             }
 
             TFile archive = null;
+            final List<ReportSink> sinks = new ArrayList<ReportSink>();
+            final ValidatorMetrics metrics = new ValidatorMetrics();
+            MetricsHttpServer metricsServer = null;
             try {
                 if (schemaCacheDir != null) {
                     logger.info("using schema cache directory: {}", schemaCacheDir);
                 }
+                if (schemaCacheSize > 0) {
+                    logger.info("limiting schema cache size to {}",
+                            Humanize.binaryPrefix(schemaCacheSize, LOCALE));
+                }
+                if (schemaCatalogFile != null) {
+                    logger.info("using schema catalog from file: {}", schemaCatalogFile);
+                }
                 if (schematronFile != null) {
                     logger.info("using Schematron schema from file: {}", schematronFile);
                 }
@@ -228,32 +402,81 @@ public class CMDIValidatorTool {
                 /*
                  * process archive
                  */
-                archive = new TFile(remaining[0]);
-                if (archive.exists()) {
-                    if (archive.isArchive()) {
+                archive = new TFile(stdin ? STDIN_NAME : remaining[0]);
+                if (stdin || archive.exists()) {
+                    if (stdin) {
+                        logger.info("reading tar archive from standard input");
+                    } else if (archive.isArchive() ||
+                            TarStreamReader.isTarArchive(archive.getName())) {
                         logger.info("reading archive '{}'", archive);
                     } else {
                         logger.info("reading directory '{}'", archive);
                     }
 
-                    int totalFileCount = -1;
-                    if (estimate && logger.isInfoEnabled()) {
-                        logger.debug("counting files ...");
-                        totalFileCount = countFiles(archive, fileFilter);
-                    }
-
                     if (threadCount > 1) {
                       logger.debug("using {} threads", threadCount);
                     }
 
 
-                    final Handler handler = new Handler(verbose);
+                    for (Map.Entry<ReportFormat, File> entry :
+                            reportFiles.entrySet()) {
+                        final File file = entry.getValue();
+                        logger.info("writing reports to file: {}", file);
+                        try {
+                            sinks.add(ReportSink.open(file, entry.getKey(),
+                                    file.getName().endsWith(".gz")));
+                        } catch (IOException e) {
+                            throw new CMDIValidatorInitException(
+                                    "error opening report file '" + file +
+                                    "': " + e.getMessage(), e);
+                        }
+                    }
+
+                    final ErrorSignatureAggregator aggregator = errorSummary
+                            ? new ErrorSignatureAggregator()
+                            : null;
+                    final Handler handler =
+                            new Handler(verbose, sinks, aggregator);
+
+                    try {
+                        metrics.registerMBean(PRG_NAME);
+                    } catch (JMException e) {
+                        logger.warn("error registering metrics MBean: {}",
+                                e.getMessage());
+                    }
+                    if (metricsPort != -1) {
+                        try {
+                            metricsServer =
+                                    new MetricsHttpServer(metrics, metricsPort);
+                            logger.info("serving metrics at http://localhost:{}{}",
+                                    metricsServer.getPort(),
+                                    MetricsHttpServer.PATH);
+                        } catch (IOException e) {
+                            throw new CMDIValidatorInitException(
+                                    "error starting metrics endpoint: " +
+                                    e.getMessage(), e);
+                        }
+                    }
 
                     final CMDIValidatorConfig.Builder builder =
                             new CMDIValidatorConfig.Builder(archive, handler);
+                    builder.metrics(metrics);
                     if (schemaCacheDir != null) {
                         builder.schemaCacheDirectory(schemaCacheDir);
                     }
+                    if (schemaCacheSize > 0) {
+                        builder.schemaCacheMaxSize(schemaCacheSize);
+                    }
+                    if (schemaCatalogFile != null) {
+                        try {
+                            builder.schemaLocationCanonicalizer(
+                                    SchemaLocationCatalog.load(schemaCatalogFile));
+                        } catch (IOException e) {
+                            throw new CMDIValidatorInitException(
+                                    "error loading schema catalog: " +
+                                            e.getMessage(), e);
+                        }
+                    }
                     if (schematronFile != null) {
                         builder.schematronSchemaFile(schematronFile);
                     }
@@ -263,6 +486,17 @@ public class CMDIValidatorTool {
                     if (fileFilter != null) {
                         builder.fileFilter(fileFilter);
                     }
+                    if (parallelStages) {
+                        builder.parallelStages(true);
+                    }
+                    if (directArchive) {
+                        builder.directArchiveAccess(true);
+                    }
+                    if (stdin) {
+                        builder.inputStream(System.in);
+                    }
+                    /* only the message texts are reported */
+                    builder.retainMessageCauses(false);
 
                     CheckHandlesExtension checkHandleExtension = null;
                     if (checkPids || checkAndResolvePids) {
@@ -271,17 +505,60 @@ public class CMDIValidatorTool {
                         } else {
                             logger.info("enabling PID validation (syntax only)");
                         }
-                        checkHandleExtension =
-                                new CheckHandlesExtension(checkAndResolvePids);
+                        File handleCacheDir = null;
+                        if (checkAndResolvePids) {
+                            handleCacheDir = (schemaCacheDir != null)
+                                    ? schemaCacheDir
+                                    : CMDIValidator.getDefaultCacheDirectory();
+                            logger.debug("persisting PID resolution results in directory '{}'",
+                                    handleCacheDir);
+                        }
+                        if (prefetchPids) {
+                            checkHandleExtension =
+                                    new CheckHandlesExtension(true,
+                                            handleCacheDir,
+                                            PREFETCH_MAX_CONCURRENT_REQUESTS,
+                                            PREFETCH_MAX_REQUESTS_PER_HOST,
+                                            pidResolution);
+                        } else {
+                            checkHandleExtension =
+                                    new CheckHandlesExtension(checkAndResolvePids,
+                                            handleCacheDir,
+                                            HandleResolver.DEFAULT_MAX_CONCURRENT_REQUESTS,
+                                            HandleResolver.DEFAULT_MAX_REQUESTS_PER_HOST,
+                                            pidResolution);
+                        }
                         builder.extension(checkHandleExtension);
                     }
 
+                    if (benchmarkThreadCounts != null) {
+                        try {
+                            runBenchmark(builder, archive,
+                                    benchmarkThreadCounts, benchmarkRuns);
+                        } finally {
+                            if (checkHandleExtension != null) {
+                                checkHandleExtension.close();
+                            }
+                        }
+                        return;
+                    }
+
                     final ThreadedCMDIValidatorProcessor processor =
                             new ThreadedCMDIValidatorProcessor(threadCount);
+                    processor.registerMetrics(metrics);
                     processor.start();
+                    CMDIValidator validator = null;
                     try {
-                        final CMDIValidator validator =
-                                new CMDIValidator(builder.build());
+                        validator = new CMDIValidator(builder.build());
+                        if (prefetchPids) {
+                            logger.info("resolving PIDs of all files before validation ...");
+                            final long started = System.currentTimeMillis();
+                            final int count =
+                                    checkHandleExtension.prefetch(archive, fileFilter);
+                            logger.info("resolved {} distinct PIDs in {}",
+                                    count,
+                                    Humanize.duration((System.currentTimeMillis() - started) / 1000, LOCALE));
+                        }
                         processor.process(validator);
 
                         /*
@@ -310,10 +587,14 @@ public class CMDIValidatorTool {
                                     }
                                     count = handler.getTotalFileCount();
                                 } // synchronized (result)
+                                final long totalFileCount = estimate
+                                        ? validator.getEstimatedFileCount()
+                                        : -1;
                                 if (totalFileCount > 0) {
                                     float complete = (count / (float)  totalFileCount) * 100f;
-                                    logger.info("processed {} files ({}%) in {} ({} files/second, {}/second) ...",
+                                    logger.info("processed {} files ({}{}%) in {} ({} files/second, {}/second) ...",
                                             count,
+                                            (validator.isFileCountExact() ? "" : "~"),
                                             String.format(LOCALE, "%.2f", complete),
                                             Humanize.duration(delta, LOCALE),
                                             ((fps != -1) ? fps : "N/A"),
@@ -328,20 +609,20 @@ public class CMDIValidatorTool {
                                 if (logger.isDebugEnabled()) {
                                     if ((checkHandleExtension != null) &&
                                             checkHandleExtension.isResolvingHandles()) {
-                                        final HandleResolver.Statistics stats =
-                                                checkHandleExtension.getStatistics();
-                                        logger.debug("[handle resolver stats] total requests: {}, running requests: {}, cache hits: {}, cache misses: {}, current cache size: {}",
-                                                stats.getTotalRequestsCount(),
-                                                stats.getCurrentRequestsCount(),
-                                                stats.getCacheHitCount(),
-                                                stats.getCacheMissCount(),
-                                                stats.getCurrentCacheSize());
+                                        logHandleResolverStatistics(
+                                                checkHandleExtension.getStatistics(),
+                                                false);
                                     }
+                                    logSchemaLoaderStatistics(
+                                            validator.getSchemaLoader());
                                 }
                             }
                         } // for (;;)
                     } finally {
                         processor.shutdown();
+                        if (checkHandleExtension != null) {
+                            checkHandleExtension.close();
+                        }
                     }
 
                     int fps = -1;
@@ -360,12 +641,35 @@ public class CMDIValidatorTool {
                             Humanize.binaryPrefix(handler.getTotalBytes(), LOCALE),
                             ((fps != -1) ? fps : "N/A"),
                             ((bps != -1) ? Humanize.binaryPrefix(bps, LOCALE) : "N/A MB"));
+                    if (aggregator != null) {
+                        logErrorSummary(aggregator);
+                    }
+                    if ((validator != null) && logger.isDebugEnabled()) {
+                        logSchemaLoaderStatistics(validator.getSchemaLoader());
+                        if ((checkHandleExtension != null) &&
+                                checkHandleExtension.isResolvingHandles()) {
+                            logHandleResolverStatistics(
+                                    checkHandleExtension.getStatistics(), true);
+                        }
+                    }
                     logger.debug("... done");
                 } else {
                     logger.error("not found: {}", archive);
                 }
             } finally {
-                if (archive != null) {
+                if (metricsServer != null) {
+                    metricsServer.stop();
+                }
+                metrics.unregisterMBean();
+                for (ReportSink sink : sinks) {
+                    try {
+                        sink.close();
+                    } catch (IOException e) {
+                        logger.error("error writing reports: {}",
+                                e.getMessage());
+                    }
+                }
+                if ((archive != null) && !stdin) {
                     try {
                         TVFS.umount(archive);
                     } catch (FsSyncException e) {
@@ -436,7 +740,7 @@ public class CMDIValidatorTool {
         options.addOptionGroup(g2);
         options.addOption(Option.builder(OPT_NO_ESTIMATE)
                 .longOpt("no-estimate")
-                .desc("disable gathering of total file count for progress reporting")
+                .desc("disable estimating the total file count for progress reporting")
                 .build());
         options.addOption(Option.builder(OPT_SCHEMA_CACHE_DIR)
                 .hasArg()
@@ -444,6 +748,18 @@ public class CMDIValidatorTool {
                 .longOpt("schema-cache-dir")
                 .desc("schema caching directory")
                 .build());
+        options.addOption(Option.builder(OPT_SCHEMA_CACHE_SIZE)
+                .hasArg()
+                .argName("SIZE")
+                .longOpt("schema-cache-size")
+                .desc("maximum size of the schema cache (suffixes K, M and G are supported)")
+                .build());
+        options.addOption(Option.builder(OPT_SCHEMA_CATALOG)
+                .hasArg()
+                .argName("FILE")
+                .longOpt("schema-catalog")
+                .desc("load schema location rewrite rules from an OASIS XML catalog file")
+                .build());
         OptionGroup g3 = new OptionGroup();
         g3.addOption(Option.builder(OPT_NO_SCHEMATRON)
                 .longOpt("no-schematron")
@@ -472,32 +788,500 @@ public class CMDIValidatorTool {
                 .desc("check persistent identifiers syntax and if they resolve properly")
                 .build());
         options.addOptionGroup(g4);
+        options.addOption(Option.builder(OPT_PREFETCH_PIDS)
+                .longOpt("prefetch-pids")
+                .desc("resolve the persistent identifiers of all files in bulk before validating (requires -P)")
+                .build());
+        options.addOption(Option.builder(OPT_PID_RESOLUTION)
+                .longOpt("pid-resolution")
+                .hasArg()
+                .argName("MODE")
+                .desc("how to resolve persistent identifiers: 'follow' redirects to the resource (default), stop at the 'first-redirect' or query the handle 'api' (requires -P)")
+                .build());
+        options.addOption(Option.builder(OPT_PARALLEL_STAGES)
+                .longOpt("parallel-stages")
+                .desc("run Schematron validation and PID checks of a file concurrently")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt(OPT_DIRECT_ARCHIVE)
+                .desc("read a ZIP archive directly and inflate its entries in parallel instead of mounting it")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt(OPT_REPORT_JSONL)
+                .hasArg()
+                .argName("FILE")
+                .desc("write reports as JSON Lines to a file (gzip compressed, if the name ends with '.gz')")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt(OPT_REPORT_JUNIT)
+                .hasArg()
+                .argName("FILE")
+                .desc("write reports as JUnit XML to a file (gzip compressed, if the name ends with '.gz')")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt(OPT_REPORT_SVRL)
+                .hasArg()
+                .argName("FILE")
+                .desc("write reports as merged SVRL to a file (gzip compressed, if the name ends with '.gz')")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt(OPT_ERROR_SUMMARY)
+                .desc("print the most frequent errors and warnings by profile at the end")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt(OPT_METRICS_PORT)
+                .hasArg()
+                .argName("PORT")
+                .desc("serve metrics in Prometheus text format at http://localhost:PORT/metrics while validating")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt(OPT_BENCHMARK)
+                .hasArg()
+                .argName("THREADS")
+                .desc("validate the input repeatedly with each of a comma separated list of thread counts and print a table of cold start costs and steady-state throughput")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt(OPT_BENCHMARK_RUNS)
+                .hasArg()
+                .argName("COUNT")
+                .desc("number of measured runs per thread count (default: " + DEFAULT_BENCHMARK_RUNS + ", requires --benchmark)")
+                .build());
         return options;
     }
 
 
-    private static final int countFiles(TFile directory,
-            FileFilter fileFilter) {
-        int count = 0;
-        final TFile[] entries = directory.listFiles();
-        if ((entries != null) && (entries.length > 0)) {
-            for (TFile entry : entries) {
-                if (entry.isDirectory()) {
-                    count += countFiles(entry, fileFilter);
-                } else {
-                    if ((fileFilter != null) && !fileFilter.accept(entry)) {
-                        continue;
-                    }
-                    count++;
+    private static void parseReportFile(CommandLine line, String option,
+            ReportFormat format, Map<ReportFormat, File> reportFiles)
+            throws ParseException {
+        if (line.hasOption(option)) {
+            final String name = line.getOptionValue(option);
+            if ((name == null) || name.isEmpty()) {
+                throw new ParseException("invalid argument for --" + option);
+            }
+            reportFiles.put(format, new File(name));
+        }
+    }
+
+
+    private static int[] parseThreadCounts(String value)
+            throws ParseException {
+        if ((value == null) || value.isEmpty()) {
+            throw new ParseException("invalid argument for --" +
+                    OPT_BENCHMARK);
+        }
+        final String[] items = value.split(",");
+        final int[] result = new int[items.length];
+        for (int i = 0; i < items.length; i++) {
+            try {
+                result[i] = Integer.parseInt(items[i].trim());
+            } catch (NumberFormatException e) {
+                throw new ParseException("invalid number: " + items[i]);
+            }
+            if (result[i] < 1) {
+                throw new ParseException(
+                        "thread count must be larger then 0");
+            }
+        }
+        return result;
+    }
+
+
+    /*
+     * Validate the input over and over again in one JVM. The first run is
+     * reported separately, because it includes the cold start costs: class
+     * loading and JIT compilation, Saxon initialization and Schematron
+     * compilation ("init"), as well as schema downloads. The validator is
+     * single-use, so every run creates a new one; the schema cache, the
+     * persistent PID store and the JVM stay warm, but grammars are compiled
+     * again from the schema cache by each worker thread (see "gp-misses").
+     */
+    private static void runBenchmark(CMDIValidatorConfig.Builder builder,
+            TFile root, int[] threadCounts, int runs)
+            throws CMDIValidatorException, CMDIValidatorInitException {
+        logger.info("[benchmark] cold run with {} threads ...",
+                threadCounts[0]);
+        final BenchmarkResult cold = new BenchmarkResult("cold",
+                threadCounts[0]);
+        runBenchmark(builder, root, cold);
+
+        final List<BenchmarkResult> results =
+                new ArrayList<BenchmarkResult>(threadCounts.length + 1);
+        results.add(cold);
+        for (int threads : threadCounts) {
+            final BenchmarkResult result =
+                    new BenchmarkResult("warm", threads);
+            for (int i = 0; i < runs; i++) {
+                logger.info("[benchmark] warm run {} of {} with {} threads ...",
+                        (i + 1), runs, threads);
+                runBenchmark(builder, root, result);
+            }
+            results.add(result);
+        }
+
+        logger.info("[benchmark] {}", String.format(LOCALE,
+                "%-5s %7s %4s %8s %8s %9s %8s %7s %9s %9s %17s %17s %17s %17s",
+                "phase", "threads", "runs", "init(ms)", "time(s)", "files/s",
+                "MiB/s", "speedup", "downloads", "gp-misses",
+                "file p50/p99", "parse p50/p99", "schematron p50/p99",
+                "ext p50/p99"));
+        double baseline = -1;
+        for (BenchmarkResult result : results) {
+            final double fps = result.getFilesPerSecond();
+            String speedup = "-";
+            if (result != cold) {
+                if (baseline < 0) {
+                    baseline = fps;
                 }
+                speedup = String.format(LOCALE, "%.2fx",
+                        (baseline > 0) ? (fps / baseline) : 0.0);
+            }
+            final StringBuilder line = new StringBuilder();
+            line.append(String.format(LOCALE,
+                    "%-5s %7d %4d %8.1f %8.2f %9.1f %8.2f %7s %9d %9d",
+                    result.phase,
+                    result.threads,
+                    result.runs,
+                    result.getInitMillis(),
+                    result.getSeconds(),
+                    fps,
+                    result.getBytesPerSecond() / (1024.0 * 1024.0),
+                    speedup,
+                    result.downloads / result.runs,
+                    result.grammars / result.runs));
+            for (int i = 0; i < BENCHMARK_STAGES.length; i++) {
+                line.append(String.format(LOCALE, " %17s",
+                        formatPercentiles(result.stages[i])));
             }
+            logger.info("[benchmark] {}", line);
+        }
+        logger.info("[benchmark] medians of {} runs per thread count; " +
+                "downloads and grammar pool misses (gp-misses) per run; " +
+                "latencies in ms", runs);
+    }
+
+
+    private static void runBenchmark(CMDIValidatorConfig.Builder builder,
+            TFile root, BenchmarkResult result)
+            throws CMDIValidatorException, CMDIValidatorInitException {
+        final ValidatorMetrics metrics = new ValidatorMetrics();
+        builder.metrics(metrics);
+        final BenchmarkHandler handler = new BenchmarkHandler();
+        final ThreadedCMDIValidatorProcessor processor =
+                new ThreadedCMDIValidatorProcessor(result.threads);
+        processor.start();
+        try {
+            final long started = System.nanoTime();
+            final CMDIValidator validator =
+                    new CMDIValidator(builder.build(), root, handler);
+            final long initialized = System.nanoTime();
+            processor.process(validator);
+            final CMDIValidator.Result r = handler.await();
+            final long finished = System.nanoTime();
+            if (r != CMDIValidator.Result.OK) {
+                throw new CMDIValidatorException(
+                        "benchmark run did not complete: " + r);
+            }
+            result.add(initialized - started, finished - initialized,
+                    metrics);
+        } finally {
+            processor.shutdown();
+        }
+    }
+
+
+    private static String formatPercentiles(LatencyHistogram.Snapshot stage) {
+        if ((stage == null) || (stage.getCount() == 0)) {
+            return "-";
+        }
+        return String.format(LOCALE, "%.2f/%.2f",
+                stage.getPercentile(50.0, TimeUnit.MICROSECONDS) / 1000.0,
+                stage.getPercentile(99.0, TimeUnit.MICROSECONDS) / 1000.0);
+    }
+
+
+    private static void logSchemaLoaderStatistics(CMDISchemaLoader loader) {
+        final CMDISchemaLoader.Statistics stats = loader.getStatistics();
+        logger.debug("[schema loader stats] total requests: {}, hit rate: {}%, bundled hits: {}, file cache hits: {}, negative cache hits: {}, downloads: {} ({} failed, {}), pending downloads: {}, waits for pending downloads: {}, current cache size: {} ({})",
+                stats.getTotalRequestsCount(),
+                String.format(LOCALE, "%.2f", stats.getHitRate() * 100f),
+                stats.getBundledHitCount(),
+                stats.getFileCacheHitCount(),
+                stats.getNegativeCacheHitCount(),
+                stats.getDownloadCount(),
+                stats.getDownloadFailureCount(),
+                Humanize.binaryPrefix(stats.getBytesDownloaded(), LOCALE),
+                stats.getCurrentPendingCount(),
+                stats.getPendingWaitCount(),
+                stats.getCurrentCacheSize(),
+                Humanize.binaryPrefix(stats.getCurrentCacheBytes(), LOCALE));
+        if (stats.getDownloadLatency().getCount() > 0) {
+            logger.debug("[schema loader stats] download latency: {}",
+                    stats.getDownloadLatency());
+        }
+        if (stats.getPendingWaitLatency().getCount() > 0) {
+            logger.debug("[schema loader stats] pending download wait time: {}",
+                    stats.getPendingWaitLatency());
+        }
+    }
+
+
+    private static void logHandleResolverStatistics(
+            HandleResolver.Statistics stats, boolean details) {
+        logger.debug("[handle resolver stats] total requests: {}, running requests: {}, cache hits: {}, cache misses: {}, store hits: {}, coalesced: {}, fast-fails: {}, current cache size: {}, current store size: {}",
+                stats.getTotalRequestsCount(),
+                stats.getCurrentRequestsCount(),
+                stats.getCacheHitCount(),
+                stats.getCacheMissCount(),
+                stats.getStoreHitCount(),
+                stats.getCoalescedCount(),
+                stats.getFastFailCount(),
+                stats.getCurrentCacheSize(),
+                stats.getCurrentStoreSize());
+        if (!details) {
+            return;
+        }
+        if (stats.getRequestLatency().getCount() > 0) {
+            logger.debug("[handle resolver stats] request latency: {}",
+                    stats.getRequestLatency());
+            logger.debug("[handle resolver stats] queue wait time: {}",
+                    stats.getQueueWaitLatency());
+            logger.debug("[handle resolver stats] request permit wait time: {}",
+                    stats.getPermitWaitLatency());
+        }
+        final List<HandleResolver.HostStatistics> hosts =
+                stats.getHostStatistics();
+        if (hosts.isEmpty()) {
+            return;
+        }
+        logger.debug("[handle resolver stats] {}", String.format(LOCALE,
+                "%-32s %9s %9s %9s %9s %9s %8s %8s %8s %8s %8s",
+                "host", "requests", "fastfail", "timeout", "unknown",
+                "error", "failed%", "p50(ms)", "p99(ms)", "max(ms)",
+                "tmo(ms)"));
+        int count = 0;
+        for (HandleResolver.HostStatistics host : hosts) {
+            if (++count > MAX_HOST_STATISTICS) {
+                logger.debug("[handle resolver stats] ... and {} more hosts",
+                        hosts.size() - MAX_HOST_STATISTICS);
+                break;
+            }
+            final LatencyHistogram.Snapshot latency = host.getLatency();
+            logger.debug("[handle resolver stats] {}", String.format(LOCALE,
+                    "%-32s %9d %9d %9d %9d %9d %8.2f %8d %8d %8d %8d%s",
+                    abbreviate(host.getHost(), 32),
+                    host.getRequestCount(),
+                    host.getFastFailCount(),
+                    host.getTimeoutCount(),
+                    host.getUnknownHostCount(),
+                    host.getErrorCount(),
+                    host.getFailureRate() * 100f,
+                    latency.getPercentile(50.0, TimeUnit.MILLISECONDS),
+                    latency.getPercentile(99.0, TimeUnit.MILLISECONDS),
+                    latency.getMax(TimeUnit.MILLISECONDS),
+                    host.getCurrentTimeout(),
+                    (host.isCircuitOpen() ? " (not responding)" : "")));
+        }
+    }
+
+
+    private static void logErrorSummary(ErrorSignatureAggregator aggregator) {
+        if (aggregator.getMessageCount() == 0) {
+            return;
+        }
+        final List<ErrorSignatureAggregator.Group> groups =
+                aggregator.getGroups();
+        logger.info("[error summary] {}", String.format(LOCALE,
+                "%10s %-7s %s", "messages", "type", "schema location"));
+        int count = 0;
+        for (ErrorSignatureAggregator.Group group : groups) {
+            if (++count > MAX_ERROR_GROUPS) {
+                logger.info("[error summary] ... and {} more",
+                        groups.size() - MAX_ERROR_GROUPS);
+                break;
+            }
+            logger.info("[error summary] {}", String.format(LOCALE,
+                    "%10d %-7s %s",
+                    group.getCount(),
+                    group.getSeverity(),
+                    (group.getSchemaLocation() != null)
+                            ? group.getSchemaLocation() : "(unknown)"));
+        }
+
+        final List<ErrorSignatureAggregator.Signature> signatures =
+                aggregator.getSignatures();
+        logger.info("[error summary] {}", String.format(LOCALE,
+                "%10s %-7s %-40s %s", "count", "type", "schema location",
+                "message"));
+        count = 0;
+        for (ErrorSignatureAggregator.Signature signature : signatures) {
+            if (++count > MAX_ERROR_SIGNATURES) {
+                break;
+            }
+            logger.info("[error summary] {}", String.format(LOCALE,
+                    "%10s %-7s %-40s %s",
+                    ((signature.getError() > 0) ? "~" : "") +
+                            signature.getCount(),
+                    signature.getSeverity(),
+                    abbreviate((signature.getSchemaLocation() != null)
+                            ? signature.getSchemaLocation()
+                            : "(unknown)", 40),
+                    signature.getText()));
+            if (!signature.getSamples().isEmpty()) {
+                logger.info("[error summary] {}", String.format(LOCALE,
+                        "%10s %-7s %-40s e.g. %s", "", "", "",
+                        signature.getSamples()));
+            }
+        }
+    }
+
+
+    private static String abbreviate(String s, int length) {
+        if (s.length() > length) {
+            return s.substring(0, length - 3) + "...";
+        }
+        return s;
+    }
+
+
+    private static long parseSize(String value) throws ParseException {
+        if ((value == null) || value.isEmpty()) {
+            return -1;
+        }
+        long factor = 1;
+        switch (Character.toUpperCase(value.charAt(value.length() - 1))) {
+        case 'K':
+            factor = 1024L;
+            break;
+        case 'M':
+            factor = 1024L * 1024L;
+            break;
+        case 'G':
+            factor = 1024L * 1024L * 1024L;
+            break;
+        default:
+            /* no suffix */
+        } // switch
+        if (factor > 1) {
+            value = value.substring(0, value.length() - 1);
+        }
+        try {
+            return Long.parseLong(value) * factor;
+        } catch (NumberFormatException e) {
+            throw new ParseException("invalid size: " + value);
         }
-        return count;
     }
 
 
+    /*
+     * results of all runs with the same number of threads
+     */
+    private static final class BenchmarkResult {
+        private final String phase;
+        private final int threads;
+        private final List<Long> initNanos = new ArrayList<Long>();
+        private final List<Long> runNanos = new ArrayList<Long>();
+        private final List<Double> filesPerSecond = new ArrayList<Double>();
+        private final List<Double> bytesPerSecond = new ArrayList<Double>();
+        private final LatencyHistogram.Snapshot[] stages =
+                new LatencyHistogram.Snapshot[BENCHMARK_STAGES.length];
+        private int runs = 0;
+        private long downloads = 0;
+        private long grammars = 0;
+
+
+        private BenchmarkResult(String phase, int threads) {
+            this.phase   = phase;
+            this.threads = threads;
+        }
+
+
+        private void add(long init, long run, ValidatorMetrics metrics) {
+            final double seconds = run / 1e9;
+            runs++;
+            initNanos.add(init);
+            runNanos.add(run);
+            filesPerSecond.add(metrics.getValue("files_total") / seconds);
+            bytesPerSecond.add(metrics.getValue("bytes_total") / seconds);
+            downloads += (long) metrics.getValue("schema_downloads_total");
+            grammars  += (long) metrics.getValue("grammar_cache_misses_total");
+            for (int i = 0; i < BENCHMARK_STAGES.length; i++) {
+                final LatencyHistogram.Snapshot snapshot =
+                        metrics.getSnapshot(BENCHMARK_STAGES[i]);
+                stages[i] = (stages[i] != null)
+                        ? stages[i].merge(snapshot)
+                        : snapshot;
+            }
+        }
+
+
+        private double getInitMillis() {
+            return median(initNanos) / 1e6;
+        }
+
+
+        private double getSeconds() {
+            return median(runNanos) / 1e9;
+        }
+
+
+        private double getFilesPerSecond() {
+            return median(filesPerSecond);
+        }
+
+
+        private double getBytesPerSecond() {
+            return median(bytesPerSecond);
+        }
+
+
+        private static <T extends Number> double median(List<T> values) {
+            final double[] sorted = new double[values.size()];
+            for (int i = 0; i < sorted.length; i++) {
+                sorted[i] = values.get(i).doubleValue();
+            }
+            Arrays.sort(sorted);
+            final int mid = sorted.length / 2;
+            return ((sorted.length % 2) == 1)
+                    ? sorted[mid]
+                    : ((sorted[mid - 1] + sorted[mid]) / 2.0);
+        }
+    } // class BenchmarkResult
+
+
+    /*
+     * only waits for the run to finish; reports are counted by the metrics
+     */
+    private static final class BenchmarkHandler
+            extends CMDIValidationHandlerAdapter {
+        private CMDIValidator.Result result = null;
+
+
+        private synchronized CMDIValidator.Result await() {
+            while (result == null) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    /* IGNORE */
+                }
+            }
+            return result;
+        }
+
+
+        @Override
+        public synchronized void onJobFinished(
+                final CMDIValidator.Result result)
+                throws CMDIValidatorException {
+            this.result = result;
+            notifyAll();
+        }
+    } // class BenchmarkHandler
+
+
     private static class Handler extends CMDIValidationHandlerAdapter {
         private final boolean verbose;
+        private final List<ReportSink> sinks;
+        private final ErrorSignatureAggregator aggregator;
         private long started               = -1;
         private long finished              = -1;
         private AtomicInteger filesTotal   = new AtomicInteger();
@@ -507,8 +1291,11 @@ public class CMDIValidatorTool {
         private final Object waiter = new Object();
 
 
-        private Handler(boolean verbose) {
-            this.verbose = verbose;
+        private Handler(boolean verbose, List<ReportSink> sinks,
+                ErrorSignatureAggregator aggregator) {
+            this.verbose    = verbose;
+            this.sinks      = sinks;
+            this.aggregator = aggregator;
         }
 
 
@@ -604,6 +1391,17 @@ public class CMDIValidatorTool {
                 throws CMDIValidatorException {
             filesTotal.incrementAndGet();
 
+            for (ReportSink sink : sinks) {
+                try {
+                    sink.write(report);
+                } catch (IOException e) {
+                    throw new CMDIValidatorException(e.getMessage(), e);
+                }
+            }
+            if (aggregator != null) {
+                aggregator.add(report);
+            }
+
             final File file = report.getFile();
             if (file != null) {
                 totalBytes.getAndAdd(file.length());